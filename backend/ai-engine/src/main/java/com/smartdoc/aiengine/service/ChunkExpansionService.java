@@ -0,0 +1,545 @@
+package com.smartdoc.aiengine.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 相邻文本块扩展服务（small-to-big）
+ * 检索时按小文本块排序，命中后再扩展到同一章节内的相邻文本块，答案被分片切断时能拿到完整上下文，
+ * 因而可以用更小的topK。相邻关系（每个文档按chunk_index排列的文本块ID、token数、偏移、章节路径）
+ * 在入库完成时写入Redis，查询时先读本地缓存，Redis中没有时（旧数据）从Elasticsearch重建
+ */
+@Slf4j
+@Service
+public class ChunkExpansionService {
+
+    private static final String ADJACENCY_KEY = "chunk:adjacency:";
+
+    @Autowired(required = false)
+    private RedisTemplate<String, Object> redisTemplate;
+
+    @Autowired(required = false)
+    private ElasticsearchService elasticsearchService;
+
+    @Autowired
+    private TokenizerService tokenizerService;
+
+    @Value("${ai.retrieval.expansion.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 扩展模式下检索的文本块数
+     */
+    @Value("${ai.retrieval.expansion.top-k:3}")
+    private int topK;
+
+    /**
+     * 所有命中扩展后的token总预算（含命中文本块本身）
+     */
+    @Value("${ai.retrieval.expansion.token-budget:2048}")
+    private int tokenBudget;
+
+    /**
+     * 单个命中最多扩展到的token数
+     */
+    @Value("${ai.retrieval.expansion.max-tokens-per-hit:1024}")
+    private int maxTokensPerHit;
+
+    /**
+     * 每侧最多扩展的文本块数（整个章节放得下时不受此限制）
+     */
+    @Value("${ai.retrieval.expansion.max-neighbors:2}")
+    private int maxNeighbors;
+
+    @Value("${ai.retrieval.expansion.adjacency-ttl-hours:168}")
+    private long adjacencyTtlHours;
+
+    /**
+     * 本地缓存时间，过期后重新读取Redis（文档重新入库后相邻关系随之更新）
+     */
+    @Value("${ai.retrieval.expansion.local-cache-ttl-ms:60000}")
+    private long localCacheTtlMillis;
+
+    @Value("${ai.retrieval.expansion.local-cache-max-size:1000}")
+    private int localCacheMaxSize;
+
+    @Value("${ai.chunking.max-tokens:480}")
+    private int chunkMaxTokens;
+
+    private Map<Long, Adjacency> localCache;
+
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong expandedChunks = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        localCache = Collections.synchronizedMap(new LinkedHashMap<Long, Adjacency>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Adjacency> eldest) {
+                return size() > localCacheMaxSize;
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 扩展模式下检索的文本块数
+     */
+    public int getTopK() {
+        return topK;
+    }
+
+    /**
+     * 保存文档的相邻关系（入库完成时调用）
+     * @param documentId 文档ID（索引ID）
+     * @param positions 文档的全部文本块，顺序不限
+     */
+    public void saveAdjacency(Long documentId, List<ChunkPosition> positions) {
+        List<ChunkPosition> ordered = new ArrayList<>(positions);
+        ordered.sort(Comparator.comparingInt(ChunkPosition::getChunkIndex));
+        Adjacency adjacency = new Adjacency(ordered);
+        localCache.put(documentId, adjacency);
+        if (redisTemplate == null) {
+            return;
+        }
+        try {
+            redisTemplate.opsForValue().set(ADJACENCY_KEY + documentId, adjacency.toMap(),
+                    adjacencyTtlHours, TimeUnit.HOURS);
+            log.info("文本块相邻关系已保存: documentId={}, 文本块数={}", documentId, ordered.size());
+        } catch (Exception e) {
+            log.warn("保存文本块相邻关系失败，查询时将从Elasticsearch重建: documentId={}", documentId, e);
+        }
+    }
+
+    /**
+     * 删除文档的相邻关系
+     */
+    public void deleteAdjacency(Long documentId) {
+        localCache.remove(documentId);
+        if (redisTemplate == null) {
+            return;
+        }
+        try {
+            redisTemplate.delete(ADJACENCY_KEY + documentId);
+        } catch (Exception e) {
+            log.warn("删除文本块相邻关系失败: documentId={}", documentId, e);
+        }
+    }
+
+    /**
+     * 把命中的文本块扩展到相邻文本块
+     * 按排名依次扩展：优先取整个章节（同一章节路径的连续文本块），放不下时向两侧逐块扩展，
+     * 不跨越章节且不超过token预算；扩展范围重叠或相接的命中合并为一条结果，保留排名靠前者的ID和分数
+     * @param results 检索结果（按排名排序）
+     * @return 扩展后的结果，每条内容按文档顺序拼接并去掉相邻文本块的重叠部分
+     */
+    public List<MilvusService.SearchResult> expand(List<MilvusService.SearchResult> results) {
+        if (!enabled || results == null || results.isEmpty()) {
+            return results;
+        }
+
+        int remaining = tokenBudget;
+        List<Window> windows = new ArrayList<>();
+        Map<Long, Adjacency> adjacencies = new HashMap<>();
+        for (MilvusService.SearchResult result : results) {
+            Adjacency adjacency = result.getDocumentId() == null ? null
+                    : adjacencies.computeIfAbsent(result.getDocumentId(), this::getAdjacency);
+            Integer position = adjacency != null ? adjacency.positions.get(result.getChunkId()) : null;
+            if (position == null) {
+                // 没有相邻关系（文档未登记或文本块已被替换），原样保留
+                windows.add(new Window(result, null, -1, -1));
+                remaining -= tokenizerService.count(result.getContent());
+                continue;
+            }
+
+            Window merged = findWindow(windows, adjacency, position);
+            if (merged != null) {
+                // 已被排名更靠前的命中覆盖
+                continue;
+            }
+            Window window = new Window(result, adjacency, position, position);
+            remaining -= adjacency.tokens(position, chunkMaxTokens);
+            remaining = grow(window, windows, remaining);
+            windows.add(window);
+        }
+
+        List<MilvusService.SearchResult> expanded = materialize(windows);
+        log.info("相邻文本块扩展完成: 命中数={}, 结果数={}, 剩余token预算={}", results.size(), expanded.size(), remaining);
+        return expanded;
+    }
+
+    /**
+     * 获取扩展统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localCacheSize", localCache.size());
+        stats.put("localHits", localHits.get());
+        stats.put("redisHits", redisHits.get());
+        stats.put("rebuilds", rebuilds.get());
+        stats.put("expandedChunks", expandedChunks.get());
+        return stats;
+    }
+
+    /**
+     * 在预算内扩展窗口：整个章节放得下时直接取整个章节，否则向两侧交替逐块扩展（先向后）
+     * @param remaining 总预算剩余
+     * @return 扩展后的总预算剩余
+     */
+    private int grow(Window window, List<Window> windows, int remaining) {
+        Adjacency adjacency = window.adjacency;
+        int position = window.first;
+        int used = adjacency.tokens(position, chunkMaxTokens);
+        int sectionFirst;
+        int sectionLast;
+        boolean wholeSection = false;
+        if (adjacency.hasSection(position)) {
+            sectionFirst = adjacency.sectionFirst(position);
+            sectionLast = adjacency.sectionLast(position);
+            int sectionTokens = 0;
+            for (int i = sectionFirst; i <= sectionLast && sectionTokens <= maxTokensPerHit; i++) {
+                sectionTokens += adjacency.tokens(i, chunkMaxTokens);
+            }
+            wholeSection = sectionTokens <= maxTokensPerHit && sectionTokens - used <= remaining;
+        } else {
+            // 没有标题的文档只向两侧扩展固定块数
+            sectionFirst = Math.max(0, position - maxNeighbors);
+            sectionLast = Math.min(adjacency.chunkIds.size() - 1, position + maxNeighbors);
+        }
+        int limit = wholeSection ? Integer.MAX_VALUE : maxNeighbors;
+
+        int before = 0;
+        int after = 0;
+        boolean canGrowAfter = true;
+        boolean canGrowBefore = true;
+        while (canGrowAfter || canGrowBefore) {
+            if (canGrowAfter) {
+                int next = window.last + 1;
+                canGrowAfter = after < limit && next <= sectionLast && !covered(windows, adjacency, next);
+                if (canGrowAfter) {
+                    int tokens = adjacency.tokens(next, chunkMaxTokens);
+                    canGrowAfter = used + tokens <= maxTokensPerHit && tokens <= remaining;
+                    if (canGrowAfter) {
+                        window.last = next;
+                        used += tokens;
+                        remaining -= tokens;
+                        after++;
+                    }
+                }
+            }
+            if (canGrowBefore) {
+                int previous = window.first - 1;
+                canGrowBefore = before < limit && previous >= sectionFirst && !covered(windows, adjacency, previous);
+                if (canGrowBefore) {
+                    int tokens = adjacency.tokens(previous, chunkMaxTokens);
+                    canGrowBefore = used + tokens <= maxTokensPerHit && tokens <= remaining;
+                    if (canGrowBefore) {
+                        window.first = previous;
+                        used += tokens;
+                        remaining -= tokens;
+                        before++;
+                    }
+                }
+            }
+        }
+        expandedChunks.addAndGet(before + after);
+        return remaining;
+    }
+
+    /**
+     * 包含指定文本块的已有窗口
+     */
+    private Window findWindow(List<Window> windows, Adjacency adjacency, int position) {
+        for (Window window : windows) {
+            if (window.adjacency == adjacency && position >= window.first && position <= window.last) {
+                return window;
+            }
+        }
+        return null;
+    }
+
+    private boolean covered(List<Window> windows, Adjacency adjacency, int position) {
+        return findWindow(windows, adjacency, position) != null;
+    }
+
+    /**
+     * 取回窗口内文本块的内容并拼接；相接的窗口合并，命中文本块本身沿用检索结果中的内容
+     */
+    private List<MilvusService.SearchResult> materialize(List<Window> windows) {
+        // 同一文档中首尾相接的窗口合并到排名靠前的窗口
+        for (int i = 0; i < windows.size(); i++) {
+            Window window = windows.get(i);
+            if (window.adjacency == null) {
+                continue;
+            }
+            for (int j = i + 1; j < windows.size(); j++) {
+                Window other = windows.get(j);
+                if (other.adjacency == window.adjacency
+                        && (other.first == window.last + 1 || other.last + 1 == window.first)) {
+                    window.first = Math.min(window.first, other.first);
+                    window.last = Math.max(window.last, other.last);
+                    windows.remove(j);
+                    j = i;
+                }
+            }
+        }
+
+        Set<String> missing = new LinkedHashSet<>();
+        for (Window window : windows) {
+            for (int i = window.first; window.adjacency != null && i <= window.last; i++) {
+                String chunkId = window.adjacency.chunkIds.get(i);
+                if (!chunkId.equals(window.hit.getChunkId())) {
+                    missing.add(chunkId);
+                }
+            }
+        }
+        Map<String, String> contents = new HashMap<>();
+        if (!missing.isEmpty() && elasticsearchService != null) {
+            contents.putAll(elasticsearchService.getChunkContents(missing));
+        }
+
+        List<MilvusService.SearchResult> expanded = new ArrayList<>(windows.size());
+        for (Window window : windows) {
+            if (window.adjacency == null || window.first == window.last) {
+                expanded.add(window.hit);
+                continue;
+            }
+            Adjacency adjacency = window.adjacency;
+            StringBuilder content = new StringBuilder();
+            int previousEnd = -1;
+            for (int i = window.first; i <= window.last; i++) {
+                String chunkId = adjacency.chunkIds.get(i);
+                String text = chunkId.equals(window.hit.getChunkId()) ? window.hit.getContent() : contents.get(chunkId);
+                if (text == null) {
+                    // 内容缺失（索引正在更新），断开偏移衔接
+                    previousEnd = -1;
+                    continue;
+                }
+                int start = adjacency.startOffsets.get(i);
+                if (previousEnd >= 0 && start >= 0 && start < previousEnd) {
+                    // 相邻文本块按整句重叠，去掉已输出的部分
+                    text = text.substring(Math.min(previousEnd - start, text.length()));
+                } else if (content.length() > 0) {
+                    content.append('\n');
+                }
+                content.append(text);
+                previousEnd = adjacency.endOffsets.get(i);
+            }
+            expanded.add(new MilvusService.SearchResult(window.hit.getDocumentId(), window.hit.getChunkId(),
+                    content.toString(), window.hit.getScore()));
+        }
+        return expanded;
+    }
+
+    /**
+     * 获取文档的相邻关系：本地缓存 → Redis → 从Elasticsearch重建
+     */
+    @SuppressWarnings("unchecked")
+    private Adjacency getAdjacency(Long documentId) {
+        Adjacency adjacency = localCache.get(documentId);
+        if (adjacency != null && adjacency.loadedAt + localCacheTtlMillis > System.currentTimeMillis()) {
+            localHits.incrementAndGet();
+            return adjacency;
+        }
+
+        if (redisTemplate != null) {
+            try {
+                Object stored = redisTemplate.opsForValue().get(ADJACENCY_KEY + documentId);
+                if (stored instanceof Map) {
+                    adjacency = Adjacency.fromMap((Map<String, Object>) stored);
+                    localCache.put(documentId, adjacency);
+                    redisHits.incrementAndGet();
+                    return adjacency;
+                }
+            } catch (Exception e) {
+                log.warn("读取文本块相邻关系失败: documentId={}", documentId, e);
+            }
+        }
+
+        if (elasticsearchService == null) {
+            return null;
+        }
+        List<ChunkPosition> positions = new ArrayList<>();
+        for (Map<String, Object> source : elasticsearchService.getChunkPositions(documentId)) {
+            if (source.get("chunk_id") == null || !(source.get("chunk_index") instanceof Number)) {
+                continue;
+            }
+            positions.add(new ChunkPosition((String) source.get("chunk_id"),
+                    ((Number) source.get("chunk_index")).intValue(),
+                    intValue(source.get("start_offset")), intValue(source.get("end_offset")),
+                    intValue(source.get("token_count")), (String) source.get("heading_path")));
+        }
+        if (positions.isEmpty()) {
+            return null;
+        }
+        rebuilds.incrementAndGet();
+        saveAdjacency(documentId, positions);
+        return localCache.get(documentId);
+    }
+
+    private static int intValue(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : -1;
+    }
+
+    /**
+     * 文本块位置（构建相邻关系的输入）
+     */
+    public static class ChunkPosition {
+        private final String chunkId;
+        private final int chunkIndex;
+        private final int startOffset;
+        private final int endOffset;
+        private final int tokenCount;
+        private final String headingPath;
+
+        /**
+         * @param startOffset 未知时为-1
+         * @param endOffset 未知时为-1
+         * @param tokenCount 未知时为-1
+         */
+        public ChunkPosition(String chunkId, int chunkIndex, int startOffset, int endOffset,
+                             int tokenCount, String headingPath) {
+            this.chunkId = chunkId;
+            this.chunkIndex = chunkIndex;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.tokenCount = tokenCount;
+            this.headingPath = headingPath != null ? headingPath : "";
+        }
+
+        public String getChunkId() {
+            return chunkId;
+        }
+
+        public int getChunkIndex() {
+            return chunkIndex;
+        }
+    }
+
+    /**
+     * 一个文档的相邻关系：按文档顺序排列的文本块
+     */
+    private static class Adjacency {
+        private final List<String> chunkIds;
+        private final List<Integer> startOffsets;
+        private final List<Integer> endOffsets;
+        private final List<Integer> tokenCounts;
+        private final List<String> headingPaths;
+        private final Map<String, Integer> positions;
+        private final long loadedAt = System.currentTimeMillis();
+
+        Adjacency(List<ChunkPosition> ordered) {
+            this(new ArrayList<>(ordered.size()), new ArrayList<>(ordered.size()), new ArrayList<>(ordered.size()),
+                    new ArrayList<>(ordered.size()), new ArrayList<>(ordered.size()));
+            for (ChunkPosition position : ordered) {
+                chunkIds.add(position.chunkId);
+                startOffsets.add(position.startOffset);
+                endOffsets.add(position.endOffset);
+                tokenCounts.add(position.tokenCount);
+                headingPaths.add(position.headingPath);
+                positions.put(position.chunkId, chunkIds.size() - 1);
+            }
+        }
+
+        private Adjacency(List<String> chunkIds, List<Integer> startOffsets, List<Integer> endOffsets,
+                          List<Integer> tokenCounts, List<String> headingPaths) {
+            this.chunkIds = chunkIds;
+            this.startOffsets = startOffsets;
+            this.endOffsets = endOffsets;
+            this.tokenCounts = tokenCounts;
+            this.headingPaths = headingPaths;
+            this.positions = new HashMap<>(chunkIds.size() * 2);
+            for (int i = 0; i < chunkIds.size(); i++) {
+                positions.put(chunkIds.get(i), i);
+            }
+        }
+
+        /**
+         * 文本块的token数，未知时按分片上限估算
+         */
+        int tokens(int position, int unknownTokens) {
+            int tokens = tokenCounts.get(position);
+            return tokens >= 0 ? tokens : unknownTokens;
+        }
+
+        /**
+         * 是否有章节信息（没有标题的文档不按整个章节扩展）
+         */
+        boolean hasSection(int position) {
+            return !headingPaths.get(position).isEmpty();
+        }
+
+        int sectionFirst(int position) {
+            String heading = headingPaths.get(position);
+            while (position > 0 && headingPaths.get(position - 1).equals(heading)) {
+                position--;
+            }
+            return position;
+        }
+
+        int sectionLast(int position) {
+            String heading = headingPaths.get(position);
+            while (position < chunkIds.size() - 1 && headingPaths.get(position + 1).equals(heading)) {
+                position++;
+            }
+            return position;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("chunkIds", chunkIds);
+            map.put("startOffsets", startOffsets);
+            map.put("endOffsets", endOffsets);
+            map.put("tokenCounts", tokenCounts);
+            map.put("headingPaths", headingPaths);
+            return map;
+        }
+
+        @SuppressWarnings("unchecked")
+        static Adjacency fromMap(Map<String, Object> map) {
+            return new Adjacency(new ArrayList<>((List<String>) map.get("chunkIds")),
+                    toIntegers((List<Object>) map.get("startOffsets")),
+                    toIntegers((List<Object>) map.get("endOffsets")),
+                    toIntegers((List<Object>) map.get("tokenCounts")),
+                    new ArrayList<>((List<String>) map.get("headingPaths")));
+        }
+
+        private static List<Integer> toIntegers(List<Object> values) {
+            List<Integer> integers = new ArrayList<>(values.size());
+            for (Object value : values) {
+                integers.add(intValue(value));
+            }
+            return integers;
+        }
+    }
+
+    /**
+     * 一个命中的扩展范围（相邻关系中的位置，首尾都包含）
+     */
+    private static class Window {
+        private final MilvusService.SearchResult hit;
+        private final Adjacency adjacency;
+        private int first;
+        private int last;
+
+        Window(MilvusService.SearchResult hit, Adjacency adjacency, int first, int last) {
+            this.hit = hit;
+            this.adjacency = adjacency;
+            this.first = first;
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.smartdoc.aiengine.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 文档摘要路由服务（两级索引的第一级）
+ * 入库时为每个文档生成抽取式摘要（标题、章节标题、开头内容）并写入摘要向量集合；
+ * 跨文档问答时先在有权限的文档摘要中选出最相关的几个文档，再只在这些文档的文本块中检索
+ */
+@Slf4j
+@Service
+public class DocumentSummaryService {
+
+    /**
+     * 摘要中保留的开头文本块数
+     */
+    private static final int LEAD_CHUNKS = 2;
+
+    @Autowired
+    private MilvusService milvusService;
+
+    @Autowired
+    private EmbeddingService embeddingService;
+
+    @Autowired
+    private TokenizerService tokenizerService;
+
+    @Value("${ai.retrieval.routing.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 第一级选出的文档数
+     */
+    @Value("${ai.retrieval.routing.top-documents:5}")
+    private int topDocuments;
+
+    /**
+     * 摘要的token数上限，需小于Embedding模型最大输入长度
+     */
+    @Value("${ai.retrieval.routing.summary-tokens:480}")
+    private int summaryTokens;
+
+    /**
+     * 摘要中最多列出的章节标题数
+     */
+    @Value("${ai.retrieval.routing.max-headings:30}")
+    private int maxHeadings;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 创建摘要收集器，分片阶段按文档顺序传入全部文本块
+     */
+    public SummaryBuilder newBuilder() {
+        return new SummaryBuilder(maxHeadings);
+    }
+
+    /**
+     * 生成并保存文档摘要向量（入库完成时调用）
+     * @param documentId 文档ID（索引ID）
+     */
+    public void saveSummary(Long documentId, String documentTitle, SummaryBuilder builder) {
+        if (!enabled) {
+            return;
+        }
+        String summary = builder.build(documentTitle, summaryTokens, tokenizerService);
+        if (summary.isEmpty()) {
+            return;
+        }
+        milvusService.upsertSummary(documentId, summary, embeddingService.embedText(summary));
+        log.info("文档摘要已保存: documentId={}, 摘要长度={}", documentId, summary.length());
+    }
+
+    /**
+     * 从候选文档中选出与问题最相关的文档
+     * 候选数不超过选出数时直接返回；没有摘要的文档（在摘要功能上线前入库且未重新解析）无法参与路由，总是保留
+     * @param queryVector 问题向量
+     * @param documentIds 有权限的文档ID（索引ID）
+     * @return 选出的文档ID，有摘要的按相关度排序在前，之后是没有摘要的文档
+     */
+    public List<Long> routeDocuments(List<Float> queryVector, Collection<Long> documentIds) {
+        if (documentIds.size() <= topDocuments) {
+            return new ArrayList<>(documentIds);
+        }
+        Set<Long> summarized = milvusService.findSummarized(documentIds);
+        if (summarized == null) {
+            log.warn("查询文档摘要失败，在全部 {} 个文档中检索", documentIds.size());
+            return new ArrayList<>(documentIds);
+        }
+        List<Long> unsummarized = documentIds.stream()
+                .filter(documentId -> !summarized.contains(documentId))
+                .collect(Collectors.toList());
+
+        List<Long> selected = new ArrayList<>();
+        if (!summarized.isEmpty()) {
+            List<MilvusService.SearchResult> results = milvusService.searchSummaries(queryVector, topDocuments, summarized);
+            if (results.isEmpty()) {
+                log.warn("文档摘要检索失败，在全部 {} 个文档中检索", documentIds.size());
+                return new ArrayList<>(documentIds);
+            }
+            for (MilvusService.SearchResult result : results) {
+                selected.add(result.getDocumentId());
+            }
+        }
+        selected.addAll(unsummarized);
+        log.info("文档摘要路由: 候选文档数={}, 有摘要={}, 选出={}, 无摘要保留={}",
+                documentIds.size(), summarized.size(), selected.size() - unsummarized.size(), unsummarized.size());
+        return selected;
+    }
+
+    /**
+     * 删除文档摘要
+     */
+    public void deleteSummary(Long documentId) {
+        milvusService.deleteSummary(documentId);
+    }
+
+    /**
+     * 摘要收集器：记录章节标题和开头的文本块，不保留全文
+     */
+    public static class SummaryBuilder {
+        private final int maxHeadings;
+        private final Set<String> headings = new LinkedHashSet<>();
+        private final StringBuilder lead = new StringBuilder();
+        private int leadChunks;
+
+        SummaryBuilder(int maxHeadings) {
+            this.maxHeadings = maxHeadings;
+        }
+
+        /**
+         * 按文档顺序传入文本块
+         */
+        public void accept(TextPreprocessService.TextChunk chunk) {
+            String path = chunk.getHeadingPath();
+            if (path != null && !path.isEmpty() && headings.size() < maxHeadings) {
+                // 章节路径的最后一级即该章节的标题
+                int separator = path.lastIndexOf(" > ");
+                headings.add(separator >= 0 ? path.substring(separator + 3) : path);
+            }
+            // 开头内容只保留前几个文本块，最终按token上限截断
+            if (leadChunks < LEAD_CHUNKS) {
+                if (lead.length() > 0) {
+                    lead.append('\n');
+                }
+                lead.append(chunk.getContent());
+                leadChunks++;
+            }
+        }
+
+        /**
+         * 组装摘要：标题、章节标题、开头内容，按token上限截断
+         */
+        String build(String documentTitle, int maxTokens, TokenizerService tokenizer) {
+            StringBuilder summary = new StringBuilder();
+            if (documentTitle != null && !documentTitle.isEmpty()) {
+                summary.append("标题：").append(documentTitle).append('\n');
+            }
+            if (!headings.isEmpty()) {
+                summary.append("章节：").append(String.join("；", headings)).append('\n');
+            }
+            if (lead.length() > 0) {
+                summary.append("内容：").append(lead);
+            }
+            String text = summary.toString().trim();
+            int[] ends = tokenizer.tokenEnds(text);
+            return ends.length > maxTokens ? text.substring(0, ends[maxTokens - 1]) : text;
+        }
+    }
+}
@@ -2,27 +2,52 @@ package com.smartdoc.aiengine.service;
 
 import com.alibaba.fastjson2.JSON;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.indices.PutMappingRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
 import org.elasticsearch.xcontent.XContentType;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
@@ -31,10 +56,18 @@ import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Elasticsearch服务
- * 用于关键词/全文检索
+ * 用于关键词/全文检索；文本块写入经共享的BulkProcessor按数量、大小和时间合并成批量请求，
+ * 多个文档的写入合并发送，被限流（429）时退避重试
  */
 @Slf4j
 @Service
@@ -52,6 +85,150 @@ public class ElasticsearchService {
     @Autowired(required = false)
     private RestHighLevelClient elasticsearchClient;
 
+    /**
+     * 累计多少个写入请求发送一次
+     */
+    @Value("${elasticsearch.bulk.actions:1000}")
+    private int bulkActions;
+
+    /**
+     * 累计多大（MB）发送一次
+     */
+    @Value("${elasticsearch.bulk.size-mb:5}")
+    private int bulkSizeMb;
+
+    /**
+     * 未达到数量和大小时最多等待多久发送
+     */
+    @Value("${elasticsearch.bulk.flush-interval-ms:1000}")
+    private long bulkFlushIntervalMs;
+
+    /**
+     * 同时在途的批量请求数，达到后写入方等待
+     */
+    @Value("${elasticsearch.bulk.concurrent-requests:2}")
+    private int bulkConcurrentRequests;
+
+    @Value("${elasticsearch.bulk.backoff-initial-ms:100}")
+    private long bulkBackoffInitialMs;
+
+    @Value("${elasticsearch.bulk.backoff-retries:8}")
+    private int bulkBackoffRetries;
+
+    /**
+     * 回填期间是否关闭索引的定时刷新（refresh_interval=-1），回填结束后恢复
+     */
+    @Value("${elasticsearch.backfill.disable-refresh:true}")
+    private boolean backfillDisableRefresh;
+
+    /**
+     * 回填期间文档完成后最多每隔多久刷新一次索引，使已完成的文档可被检索
+     */
+    @Value("${elasticsearch.backfill.refresh-ms:30000}")
+    private long backfillRefreshMs;
+
+    /**
+     * 最后一个回填文档结束后等待多久恢复刷新，连续回填时避免反复修改索引设置
+     */
+    @Value("${elasticsearch.backfill.restore-delay-ms:10000}")
+    private long backfillRestoreDelayMs;
+
+    /**
+     * 回填实例登记的有效期，回填期间定时续期；实例异常退出后登记过期，不再阻止其他实例恢复刷新
+     */
+    @Value("${elasticsearch.backfill.lease-ms:60000}")
+    private long backfillLeaseMs;
+
+    /**
+     * 多个实例共享回填状态：正在回填的实例（ZSet，分数为登记过期时间）、关闭前的刷新设置、状态切换锁
+     */
+    private static final String BACKFILL_INSTANCES_KEY = "es:backfill:instances:";
+    private static final String BACKFILL_ORIGINAL_KEY = "es:backfill:original:";
+    private static final String BACKFILL_LOCK_KEY = "es:backfill:lock:";
+
+    private static final DefaultRedisScript<Long> RELEASE_LOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    @Autowired(required = false)
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    /**
+     * 按文档删除索引（delete_by_query）的超时时间，大文档的文本块较多
+     */
+    @Value("${elasticsearch.delete-timeout-ms:600000}")
+    private long deleteTimeoutMs;
+
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+
+    /**
+     * 按文档读取文本块位置时每页的条数
+     */
+    private static final int POSITIONS_PAGE_SIZE = 1000;
+
+    private BulkProcessor bulkProcessor;
+
+    /**
+     * 已提交、尚未收到响应的写入：文本块ID → 所属批次（同一ID重复提交时按提交顺序排队）
+     * 响应按文本块ID对应到批次：退避重试后响应条目的顺序与请求顺序不一致
+     */
+    private final Map<String, Deque<PendingBatch>> pendingWrites = new HashMap<>();
+
+    private final ScheduledExecutorService refreshScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-refresh-restore");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 本实例进行中的回填文档数，以下字段在this上同步
+     */
+    private int backfills;
+    private ScheduledFuture<?> pendingRestore;
+    private ScheduledFuture<?> backfillHeartbeat;
+    /**
+     * 未配置Redis时只在本实例内记录关闭前的刷新设置
+     */
+    private String localOriginal;
+    private volatile boolean refreshDisabled;
+    private volatile long lastRefreshTime;
+
+    /**
+     * 文本块元数据字段，索引已存在时也会补充到映射中
+     */
+    private static final String METADATA_PROPERTIES = "{\n" +
+            "  \"properties\": {\n" +
+            "    \"content_hash\": {\n" +
+            "      \"type\": \"keyword\"\n" +
+            "    },\n" +
+            "    \"start_offset\": {\n" +
+            "      \"type\": \"integer\"\n" +
+            "    },\n" +
+            "    \"end_offset\": {\n" +
+            "      \"type\": \"integer\"\n" +
+            "    },\n" +
+            "    \"page_start\": {\n" +
+            "      \"type\": \"integer\"\n" +
+            "    },\n" +
+            "    \"page_end\": {\n" +
+            "      \"type\": \"integer\"\n" +
+            "    },\n" +
+            "    \"heading_path\": {\n" +
+            "      \"type\": \"text\",\n" +
+            "      \"analyzer\": \"ik_max_word\",\n" +
+            "      \"search_analyzer\": \"ik_smart\"\n" +
+            "    },\n" +
+            "    \"token_count\": {\n" +
+            "      \"type\": \"integer\"\n" +
+            "    },\n" +
+            "    \"sim_hash\": {\n" +
+            "      \"type\": \"long\"\n" +
+            "    }\n" +
+            "  }\n" +
+            "}";
+
     private static final String MAPPING = "{\n" +
             "  \"mappings\": {\n" +
             "    \"properties\": {\n" +
@@ -91,11 +268,36 @@ public class ElasticsearchService {
             return;
         }
         createIndexIfNotExists();
+        bulkProcessor = BulkProcessor.builder(
+                        (request, listener) -> elasticsearchClient.bulkAsync(request, RequestOptions.DEFAULT, listener),
+                        new BulkListener(), "es-bulk")
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setFlushInterval(TimeValue.timeValueMillis(bulkFlushIntervalMs))
+                .setConcurrentRequests(bulkConcurrentRequests)
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(
+                        TimeValue.timeValueMillis(bulkBackoffInitialMs), bulkBackoffRetries))
+                .build();
+        log.info("Elasticsearch批量写入: actions={}, sizeMb={}, flushIntervalMs={}, concurrentRequests={}",
+                bulkActions, bulkSizeMb, bulkFlushIntervalMs, bulkConcurrentRequests);
     }
 
     @PreDestroy
     public void destroy() {
+        refreshScheduler.shutdownNow();
         if (elasticsearchClient != null) {
+            try {
+                if (bulkProcessor != null) {
+                    bulkProcessor.awaitClose(30, TimeUnit.SECONDS);
+                }
+                synchronized (this) {
+                    if (refreshDisabled) {
+                        restoreIfLast();
+                    }
+                }
+            } catch (Exception e) {
+                log.error("关闭Elasticsearch批量写入失败", e);
+            }
             try {
                 elasticsearchClient.close();
             } catch (IOException e) {
@@ -130,6 +332,14 @@ public class ElasticsearchService {
             } else {
                 log.info("Elasticsearch索引 {} 已存在", indexName);
             }
+            // 新增字段只能追加到映射，对已有索引重复执行无副作用
+            PutMappingRequest mappingRequest = new PutMappingRequest(indexName);
+            mappingRequest.source(METADATA_PROPERTIES, XContentType.JSON);
+            elasticsearchClient.indices().putMapping(mappingRequest, RequestOptions.DEFAULT);
+            // 上次进程在回填期间退出，刷新未恢复（其他实例仍在回填时保持关闭）
+            if ("-1".equals(getRefreshInterval()) && restoreIfLast()) {
+                log.warn("Elasticsearch索引 {} 的定时刷新处于关闭状态且没有实例在回填，已恢复", indexName);
+            }
         } catch (Exception e) {
             log.error("创建Elasticsearch索引失败", e);
         }
@@ -137,52 +347,338 @@ public class ElasticsearchService {
 
     /**
      * 批量索引文档块
+     * 写入请求交给共享的BulkProcessor，与其他文档的写入合并发送
+     * @return 这批文本块全部写入（或失败）后完成；未配置客户端时直接完成
      */
-    public void indexChunks(Long documentId, String documentTitle, 
-                           List<TextPreprocessService.TextChunk> chunks) {
+    public CompletableFuture<Void> indexChunks(Long documentId, String documentTitle,
+                                               List<TextPreprocessService.TextChunk> chunks) {
         if (elasticsearchClient == null) {
             log.warn("Elasticsearch客户端未配置，跳过索引构建");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        PendingBatch batch = new PendingBatch(documentId, chunks.size());
+        String currentDate = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        for (TextPreprocessService.TextChunk chunk : chunks) {
+            IndexRequest indexRequest = new IndexRequest(indexName).id(chunk.getChunkId());
+            try {
+                indexRequest.source(chunkSource(documentId, documentTitle, currentDate, chunk));
+                // 先登记再提交：响应可能在add返回前到达
+                trackWrite(chunk.getChunkId(), batch);
+                bulkProcessor.add(indexRequest);
+            } catch (Exception e) {
+                untrackWrite(chunk.getChunkId(), batch);
+                log.error("索引文档块到Elasticsearch失败", e);
+                batch.future.completeExceptionally(e);
+                break;
+            }
+        }
+        return batch.future;
+    }
+
+    private void trackWrite(String chunkId, PendingBatch batch) {
+        synchronized (pendingWrites) {
+            pendingWrites.computeIfAbsent(chunkId, k -> new ArrayDeque<>()).add(batch);
+        }
+    }
+
+    private void untrackWrite(String chunkId, PendingBatch batch) {
+        synchronized (pendingWrites) {
+            Deque<PendingBatch> batches = pendingWrites.get(chunkId);
+            if (batches != null && batches.removeLastOccurrence(batch) && batches.isEmpty()) {
+                pendingWrites.remove(chunkId);
+            }
+        }
+    }
+
+    /**
+     * 取出文本块最早提交的一次写入所属的批次
+     */
+    private PendingBatch takeWrite(String chunkId) {
+        synchronized (pendingWrites) {
+            Deque<PendingBatch> batches = pendingWrites.get(chunkId);
+            if (batches == null) {
+                return null;
+            }
+            PendingBatch batch = batches.poll();
+            if (batches.isEmpty()) {
+                pendingWrites.remove(chunkId);
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * 立即发送已累计的写入请求，不等待时间间隔（文档写完后调用）
+     */
+    public void flush() {
+        if (bulkProcessor != null) {
+            bulkProcessor.flush();
+        }
+    }
+
+    /**
+     * 文本块的索引内容，直接序列化为JSON
+     */
+    private XContentBuilder chunkSource(Long documentId, String documentTitle, String date,
+                                        TextPreprocessService.TextChunk chunk) throws IOException {
+        XContentBuilder source = XContentFactory.jsonBuilder().startObject()
+                .field("chunk_id", chunk.getChunkId())
+                .field("document_id", documentId)
+                .field("content", chunk.getContent())
+                .field("title", documentTitle)
+                .field("date", date)
+                .field("content_hash", chunk.getContentHash())
+                .field("chunk_index", chunk.getChunkIndex())
+                .field("start_offset", chunk.getStartOffset())
+                .field("end_offset", chunk.getEndOffset())
+                .field("page_start", chunk.getPageStart())
+                .field("page_end", chunk.getPageEnd())
+                .field("heading_path", chunk.getHeadingPath())
+                .field("token_count", chunk.getTokenCount())
+                .field("sim_hash", chunk.getSimHash())
+                // 提取关键实体（简化实现，实际可以使用NER模型）
+                .field("entity", extractEntities(chunk.getContent()));
+        return source.endObject();
+    }
+
+    /**
+     * 开始回填：第一个回填文档开始时关闭索引的定时刷新，批量写入不再频繁生成小段
+     * 多个实例同时回填时，关闭前的设置只由最先关闭的实例保存，最后一个结束的实例恢复
+     */
+    public synchronized void beginBackfill() {
+        if (elasticsearchClient == null || !backfillDisableRefresh) {
+            return;
+        }
+        backfills++;
+        if (pendingRestore != null) {
+            pendingRestore.cancel(false);
+            pendingRestore = null;
+        }
+        if (refreshDisabled) {
+            return;
+        }
+        try {
+            String original = withBackfillLock(() -> {
+                joinBackfill();
+                String current = getRefreshInterval();
+                // 当前为-1时是其他实例关闭的（或上次未恢复），不能作为原设置保存
+                saveOriginal("-1".equals(current) ? null : current);
+                updateRefreshInterval("-1");
+                return current;
+            });
+            refreshDisabled = true;
+            if (stringRedisTemplate != null) {
+                long period = Math.max(1000, backfillLeaseMs / 3);
+                backfillHeartbeat = refreshScheduler.scheduleWithFixedDelay(this::renewBackfill,
+                        period, period, TimeUnit.MILLISECONDS);
+            }
+            log.info("回填开始，关闭Elasticsearch索引 {} 的定时刷新（当前设置: {}）", indexName,
+                    original != null ? original : "默认");
+        } catch (Exception e) {
+            log.warn("关闭Elasticsearch定时刷新失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 结束回填：本实例最后一个回填文档结束一段时间后退出回填，没有其他实例在回填时恢复定时刷新
+     */
+    public synchronized void endBackfill() {
+        if (elasticsearchClient == null || !backfillDisableRefresh) {
             return;
         }
+        if (--backfills > 0 || !refreshDisabled || pendingRestore != null) {
+            return;
+        }
+        pendingRestore = refreshScheduler.schedule(this::restoreRefresh, backfillRestoreDelayMs, TimeUnit.MILLISECONDS);
+    }
 
+    private synchronized void restoreRefresh() {
+        pendingRestore = null;
+        if (backfills > 0 || !refreshDisabled) {
+            return;
+        }
         try {
-            BulkRequest bulkRequest = new BulkRequest();
-            String currentDate = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            
-            for (TextPreprocessService.TextChunk chunk : chunks) {
-                Map<String, Object> source = new HashMap<>();
-                source.put("chunk_id", chunk.getChunkId());
-                source.put("document_id", documentId);
-                source.put("content", chunk.getContent());
-                source.put("title", documentTitle);
-                source.put("chunk_index", chunk.getChunkIndex());
-                source.put("date", currentDate);
-                
-                // 提取关键实体（简化实现，实际可以使用NER模型）
-                List<String> entities = extractEntities(chunk.getContent());
-                source.put("entity", entities);
-                
-                IndexRequest indexRequest = new IndexRequest(indexName)
-                        .id(chunk.getChunkId())
-                        .source(source);
-                bulkRequest.add(indexRequest);
+            boolean restored = restoreIfLast();
+            refreshDisabled = false;
+            if (backfillHeartbeat != null) {
+                backfillHeartbeat.cancel(false);
+                backfillHeartbeat = null;
             }
-            
-            BulkResponse bulkResponse = elasticsearchClient.bulk(bulkRequest, RequestOptions.DEFAULT);
-            if (bulkResponse.hasFailures()) {
-                log.error("批量索引失败: {}", bulkResponse.buildFailureMessage());
+            if (restored) {
+                refresh();
+                log.info("回填结束，恢复Elasticsearch索引 {} 的定时刷新", indexName);
             } else {
-                log.info("成功索引 {} 个文档块到Elasticsearch", chunks.size());
+                log.info("本实例回填结束，其他实例仍在回填，Elasticsearch索引 {} 保持关闭定时刷新", indexName);
+            }
+        } catch (Exception e) {
+            log.warn("恢复Elasticsearch定时刷新失败，稍后重试: {}", e.getMessage());
+            pendingRestore = refreshScheduler.schedule(this::restoreRefresh, backfillRestoreDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 本实例退出回填；没有其他实例在回填时恢复关闭前的刷新设置
+     * @return 是否已恢复
+     */
+    private boolean restoreIfLast() throws Exception {
+        return withBackfillLock(() -> {
+            leaveBackfill();
+            if (hasOtherBackfills()) {
+                return false;
+            }
+            updateRefreshInterval(takeOriginal());
+            return true;
+        });
+    }
+
+    /**
+     * 在回填状态锁内执行（切换刷新设置和读写共享状态需要原子进行）
+     */
+    private <T> T withBackfillLock(Callable<T> action) throws Exception {
+        if (stringRedisTemplate == null) {
+            return action.call();
+        }
+        String lockKey = BACKFILL_LOCK_KEY + indexName;
+        String token = UUID.randomUUID().toString();
+        for (int attempt = 0; !Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                .setIfAbsent(lockKey, token, 30, TimeUnit.SECONDS)); attempt++) {
+            if (attempt >= 50) {
+                throw new IllegalStateException("获取回填状态锁超时");
+            }
+            Thread.sleep(100);
+        }
+        try {
+            return action.call();
+        } finally {
+            stringRedisTemplate.execute(RELEASE_LOCK_SCRIPT, Collections.singletonList(lockKey), token);
+        }
+    }
+
+    private void joinBackfill() {
+        if (stringRedisTemplate != null) {
+            stringRedisTemplate.opsForZSet().add(BACKFILL_INSTANCES_KEY + indexName, instanceId,
+                    System.currentTimeMillis() + backfillLeaseMs);
+        }
+    }
+
+    private void renewBackfill() {
+        try {
+            joinBackfill();
+        } catch (Exception e) {
+            log.warn("回填登记续期失败: {}", e.getMessage());
+        }
+    }
+
+    private void leaveBackfill() {
+        if (stringRedisTemplate != null) {
+            stringRedisTemplate.opsForZSet().remove(BACKFILL_INSTANCES_KEY + indexName, instanceId);
+        }
+    }
+
+    /**
+     * 是否有其他实例在回填（先清除已过期的登记）
+     */
+    private boolean hasOtherBackfills() {
+        if (stringRedisTemplate == null) {
+            return false;
+        }
+        String key = BACKFILL_INSTANCES_KEY + indexName;
+        stringRedisTemplate.opsForZSet().removeRangeByScore(key, 0, System.currentTimeMillis());
+        Long size = stringRedisTemplate.opsForZSet().zCard(key);
+        return size != null && size > 0;
+    }
+
+    /**
+     * 保存关闭前的刷新设置，已有保存值时不覆盖
+     * @param value 刷新设置，null表示默认值
+     */
+    private void saveOriginal(String value) {
+        if (stringRedisTemplate == null) {
+            if (!"-1".equals(value) && localOriginal == null) {
+                localOriginal = value;
             }
+            return;
+        }
+        stringRedisTemplate.opsForValue().setIfAbsent(BACKFILL_ORIGINAL_KEY + indexName, value != null ? value : "");
+    }
+
+    /**
+     * 取出并清除关闭前的刷新设置，null表示默认值
+     */
+    private String takeOriginal() {
+        if (stringRedisTemplate == null) {
+            String value = localOriginal;
+            localOriginal = null;
+            return value;
+        }
+        String key = BACKFILL_ORIGINAL_KEY + indexName;
+        String value = stringRedisTemplate.opsForValue().get(key);
+        stringRedisTemplate.delete(key);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * 文档写入完成后调用：定时刷新关闭期间手动刷新，使文档可被检索
+     * @param immediate 是否立即刷新（交互式任务）；否则距上次刷新不足间隔时跳过
+     */
+    public void refreshAfterIndexing(boolean immediate) {
+        if (!refreshDisabled) {
+            return;
+        }
+        if (!immediate && System.currentTimeMillis() - lastRefreshTime < backfillRefreshMs) {
+            return;
+        }
+        try {
+            refresh();
         } catch (Exception e) {
-            log.error("索引文档块到Elasticsearch失败", e);
+            log.warn("刷新Elasticsearch索引失败: {}", e.getMessage());
+        }
+    }
+
+    private void refresh() throws IOException {
+        lastRefreshTime = System.currentTimeMillis();
+        elasticsearchClient.indices().refresh(new RefreshRequest(indexName), RequestOptions.DEFAULT);
+    }
+
+    /**
+     * 读取索引的刷新间隔设置，未设置（使用默认值）时返回null
+     */
+    private String getRefreshInterval() throws IOException {
+        GetSettingsRequest request = new GetSettingsRequest().indices(indexName).names(REFRESH_INTERVAL);
+        return elasticsearchClient.indices().getSettings(request, RequestOptions.DEFAULT)
+                .getSetting(indexName, REFRESH_INTERVAL);
+    }
+
+    /**
+     * 修改索引的刷新间隔，为null时恢复默认值
+     */
+    private void updateRefreshInterval(String value) throws IOException {
+        Settings.Builder settings = Settings.builder();
+        if (value != null) {
+            settings.put(REFRESH_INTERVAL, value);
+        } else {
+            settings.putNull(REFRESH_INTERVAL);
         }
+        elasticsearchClient.indices().putSettings(new UpdateSettingsRequest(indexName).settings(settings),
+                RequestOptions.DEFAULT);
     }
 
     /**
      * 关键词检索
      */
     public List<SearchResult> keywordSearch(String query, Long documentId, int topK) {
+        return keywordSearch(query, documentId != null ? Collections.singletonList(documentId) : null, topK);
+    }
+
+    /**
+     * 关键词检索（限定在一组文档内）
+     * @param documentIds 文档ID（索引ID）集合，为null时不过滤
+     */
+    public List<SearchResult> keywordSearch(String query, Collection<Long> documentIds, int topK) {
+        if (documentIds != null && documentIds.isEmpty()) {
+            return Collections.emptyList();
+        }
         if (elasticsearchClient == null) {
             log.warn("Elasticsearch客户端未配置，返回空结果");
             return Collections.emptyList();
@@ -196,13 +692,13 @@ public class ElasticsearchService {
             BoolQueryBuilder boolQuery = QueryBuilders.boolQuery();
             
             // 关键词查询（使用multi_match，支持多字段）
-            boolQuery.must(QueryBuilders.multiMatchQuery(query, "content", "title")
+            boolQuery.must(QueryBuilders.multiMatchQuery(query, "content", "title", "heading_path")
                     .type(org.elasticsearch.index.query.MultiMatchQueryBuilder.Type.BEST_FIELDS)
                     .boost(2.0f));
             
             // 如果指定了文档ID，添加过滤条件
-            if (documentId != null) {
-                boolQuery.filter(QueryBuilders.termQuery("document_id", documentId));
+            if (documentIds != null) {
+                boolQuery.filter(QueryBuilders.termsQuery("document_id", documentIds));
             }
             
             sourceBuilder.query(boolQuery);
@@ -234,38 +730,176 @@ public class ElasticsearchService {
     }
 
     /**
-     * 删除文档的所有索引
+     * 按序号获取文档所有文本块的位置信息（不含内容），用于构建相邻关系
+     * 按(chunk_index, chunk_id)排序用search_after分页读取，文本块数不受index.max_result_window限制
+     * @return 每个文本块的chunk_id、chunk_index、偏移、token数和章节路径，按chunk_index升序
      */
-    public void deleteByDocumentId(Long documentId) {
+    public List<Map<String, Object>> getChunkPositions(Long documentId) {
         if (elasticsearchClient == null) {
-            return;
+            return Collections.emptyList();
         }
 
         try {
-            SearchRequest searchRequest = new SearchRequest(indexName);
-            SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
-            sourceBuilder.query(QueryBuilders.termQuery("document_id", documentId));
-            sourceBuilder.size(10000); // 获取所有匹配的文档
-            
-            searchRequest.source(sourceBuilder);
-            SearchResponse searchResponse = elasticsearchClient.search(searchRequest, RequestOptions.DEFAULT);
-            
-            BulkRequest bulkRequest = new BulkRequest();
-            for (SearchHit hit : searchResponse.getHits().getHits()) {
-                DeleteRequest deleteRequest = new DeleteRequest(indexName, hit.getId());
-                bulkRequest.add(deleteRequest);
+            List<Map<String, Object>> positions = new ArrayList<>();
+            Object[] searchAfter = null;
+            while (true) {
+                SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                        .query(QueryBuilders.termQuery("document_id", documentId))
+                        .fetchSource(new String[]{"chunk_id", "chunk_index", "start_offset", "end_offset",
+                                "token_count", "heading_path"}, null)
+                        .sort("chunk_index", SortOrder.ASC)
+                        .sort("chunk_id", SortOrder.ASC)
+                        .size(POSITIONS_PAGE_SIZE)
+                        .trackTotalHits(false);
+                if (searchAfter != null) {
+                    sourceBuilder.searchAfter(searchAfter);
+                }
+                SearchHit[] hits = elasticsearchClient.search(
+                        new SearchRequest(indexName).source(sourceBuilder), RequestOptions.DEFAULT).getHits().getHits();
+                for (SearchHit hit : hits) {
+                    positions.add(hit.getSourceAsMap());
+                }
+                if (hits.length < POSITIONS_PAGE_SIZE) {
+                    return positions;
+                }
+                searchAfter = hits[hits.length - 1].getSortValues();
             }
-            
-            if (bulkRequest.numberOfActions() > 0) {
-                BulkResponse bulkResponse = elasticsearchClient.bulk(bulkRequest, RequestOptions.DEFAULT);
-                if (bulkResponse.hasFailures()) {
-                    log.error("删除Elasticsearch索引失败: {}", bulkResponse.buildFailureMessage());
-                } else {
-                    log.info("成功删除文档 {} 的 {} 个Elasticsearch索引", documentId, bulkRequest.numberOfActions());
+        } catch (Exception e) {
+            log.error("获取Elasticsearch文本块位置失败: documentId={}", documentId, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * 按文本块ID批量获取内容
+     * @return chunkId → 内容，不存在的文本块不包含在结果中
+     */
+    public Map<String, String> getChunkContents(Collection<String> chunkIds) {
+        if (elasticsearchClient == null || chunkIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        FetchSourceContext fetchSource = new FetchSourceContext(true, new String[]{"content"}, null);
+        MultiGetRequest request = new MultiGetRequest();
+        for (String chunkId : chunkIds) {
+            request.add(new MultiGetRequest.Item(indexName, chunkId).fetchSourceContext(fetchSource));
+        }
+
+        Map<String, String> contents = new HashMap<>();
+        try {
+            MultiGetResponse response = elasticsearchClient.mget(request, RequestOptions.DEFAULT);
+            for (MultiGetItemResponse item : response.getResponses()) {
+                if (item.isFailed() || !item.getResponse().isExists()) {
+                    continue;
+                }
+                Object content = item.getResponse().getSourceAsMap().get("content");
+                if (content != null) {
+                    contents.put(item.getId(), content.toString());
                 }
             }
         } catch (Exception e) {
-            log.error("删除Elasticsearch索引失败", e);
+            log.error("批量获取Elasticsearch文本块内容失败", e);
+        }
+        return contents;
+    }
+
+    /**
+     * 删除文档的所有索引
+     * 使用delete_by_query在服务端按分片并行（slices=auto）滚动删除，不受单次查询条数限制
+     * @return 删除的文本块数
+     * @throws RuntimeException 删除失败或部分失败
+     */
+    public long deleteByDocumentId(Long documentId) {
+        if (elasticsearchClient == null) {
+            return 0;
+        }
+
+        DeleteByQueryRequest request = new DeleteByQueryRequest(indexName);
+        request.setQuery(QueryBuilders.termQuery("document_id", documentId));
+        request.setSlices(AbstractBulkByScrollRequest.AUTO_SLICES);
+        // 删除期间被写入的文本块跳过，不中止整个请求
+        request.setConflicts("proceed");
+        request.setRefresh(true);
+        request.setTimeout(TimeValue.timeValueMillis(deleteTimeoutMs));
+        RequestOptions options = RequestOptions.DEFAULT.toBuilder()
+                .setRequestConfig(RequestConfig.custom().setSocketTimeout((int) deleteTimeoutMs).build())
+                .build();
+        try {
+            long start = System.currentTimeMillis();
+            BulkByScrollResponse response = elasticsearchClient.deleteByQuery(request, options);
+            if (!response.getBulkFailures().isEmpty() || !response.getSearchFailures().isEmpty()
+                    || response.isTimedOut()) {
+                throw new RuntimeException("删除Elasticsearch索引未完成: 已删除=" + response.getDeleted()
+                        + ", 写入失败=" + response.getBulkFailures().size()
+                        + ", 查询失败=" + response.getSearchFailures().size()
+                        + ", 超时=" + response.isTimedOut());
+            }
+            log.info("成功删除文档 {} 的 {} 个Elasticsearch索引, 版本冲突跳过={}, 耗时={}ms", documentId,
+                    response.getDeleted(), response.getVersionConflicts(), System.currentTimeMillis() - start);
+            return response.getDeleted();
+        } catch (IOException e) {
+            log.error("删除Elasticsearch索引失败: documentId={}", documentId, e);
+            throw new RuntimeException("删除Elasticsearch索引失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 删除指定的文本块索引（增量重建时移除已不存在的文本块）
+     */
+    public void deleteChunks(List<String> chunkIds) {
+        if (elasticsearchClient == null || chunkIds.isEmpty()) {
+            return;
+        }
+
+        BulkRequest bulkRequest = new BulkRequest();
+        for (String chunkId : chunkIds) {
+            bulkRequest.add(new DeleteRequest(indexName, chunkId));
+        }
+        executeBulk(bulkRequest, "删除Elasticsearch文本块失败");
+    }
+
+    /**
+     * 更新文本块的位置信息（增量重建时内容未变但位置移动的文本块）
+     */
+    public void updateChunkPositions(List<TextPreprocessService.TextChunk> chunks) {
+        if (elasticsearchClient == null || chunks.isEmpty()) {
+            return;
+        }
+
+        BulkRequest bulkRequest = new BulkRequest();
+        for (TextPreprocessService.TextChunk chunk : chunks) {
+            bulkRequest.add(new UpdateRequest(indexName, chunk.getChunkId()).doc(positionFields(chunk)));
+        }
+        executeBulk(bulkRequest, "更新Elasticsearch文本块位置失败");
+    }
+
+    /**
+     * 随文本块在文档中的位置变化的字段
+     */
+    private Map<String, Object> positionFields(TextPreprocessService.TextChunk chunk) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("chunk_index", chunk.getChunkIndex());
+        fields.put("start_offset", chunk.getStartOffset());
+        fields.put("end_offset", chunk.getEndOffset());
+        fields.put("page_start", chunk.getPageStart());
+        fields.put("page_end", chunk.getPageEnd());
+        fields.put("heading_path", chunk.getHeadingPath());
+        return fields;
+    }
+
+    /**
+     * 执行批量请求，失败时抛出异常（文档不存在的删除不算失败）
+     */
+    private void executeBulk(BulkRequest bulkRequest, String errorMessage) {
+        try {
+            BulkResponse bulkResponse = elasticsearchClient.bulk(bulkRequest, RequestOptions.DEFAULT);
+            if (bulkResponse.hasFailures()) {
+                log.error("{}: {}", errorMessage, bulkResponse.buildFailureMessage());
+                throw new RuntimeException(errorMessage + ": " + bulkResponse.buildFailureMessage());
+            }
+        } catch (IOException e) {
+            log.error(errorMessage, e);
+            throw new RuntimeException(errorMessage + ": " + e.getMessage(), e);
         }
     }
 
@@ -294,6 +928,75 @@ public class ElasticsearchService {
         return entities;
     }
 
+    /**
+     * 一次indexChunks提交的文本块，全部收到响应后完成
+     */
+    private static class PendingBatch {
+        private final Long documentId;
+        private final AtomicInteger remaining;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private volatile String failure;
+
+        PendingBatch(Long documentId, int size) {
+            this.documentId = documentId;
+            this.remaining = new AtomicInteger(size);
+            if (size == 0) {
+                future.complete(null);
+            }
+        }
+
+        void done(String itemFailure) {
+            if (itemFailure != null && failure == null) {
+                failure = itemFailure;
+            }
+            if (remaining.decrementAndGet() == 0) {
+                if (failure == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(new RuntimeException(
+                            "文档 " + documentId + " 的文本块写入Elasticsearch失败: " + failure));
+                }
+            }
+        }
+    }
+
+    /**
+     * 批量请求响应：按文本块ID对应到所属批次
+     */
+    private class BulkListener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            BulkItemResponse[] items = response.getItems();
+            for (BulkItemResponse item : items) {
+                PendingBatch batch = takeWrite(item.getId());
+                if (batch != null) {
+                    batch.done(item.isFailed() ? item.getFailureMessage() : null);
+                }
+            }
+            if (response.hasFailures()) {
+                log.error("批量索引失败: {}", response.buildFailureMessage());
+            } else {
+                log.debug("成功索引 {} 个文档块到Elasticsearch, 耗时={}ms", items.length, response.getTook().millis());
+            }
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            log.error("批量索引请求失败: actions={}", request.numberOfActions(), failure);
+            for (DocWriteRequest<?> write : request.requests()) {
+                PendingBatch batch = takeWrite(write.id());
+                if (batch != null) {
+                    batch.done(failure.getMessage() != null ? failure.getMessage() : failure.toString());
+                }
+            }
+        }
+    }
+
     /**
      * 搜索结果实体
      */
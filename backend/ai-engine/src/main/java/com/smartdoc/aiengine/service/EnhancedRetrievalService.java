@@ -292,7 +292,7 @@ public class EnhancedRetrievalService {
         score += keywordScore * 0.3f;
         
         // 3. 位置分数（10%）：优先选择文档前面的内容
-        // 从chunkId中提取索引（格式：docId_chunkIndex）
+        // 从chunkId中提取索引（旧格式：docId_chunkIndex；按内容哈希生成的ID不含位置，解析失败时不计分）
         try {
             String[] parts = result.getChunkId().split("_");
             if (parts.length >= 2) {
@@ -32,8 +32,18 @@ public class HybridRetrievalService {
      */
     public List<MilvusService.SearchResult> hybridSearch(
             String query, Long documentId, int topK) {
+        return hybridSearch(query, null, documentId != null ? Collections.singletonList(documentId) : null, topK);
+    }
+
+    /**
+     * 混合检索（限定在一组文档内）
+     * @param queryVector 已计算的查询向量，为null时在此计算
+     * @param documentIds 文档ID（索引ID）集合，为null时不过滤
+     */
+    public List<MilvusService.SearchResult> hybridSearch(
+            String query, List<Float> queryVector, Collection<Long> documentIds, int topK) {
         
-        log.info("开始混合检索: query={}, documentId={}, topK={}", query, documentId, topK);
+        log.info("开始混合检索: query={}, documentIds={}, topK={}", query, documentIds, topK);
         
         // 1. 查询路由：判断查询类型
         QueryType queryType = analyzeQueryType(query);
@@ -42,11 +52,13 @@ public class HybridRetrievalService {
         
         // 2. 并行执行两种检索
         List<ElasticsearchService.SearchResult> keywordResults = 
-                elasticsearchService.keywordSearch(query, documentId, topK * 2);
+                elasticsearchService.keywordSearch(query, documentIds, topK * 2);
         
-        List<Float> queryVector = embeddingService.embedText(query);
+        if (queryVector == null) {
+            queryVector = embeddingService.embedText(query);
+        }
         List<MilvusService.SearchResult> vectorResults = 
-                milvusService.searchSimilar(queryVector, topK * 2, documentId);
+                milvusService.searchSimilar(queryVector, topK * 2, documentIds);
         
         // 3. 结果融合
         List<CandidateResult> candidates = mergeResults(
@@ -0,0 +1,489 @@
+package com.smartdoc.aiengine.service;
+
+import com.smartdoc.common.config.properties.AIProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LLM多端点路由服务
+ * 按权重选择主端点，记录每个端点的健康状况和延迟，连续失败时熔断；
+ * 主端点在其p95延迟内未返回时向第二个端点发出对冲请求，失败时依次回退到其他端点
+ */
+@Slf4j
+@Service
+public class LLMRouterService {
+
+    @Autowired
+    private AIProperties aiProperties;
+
+    private int defaultTimeout;
+    private boolean hedgeEnabled;
+    private long defaultHedgeDelay;
+    private long minHedgeDelay;
+    private int failureThreshold;
+    private long circuitOpenMillis;
+
+    private static final int LATENCY_WINDOW = 128; // 每个端点保留的延迟样本数
+    private static final int MIN_LATENCY_SAMPLES = 10; // 样本不足时使用默认对冲延迟
+
+    private final List<EndpointState> endpoints = new ArrayList<>();
+    private CloseableHttpClient httpClient;
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        AIProperties.LLM llm = aiProperties.getLlm();
+        defaultTimeout = llm.getTimeout();
+        hedgeEnabled = llm.getHedge().getEnabled();
+        defaultHedgeDelay = llm.getHedge().getDefaultDelayMs();
+        minHedgeDelay = llm.getHedge().getMinDelayMs();
+        failureThreshold = llm.getCircuit().getFailureThreshold();
+        circuitOpenMillis = llm.getCircuit().getOpenMs();
+
+        List<AIProperties.Endpoint> configured = llm.getEndpoints();
+        if (configured == null || configured.isEmpty()) {
+            AIProperties.Endpoint single = new AIProperties.Endpoint();
+            single.setName("default");
+            single.setApiUrl(llm.getApiUrl());
+            single.setApiKey(llm.getApiKey());
+            single.setModel(llm.getModel());
+            single.setTimeout(defaultTimeout);
+            endpoints.add(new EndpointState(single));
+        } else {
+            for (AIProperties.Endpoint endpoint : configured) {
+                if (endpoint.getApiUrl() == null || endpoint.getApiUrl().isEmpty()) {
+                    log.warn("忽略未配置api-url的LLM端点: {}", endpoint.getName());
+                    continue;
+                }
+                endpoints.add(new EndpointState(endpoint));
+            }
+        }
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(100);
+        connectionManager.setDefaultMaxPerRoute(50);
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "llm-router-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        log.info("LLM路由初始化完成，共 {} 个端点", endpoints.size());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.error("关闭LLM HTTP客户端失败", e);
+            }
+        }
+    }
+
+    /**
+     * 发送Chat Completions请求
+     * @param requestBody 请求体（model字段由路由按端点填充）
+     * @return 成功端点的响应体
+     */
+    public String chatCompletion(Map<String, Object> requestBody) {
+        // 入选时已占用半开试探名额的端点，未实际发出请求的在结束时归还
+        Set<EndpointState> trials = new HashSet<>();
+        List<EndpointState> candidates = selectCandidates(trials);
+        if (candidates.isEmpty()) {
+            throw new RuntimeException("没有可用的LLM端点（全部处于熔断状态）");
+        }
+
+        ExecutorCompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<String>, Attempt> running = new HashMap<>();
+        int next = 0;
+        boolean hedged = !hedgeEnabled;
+        Exception lastError = null;
+        // 未在截止时间前返回的请求按失败计入熔断；其他请求先完成时，剩余请求只记录延迟
+        boolean timedOut = false;
+
+        EndpointState first = candidates.get(next++);
+        Attempt primary = new Attempt(first, requestBody, trials.contains(first));
+        running.put(completionService.submit(primary), primary);
+        long hedgeAt = System.currentTimeMillis() + primary.endpoint.hedgeDelay();
+        long deadline = System.currentTimeMillis() + primary.endpoint.config.getTimeout();
+
+        try {
+            while (!running.isEmpty()) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    timedOut = true;
+                    break;
+                }
+                long waitUntil = !hedged && next < candidates.size() ? Math.min(hedgeAt, deadline) : deadline;
+                Future<String> done = completionService.poll(Math.max(1L, waitUntil - now), TimeUnit.MILLISECONDS);
+
+                if (done == null) {
+                    if (!hedged && next < candidates.size() && System.currentTimeMillis() >= hedgeAt) {
+                        // 主端点在p95延迟内未返回，发出对冲请求
+                        EndpointState hedgeEndpoint = candidates.get(next++);
+                        Attempt hedge = new Attempt(hedgeEndpoint, requestBody, trials.contains(hedgeEndpoint));
+                        running.put(completionService.submit(hedge), hedge);
+                        hedged = true;
+                        deadline = Math.max(deadline, System.currentTimeMillis() + hedge.endpoint.config.getTimeout());
+                        log.info("LLM端点 {} 超过对冲延迟，向 {} 发出对冲请求",
+                                primary.endpoint.config.getName(), hedge.endpoint.config.getName());
+                    }
+                    continue;
+                }
+
+                Attempt attempt = running.remove(done);
+                try {
+                    String result = done.get();
+                    if (attempt != primary) {
+                        log.info("LLM请求由端点 {} 完成", attempt.endpoint.config.getName());
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    log.warn("LLM端点 {} 调用失败: {}", attempt.endpoint.config.getName(), lastError.getMessage());
+                    if (next < candidates.size()) {
+                        // 回退到下一个端点
+                        EndpointState fallbackEndpoint = candidates.get(next++);
+                        Attempt fallback = new Attempt(fallbackEndpoint, requestBody, trials.contains(fallbackEndpoint));
+                        running.put(completionService.submit(fallback), fallback);
+                        deadline = Math.max(deadline, System.currentTimeMillis() + fallback.endpoint.config.getTimeout());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("LLM请求被中断", e);
+        } finally {
+            // 取消仍在进行的请求（对冲失败方或超时的请求）
+            for (Map.Entry<Future<String>, Attempt> entry : running.entrySet()) {
+                entry.getValue().abort(timedOut ? AbortReason.TIMEOUT : AbortReason.LOST);
+                entry.getKey().cancel(true);
+            }
+            for (int i = next; i < candidates.size(); i++) {
+                if (trials.contains(candidates.get(i))) {
+                    candidates.get(i).releaseTrial();
+                }
+            }
+        }
+
+        if (lastError != null) {
+            throw new RuntimeException("所有LLM端点调用失败: " + lastError.getMessage(), lastError);
+        }
+        throw new RuntimeException("LLM请求超时");
+    }
+
+    /**
+     * 获取各端点的健康与延迟统计
+     */
+    public List<Map<String, Object>> getEndpointStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (EndpointState endpoint : endpoints) {
+            stats.add(endpoint.snapshot());
+        }
+        return stats;
+    }
+
+    /**
+     * 选择候选端点顺序：可用端点按权重随机排序，第一个为主端点
+     * @param trials 收集占用了半开试探名额的端点
+     */
+    private List<EndpointState> selectCandidates(Set<EndpointState> trials) {
+        List<EndpointState> available = new ArrayList<>();
+        for (EndpointState endpoint : endpoints) {
+            Admission admission = endpoint.admit();
+            if (admission != Admission.REJECTED) {
+                available.add(endpoint);
+            }
+            if (admission == Admission.TRIAL) {
+                trials.add(endpoint);
+            }
+        }
+
+        List<EndpointState> ordered = new ArrayList<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!available.isEmpty()) {
+            int totalWeight = 0;
+            for (EndpointState endpoint : available) {
+                totalWeight += endpoint.weight();
+            }
+            int pick = random.nextInt(totalWeight);
+            Iterator<EndpointState> iterator = available.iterator();
+            while (iterator.hasNext()) {
+                EndpointState endpoint = iterator.next();
+                pick -= endpoint.weight();
+                if (pick < 0) {
+                    ordered.add(endpoint);
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * 单个端点的一次请求
+     */
+    private class Attempt implements Callable<String> {
+        private final EndpointState endpoint;
+        private final Map<String, Object> requestBody;
+        private final HttpPost httpPost;
+        /**
+         * 是否持有端点的半开试探名额
+         */
+        private final boolean trial;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private volatile AbortReason abortReason;
+
+        Attempt(EndpointState endpoint, Map<String, Object> requestBody, boolean trial) {
+            this.endpoint = endpoint;
+            this.requestBody = requestBody;
+            this.trial = trial;
+            this.httpPost = new HttpPost(endpoint.config.getApiUrl());
+        }
+
+        @Override
+        public String call() throws Exception {
+            if (!started.compareAndSet(false, true)) {
+                // 开始执行前已被取消，名额已由abort归还
+                throw new CancellationException();
+            }
+            Map<String, Object> body = new HashMap<>(requestBody);
+            if (endpoint.config.getModel() != null) {
+                body.put("model", endpoint.config.getModel());
+            }
+
+            httpPost.setHeader("Content-Type", "application/json");
+            httpPost.setHeader("Authorization", "Bearer " + endpoint.config.getApiKey());
+            httpPost.setConfig(RequestConfig.custom()
+                    .setConnectTimeout(5000)
+                    .setConnectionRequestTimeout(5000)
+                    .setSocketTimeout(endpoint.config.getTimeout())
+                    .build());
+            httpPost.setEntity(new StringEntity(com.alibaba.fastjson2.JSON.toJSONString(body), StandardCharsets.UTF_8));
+
+            long start = System.currentTimeMillis();
+            try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+                String responseBody = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != 200) {
+                    throw new RuntimeException("HTTP " + statusCode + ": " + responseBody);
+                }
+                endpoint.onSuccess(System.currentTimeMillis() - start);
+                return responseBody;
+            } catch (Exception e) {
+                long elapsed = System.currentTimeMillis() - start;
+                AbortReason reason = abortReason;
+                if (reason == AbortReason.LOST) {
+                    // 其他请求先完成，不计入失败；已等待的时间记为延迟样本，慢尾部也能反映到对冲延迟中
+                    endpoint.recordLatency(elapsed);
+                    if (trial) {
+                        endpoint.releaseTrial();
+                    }
+                } else {
+                    // 请求失败或到截止时间仍未返回
+                    if (reason == AbortReason.TIMEOUT) {
+                        endpoint.recordLatency(elapsed);
+                    }
+                    endpoint.onFailure();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * 中止请求
+         * @param reason 中止原因：其他请求已完成，或整体截止时间已到
+         */
+        void abort(AbortReason reason) {
+            abortReason = reason;
+            if (started.compareAndSet(false, true)) {
+                // 还在线程池队列中，不会再执行
+                if (trial) {
+                    endpoint.releaseTrial();
+                }
+                return;
+            }
+            httpPost.abort();
+        }
+    }
+
+    /**
+     * 端点状态：延迟窗口 + 熔断器
+     */
+    private class EndpointState {
+        private final AIProperties.Endpoint config;
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        private int latencyCount = 0;
+        private int latencyCursor = 0;
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong totalRequests = new AtomicLong();
+        private final AtomicLong totalFailures = new AtomicLong();
+        private volatile CircuitState circuitState = CircuitState.CLOSED;
+        private volatile long openedAt = 0L;
+        private final AtomicBoolean halfOpenTrial = new AtomicBoolean(false);
+
+        EndpointState(AIProperties.Endpoint config) {
+            this.config = config;
+            if (config.getName() == null) {
+                config.setName(config.getApiUrl());
+            }
+            if (config.getTimeout() == null) {
+                config.setTimeout(defaultTimeout);
+            }
+        }
+
+        int weight() {
+            return config.getWeight() == null || config.getWeight() < 1 ? 1 : config.getWeight();
+        }
+
+        /**
+         * 判断端点能否接受请求；半开状态只放行一个试探请求，名额在入选时原子地占用，
+         * 并发的请求不会同时把试探请求发往尚未恢复的端点
+         */
+        Admission admit() {
+            if (circuitState == CircuitState.CLOSED) {
+                return Admission.ALLOWED;
+            }
+            synchronized (this) {
+                // 只由一个线程完成打开到半开的切换，避免重置其他线程已占用的名额
+                if (circuitState == CircuitState.OPEN && System.currentTimeMillis() - openedAt >= circuitOpenMillis) {
+                    circuitState = CircuitState.HALF_OPEN;
+                    halfOpenTrial.set(false);
+                }
+            }
+            return circuitState == CircuitState.HALF_OPEN && halfOpenTrial.compareAndSet(false, true)
+                    ? Admission.TRIAL : Admission.REJECTED;
+        }
+
+        /**
+         * 归还未完成的试探名额（请求未发出或被对冲取消）
+         */
+        void releaseTrial() {
+            halfOpenTrial.set(false);
+        }
+
+        void onSuccess(long latencyMillis) {
+            totalRequests.incrementAndGet();
+            consecutiveFailures.set(0);
+            halfOpenTrial.set(false);
+            if (circuitState != CircuitState.CLOSED) {
+                log.info("LLM端点 {} 恢复，关闭熔断", config.getName());
+            }
+            circuitState = CircuitState.CLOSED;
+            recordLatency(latencyMillis);
+        }
+
+        void recordLatency(long latencyMillis) {
+            synchronized (latencies) {
+                latencies[latencyCursor] = latencyMillis;
+                latencyCursor = (latencyCursor + 1) % LATENCY_WINDOW;
+                latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+            }
+        }
+
+        void onFailure() {
+            totalRequests.incrementAndGet();
+            totalFailures.incrementAndGet();
+            int failures = consecutiveFailures.incrementAndGet();
+            if (circuitState == CircuitState.HALF_OPEN || failures >= failureThreshold) {
+                if (circuitState != CircuitState.OPEN) {
+                    log.warn("LLM端点 {} 连续失败 {} 次，打开熔断", config.getName(), failures);
+                }
+                circuitState = CircuitState.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+            halfOpenTrial.set(false);
+        }
+
+        long percentile(double p) {
+            long[] samples;
+            synchronized (latencies) {
+                if (latencyCount == 0) {
+                    return -1L;
+                }
+                samples = Arrays.copyOf(latencies, latencyCount);
+            }
+            Arrays.sort(samples);
+            int index = (int) Math.ceil(p * samples.length) - 1;
+            return samples[Math.max(0, Math.min(index, samples.length - 1))];
+        }
+
+        /**
+         * 对冲延迟：样本足够时取p95，否则使用默认值
+         */
+        long hedgeDelay() {
+            int count;
+            synchronized (latencies) {
+                count = latencyCount;
+            }
+            long delay = count >= MIN_LATENCY_SAMPLES ? percentile(0.95) : defaultHedgeDelay;
+            return Math.max(minHedgeDelay, delay);
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("name", config.getName());
+            stats.put("model", config.getModel());
+            stats.put("weight", weight());
+            stats.put("circuitState", circuitState.name());
+            stats.put("totalRequests", totalRequests.get());
+            stats.put("totalFailures", totalFailures.get());
+            stats.put("consecutiveFailures", consecutiveFailures.get());
+            stats.put("p50LatencyMs", percentile(0.5));
+            stats.put("p95LatencyMs", percentile(0.95));
+            stats.put("hedgeDelayMs", hedgeDelay());
+            return stats;
+        }
+    }
+
+    private enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * 请求中止原因：其他请求已先完成（不计入失败），整体截止时间已到（计入失败）
+     */
+    private enum AbortReason {
+        LOST, TIMEOUT
+    }
+
+    /**
+     * 端点准入结果：拒绝、正常放行、作为半开状态的试探请求放行
+     */
+    private enum Admission {
+        REJECTED, ALLOWED, TRIAL
+    }
+}
@@ -24,6 +24,9 @@ public class LayeredContextService {
     @Autowired
     private KeyInfoExtractionService keyInfoExtractionService;
 
+    @Autowired
+    private PromptLayoutService promptLayoutService;
+
     @Value("${context.short-term.window-size:5}")
     private int shortTermWindowSize;
 
@@ -91,84 +94,13 @@ public class LayeredContextService {
 
     /**
      * 将分层上下文转换为LLM可用的消息列表
+     * 消息顺序由PromptLayoutService统一决定：静态指令在前，动态记忆在后，只有一条记忆system消息
      * @param context 分层上下文
      * @param currentQuestion 当前问题
      * @return 消息列表
      */
     public List<Map<String, String>> convertToMessages(LayeredContext context, String currentQuestion) {
-        List<Map<String, String>> messages = new ArrayList<>();
-        
-        // 添加系统提示（包含关键信息）
-        String systemPrompt = buildSystemPrompt(context);
-        if (!systemPrompt.isEmpty()) {
-            Map<String, String> systemMsg = new HashMap<>();
-            systemMsg.put("role", "system");
-            systemMsg.put("content", systemPrompt);
-            messages.add(systemMsg);
-        }
-        
-        // 添加长期记忆（作为参考上下文）
-        if (context.getLongTermMemory() != null && !context.getLongTermMemory().isEmpty()) {
-            String longTermContext = buildLongTermContext(context.getLongTermMemory());
-            if (!longTermContext.isEmpty()) {
-                Map<String, String> contextMsg = new HashMap<>();
-                contextMsg.put("role", "system");
-                contextMsg.put("content", "以下是一些相关的历史对话，供参考：\n" + longTermContext);
-                messages.add(contextMsg);
-            }
-        }
-        
-        // 添加短期记忆（最近的对话）
-        if (context.getShortTermMemory() != null) {
-            for (LLMService.ChatMessage msg : context.getShortTermMemory()) {
-                Map<String, String> message = new HashMap<>();
-                message.put("role", msg.getRole());
-                message.put("content", msg.getContent());
-                messages.add(message);
-            }
-        }
-        
-        // 添加当前问题
-        Map<String, String> currentMsg = new HashMap<>();
-        currentMsg.put("role", "user");
-        currentMsg.put("content", currentQuestion);
-        messages.add(currentMsg);
-        
-        return messages;
-    }
-
-    /**
-     * 构建系统提示（包含关键信息）
-     */
-    private String buildSystemPrompt(LayeredContext context) {
-        StringBuilder prompt = new StringBuilder();
-        
-        Map<String, Object> keyInfo = context.getKeyInfo();
-        if (keyInfo != null && !keyInfo.isEmpty()) {
-            prompt.append("当前对话的关键信息：\n");
-            for (Map.Entry<String, Object> entry : keyInfo.entrySet()) {
-                prompt.append("- ").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
-            }
-            prompt.append("\n请基于以上关键信息回答问题，保持信息的一致性。\n");
-        }
-        
-        return prompt.toString();
-    }
-
-    /**
-     * 构建长期记忆上下文
-     */
-    private String buildLongTermContext(List<LongTermMemoryService.HistoricalConversation> conversations) {
-        StringBuilder context = new StringBuilder();
-        
-        for (int i = 0; i < conversations.size(); i++) {
-            LongTermMemoryService.HistoricalConversation conv = conversations.get(i);
-            context.append("历史对话").append(i + 1).append("：\n");
-            context.append("问题：").append(conv.getQuestion()).append("\n");
-            context.append("回答：").append(conv.getAnswer()).append("\n\n");
-        }
-        
-        return context.toString();
+        return promptLayoutService.layoutGeneralPrompt(currentQuestion, context);
     }
 
     /**
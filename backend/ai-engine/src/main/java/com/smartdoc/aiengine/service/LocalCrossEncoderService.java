@@ -0,0 +1,313 @@
+package com.smartdoc.aiengine.service;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.repository.zoo.Criteria;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.Batchifier;
+import ai.djl.translate.Translator;
+import ai.djl.translate.TranslatorContext;
+import ai.djl.util.PairList;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地交叉编码器服务
+ * 通过DJL + ONNX Runtime在进程内运行bge-reranker-base，替代独立的Reranker HTTP服务
+ * 候选按小批次推理：已开始的ONNX推理无法中断，超时后只能放弃尚未开始的批次，批次越小浪费的推理越少
+ */
+@Slf4j
+@Service
+public class LocalCrossEncoderService {
+
+    @Value("${reranker.local.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 模型目录，需包含model.onnx和tokenizer.json
+     */
+    @Value("${reranker.local.model-path:}")
+    private String modelPath;
+
+    @Value("${reranker.local.max-length:512}")
+    private int maxLength;
+
+    /**
+     * 推理线程数，0表示与CPU核数一致
+     */
+    @Value("${reranker.local.threads:0}")
+    private int threads;
+
+    /**
+     * 模型是否需要token_type_ids输入（XLM-RoBERTa系列的bge-reranker不需要）
+     */
+    @Value("${reranker.local.token-type-ids:false}")
+    private boolean useTokenTypeIds;
+
+    /**
+     * 每次推理的候选数，一次请求的候选拆成多个批次在推理线程间并行
+     */
+    @Value("${reranker.local.batch-size:8}")
+    private int batchSize;
+
+    private HuggingFaceTokenizer tokenizer;
+    private ZooModel<RerankBatch, float[]> model;
+    private BlockingQueue<Predictor<RerankBatch, float[]>> predictors;
+    private ExecutorService executor;
+
+    private final AtomicLong timeouts = new AtomicLong();
+    /**
+     * 超时后结果被丢弃的批次数，其中轮到执行时已超时、未推理而直接跳过的计入skippedBatches
+     */
+    private final AtomicLong abandonedBatches = new AtomicLong();
+    private final AtomicLong skippedBatches = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled || modelPath == null || modelPath.isEmpty()) {
+            log.info("本地交叉编码器未启用");
+            return;
+        }
+
+        try {
+            Path modelDir = Paths.get(modelPath);
+            tokenizer = HuggingFaceTokenizer.builder()
+                    .optTokenizerPath(modelDir.resolve("tokenizer.json"))
+                    .optTruncation(true)
+                    .optPadding(true)
+                    .optMaxLength(maxLength)
+                    .build();
+
+            Criteria<RerankBatch, float[]> criteria = Criteria.builder()
+                    .setTypes(RerankBatch.class, float[].class)
+                    .optModelPath(Files.isDirectory(modelDir) ? modelDir.resolve("model.onnx") : modelDir)
+                    .optEngine("OnnxRuntime")
+                    .optTranslator(new CrossEncoderTranslator())
+                    .build();
+            model = criteria.loadModel();
+
+            int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            // Predictor非线程安全，每个推理线程独占一个
+            predictors = new ArrayBlockingQueue<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                predictors.add(model.newPredictor());
+            }
+            executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cross-encoder-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            log.info("本地交叉编码器加载成功: modelPath={}, threads={}", modelPath, poolSize);
+        } catch (Exception e) {
+            log.error("本地交叉编码器加载失败，将回退到其他重排序方式", e);
+            destroy();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (predictors != null) {
+            for (Predictor<RerankBatch, float[]> predictor : predictors) {
+                predictor.close();
+            }
+            predictors = null;
+        }
+        if (model != null) {
+            model.close();
+            model = null;
+        }
+        if (tokenizer != null) {
+            tokenizer.close();
+            tokenizer = null;
+        }
+    }
+
+    /**
+     * 是否可用
+     */
+    public boolean isAvailable() {
+        return executor != null;
+    }
+
+    /**
+     * 对所有（query, passage）对分批打分
+     * 批次开始推理前检查截止时间，超时后排队中的批次不再推理，正在推理的批次完成后结果丢弃
+     * @param query 查询
+     * @param passages 候选文本
+     * @param timeBudgetMillis 时间预算，超时抛出TimeoutException
+     * @return 与passages一一对应的相关性分数（0-1）
+     */
+    public float[] score(String query, List<String> passages, long timeBudgetMillis) throws Exception {
+        if (!isAvailable()) {
+            throw new IllegalStateException("本地交叉编码器不可用");
+        }
+        if (passages.isEmpty()) {
+            return new float[0];
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+        int size = Math.max(1, batchSize);
+        List<Future<float[]>> futures = new ArrayList<>();
+        for (int from = 0; from < passages.size(); from += size) {
+            RerankBatch batch = new RerankBatch(query, passages.subList(from, Math.min(from + size, passages.size())));
+            futures.add(executor.submit(() -> predict(batch, deadline)));
+        }
+
+        float[] scores = new float[passages.size()];
+        int next = 0;
+        try {
+            for (Future<float[]> future : futures) {
+                float[] batchScores = future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                System.arraycopy(batchScores, 0, scores, next * size, batchScores.length);
+                next++;
+            }
+            return scores;
+        } catch (TimeoutException e) {
+            // 不取消剩余批次：推理无法中断，排队中的批次轮到时检查截止时间直接跳过并计入统计
+            timeouts.incrementAndGet();
+            abandonedBatches.addAndGet(futures.size() - next);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                // 批次轮到执行时已超时
+                timeouts.incrementAndGet();
+                abandonedBatches.addAndGet(futures.size() - next);
+            }
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * 获取推理超时统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("batchSize", Math.max(1, batchSize));
+        stats.put("timeouts", timeouts.get());
+        stats.put("abandonedBatches", abandonedBatches.get());
+        stats.put("skippedBatches", skippedBatches.get());
+        return stats;
+    }
+
+    /**
+     * 推理一个批次；轮到执行时已过截止时间则跳过
+     */
+    private float[] predict(RerankBatch batch, long deadline) throws Exception {
+        if (System.nanoTime() >= deadline) {
+            skippedBatches.incrementAndGet();
+            throw new TimeoutException("交叉编码器批次等待超时");
+        }
+        Predictor<RerankBatch, float[]> predictor = predictors.take();
+        try {
+            return predictor.predict(batch);
+        } finally {
+            predictors.add(predictor);
+        }
+    }
+
+    /**
+     * 一次推理的输入：同一个查询与多个候选文本
+     */
+    public static class RerankBatch {
+        private final String query;
+        private final List<String> passages;
+
+        public RerankBatch(String query, List<String> passages) {
+            this.query = query;
+            this.passages = passages;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public List<String> getPassages() {
+            return passages;
+        }
+    }
+
+    /**
+     * 交叉编码器转换器：用tokenizer截断并补齐所有句对，拼成一个batch
+     */
+    private class CrossEncoderTranslator implements Translator<RerankBatch, float[]> {
+
+        @Override
+        public NDList processInput(TranslatorContext ctx, RerankBatch input) {
+            PairList<String, String> pairs = new PairList<>(input.getPassages().size());
+            for (String passage : input.getPassages()) {
+                pairs.add(input.getQuery(), passage);
+            }
+            Encoding[] encodings = tokenizer.batchEncode(pairs);
+
+            int batchSize = encodings.length;
+            int seqLength = encodings[0].getIds().length;
+            long[] inputIds = new long[batchSize * seqLength];
+            long[] attentionMask = new long[batchSize * seqLength];
+            long[] typeIds = new long[batchSize * seqLength];
+            for (int i = 0; i < batchSize; i++) {
+                System.arraycopy(encodings[i].getIds(), 0, inputIds, i * seqLength, seqLength);
+                System.arraycopy(encodings[i].getAttentionMask(), 0, attentionMask, i * seqLength, seqLength);
+                System.arraycopy(encodings[i].getTypeIds(), 0, typeIds, i * seqLength, seqLength);
+            }
+
+            NDManager manager = ctx.getNDManager();
+            Shape shape = new Shape(batchSize, seqLength);
+            NDArray ids = manager.create(inputIds, shape);
+            ids.setName("input_ids");
+            NDArray mask = manager.create(attentionMask, shape);
+            mask.setName("attention_mask");
+            if (!useTokenTypeIds) {
+                return new NDList(ids, mask);
+            }
+            NDArray types = manager.create(typeIds, shape);
+            types.setName("token_type_ids");
+            return new NDList(ids, mask, types);
+        }
+
+        @Override
+        public float[] processOutput(TranslatorContext ctx, NDList list) {
+            // logits形状为(batch, 1)，经sigmoid映射到0-1
+            float[] logits = list.get(0).toFloatArray();
+            float[] scores = new float[logits.length];
+            for (int i = 0; i < logits.length; i++) {
+                scores[i] = (float) (1.0 / (1.0 + Math.exp(-logits[i])));
+            }
+            return scores;
+        }
+
+        @Override
+        public Batchifier getBatchifier() {
+            // 已在processInput中手动组batch
+            return null;
+        }
+    }
+}
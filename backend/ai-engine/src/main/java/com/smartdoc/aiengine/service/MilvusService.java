@@ -2,14 +2,19 @@ package com.smartdoc.aiengine.service;
 
 import io.milvus.client.MilvusServiceClient;
 import io.milvus.grpc.DataType;
+import io.milvus.grpc.DescribeCollectionResponse;
 import io.milvus.grpc.MutationResult;
+import io.milvus.grpc.QueryResults;
 import io.milvus.grpc.SearchResults;
 import io.milvus.param.*;
 import io.milvus.param.collection.*;
 import io.milvus.param.dml.DeleteParam;
 import io.milvus.param.dml.InsertParam;
+import io.milvus.param.dml.QueryParam;
 import io.milvus.param.dml.SearchParam;
 import io.milvus.param.index.CreateIndexParam;
+import io.milvus.response.DescCollResponseWrapper;
+import io.milvus.response.QueryResultsWrapper;
 import io.milvus.response.SearchResultsWrapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -35,8 +40,26 @@ public class MilvusService {
     @Value("${milvus.collection:document_vectors}")
     private String collectionName;
 
+    /**
+     * 文档摘要向量集合（每个文档一条），跨文档问答时先按摘要选出相关文档
+     */
+    @Value("${milvus.summary-collection:document_summaries}")
+    private String summaryCollectionName;
+
     private MilvusServiceClient milvusClient;
     private static final int VECTOR_DIMENSION = 768; // 向量维度
+    private static final int CONTENT_MAX_LENGTH = 8192; // 新建集合的content字段长度（字节）
+    private static final int SUMMARY_MAX_LENGTH = 8192; // 摘要字段长度（字节）
+
+    /**
+     * 集合content字段的长度上限，旧集合为2000
+     */
+    private int contentMaxLength = CONTENT_MAX_LENGTH;
+
+    /**
+     * 集合是否包含文本块元数据字段（之前创建的集合没有，Milvus不支持为已有集合加字段）
+     */
+    private boolean chunkMetadataFields = true;
 
     @PostConstruct
     public void init() {
@@ -49,6 +72,7 @@ public class MilvusService {
         
         // 确保集合存在
         createCollectionIfNotExists();
+        createSummaryCollectionIfNotExists();
         
         log.info("Milvus连接成功");
     }
@@ -89,7 +113,24 @@ public class MilvusService {
             FieldType contentField = FieldType.newBuilder()
                     .withName("content")
                     .withDataType(DataType.VarChar)
-                    .withMaxLength(2000)
+                    .withMaxLength(CONTENT_MAX_LENGTH)
+                    .build();
+
+            // 文本块元数据：只存与内容相关、不随位置变化的字段（Milvus不能只更新标量字段）
+            FieldType contentHashField = FieldType.newBuilder()
+                    .withName("content_hash")
+                    .withDataType(DataType.VarChar)
+                    .withMaxLength(64)
+                    .build();
+
+            FieldType tokenCountField = FieldType.newBuilder()
+                    .withName("token_count")
+                    .withDataType(DataType.Int32)
+                    .build();
+
+            FieldType simHashField = FieldType.newBuilder()
+                    .withName("sim_hash")
+                    .withDataType(DataType.Int64)
                     .build();
 
             FieldType vectorField = FieldType.newBuilder()
@@ -106,6 +147,9 @@ public class MilvusService {
                     .addFieldType(documentIdField)
                     .addFieldType(chunkIdField)
                     .addFieldType(contentField)
+                    .addFieldType(contentHashField)
+                    .addFieldType(tokenCountField)
+                    .addFieldType(simHashField)
                     .addFieldType(vectorField)
                     .build();
 
@@ -119,10 +163,90 @@ public class MilvusService {
                 log.error("集合创建失败: {}", createResult.getMessage());
             }
         } else {
+            describeExistingCollection();
             log.info("集合 {} 已存在", collectionName);
         }
     }
 
+    /**
+     * 创建文档摘要集合（如果不存在）
+     * 每个文档只有一条向量，检索时总是按有权限的文档过滤，使用FLAT索引
+     */
+    private void createSummaryCollectionIfNotExists() {
+        R<Boolean> hasCollection = milvusClient.hasCollection(
+            HasCollectionParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .build()
+        );
+        if (hasCollection.getData()) {
+            return;
+        }
+
+        CreateCollectionParam createParam = CreateCollectionParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .withDescription("文档摘要向量集合")
+                .withShardsNum(1)
+                .addFieldType(FieldType.newBuilder()
+                        .withName("document_id")
+                        .withDataType(DataType.Int64)
+                        .withPrimaryKey(true)
+                        .withAutoID(false)
+                        .build())
+                .addFieldType(FieldType.newBuilder()
+                        .withName("summary")
+                        .withDataType(DataType.VarChar)
+                        .withMaxLength(SUMMARY_MAX_LENGTH)
+                        .build())
+                .addFieldType(FieldType.newBuilder()
+                        .withName("vector")
+                        .withDataType(DataType.FloatVector)
+                        .withDimension(VECTOR_DIMENSION)
+                        .build())
+                .build();
+        R<RpcStatus> createResult = milvusClient.createCollection(createParam);
+        if (createResult.getStatus() != R.Status.Success.getCode()) {
+            log.error("摘要集合创建失败: {}", createResult.getMessage());
+            return;
+        }
+
+        R<RpcStatus> indexResult = milvusClient.createIndex(CreateIndexParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .withFieldName("vector")
+                .withIndexType(IndexType.FLAT)
+                .withMetricType(MetricType.L2)
+                .withSyncMode(Boolean.FALSE)
+                .build());
+        if (indexResult.getStatus() == R.Status.Success.getCode()) {
+            log.info("摘要集合 {} 创建成功", summaryCollectionName);
+        } else {
+            log.error("摘要向量索引创建失败: {}", indexResult.getMessage());
+        }
+    }
+
+    /**
+     * 读取已有集合的字段：content长度上限，是否有元数据字段
+     */
+    private void describeExistingCollection() {
+        R<DescribeCollectionResponse> response = milvusClient.describeCollection(
+            DescribeCollectionParam.newBuilder()
+                .withCollectionName(collectionName)
+                .build()
+        );
+        if (response.getStatus() != R.Status.Success.getCode()) {
+            log.error("读取集合结构失败: {}", response.getMessage());
+            return;
+        }
+        DescCollResponseWrapper wrapper = new DescCollResponseWrapper(response.getData());
+        FieldType content = wrapper.getFieldByName("content");
+        if (content != null && content.getMaxLength() > 0) {
+            contentMaxLength = content.getMaxLength();
+        }
+        chunkMetadataFields = wrapper.getFieldByName("content_hash") != null;
+        if (!chunkMetadataFields) {
+            log.warn("集合 {} 没有文本块元数据字段，向量只写入基本字段；重建集合后生效", collectionName);
+        }
+    }
+
     /**
      * 创建向量索引
      */
@@ -151,13 +275,33 @@ public class MilvusService {
      * 插入向量数据
      */
     public void insertVectors(Long documentId, List<String> chunkIds, List<String> contents, List<List<Float>> vectors) {
+        insert(documentId, chunkIds, contents, null, vectors);
+    }
+
+    /**
+     * 插入文本块向量，同时写入文本块元数据
+     */
+    public void insertChunks(Long documentId, List<TextPreprocessService.TextChunk> chunks, List<List<Float>> vectors) {
+        List<String> chunkIds = new ArrayList<>(chunks.size());
+        List<String> contents = new ArrayList<>(chunks.size());
+        for (TextPreprocessService.TextChunk chunk : chunks) {
+            chunkIds.add(chunk.getChunkId());
+            contents.add(chunk.getContent());
+        }
+        insert(documentId, chunkIds, contents, chunks, vectors);
+    }
+
+    private void insert(Long documentId, List<String> chunkIds, List<String> contents,
+                        List<TextPreprocessService.TextChunk> chunks, List<List<Float>> vectors) {
         if (chunkIds.size() != contents.size() || chunkIds.size() != vectors.size()) {
             throw new IllegalArgumentException("数据长度不一致");
         }
 
         List<Long> documentIds = new ArrayList<>();
+        List<String> storedContents = new ArrayList<>(contents.size());
         for (int i = 0; i < chunkIds.size(); i++) {
             documentIds.add(documentId);
+            storedContents.add(truncateUtf8(contents.get(i), contentMaxLength));
         }
 
         List<List<Float>> vectorList = new ArrayList<>(vectors);
@@ -165,7 +309,22 @@ public class MilvusService {
         List<InsertParam.Field> fields = new ArrayList<>();
         fields.add(new InsertParam.Field("document_id", documentIds));
         fields.add(new InsertParam.Field("chunk_id", chunkIds));
-        fields.add(new InsertParam.Field("content", contents));
+        fields.add(new InsertParam.Field("content", storedContents));
+        if (chunkMetadataFields) {
+            // 非文档文本块（如长期记忆）没有元数据，写入空值
+            List<String> contentHashes = new ArrayList<>(chunkIds.size());
+            List<Integer> tokenCounts = new ArrayList<>(chunkIds.size());
+            List<Long> simHashes = new ArrayList<>(chunkIds.size());
+            for (int i = 0; i < chunkIds.size(); i++) {
+                TextPreprocessService.TextChunk chunk = chunks != null ? chunks.get(i) : null;
+                contentHashes.add(chunk != null ? chunk.getContentHash() : "");
+                tokenCounts.add(chunk != null ? chunk.getTokenCount() : 0);
+                simHashes.add(chunk != null ? chunk.getSimHash() : 0L);
+            }
+            fields.add(new InsertParam.Field("content_hash", contentHashes));
+            fields.add(new InsertParam.Field("token_count", tokenCounts));
+            fields.add(new InsertParam.Field("sim_hash", simHashes));
+        }
         fields.add(new InsertParam.Field("vector", vectorList));
 
         InsertParam insertParam = InsertParam.newBuilder()
@@ -182,6 +341,28 @@ public class MilvusService {
         }
     }
 
+    /**
+     * 按UTF-8字节数截断，不截断在多字节字符中间
+     */
+    private static String truncateUtf8(String text, int maxBytes) {
+        if (text.length() * 3 <= maxBytes) {
+            return text;
+        }
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int size = c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isHighSurrogate(c) ? 4 : 3;
+            if (bytes + size > maxBytes) {
+                return text.substring(0, i);
+            }
+            bytes += size;
+            if (size == 4) {
+                i++;
+            }
+        }
+        return text;
+    }
+
     /**
      * 向量相似度搜索
      * @param queryVector 查询向量
@@ -189,13 +370,25 @@ public class MilvusService {
      * @return 相似文本块列表
      */
     public List<SearchResult> searchSimilar(List<Float> queryVector, int topK) {
-        return searchSimilar(queryVector, topK, null);
+        return searchSimilar(queryVector, topK, (Long) null);
     }
 
     /**
      * 向量相似度搜索（带文档ID过滤）
      */
     public List<SearchResult> searchSimilar(List<Float> queryVector, int topK, Long documentId) {
+        return searchSimilar(queryVector, topK,
+                documentId != null ? Collections.singletonList(documentId) : null);
+    }
+
+    /**
+     * 向量相似度搜索（限定在一组文档内）
+     * @param documentIds 文档ID（索引ID）集合，为null时不过滤
+     */
+    public List<SearchResult> searchSimilar(List<Float> queryVector, int topK, Collection<Long> documentIds) {
+        if (documentIds != null && documentIds.isEmpty()) {
+            return Collections.emptyList();
+        }
         // 加载集合
         R<RpcStatus> loadResult = milvusClient.loadCollection(
             LoadCollectionParam.newBuilder()
@@ -218,9 +411,9 @@ public class MilvusService {
                 .withVectorFieldName("vector")
                 .withParams("{\"nprobe\":10}");
 
-        // 如果指定了文档ID，添加过滤条件
-        if (documentId != null) {
-            searchBuilder.withExpr("document_id == " + documentId);
+        // 如果指定了文档ID，添加过滤条件（document_id是主键，按主键过滤）
+        if (documentIds != null) {
+            searchBuilder.withExpr(documentFilter(documentIds));
         }
 
         R<SearchResults> searchResult = milvusClient.search(searchBuilder.build());
@@ -245,6 +438,139 @@ public class MilvusService {
         return results;
     }
 
+    /**
+     * 写入文档摘要向量（已存在时替换）
+     */
+    public void upsertSummary(Long documentId, String summary, List<Float> vector) {
+        deleteSummary(documentId);
+
+        List<InsertParam.Field> fields = new ArrayList<>();
+        fields.add(new InsertParam.Field("document_id", Collections.singletonList(documentId)));
+        fields.add(new InsertParam.Field("summary", Collections.singletonList(truncateUtf8(summary, SUMMARY_MAX_LENGTH))));
+        fields.add(new InsertParam.Field("vector", Collections.singletonList(vector)));
+        R<MutationResult> insertResult = milvusClient.insert(InsertParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .withFields(fields)
+                .build());
+        if (insertResult.getStatus() != R.Status.Success.getCode()) {
+            log.error("摘要向量插入失败: {}", insertResult.getMessage());
+            throw new RuntimeException("摘要向量插入失败: " + insertResult.getMessage());
+        }
+    }
+
+    /**
+     * 在一组文档的摘要中检索最相关的文档
+     * @param documentIds 文档ID（索引ID）集合
+     * @return 按相似度排序的文档，chunkId为空，content为摘要
+     */
+    public List<SearchResult> searchSummaries(List<Float> queryVector, int topK, Collection<Long> documentIds) {
+        if (documentIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        R<RpcStatus> loadResult = milvusClient.loadCollection(
+            LoadCollectionParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .build()
+        );
+        if (loadResult.getStatus() != R.Status.Success.getCode()) {
+            log.error("摘要集合加载失败: {}", loadResult.getMessage());
+            return Collections.emptyList();
+        }
+
+        R<SearchResults> searchResult = milvusClient.search(SearchParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .withMetricType(MetricType.L2)
+                .withOutFields(Arrays.asList("document_id", "summary"))
+                .withTopK(topK)
+                .withVectors(Collections.singletonList(queryVector))
+                .withVectorFieldName("vector")
+                .withExpr(documentFilter(documentIds))
+                .build());
+        if (searchResult.getStatus() != R.Status.Success.getCode()) {
+            log.error("摘要向量搜索失败: {}", searchResult.getMessage());
+            return Collections.emptyList();
+        }
+
+        List<SearchResult> results = new ArrayList<>();
+        SearchResultsWrapper wrapper = new SearchResultsWrapper(searchResult.getData().getResults());
+        for (int i = 0; i < wrapper.getIDScore(0).size(); i++) {
+            Long docId = Long.parseLong(wrapper.getFieldWrapper("document_id").getFieldData().get(i).toString());
+            String summary = wrapper.getFieldWrapper("summary").getFieldData().get(i).toString();
+            results.add(new SearchResult(docId, null, summary, wrapper.getIDScore(0).get(i).getScore()));
+        }
+        return results;
+    }
+
+    /**
+     * 查询一组文档中已有摘要向量的文档
+     * @param documentIds 文档ID（索引ID）集合
+     * @return 有摘要的文档ID，查询失败时返回null
+     */
+    public Set<Long> findSummarized(Collection<Long> documentIds) {
+        if (documentIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        R<RpcStatus> loadResult = milvusClient.loadCollection(
+            LoadCollectionParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .build()
+        );
+        if (loadResult.getStatus() != R.Status.Success.getCode()) {
+            log.error("摘要集合加载失败: {}", loadResult.getMessage());
+            return null;
+        }
+
+        R<QueryResults> queryResult = milvusClient.query(QueryParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .withExpr(documentFilter(documentIds))
+                .withOutFields(Collections.singletonList("document_id"))
+                .build());
+        if (queryResult.getStatus() != R.Status.Success.getCode()) {
+            log.error("查询摘要向量失败: {}", queryResult.getMessage());
+            return null;
+        }
+        Set<Long> summarized = new HashSet<>();
+        for (Object documentId : new QueryResultsWrapper(queryResult.getData()).getFieldWrapper("document_id").getFieldData()) {
+            summarized.add(Long.parseLong(documentId.toString()));
+        }
+        return summarized;
+    }
+
+    /**
+     * 删除文档摘要向量，失败时抛出异常（清理任务据此重试，避免摘要向量残留）
+     */
+    public void deleteSummary(Long documentId) {
+        R<MutationResult> deleteResult = milvusClient.delete(
+            DeleteParam.newBuilder()
+                .withCollectionName(summaryCollectionName)
+                .withExpr("document_id == " + documentId)
+                .build()
+        );
+        if (deleteResult.getStatus() != R.Status.Success.getCode()) {
+            log.error("删除摘要向量失败: {}", deleteResult.getMessage());
+            throw new RuntimeException("删除摘要向量失败: " + deleteResult.getMessage());
+        }
+    }
+
+    /**
+     * 按文档ID集合过滤的表达式
+     */
+    private static String documentFilter(Collection<Long> documentIds) {
+        if (documentIds.size() == 1) {
+            return "document_id == " + documentIds.iterator().next();
+        }
+        StringBuilder expr = new StringBuilder("document_id in [");
+        boolean first = true;
+        for (Long documentId : documentIds) {
+            if (!first) {
+                expr.append(", ");
+            }
+            expr.append(documentId);
+            first = false;
+        }
+        return expr.append(']').toString();
+    }
+
     /**
      * 删除文档的所有向量
      */
@@ -262,6 +588,36 @@ public class MilvusService {
             log.info("成功删除文档 {} 的所有向量", documentId);
         } else {
             log.error("删除向量失败: {}", deleteResult.getMessage());
+            throw new RuntimeException("删除向量失败: " + deleteResult.getMessage());
+        }
+    }
+
+    /**
+     * 删除文档的指定文本块向量（按非主键字段过滤删除，需要Milvus 2.3+）
+     */
+    public void deleteChunks(Long documentId, List<String> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return;
+        }
+        StringBuilder expr = new StringBuilder("document_id == ").append(documentId).append(" && chunk_id in [");
+        for (int i = 0; i < chunkIds.size(); i++) {
+            if (i > 0) {
+                expr.append(", ");
+            }
+            expr.append('"').append(chunkIds.get(i)).append('"');
+        }
+        expr.append(']');
+
+        R<MutationResult> deleteResult = milvusClient.delete(
+            DeleteParam.newBuilder()
+                .withCollectionName(collectionName)
+                .withExpr(expr.toString())
+                .build()
+        );
+
+        if (deleteResult.getStatus() != R.Status.Success.getCode()) {
+            log.error("删除文本块向量失败: {}", deleteResult.getMessage());
+            throw new RuntimeException("删除文本块向量失败: " + deleteResult.getMessage());
         }
     }
 
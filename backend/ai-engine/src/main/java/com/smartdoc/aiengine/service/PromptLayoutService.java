@@ -0,0 +1,203 @@
+package com.smartdoc.aiengine.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prompt布局服务
+ * 按"静态指令 → 文档上下文 → 动态记忆 → 历史对话 → 当前问题"的固定顺序组装消息，
+ * 使请求前缀尽可能保持字节级一致，从而命中DeepSeek等OpenAI兼容接口的上下文缓存
+ */
+@Slf4j
+@Service
+public class PromptLayoutService {
+
+    /**
+     * 文档问答静态指令（不得拼接任何动态内容，否则会破坏缓存前缀）
+     */
+    static final String DOCUMENT_QA_INSTRUCTIONS = "你是一个专业的文档问答助手。你的任务是基于用户提供的文档内容，准确、清晰地回答用户的问题。\n" +
+            "回答要求：\n" +
+            "1. 严格基于文档内容，不要编造或推测文档中没有的信息\n" +
+            "2. 如果文档中没有相关信息，明确告知用户\n" +
+            "3. 回答要简洁明了，逻辑清晰\n" +
+            "4. 可以引用文档中的具体内容，但不要直接复制大段文字\n" +
+            "5. 如果对话中提供了关键信息，请保持信息的一致性，不要与之冲突";
+
+    /**
+     * 通用问答静态指令
+     */
+    static final String GENERAL_QA_INSTRUCTIONS = "你是一个智能助手，可以回答各种常识性问题。请用简洁、准确的语言回答问题。\n" +
+            "如果对话中提供了关键信息，请保持信息的一致性，不要与之冲突。";
+
+    // 上下文缓存命中统计
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong promptTokens = new AtomicLong();
+    private final AtomicLong cacheHitTokens = new AtomicLong();
+    private final AtomicLong cacheMissTokens = new AtomicLong();
+
+    /**
+     * 组装文档问答（RAG）消息
+     * @param question 当前问题
+     * @param searchResults 检索到的文档片段
+     * @param context 分层上下文（可为null）
+     * @return 按缓存友好顺序排列的消息列表
+     */
+    public List<Map<String, String>> layoutDocumentPrompt(String question,
+                                                         List<MilvusService.SearchResult> searchResults,
+                                                         LayeredContextService.LayeredContext context) {
+        List<Map<String, String>> messages = new ArrayList<>();
+        messages.add(message("system", DOCUMENT_QA_INSTRUCTIONS));
+        messages.add(message("system", buildDocumentContext(searchResults)));
+        appendDynamicLayers(messages, context);
+        messages.add(message("user", question));
+        return messages;
+    }
+
+    /**
+     * 组装通用问答消息
+     * @param question 当前问题
+     * @param context 分层上下文（可为null）
+     * @return 按缓存友好顺序排列的消息列表
+     */
+    public List<Map<String, String>> layoutGeneralPrompt(String question,
+                                                        LayeredContextService.LayeredContext context) {
+        List<Map<String, String>> messages = new ArrayList<>();
+        messages.add(message("system", GENERAL_QA_INSTRUCTIONS));
+        appendDynamicLayers(messages, context);
+        messages.add(message("user", question));
+        return messages;
+    }
+
+    /**
+     * 记录一次LLM响应中的usage字段
+     * 兼容DeepSeek（prompt_cache_hit_tokens/prompt_cache_miss_tokens）
+     * 和OpenAI（prompt_tokens_details.cached_tokens）两种格式
+     */
+    @SuppressWarnings("unchecked")
+    public void recordUsage(Map<String, Object> usage) {
+        if (usage == null) {
+            return;
+        }
+
+        long prompt = toLong(usage.get("prompt_tokens"));
+        long hit;
+        long miss;
+        if (usage.containsKey("prompt_cache_hit_tokens")) {
+            hit = toLong(usage.get("prompt_cache_hit_tokens"));
+            miss = toLong(usage.get("prompt_cache_miss_tokens"));
+        } else {
+            Object details = usage.get("prompt_tokens_details");
+            hit = details instanceof Map ? toLong(((Map<String, Object>) details).get("cached_tokens")) : 0L;
+            miss = Math.max(0L, prompt - hit);
+        }
+
+        requestCount.incrementAndGet();
+        promptTokens.addAndGet(prompt);
+        cacheHitTokens.addAndGet(hit);
+        cacheMissTokens.addAndGet(miss);
+
+        log.debug("Prompt缓存统计: promptTokens={}, hitTokens={}, missTokens={}", prompt, hit, miss);
+    }
+
+    /**
+     * 获取累计的上下文缓存命中统计
+     */
+    public Map<String, Object> getCacheStats() {
+        long hit = cacheHitTokens.get();
+        long miss = cacheMissTokens.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("requests", requestCount.get());
+        stats.put("promptTokens", promptTokens.get());
+        stats.put("cacheHitTokens", hit);
+        stats.put("cacheMissTokens", miss);
+        stats.put("cacheHitRatio", hit + miss == 0 ? 0.0 : (double) hit / (hit + miss));
+        return stats;
+    }
+
+    /**
+     * 构建文档上下文
+     * 片段按文档ID和块序号排序，相同的检索结果集总是生成相同的文本
+     */
+    private String buildDocumentContext(List<MilvusService.SearchResult> searchResults) {
+        List<MilvusService.SearchResult> ordered = new ArrayList<>(searchResults);
+        ordered.sort(Comparator.comparing(MilvusService.SearchResult::getDocumentId,
+                        Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(MilvusService.SearchResult::getChunkId,
+                        Comparator.nullsFirst(Comparator.naturalOrder())));
+
+        StringBuilder context = new StringBuilder();
+        context.append("文档内容：\n");
+        for (int i = 0; i < ordered.size(); i++) {
+            context.append("【片段").append(i + 1).append("】").append(ordered.get(i).getContent()).append("\n\n");
+        }
+        context.append("请基于上述文档内容回答后续问题，如果文档中没有相关信息，请明确说明。");
+        return context.toString();
+    }
+
+    /**
+     * 追加动态层：关键信息、长期记忆、短期记忆
+     */
+    private void appendDynamicLayers(List<Map<String, String>> messages,
+                                     LayeredContextService.LayeredContext context) {
+        if (context == null) {
+            return;
+        }
+
+        String memory = buildMemory(context);
+        if (!memory.isEmpty()) {
+            messages.add(message("system", memory));
+        }
+
+        if (context.getShortTermMemory() != null) {
+            for (LLMService.ChatMessage msg : context.getShortTermMemory()) {
+                messages.add(message(msg.getRole(), msg.getContent()));
+            }
+        }
+    }
+
+    /**
+     * 构建动态记忆（关键信息 + 长期记忆）
+     * 关键信息按键排序，保证同一会话内的输出稳定
+     */
+    private String buildMemory(LayeredContextService.LayeredContext context) {
+        StringBuilder memory = new StringBuilder();
+
+        Map<String, Object> keyInfo = context.getKeyInfo();
+        if (keyInfo != null && !keyInfo.isEmpty()) {
+            memory.append("当前对话的关键信息：\n");
+            for (Map.Entry<String, Object> entry : new TreeMap<>(keyInfo).entrySet()) {
+                memory.append("- ").append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+            }
+        }
+
+        List<LongTermMemoryService.HistoricalConversation> longTerm = context.getLongTermMemory();
+        if (longTerm != null && !longTerm.isEmpty()) {
+            if (memory.length() > 0) {
+                memory.append("\n");
+            }
+            memory.append("以下是一些相关的历史对话，供参考：\n");
+            for (int i = 0; i < longTerm.size(); i++) {
+                LongTermMemoryService.HistoricalConversation conv = longTerm.get(i);
+                memory.append("历史对话").append(i + 1).append("：\n");
+                memory.append("问题：").append(conv.getQuestion()).append("\n");
+                memory.append("回答：").append(conv.getAnswer()).append("\n\n");
+            }
+        }
+
+        return memory.toString();
+    }
+
+    private Map<String, String> message(String role, String content) {
+        Map<String, String> msg = new HashMap<>();
+        msg.put("role", role);
+        msg.put("content", content);
+        return msg;
+    }
+
+    private long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+}
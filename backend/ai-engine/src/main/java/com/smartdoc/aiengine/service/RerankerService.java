@@ -7,16 +7,22 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
  * 重排序服务
- * 使用BGE-Reranker模型进行精排
+ * 使用BGE-Reranker模型进行精排（进程内ONNX交叉编码器或HTTP服务）
  */
 @Slf4j
 @Service
@@ -28,43 +34,217 @@ public class RerankerService {
     @Value("${reranker.enabled:false}")
     private boolean enabled;
 
+    @Autowired(required = false)
+    private LocalCrossEncoderService localCrossEncoderService;
+
+    @Value("${reranker.local.time-budget-ms:300}")
+    private long localTimeBudgetMillis;
+
+    /**
+     * 送入重排序模型的最大/最小候选数
+     */
+    @Value("${reranker.prune.max-candidates:20}")
+    private int maxCandidates;
+
+    @Value("${reranker.prune.min-candidates:5}")
+    private int minCandidates;
+
+    /**
+     * 融合分数低于该阈值的候选不送入重排序模型
+     */
+    @Value("${reranker.prune.score-threshold:0.0}")
+    private float scoreThreshold;
+
+    /**
+     * 重排序目标耗时，用于按单候选平均耗时动态调整送入的候选数
+     */
+    @Value("${reranker.prune.target-latency-ms:200}")
+    private long targetLatencyMillis;
+
+    @Value("${reranker.cache.max-size:10000}")
+    private int cacheMaxSize;
+
+    /**
+     * 单候选打分耗时的指数加权平均（毫秒），初始为0表示尚无样本
+     */
+    private volatile double perCandidateMillis = 0.0;
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    /**
+     * (查询哈希, chunkId, 内容哈希) -> 重排序分数，按访问顺序淘汰
+     */
+    private Map<String, Float> scoreCache;
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong prunedCandidates = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        scoreCache = Collections.synchronizedMap(new LinkedHashMap<String, Float>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+                return size() > cacheMaxSize;
+            }
+        });
+    }
+
     /**
      * 使用BGE-Reranker对候选结果进行重排序
+     * 优先使用进程内交叉编码器，其次是Reranker HTTP服务，都不可用时按综合分数排序。
+     * 只有融合分数靠前的候选会送入模型，已缓存的(查询, chunk)分数直接复用；
+     * 返回顺序为：已打分候选按重排序分数降序，其后是被剪枝的候选按综合分数降序
      */
     public List<HybridRetrievalService.CandidateResult> rerank(
             List<HybridRetrievalService.CandidateResult> candidates, String query) {
-        
-        if (!enabled || rerankerApiUrl == null || rerankerApiUrl.isEmpty()) {
+
+        // 按综合分数排序，同时作为所有失败场景下的回退结果
+        candidates.sort((a, b) -> Float.compare(b.getCombinedScore(), a.getCombinedScore()));
+
+        boolean localAvailable = localCrossEncoderService != null && localCrossEncoderService.isAvailable();
+        boolean remoteAvailable = enabled && rerankerApiUrl != null && !rerankerApiUrl.isEmpty();
+        if (!localAvailable && !remoteAvailable) {
             log.debug("Reranker未启用，使用综合分数排序");
-            // 按综合分数排序
-            candidates.sort((a, b) -> Float.compare(b.getCombinedScore(), a.getCombinedScore()));
             return candidates;
         }
 
-        try {
-            // 调用BGE-Reranker API
-            List<Float> rerankScores = callRerankerAPI(query, candidates);
-            
-            // 更新重排序分数
-            for (int i = 0; i < candidates.size() && i < rerankScores.size(); i++) {
-                candidates.get(i).setRerankScore(rerankScores.get(i));
+        // 1. 剪枝：只保留融合分数靠前的候选
+        int limit = candidateLimit();
+        List<HybridRetrievalService.CandidateResult> selected = new ArrayList<>();
+        List<HybridRetrievalService.CandidateResult> pruned = new ArrayList<>();
+        for (HybridRetrievalService.CandidateResult candidate : candidates) {
+            boolean aboveThreshold = candidate.getCombinedScore() >= scoreThreshold || selected.size() < minCandidates;
+            if (selected.size() < limit && aboveThreshold) {
+                selected.add(candidate);
+            } else {
+                pruned.add(candidate);
             }
-            
-            // 按重排序分数排序（如果rerankScore为0，则使用combinedScore）
-            candidates.sort((a, b) -> {
-                float scoreA = a.getRerankScore() > 0 ? a.getRerankScore() : a.getCombinedScore();
-                float scoreB = b.getRerankScore() > 0 ? b.getRerankScore() : b.getCombinedScore();
-                return Float.compare(scoreB, scoreA);
-            });
-            
-            log.info("BGE-Reranker重排序完成，处理了 {} 个候选结果", candidates.size());
-            return candidates;
-        } catch (Exception e) {
-            log.error("Reranker调用失败，使用综合分数排序", e);
-            // 回退到综合分数排序
-            candidates.sort((a, b) -> Float.compare(b.getCombinedScore(), a.getCombinedScore()));
-            return candidates;
         }
+        prunedCandidates.addAndGet(pruned.size());
+
+        // 2. 查缓存，只对未命中的候选调用模型
+        String queryHash = hashQuery(query);
+        List<HybridRetrievalService.CandidateResult> misses = new ArrayList<>();
+        List<String> missKeys = new ArrayList<>();
+        for (HybridRetrievalService.CandidateResult candidate : selected) {
+            String key = cacheKey(queryHash, candidate);
+            Float cached = scoreCache.get(key);
+            if (cached != null) {
+                candidate.setRerankScore(cached);
+            } else {
+                misses.add(candidate);
+                missKeys.add(key);
+            }
+        }
+        cacheHits.addAndGet(selected.size() - misses.size());
+        cacheMisses.addAndGet(misses.size());
+
+        if (!misses.isEmpty()) {
+            try {
+                long start = System.currentTimeMillis();
+                List<Float> scores = localAvailable ? localScores(query, misses) : callRerankerAPI(query, misses);
+                recordLatency(System.currentTimeMillis() - start, misses.size());
+
+                for (int i = 0; i < misses.size() && i < scores.size(); i++) {
+                    HybridRetrievalService.CandidateResult candidate = misses.get(i);
+                    candidate.setRerankScore(scores.get(i));
+                    scoreCache.put(missKeys.get(i), scores.get(i));
+                }
+            } catch (TimeoutException e) {
+                log.warn("本地交叉编码器超出时间预算 {} ms，使用综合分数排序", localTimeBudgetMillis);
+                // 超时说明单候选耗时被低估，按预算记一次样本以收缩下次的候选数
+                recordLatency(localTimeBudgetMillis, misses.size());
+                return candidates;
+            } catch (Exception e) {
+                log.error("Reranker调用失败，使用综合分数排序", e);
+                return candidates;
+            }
+        }
+
+        // 3. 已打分的候选按重排序分数排序，剪枝的候选保持综合分数顺序排在其后
+        selected.sort((a, b) -> Float.compare(b.getRerankScore(), a.getRerankScore()));
+        List<HybridRetrievalService.CandidateResult> result = new ArrayList<>(candidates.size());
+        result.addAll(selected);
+        result.addAll(pruned);
+
+        log.info("重排序完成: 候选={}, 打分={}, 缓存命中={}, 剪枝={}",
+                candidates.size(), misses.size(), selected.size() - misses.size(), pruned.size());
+        return result;
+    }
+
+    /**
+     * 获取重排序缓存与剪枝统计
+     */
+    public Map<String, Object> getStats() {
+        long hits = cacheHits.get();
+        long misses = cacheMisses.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("cacheSize", scoreCache.size());
+        stats.put("cacheHits", hits);
+        stats.put("cacheMisses", misses);
+        stats.put("cacheHitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        stats.put("prunedCandidates", prunedCandidates.get());
+        stats.put("perCandidateMillis", perCandidateMillis);
+        stats.put("candidateLimit", candidateLimit());
+        if (localCrossEncoderService != null && localCrossEncoderService.isAvailable()) {
+            stats.put("localEncoder", localCrossEncoderService.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * 根据单候选平均耗时计算本次送入模型的候选数
+     */
+    private int candidateLimit() {
+        double perCandidate = perCandidateMillis;
+        if (perCandidate <= 0) {
+            return maxCandidates;
+        }
+        int limit = (int) (targetLatencyMillis / perCandidate);
+        return Math.max(minCandidates, Math.min(maxCandidates, limit));
+    }
+
+    private void recordLatency(long elapsedMillis, int count) {
+        double sample = (double) elapsedMillis / count;
+        double current = perCandidateMillis;
+        perCandidateMillis = current <= 0 ? sample : current + EWMA_ALPHA * (sample - current);
+    }
+
+    /**
+     * 本地重排序：进程内交叉编码器分批并行计算所有候选
+     */
+    private List<Float> localScores(String query, List<HybridRetrievalService.CandidateResult> candidates)
+            throws Exception {
+        List<String> passages = candidates.stream()
+                .map(HybridRetrievalService.CandidateResult::getContent)
+                .collect(Collectors.toList());
+        float[] scores = localCrossEncoderService.score(query, passages, localTimeBudgetMillis);
+        List<Float> result = new ArrayList<>(scores.length);
+        for (float score : scores) {
+            result.add(score);
+        }
+        return result;
+    }
+
+    /**
+     * 查询归一化后取哈希：忽略大小写和多余空白
+     */
+    private String hashQuery(String query) {
+        String normalized = query == null ? "" : query.trim().replaceAll("\\s+", " ").toLowerCase();
+        return DigestUtils.md5DigestAsHex(normalized.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * chunkId本身包含内容的SHA-256（docId_contentHash[-n]），同一chunkId的内容不会变化，
+     * 文档修订后内容变化的文本块换用新的chunkId，旧分数自然失效，不必每次查询重新哈希候选内容
+     */
+    private String cacheKey(String queryHash, HybridRetrievalService.CandidateResult candidate) {
+        if (candidate.getChunkId() == null) {
+            String content = candidate.getContent() == null ? "" : candidate.getContent();
+            return queryHash + ":#" + TextPreprocessService.TextChunk.hashContent(content);
+        }
+        return queryHash + ":" + candidate.getChunkId();
     }
 
     /**
@@ -121,49 +301,4 @@ public class RerankerService {
             httpClient.close();
         }
     }
-
-    /**
-     * 本地重排序（如果BGE-Reranker不可用）
-     * 使用简单的交叉编码器逻辑
-     */
-    private List<Float> localRerank(String query, 
-                                    List<com.smartdoc.aiengine.service.HybridRetrievalService.CandidateResult> candidates) {
-        // 简化实现：基于关键词匹配和长度计算分数
-        List<Float> scores = new ArrayList<>();
-        String queryLower = query.toLowerCase();
-        Set<String> queryWords = new HashSet<>(Arrays.asList(queryLower.split("[\\s，。、；：！？]")));
-        
-        for (HybridRetrievalService.CandidateResult candidate : candidates) {
-            String contentLower = candidate.getContent().toLowerCase();
-            
-            // 计算关键词匹配分数
-            int matchCount = 0;
-            for (String word : queryWords) {
-                if (word.length() >= 2 && contentLower.contains(word)) {
-                    matchCount++;
-                }
-            }
-            float keywordMatchScore = queryWords.isEmpty() ? 0 : 
-                    (float) matchCount / queryWords.size();
-            
-            // 计算内容长度分数（适中的长度更好）
-            int contentLength = contentLower.length();
-            float lengthScore = 0.0f;
-            if (contentLength >= 200 && contentLength <= 500) {
-                lengthScore = 1.0f;
-            } else if (contentLength < 200) {
-                lengthScore = contentLength / 200.0f;
-            } else {
-                lengthScore = Math.max(0, 1.0f - (contentLength - 500) / 500.0f);
-            }
-            
-            // 综合分数：关键词匹配70% + 长度30% + 原始综合分数
-            float rerankScore = keywordMatchScore * 0.7f + lengthScore * 0.3f + 
-                    candidate.getCombinedScore() * 0.2f;
-            scores.add(rerankScore);
-        }
-        
-        return scores;
-    }
 }
-
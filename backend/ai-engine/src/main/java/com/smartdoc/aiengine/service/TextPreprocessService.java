@@ -1,10 +1,20 @@
 package com.smartdoc.aiengine.service;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -14,192 +24,752 @@ import java.util.regex.Pattern;
 @Service
 public class TextPreprocessService {
 
-    // 去除特殊符号的正则
-    private static final Pattern SPECIAL_CHARS = Pattern.compile("[#=*]{3,}|-{3,}|_{3,}");
-    private static final Pattern MULTI_SPACE = Pattern.compile("\\s{3,}");
-    private static final Pattern MULTI_NEWLINE = Pattern.compile("\\n{3,}");
+    @Autowired
+    private TokenizerService tokenizerService;
 
     /**
-     * 文本清洗：去重、去空行、去特殊符号、合并短句
+     * 每块最大token数，需小于Embedding模型的最大输入长度（含特殊token）
+     */
+    @Value("${ai.chunking.max-tokens:480}")
+    private int maxTokens;
+
+    /**
+     * 相邻文本块的重叠token数（按整句保留，不超过该值）
+     */
+    @Value("${ai.chunking.overlap-tokens:48}")
+    private int overlapTokens;
+
+    /**
+     * 文本清洗：去页码标记、去分隔符、合并空白，一次扫描完成（规则见TextCleaner）
      */
     public String cleanText(String rawText) {
         if (rawText == null || rawText.trim().isEmpty()) {
             return "";
         }
 
-        String cleaned = rawText;
-        // 去除页眉页脚常见标记
-        cleaned = cleaned.replaceAll("第\\s*\\d+\\s*页", "");
-        cleaned = cleaned.replaceAll("共\\s*\\d+\\s*页", "");
-        
-        // 去除特殊符号
-        cleaned = SPECIAL_CHARS.matcher(cleaned).replaceAll("");
-        
-        // 合并多个空格
-        cleaned = MULTI_SPACE.matcher(cleaned).replaceAll(" ");
-        
-        // 合并多个换行
-        cleaned = MULTI_NEWLINE.matcher(cleaned).replaceAll("\n\n");
-        
         // 去除首尾空白
-        cleaned = cleaned.trim();
-        
-        return cleaned;
+        return new TextCleaner().finish(rawText).trim();
     }
 
     /**
      * 智能分片：将长文本切分为语义完整的小文本块
-     * 分片大小：200~500个字符/块（中文）
-     * 分片原则：按段落/章节切分，不割裂语义
-     * 改进：添加重叠分块，避免边界信息丢失
+     * 分片大小按Embedding模型的token计算（见StreamingChunker），块之间重叠整句，避免边界信息丢失
      */
     public List<TextChunk> splitText(String text, Long documentId) {
-        return splitText(text, documentId, 200, 500, 50);
+        return splitText(text, documentId, maxTokens, overlapTokens);
     }
 
     /**
      * 智能分片（带参数）
      * @param text 文本内容
      * @param documentId 文档ID
-     * @param minChunkSize 最小分块大小
-     * @param maxChunkSize 最大分块大小
-     * @param overlapSize 重叠大小（用于避免边界信息丢失）
+     * @param maxTokens 每块最大token数
+     * @param overlapTokens 重叠token数（用于避免边界信息丢失）
      */
-    public List<TextChunk> splitText(String text, Long documentId, 
-                                     int minChunkSize, int maxChunkSize, int overlapSize) {
+    public List<TextChunk> splitText(String text, Long documentId, int maxTokens, int overlapTokens) {
         List<TextChunk> chunks = new ArrayList<>();
         
         if (text == null || text.trim().isEmpty()) {
             return chunks;
         }
 
-        // 按段落分割（双换行符）
-        String[] paragraphs = text.split("\\n\\n+");
-        
-        StringBuilder currentChunk = new StringBuilder();
-        int chunkIndex = 1;
-        String lastChunkEnd = ""; // 用于重叠
+        StreamingChunker chunker = new StreamingChunker(documentId, tokenizerService, maxTokens, overlapTokens,
+                false, chunks::add);
+        try {
+            chunker.append(text);
+            chunker.finish();
+        } catch (Exception e) {
+            // 接收方只是加入列表，不会抛出受检异常
+            throw new IllegalStateException(e);
+        }
         
-        for (String paragraph : paragraphs) {
-            paragraph = paragraph.trim();
-            if (paragraph.isEmpty()) {
-                continue;
-            }
-            
-            // 如果当前块加上新段落不超过maxChunkSize，则合并
-            if (currentChunk.length() + paragraph.length() <= maxChunkSize) {
-                if (currentChunk.length() > 0) {
-                    currentChunk.append("\n");
-                }
-                currentChunk.append(paragraph);
-            } else {
-                // 保存当前块
-                if (currentChunk.length() >= minChunkSize) {
-                    String chunkContent = currentChunk.toString();
-                    chunks.add(new TextChunk(
-                        documentId,
-                        chunkIndex++,
-                        chunkContent
-                    ));
-                    
-                    // 保存当前块的末尾部分用于重叠
-                    if (chunkContent.length() > overlapSize) {
-                        lastChunkEnd = chunkContent.substring(
-                                chunkContent.length() - overlapSize);
-                    } else {
-                        lastChunkEnd = chunkContent;
+        log.info("文档 {} 分片完成，共 {} 个文本块（重叠token数: {}）", 
+                documentId, chunks.size(), overlapTokens);
+        return chunks;
+    }
+
+    /**
+     * 清洗单个文本片段，不去除首尾空白
+     * 连续的片段应使用newCleaner()，跨片段边界的页码标记、分隔符和空白才能按整体处理
+     */
+    public String cleanSegment(String rawSegment) {
+        if (rawSegment == null || rawSegment.isEmpty()) {
+            return "";
+        }
+        return new TextCleaner().finish(rawSegment);
+    }
+
+    /**
+     * 创建流式清洗器
+     */
+    public TextCleaner newCleaner() {
+        return new TextCleaner();
+    }
+
+    /**
+     * 流式文本清洗器：一次扫描完成所有规则，片段依次清洗后拼接与整体清洗的结果一致
+     * 规则按以下顺序作用（前一条规则删除内容后，两侧的文本再参与后一条规则）：
+     * 1. 删除页码标记：第N页、共N页（数字前后可有空白）
+     * 2. 删除连续3个及以上的分隔符：#=*任意组合、-、_
+     * 3. 连续3个及以上的空白字符（包括换行）合并为一个空格，1~2个空白保持原样
+     * 片段末尾未确定的页码标记、分隔符和空白暂存，与下一个片段一起处理
+     */
+    public static class TextCleaner {
+        private static final int MIN_SEPARATOR_RUN = 3;
+        private static final int MIN_WHITESPACE_RUN = 3;
+
+        /**
+         * 输出缓冲，每次调用复用
+         */
+        private final StringBuilder out = new StringBuilder();
+        /**
+         * 片段末尾可能是页码标记开头的文本
+         */
+        private final StringBuilder carry = new StringBuilder();
+
+        /**
+         * 当前分隔符串：类别（0表示没有）、长度和前两个字符（不足3个时原样输出）
+         */
+        private char separatorClass;
+        private int separatorLength;
+        private final char[] separatorChars = new char[MIN_SEPARATOR_RUN - 1];
+
+        /**
+         * 当前空白串：长度和前两个字符
+         */
+        private int whitespaceLength;
+        private final char[] whitespaceChars = new char[MIN_WHITESPACE_RUN - 1];
+
+        /**
+         * 清洗一个片段，返回已确定的输出
+         */
+        public String clean(CharSequence fragment) {
+            out.setLength(0);
+            scan(fragment, false);
+            return out.toString();
+        }
+
+        /**
+         * 清洗最后一个片段（可以为空）并输出所有暂存的内容
+         */
+        public String finish(CharSequence fragment) {
+            out.setLength(0);
+            scan(fragment, true);
+            flushSeparator();
+            flushWhitespace();
+            return out.toString();
+        }
+
+        public String finish() {
+            return finish("");
+        }
+
+        private void scan(CharSequence fragment, boolean last) {
+            CharSequence text = fragment;
+            if (carry.length() > 0) {
+                text = carry.append(fragment).toString();
+                carry.setLength(0);
+            }
+
+            int length = text.length();
+            int i = 0;
+            while (i < length) {
+                char c = text.charAt(i);
+                if (c == '第' || c == '共') {
+                    int end = matchPageMarker(text, i);
+                    if (end < 0) {
+                        if (!last) {
+                            // 需要下一个片段才能判断
+                            carry.append(text, i, length);
+                            return;
+                        }
+                    } else if (end > 0) {
+                        i = end;
+                        continue;
+                    }
+                }
+                acceptSeparator(c);
+                i++;
+            }
+        }
+
+        /**
+         * 匹配页码标记 [第共]\s*\d+\s*页
+         * 第N页先于共N页删除，删除后两侧的文本可能组成共N页，因此匹配共N页时跳过其中的第N页
+         * @return 标记结束位置；0表示不匹配；-1表示文本在判断完成前结束
+         */
+        private static int matchPageMarker(CharSequence text, int start) {
+            boolean nested = text.charAt(start) == '共';
+            int length = text.length();
+            // 0-数字前的空白，1-数字，2-数字后的空白
+            int phase = 0;
+            int i = start + 1;
+            while (i < length) {
+                char c = text.charAt(i);
+                if (nested && c == '第') {
+                    int end = matchPageMarker(text, i);
+                    if (end <= 0) {
+                        return end;
                     }
-                    
-                    // 新块开始时，添加重叠内容
-                    currentChunk = new StringBuilder(lastChunkEnd);
-                    if (currentChunk.length() > 0) {
-                        currentChunk.append("\n");
+                    i = end;
+                } else if (isWhitespace(c)) {
+                    if (phase == 1) {
+                        phase = 2;
                     }
-                    currentChunk.append(paragraph);
+                    i++;
+                } else if (c >= '0' && c <= '9' && phase < 2) {
+                    phase = 1;
+                    i++;
                 } else {
-                    // 当前块太小，强制合并（即使超过maxChunkSize）
-                    if (currentChunk.length() > 0) {
-                        currentChunk.append("\n");
+                    return phase > 0 && c == '页' ? i + 1 : 0;
+                }
+            }
+            return -1;
+        }
+
+        private void acceptSeparator(char c) {
+            char cls = separatorClassOf(c);
+            if (cls != 0 && cls == separatorClass) {
+                if (separatorLength < separatorChars.length) {
+                    separatorChars[separatorLength] = c;
+                }
+                separatorLength++;
+                return;
+            }
+            flushSeparator();
+            if (cls != 0) {
+                separatorClass = cls;
+                separatorChars[0] = c;
+                separatorLength = 1;
+                return;
+            }
+            acceptWhitespace(c);
+        }
+
+        private void flushSeparator() {
+            if (separatorLength < MIN_SEPARATOR_RUN) {
+                for (int i = 0; i < separatorLength; i++) {
+                    acceptWhitespace(separatorChars[i]);
+                }
+            }
+            separatorClass = 0;
+            separatorLength = 0;
+        }
+
+        private void acceptWhitespace(char c) {
+            if (isWhitespace(c)) {
+                if (whitespaceLength < whitespaceChars.length) {
+                    whitespaceChars[whitespaceLength] = c;
+                }
+                whitespaceLength++;
+                return;
+            }
+            flushWhitespace();
+            out.append(c);
+        }
+
+        private void flushWhitespace() {
+            if (whitespaceLength >= MIN_WHITESPACE_RUN) {
+                out.append(' ');
+            } else {
+                out.append(whitespaceChars, 0, whitespaceLength);
+            }
+            whitespaceLength = 0;
+        }
+
+        /**
+         * 分隔符类别：#=*为一类可以混合，-和_各自一类
+         */
+        private static char separatorClassOf(char c) {
+            switch (c) {
+                case '#':
+                case '=':
+                case '*':
+                    return '#';
+                case '-':
+                    return '-';
+                case '_':
+                    return '_';
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * 与正则\s一致：空格、制表符、换行、垂直制表符、换页、回车
+         */
+        private static boolean isWhitespace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+        }
+    }
+
+    /**
+     * 创建流式分片器（默认参数）
+     * @param paged 文档是否分页（PDF、PPT），分页时文本块记录所在页码
+     * @param consumer 文本块接收方
+     */
+    public StreamingChunker newChunker(Long documentId, boolean paged, ChunkConsumer consumer) {
+        return new StreamingChunker(documentId, tokenizerService, maxTokens, overlapTokens, paged, consumer);
+    }
+
+    /**
+     * 文本块接收方
+     */
+    public interface ChunkConsumer {
+        void accept(TextChunk chunk) throws Exception;
+    }
+
+    /**
+     * 流式分片器
+     * 文本可以分多次追加，每个字符只扫描一次找句子边界，完整的句子分词计数后放入当前块，
+     * 块的token数即将超过上限时产出文本块，并保留末尾不超过重叠大小的整句作为下一块的开头。
+     * 单句超过上限时按token边界切开。文本块内容是输入文本的原样片段，记录字符偏移、页码和所属章节标题路径；
+     * 只需在内存中保留当前块和未完成的句子。
+     * 文本块ID由内容哈希决定，同一文档内重复的内容按出现次序加后缀区分
+     */
+    public static class StreamingChunker {
+        /**
+         * 标题行：Markdown标题、第N章/节、一、（一）、1.1 标题
+         */
+        private static final Pattern MARKDOWN_HEADING = Pattern.compile("^(#{1,6})\\s*\\S");
+        private static final Pattern CHAPTER_HEADING = Pattern.compile("^第[0-9一二三四五六七八九十百千零两]+([章篇部卷节])");
+        private static final Pattern CN_NUMBER_HEADING = Pattern.compile("^[一二三四五六七八九十]+、\\s*\\S");
+        private static final Pattern CN_PAREN_HEADING = Pattern.compile("^[（(][一二三四五六七八九十]+[）)]\\s*\\S");
+        private static final Pattern NUMBERED_HEADING = Pattern.compile("^\\d{1,2}((?:\\.\\d{1,2})*)\\.?[\\s、]+[^\\d\\s]");
+        private static final int MAX_HEADING_CHARS = 50;
+        private static final int MAX_HEADING_PATH_CHARS = 500;
+        private static final String HEADING_SEPARATOR = " > ";
+
+        private final Long documentId;
+        private final TokenizerService tokenizer;
+        private final int maxTokens;
+        private final int overlapTokens;
+        private final boolean paged;
+        private final ChunkConsumer consumer;
+        /**
+         * 没有句子边界的文本超过该长度时强制切出一句
+         */
+        private final int maxSentenceChars;
+
+        /**
+         * 待处理文本，text中的位置i对应输入偏移base + i
+         */
+        private final StringBuilder text = new StringBuilder();
+        private int base;
+        /**
+         * 未完成句子的开始位置和已扫描到的位置（text中的位置）
+         */
+        private int sentenceStart;
+        private int scanned;
+
+        /**
+         * 当前块中的句子，开头可能是上一块保留的重叠句子
+         */
+        private final ArrayDeque<Sentence> sentences = new ArrayDeque<>();
+        private int chunkTokens;
+        /**
+         * 当前块中上一块没有包含的句子数
+         */
+        private int newSentences;
+        /**
+         * 已结束各页的结束偏移，第n页为pageEnds[n-1]
+         */
+        private final List<Integer> pageEnds = new ArrayList<>();
+        /**
+         * 当前所在章节的标题栈（级别和标题）及拼接后的路径
+         */
+        private final List<Integer> headingRanks = new ArrayList<>();
+        private final List<String> headingTitles = new ArrayList<>();
+        private String headingPath = "";
+        /**
+         * 未完成的句子是否从行首开始
+         */
+        private boolean lineStart = true;
+
+        private int chunkIndex = 1;
+        /**
+         * 已产出文本块的内容哈希 → 出现次数
+         */
+        private final Map<String, Integer> hashOccurrences = new HashMap<>();
+
+        public StreamingChunker(Long documentId, TokenizerService tokenizer, int maxTokens, int overlapTokens,
+                                boolean paged, ChunkConsumer consumer) {
+            this.documentId = documentId;
+            this.tokenizer = tokenizer;
+            this.maxTokens = maxTokens;
+            this.overlapTokens = Math.min(overlapTokens, maxTokens / 2);
+            this.paged = paged;
+            this.consumer = consumer;
+            this.maxSentenceChars = maxTokens * 8;
+        }
+
+        /**
+         * 追加一段（已清洗的）文本，完整的句子立即参与分片
+         */
+        public void append(String fragment) throws Exception {
+            if (fragment == null || fragment.isEmpty()) {
+                return;
+            }
+            text.append(fragment);
+            scan(false);
+            compact();
+        }
+
+        /**
+         * 当前页结束：之前追加的文本属于该页
+         * @param pageNumber 页码，从1开始按顺序调用
+         */
+        public void pageBreak(int pageNumber) {
+            while (pageEnds.size() < pageNumber) {
+                pageEnds.add(base + text.length());
+            }
+        }
+
+        /**
+         * 结束分片，产出剩余的文本块
+         */
+        public void finish() throws Exception {
+            scan(true);
+            acceptSentence(sentenceStart, text.length(), lineStart);
+            sentenceStart = text.length();
+            if (newSentences > 0) {
+                emit();
+            }
+            sentences.clear();
+            chunkTokens = 0;
+            newSentences = 0;
+        }
+
+        /**
+         * 从上次扫描的位置继续找句子边界：。！？；!?;、换行，以及后面跟空白的英文句号
+         * @param last 是否为最后一段文本（末尾的英文句号不再等待下一个字符）
+         */
+        private void scan(boolean last) throws Exception {
+            int length = text.length();
+            while (scanned < length) {
+                char c = text.charAt(scanned);
+                boolean boundary;
+                if (c == '.') {
+                    if (scanned + 1 == length && !last) {
+                        // 需要下一个字符才能判断
+                        return;
                     }
-                    currentChunk.append(paragraph);
-                }
-            }
-            
-            // 如果单个段落就超过maxChunkSize，按句号分割
-            if (currentChunk.length() > maxChunkSize * 1.5) {
-                String[] sentences = currentChunk.toString().split("[。！？]");
-                StringBuilder sentenceChunk = new StringBuilder();
-                String sentenceOverlap = "";
-                
-                for (String sentence : sentences) {
-                    sentence = sentence.trim();
-                    if (sentence.isEmpty()) continue;
-                    
-                    if (sentenceChunk.length() + sentence.length() <= maxChunkSize) {
-                        if (sentenceChunk.length() > 0) {
-                            sentenceChunk.append("。");
-                        }
-                        sentenceChunk.append(sentence);
-                    } else {
-                        if (sentenceChunk.length() >= minChunkSize) {
-                            String chunkContent = sentenceChunk.toString();
-                            chunks.add(new TextChunk(
-                                documentId,
-                                chunkIndex++,
-                                chunkContent
-                            ));
-                            
-                            // 保存重叠内容
-                            if (chunkContent.length() > overlapSize) {
-                                sentenceOverlap = chunkContent.substring(
-                                        chunkContent.length() - overlapSize);
-                            } else {
-                                sentenceOverlap = chunkContent;
-                            }
-                        }
-                        sentenceChunk = new StringBuilder(sentenceOverlap);
-                        if (sentenceChunk.length() > 0) {
-                            sentenceChunk.append("。");
-                        }
-                        sentenceChunk.append(sentence);
+                    boundary = scanned + 1 == length || Character.isWhitespace(text.charAt(scanned + 1));
+                } else {
+                    boundary = isSentenceEnd(c);
+                }
+                scanned++;
+                if (boundary) {
+                    // 以换行结束、从行首开始的句子是完整的一行，可能是标题
+                    acceptSentence(sentenceStart, scanned, lineStart && c == '\n');
+                    sentenceStart = scanned;
+                    lineStart = c == '\n';
+                } else if (scanned - sentenceStart >= maxSentenceChars) {
+                    int cut = lastWhitespace(sentenceStart, scanned);
+                    acceptSentence(sentenceStart, cut, false);
+                    sentenceStart = cut;
+                    lineStart = false;
+                }
+            }
+        }
+
+        private static boolean isSentenceEnd(char c) {
+            return c == '。' || c == '！' || c == '？' || c == '；' || c == '!' || c == '?' || c == ';' || c == '\n';
+        }
+
+        private int lastWhitespace(int from, int to) {
+            for (int i = to - 1; i > from; i--) {
+                if (Character.isWhitespace(text.charAt(i))) {
+                    return i + 1;
+                }
+            }
+            return to;
+        }
+
+        /**
+         * 接收一个完整的句子（text中的区间），去除首尾空白后分词计数
+         * @param line 是否为完整的一行
+         */
+        private void acceptSentence(int start, int end, boolean line) throws Exception {
+            while (start < end && Character.isWhitespace(text.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+                end--;
+            }
+            if (start == end) {
+                return;
+            }
+            boolean heading = line && end - start <= MAX_HEADING_CHARS && updateHeadings(text.substring(start, end));
+            int[] tokenEnds = tokenizer.tokenEnds(text.substring(start, end));
+            if (tokenEnds.length <= maxTokens) {
+                addSentence(new Sentence(base + start, base + end, Math.max(tokenEnds.length, 1), headingPath, heading));
+                return;
+            }
+            // 超长句子按token边界切成不超过上限的片段
+            int pieceStart = start;
+            for (int first = 0; first < tokenEnds.length; first += maxTokens) {
+                int last = Math.min(first + maxTokens, tokenEnds.length) - 1;
+                int pieceEnd = last == tokenEnds.length - 1 ? end : start + tokenEnds[last];
+                if (pieceEnd > pieceStart) {
+                    addSentence(new Sentence(base + pieceStart, base + pieceEnd, last - first + 1, headingPath, false));
+                    pieceStart = pieceEnd;
+                }
+            }
+        }
+
+        /**
+         * 标题行入栈：先弹出同级和下级标题，路径随之更新
+         * @return 是否为标题行
+         */
+        private boolean updateHeadings(String line) {
+            int rank = headingRank(line);
+            if (rank == 0) {
+                return false;
+            }
+            while (!headingRanks.isEmpty() && headingRanks.get(headingRanks.size() - 1) >= rank) {
+                headingRanks.remove(headingRanks.size() - 1);
+                headingTitles.remove(headingTitles.size() - 1);
+            }
+            headingRanks.add(rank);
+            headingTitles.add(line);
+            String path = String.join(HEADING_SEPARATOR, headingTitles);
+            headingPath = path.length() > MAX_HEADING_PATH_CHARS ? path.substring(0, MAX_HEADING_PATH_CHARS) : path;
+            return true;
+        }
+
+        /**
+         * 标题级别，数字越小层级越高，0表示不是标题
+         * 第N章/篇/部/卷 1，第N节 2，一、3，（一）4，1 / 1.1 / 1.1.1 依次为5、6、7；Markdown标题按#的个数
+         */
+        static int headingRank(String line) {
+            char first = line.charAt(0);
+            Matcher matcher;
+            if (first == '#') {
+                matcher = MARKDOWN_HEADING.matcher(line);
+                return matcher.find() ? matcher.group(1).length() : 0;
+            }
+            if (first == '第') {
+                matcher = CHAPTER_HEADING.matcher(line);
+                return matcher.find() ? ("节".equals(matcher.group(1)) ? 2 : 1) : 0;
+            }
+            if (first == '（' || first == '(') {
+                return CN_PAREN_HEADING.matcher(line).find() ? 4 : 0;
+            }
+            if (first >= '0' && first <= '9') {
+                matcher = NUMBERED_HEADING.matcher(line);
+                if (!matcher.find()) {
+                    return 0;
+                }
+                String subLevels = matcher.group(1);
+                int depth = 0;
+                for (int i = 0; i < subLevels.length(); i++) {
+                    if (subLevels.charAt(i) == '.') {
+                        depth++;
                     }
                 }
-                if (sentenceChunk.length() >= minChunkSize) {
-                    currentChunk = sentenceChunk;
+                return 5 + depth;
+            }
+            return CN_NUMBER_HEADING.matcher(line).find() ? 3 : 0;
+        }
+
+        private void addSentence(Sentence sentence) throws Exception {
+            if (chunkTokens + sentence.tokens > maxTokens && newSentences > 0) {
+                // 标题不留在块尾，随后面的正文进入下一块
+                Sentence heading = null;
+                if (newSentences > 1 && sentences.getLast().heading
+                        && sentences.getLast().tokens + sentence.tokens <= maxTokens) {
+                    heading = sentences.removeLast();
+                    chunkTokens -= heading.tokens;
+                    newSentences--;
+                }
+                emit();
+                // 保留末尾不超过重叠大小的整句；新章节开始时不重叠
+                while (chunkTokens > (heading == null ? overlapTokens : 0)) {
+                    chunkTokens -= sentences.removeFirst().tokens;
+                }
+                newSentences = 0;
+                if (heading != null) {
+                    sentences.addLast(heading);
+                    chunkTokens = heading.tokens;
+                    newSentences = 1;
+                }
+            }
+            // 重叠句子加上新句子仍超过上限时减少重叠
+            while (sentences.size() > newSentences && chunkTokens + sentence.tokens > maxTokens) {
+                chunkTokens -= sentences.removeFirst().tokens;
+            }
+            sentences.addLast(sentence);
+            chunkTokens += sentence.tokens;
+            newSentences++;
+        }
+
+        private void emit() throws Exception {
+            int start = sentences.getFirst().start;
+            int end = sentences.getLast().end;
+            String content = text.substring(start - base, end - base);
+            String contentHash = TextChunk.hashContent(content);
+            int occurrence = hashOccurrences.merge(contentHash, 1, Integer::sum);
+            TextChunk chunk = new TextChunk(documentId, chunkIndex++, content, contentHash, occurrence);
+            chunk.setStartOffset(start);
+            chunk.setEndOffset(end);
+            if (paged) {
+                chunk.setPageStart(pageOf(start));
+                chunk.setPageEnd(pageOf(end - 1));
+            }
+            chunk.setTokenCount(chunkTokens);
+            chunk.setHeadingPath(firstNewSentence().headingPath);
+            consumer.accept(chunk);
+        }
+
+        /**
+         * 当前块中第一个不属于重叠部分的句子，文本块的章节以它为准
+         */
+        private Sentence firstNewSentence() {
+            Iterator<Sentence> iterator = sentences.iterator();
+            Sentence sentence = iterator.next();
+            for (int skip = sentences.size() - newSentences; skip > 0; skip--) {
+                sentence = iterator.next();
+            }
+            return sentence;
+        }
+
+        /**
+         * 偏移所在的页码：之前已结束的页数 + 1
+         */
+        private int pageOf(int offset) {
+            int low = 0;
+            int high = pageEnds.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (pageEnds.get(mid) <= offset) {
+                    low = mid + 1;
                 } else {
-                    currentChunk = new StringBuilder();
+                    high = mid;
                 }
             }
+            return low + 1;
         }
-        
-        // 保存最后一个块
-        if (currentChunk.length() >= minChunkSize) {
-            chunks.add(new TextChunk(
-                documentId,
-                chunkIndex,
-                currentChunk.toString()
-            ));
+
+        /**
+         * 丢弃不再需要的文本（当前块之前），超过一半时才移动，整体为线性开销
+         */
+        private void compact() {
+            int keep = sentenceStart;
+            if (!sentences.isEmpty()) {
+                keep = Math.min(keep, sentences.getFirst().start - base);
+            }
+            if (keep > 0 && keep >= text.length() / 2) {
+                text.delete(0, keep);
+                base += keep;
+                sentenceStart -= keep;
+                scanned -= keep;
+            }
+        }
+
+        /**
+         * 句子：输入偏移区间、token数、所属章节标题路径，以及是否为标题行
+         */
+        private static class Sentence {
+            private final int start;
+            private final int end;
+            private final int tokens;
+            private final String headingPath;
+            private final boolean heading;
+
+            Sentence(int start, int end, int tokens, String headingPath, boolean heading) {
+                this.start = start;
+                this.end = end;
+                this.tokens = tokens;
+                this.headingPath = headingPath;
+                this.heading = heading;
+            }
         }
-        
-        log.info("文档 {} 分片完成，共 {} 个文本块（重叠大小: {}）", 
-                documentId, chunks.size(), overlapSize);
-        return chunks;
     }
 
     /**
      * 文本块实体
+     * chunkId由内容哈希决定而不是序号，文档修订后未变化的文本块ID保持不变，可以增量重建索引；
+     * 位置信息（偏移、页码、章节）在分片时一并得出，下游直接使用而不必重新扫描内容
      */
     public static class TextChunk {
         private Long documentId;
         private Integer chunkIndex;
         private String content;
-        private String chunkId; // 格式：docId_chunkIndex
+        private String contentHash; // 内容的SHA-256（十六进制）
+        private String chunkId; // 格式：docId_contentHash，同一文档内第n次出现的相同内容为docId_contentHash-n
+        private long simHash; // 内容的64位SimHash，用于近似重复判断
+        private int startOffset; // 在清洗后全文中的字符偏移（含）
+        private int endOffset; // 在清洗后全文中的字符偏移（不含）
+        private int pageStart; // 起始页码，不分页的文档为0
+        private int pageEnd; // 结束页码，不分页的文档为0
+        private String headingPath = ""; // 所属章节的标题路径，如"第一章 总则 > 1.1 目的"
+        private int tokenCount; // token数（不含特殊token）
 
-        public TextChunk(Long documentId, Integer chunkIndex, String content) {
+        public TextChunk(Long documentId, Integer chunkIndex, String content, String contentHash, int occurrence) {
             this.documentId = documentId;
             this.chunkIndex = chunkIndex;
             this.content = content;
-            this.chunkId = documentId + "_" + chunkIndex;
+            this.contentHash = contentHash;
+            this.chunkId = documentId + "_" + contentHash + (occurrence > 1 ? "-" + occurrence : "");
+            this.simHash = simHash(content);
+        }
+
+        /**
+         * 计算64位SimHash：以相邻两个非空白字符为特征，内容相近的文本块汉明距离小
+         */
+        public static long simHash(CharSequence content) {
+            int[] weights = new int[64];
+            char previous = 0;
+            for (int i = 0; i < content.length(); i++) {
+                char c = Character.toLowerCase(content.charAt(i));
+                if (Character.isWhitespace(c)) {
+                    continue;
+                }
+                if (previous != 0) {
+                    long hash = mix(((long) previous << 16) | c);
+                    for (int bit = 0; bit < 64; bit++) {
+                        weights[bit] += ((hash >>> bit) & 1) == 0 ? -1 : 1;
+                    }
+                }
+                previous = c;
+            }
+            long simHash = 0;
+            for (int bit = 0; bit < 64; bit++) {
+                if (weights[bit] > 0) {
+                    simHash |= 1L << bit;
+                }
+            }
+            return simHash;
+        }
+
+        /**
+         * 两个SimHash的汉明距离，不超过3通常可视为近似重复
+         */
+        public static int hammingDistance(long a, long b) {
+            return Long.bitCount(a ^ b);
+        }
+
+        private static long mix(long x) {
+            x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+            x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+            return x ^ (x >>> 31);
+        }
+
+        /**
+         * 计算文本块内容哈希
+         */
+        public static String hashContent(String content) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder(digest.length * 2);
+                for (byte b : digest) {
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256不可用", e);
+            }
         }
 
         public Long getDocumentId() {
@@ -214,9 +784,65 @@ public class TextPreprocessService {
             return content;
         }
 
+        public String getContentHash() {
+            return contentHash;
+        }
+
         public String getChunkId() {
             return chunkId;
         }
+
+        public long getSimHash() {
+            return simHash;
+        }
+
+        public int getStartOffset() {
+            return startOffset;
+        }
+
+        public void setStartOffset(int startOffset) {
+            this.startOffset = startOffset;
+        }
+
+        public int getEndOffset() {
+            return endOffset;
+        }
+
+        public void setEndOffset(int endOffset) {
+            this.endOffset = endOffset;
+        }
+
+        public int getPageStart() {
+            return pageStart;
+        }
+
+        public void setPageStart(int pageStart) {
+            this.pageStart = pageStart;
+        }
+
+        public int getPageEnd() {
+            return pageEnd;
+        }
+
+        public void setPageEnd(int pageEnd) {
+            this.pageEnd = pageEnd;
+        }
+
+        public String getHeadingPath() {
+            return headingPath;
+        }
+
+        public void setHeadingPath(String headingPath) {
+            this.headingPath = headingPath;
+        }
+
+        public int getTokenCount() {
+            return tokenCount;
+        }
+
+        public void setTokenCount(int tokenCount) {
+            this.tokenCount = tokenCount;
+        }
     }
 }
 
@@ -0,0 +1,150 @@
+package com.smartdoc.aiengine.service;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.huggingface.tokenizers.jni.CharSpan;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 分词计数服务
+ * 使用Embedding模型的tokenizer.json统计token数，分片按token计算大小；
+ * 未配置分词器时按字符估算（中日韩字符每字一个token，英文和数字每4个字符一个token）
+ */
+@Slf4j
+@Service
+public class TokenizerService {
+
+    /**
+     * 估算时英文和数字每个token的字符数
+     */
+    private static final int ESTIMATED_CHARS_PER_TOKEN = 4;
+
+    /**
+     * tokenizer.json路径或包含它的模型目录，应与Embedding模型一致
+     */
+    @Value("${ai.chunking.tokenizer-path:}")
+    private String tokenizerPath;
+
+    private HuggingFaceTokenizer tokenizer;
+
+    @PostConstruct
+    public void init() {
+        if (tokenizerPath == null || tokenizerPath.isEmpty()) {
+            log.info("未配置分词器，按字符估算token数");
+            return;
+        }
+        try {
+            Path path = Paths.get(tokenizerPath);
+            tokenizer = HuggingFaceTokenizer.builder()
+                    .optTokenizerPath(Files.isDirectory(path) ? path.resolve("tokenizer.json") : path)
+                    .optAddSpecialTokens(false)
+                    .optTruncation(false)
+                    .optPadding(false)
+                    .build();
+            log.info("分词器加载成功: tokenizerPath={}", tokenizerPath);
+        } catch (Exception e) {
+            log.error("分词器加载失败，按字符估算token数", e);
+            tokenizer = null;
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (tokenizer != null) {
+            tokenizer.close();
+            tokenizer = null;
+        }
+    }
+
+    /**
+     * 是否使用真实分词器计数
+     */
+    public boolean isExact() {
+        return tokenizer != null;
+    }
+
+    /**
+     * 统计token数（不含特殊token）
+     */
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        if (tokenizer != null) {
+            return tokenizer.encode(text).getIds().length;
+        }
+        return estimate(text, null);
+    }
+
+    /**
+     * 分词并返回每个token在文本中的结束位置（递增），长度即token数
+     */
+    public int[] tokenEnds(String text) {
+        if (text == null || text.isEmpty()) {
+            return new int[0];
+        }
+        if (tokenizer != null) {
+            Encoding encoding = tokenizer.encode(text);
+            CharSpan[] spans = encoding.getCharTokenSpans();
+            int[] ends = new int[spans.length];
+            int last = 0;
+            for (int i = 0; i < spans.length; i++) {
+                // 部分token（如字节回退）没有对应的字符区间，沿用上一个位置
+                if (spans[i] != null) {
+                    last = Math.max(last, Math.min(spans[i].getEnd(), text.length()));
+                }
+                ends[i] = last;
+            }
+            return ends;
+        }
+        int[] ends = new int[estimate(text, null)];
+        estimate(text, ends);
+        return ends;
+    }
+
+    /**
+     * 按字符估算token数
+     * @param ends 不为空时写入每个token的结束位置
+     */
+    private static int estimate(String text, int[] ends) {
+        int tokens = 0;
+        int wordLength = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 128 && Character.isLetterOrDigit(c)) {
+                wordLength++;
+                if (wordLength == ESTIMATED_CHARS_PER_TOKEN) {
+                    tokens = addToken(ends, tokens, i + 1);
+                    wordLength = 0;
+                }
+                continue;
+            }
+            if (wordLength > 0) {
+                tokens = addToken(ends, tokens, i);
+                wordLength = 0;
+            }
+            if (!Character.isWhitespace(c)) {
+                tokens = addToken(ends, tokens, i + 1);
+            }
+        }
+        if (wordLength > 0) {
+            tokens = addToken(ends, tokens, text.length());
+        }
+        return tokens;
+    }
+
+    private static int addToken(int[] ends, int tokens, int end) {
+        if (ends != null) {
+            ends[tokens] = end;
+        }
+        return tokens + 1;
+    }
+}
@@ -0,0 +1,213 @@
+package com.smartdoc.aiengine.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 文本清洗与分片的随机等价性检查（固定种子，可复现）：
+ * 单遍清洗与原正则清洗结果一致；分片段输入与整体输入的清洗结果、文本块内容、偏移和页码一致
+ */
+class TextPreprocessServiceTest {
+
+    private static final int CLEANER_ROUNDS = 5000;
+    private static final int CHUNKER_ROUNDS = 500;
+
+    /**
+     * 原正则清洗的规则（单遍清洗之前的cleanText），作为对照
+     */
+    private static final Pattern PAGE_NUMBER = Pattern.compile("第\\s*\\d+\\s*页");
+    private static final Pattern PAGE_TOTAL = Pattern.compile("共\\s*\\d+\\s*页");
+    private static final Pattern SPECIAL_CHARS = Pattern.compile("[#=*]{3,}|-{3,}|_{3,}");
+    private static final Pattern MULTI_SPACE = Pattern.compile("\\s{3,}");
+    private static final Pattern MULTI_NEWLINE = Pattern.compile("\\n{3,}");
+
+    /**
+     * 清洗输入的字符集：页码标记、分隔符和各种空白的组合
+     */
+    private static final String CLEANER_ALPHABET = "第共页第共页0123456789   \t\n\n\r\u000B\f#=*-_ab文字。";
+
+    private static final String[] HEADING_PREFIXES = {"", "", "", "# ", "## ", "### ", "第一章 ", "第二节 ",
+            "一、", "（一）", "(二)", "1 ", "1.1 ", "2.3.4 "};
+    private static final String[] WORDS = {"文档", "检索", "分片", "token", "model", "数据", "a", "42", "3.14"};
+    private static final String[] SEPARATORS = {"", " ", " ", "，", "。", "！", "？", "；", ". ", "!", "?", ";", "  "};
+
+    @Test
+    void singlePassCleanerMatchesRegexCleaner() {
+        Random random = new Random(43);
+        for (int round = 0; round < CLEANER_ROUNDS; round++) {
+            String raw = randomText(random, random.nextInt(120));
+            assertEquals(regexClean(raw), new TextPreprocessService.TextCleaner().finish(raw), () -> describe(raw));
+        }
+    }
+
+    @Test
+    void cleanTextMatchesRegexCleanText() {
+        TextPreprocessService service = new TextPreprocessService();
+        Random random = new Random(4301);
+        for (int round = 0; round < CLEANER_ROUNDS; round++) {
+            String raw = randomText(random, random.nextInt(120));
+            String expected = raw.trim().isEmpty() ? "" : regexClean(raw).trim();
+            assertEquals(expected, service.cleanText(raw), () -> describe(raw));
+        }
+    }
+
+    @Test
+    void fragmentedCleaningMatchesWholeCleaning() {
+        Random random = new Random(4302);
+        for (int round = 0; round < CLEANER_ROUNDS; round++) {
+            String raw = randomText(random, random.nextInt(120));
+            List<String> fragments = split(raw, random);
+            TextPreprocessService.TextCleaner cleaner = new TextPreprocessService.TextCleaner();
+            StringBuilder cleaned = new StringBuilder();
+            for (String fragment : fragments) {
+                cleaned.append(cleaner.clean(fragment));
+            }
+            cleaned.append(cleaner.finish());
+            assertEquals(new TextPreprocessService.TextCleaner().finish(raw), cleaned.toString(),
+                    () -> describe(raw) + " fragments=" + fragments.size());
+        }
+    }
+
+    @Test
+    void fragmentedChunkingMatchesWholeChunking() throws Exception {
+        // 未初始化的分词服务按字符估算token数
+        TokenizerService tokenizer = new TokenizerService();
+        Random random = new Random(44);
+        for (int round = 0; round < CHUNKER_ROUNDS; round++) {
+            List<String> pages = new ArrayList<>();
+            int pageCount = 1 + random.nextInt(5);
+            for (int i = 0; i < pageCount; i++) {
+                pages.add(randomDocument(random, random.nextInt(12)));
+            }
+            boolean paged = random.nextBoolean();
+            int maxTokens = 8 + random.nextInt(64);
+            int overlapTokens = random.nextInt(maxTokens / 2 + 1);
+            String context = "round=" + round + " maxTokens=" + maxTokens + " overlapTokens=" + overlapTokens
+                    + " paged=" + paged;
+
+            List<TextPreprocessService.TextChunk> whole = chunk(tokenizer, pages, paged, maxTokens, overlapTokens, null);
+            List<TextPreprocessService.TextChunk> fragmented =
+                    chunk(tokenizer, pages, paged, maxTokens, overlapTokens, random);
+
+            assertEquals(whole.size(), fragmented.size(), context);
+            String text = String.join("", pages);
+            for (int i = 0; i < whole.size(); i++) {
+                TextPreprocessService.TextChunk expected = whole.get(i);
+                TextPreprocessService.TextChunk actual = fragmented.get(i);
+                String at = context + " chunk=" + i;
+                assertEquals(expected.getChunkIndex(), actual.getChunkIndex(), at);
+                assertEquals(expected.getContent(), actual.getContent(), at);
+                assertEquals(expected.getChunkId(), actual.getChunkId(), at);
+                assertEquals(expected.getStartOffset(), actual.getStartOffset(), at);
+                assertEquals(expected.getEndOffset(), actual.getEndOffset(), at);
+                assertEquals(expected.getPageStart(), actual.getPageStart(), at);
+                assertEquals(expected.getPageEnd(), actual.getPageEnd(), at);
+                assertEquals(expected.getHeadingPath(), actual.getHeadingPath(), at);
+                assertEquals(expected.getTokenCount(), actual.getTokenCount(), at);
+                // 文本块内容是输入的原样片段
+                assertEquals(text.substring(expected.getStartOffset(), expected.getEndOffset()),
+                        expected.getContent(), at);
+                if (paged) {
+                    assertEquals(pageOf(pages, expected.getStartOffset()), expected.getPageStart(), at);
+                    assertEquals(pageOf(pages, expected.getEndOffset() - 1), expected.getPageEnd(), at);
+                }
+            }
+        }
+    }
+
+    /**
+     * 按页追加文本并分片，random不为空时每页再随机切成多个片段追加
+     */
+    private static List<TextPreprocessService.TextChunk> chunk(TokenizerService tokenizer, List<String> pages,
+                                                               boolean paged, int maxTokens, int overlapTokens,
+                                                               Random random) throws Exception {
+        List<TextPreprocessService.TextChunk> chunks = new ArrayList<>();
+        TextPreprocessService.StreamingChunker chunker = new TextPreprocessService.StreamingChunker(
+                1L, tokenizer, maxTokens, overlapTokens, paged, chunks::add);
+        for (int page = 0; page < pages.size(); page++) {
+            if (random == null) {
+                chunker.append(pages.get(page));
+            } else {
+                for (String fragment : split(pages.get(page), random)) {
+                    chunker.append(fragment);
+                }
+            }
+            if (paged) {
+                chunker.pageBreak(page + 1);
+            }
+        }
+        chunker.finish();
+        return chunks;
+    }
+
+    private static String regexClean(String raw) {
+        String cleaned = PAGE_NUMBER.matcher(raw).replaceAll("");
+        cleaned = PAGE_TOTAL.matcher(cleaned).replaceAll("");
+        cleaned = SPECIAL_CHARS.matcher(cleaned).replaceAll("");
+        cleaned = MULTI_SPACE.matcher(cleaned).replaceAll(" ");
+        return MULTI_NEWLINE.matcher(cleaned).replaceAll("\n\n");
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(CLEANER_ALPHABET.charAt(random.nextInt(CLEANER_ALPHABET.length())));
+        }
+        return text.toString();
+    }
+
+    /**
+     * 随机文档：每行可能以标题前缀开头，行内是词和句子分隔符，偶尔有不带分隔符的长行
+     */
+    private static String randomDocument(Random random, int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; line < lines; line++) {
+            text.append(HEADING_PREFIXES[random.nextInt(HEADING_PREFIXES.length)]);
+            boolean longLine = random.nextInt(10) == 0;
+            int words = longLine ? 100 + random.nextInt(200) : random.nextInt(20);
+            for (int i = 0; i < words; i++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+                text.append(longLine ? "" : SEPARATORS[random.nextInt(SEPARATORS.length)]);
+            }
+            text.append(random.nextInt(4) == 0 ? "\n\n" : "\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * 随机切成若干片段（可能有空片段和单字符片段）
+     */
+    private static List<String> split(String text, Random random) {
+        List<String> fragments = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(text.length(), start + random.nextInt(8));
+            fragments.add(text.substring(start, end));
+            start = end;
+        }
+        fragments.add("");
+        return fragments;
+    }
+
+    private static int pageOf(List<String> pages, int offset) {
+        int end = 0;
+        for (int page = 0; page < pages.size(); page++) {
+            end += pages.get(page).length();
+            if (offset < end) {
+                return page + 1;
+            }
+        }
+        return pages.size();
+    }
+
+    private static String describe(String raw) {
+        return "raw=\"" + raw.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t")
+                .replace("\u000B", "\\v").replace("\f", "\\f") + "\"";
+    }
+}
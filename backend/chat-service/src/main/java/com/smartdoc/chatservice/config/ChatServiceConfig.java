@@ -1,10 +1,66 @@
 package com.smartdoc.chatservice.config;
 
+import com.smartdoc.chatservice.service.DocumentPermissionClient;
+import com.smartdoc.common.constant.RedisChannels;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.mybatis.spring.annotation.MapperScan;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
 
 @Configuration
 @MapperScan("com.smartdoc.chatservice.mapper")
 public class ChatServiceConfig {
-}
 
+    @Value("${chat.http.max-connections:100}")
+    private int maxConnections;
+
+    @Value("${chat.http.connect-timeout:2000}")
+    private int connectTimeout;
+
+    @Value("${chat.http.read-timeout:5000}")
+    private int readTimeout;
+
+    /**
+     * 调用其他服务使用的RestTemplate（连接池 + 超时）
+     */
+    @Bean
+    public RestTemplate restTemplate() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+    }
+
+    /**
+     * 订阅文档权限变更通知
+     */
+    @Bean
+    public RedisMessageListenerContainer permissionEventListenerContainer(
+            RedisConnectionFactory connectionFactory, DocumentPermissionClient documentPermissionClient) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(documentPermissionClient,
+                new ChannelTopic(RedisChannels.DOCUMENT_PERMISSION_CHANGED));
+        return container;
+    }
+}
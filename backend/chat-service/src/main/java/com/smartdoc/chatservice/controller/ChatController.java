@@ -1,12 +1,15 @@
 package com.smartdoc.chatservice.controller;
 
+import com.smartdoc.aiengine.service.MilvusService;
 import com.smartdoc.chatservice.entity.ChatMessage;
 import com.smartdoc.chatservice.service.ChatService;
+import com.smartdoc.common.result.CursorPage;
 import com.smartdoc.common.result.Result;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -28,21 +31,104 @@ public class ChatController {
             @RequestBody Map<String, Object> request) {
         Long documentId = request.get("documentId") != null ? 
                 Long.parseLong(request.get("documentId").toString()) : null;
+        List<Long> documentIds = parseDocumentIds(request.get("documentIds"));
         String question = (String) request.get("question");
         
-        ChatMessage chatMessage = chatService.askQuestion(userId, documentId, question, userRole);
+        ChatMessage chatMessage = chatService.askQuestion(userId, documentId, documentIds, question, userRole);
         return Result.success(chatMessage);
     }
 
     /**
-     * 获取对话历史
+     * 多文档检索：在选定的文档（documentIds）或全部有权限访问的文档中检索文本块，不调用LLM
+     * 请求体：query、documentIds（可选）、topK（可选）
+     */
+    @PostMapping("/search")
+    public Result<List<MilvusService.SearchResult>> search(
+            @RequestHeader("X-User-Id") Long userId,
+            @RequestHeader(value = "X-User-Role", defaultValue = "user") String userRole,
+            @RequestBody Map<String, Object> request) {
+        String query = (String) request.get("query");
+        List<Long> documentIds = parseDocumentIds(request.get("documentIds"));
+        Integer topK = request.get("topK") instanceof Number ? ((Number) request.get("topK")).intValue() : null;
+        return Result.success(chatService.search(userId, userRole, query, documentIds, topK));
+    }
+
+    /**
+     * 获取对话历史（游标分页，从最新的消息向前翻页），问题和回答只返回预览
      */
     @GetMapping("/history")
-    public Result<List<ChatMessage>> getChatHistory(
+    public Result<CursorPage<ChatMessage>> getChatHistory(
             @RequestHeader("X-User-Id") Long userId,
-            @RequestParam(required = false) Long documentId) {
-        List<ChatMessage> history = chatService.getChatHistoryList(userId, documentId);
+            @RequestParam(required = false) Long documentId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer size) {
+        CursorPage<ChatMessage> history = chatService.getChatHistoryList(userId, documentId, cursor, size);
         return Result.success(history);
     }
-}
 
+    /**
+     * 获取单条对话消息的完整内容（历史列表中被截断的消息）
+     */
+    @GetMapping("/history/{messageId}")
+    public Result<ChatMessage> getChatMessage(
+            @RequestHeader("X-User-Id") Long userId,
+            @PathVariable Long messageId) {
+        return Result.success(chatService.getChatMessage(userId, messageId));
+    }
+
+    /**
+     * 获取LLM上下文缓存命中统计
+     */
+    @GetMapping("/prompt-cache/stats")
+    public Result<Map<String, Object>> getPromptCacheStats() {
+        return Result.success(chatService.getPromptCacheStats());
+    }
+
+    /**
+     * 获取LLM各端点的健康与延迟统计
+     */
+    @GetMapping("/llm/endpoints")
+    public Result<List<Map<String, Object>>> getLlmEndpointStats() {
+        return Result.success(chatService.getLlmEndpointStats());
+    }
+
+    /**
+     * 获取重排序分数缓存与候选剪枝统计
+     */
+    @GetMapping("/reranker/stats")
+    public Result<Map<String, Object>> getRerankerStats() {
+        return Result.success(chatService.getRerankerStats());
+    }
+
+    /**
+     * 获取重复问答请求合并统计
+     */
+    @GetMapping("/coalesce/stats")
+    public Result<Map<String, Object>> getCoalesceStats() {
+        return Result.success(chatService.getCoalesceStats());
+    }
+
+    /**
+     * 获取文档权限判定缓存统计
+     */
+    @GetMapping("/permission-cache/stats")
+    public Result<Map<String, Object>> getPermissionCacheStats() {
+        return Result.success(chatService.getPermissionCacheStats());
+    }
+
+    /**
+     * 解析请求中的文档ID列表
+     */
+    private List<Long> parseDocumentIds(Object value) {
+        if (!(value instanceof List)) {
+            return null;
+        }
+        List<Long> documentIds = new ArrayList<>();
+        for (Object documentId : (List<?>) value) {
+            if (documentId != null) {
+                documentIds.add(Long.parseLong(documentId.toString()));
+            }
+        }
+        return documentIds;
+    }
+}
@@ -1,5 +1,6 @@
 package com.smartdoc.chatservice.entity;
 
+import com.baomidou.mybatisplus.annotation.TableField;
 import com.baomidou.mybatisplus.annotation.TableName;
 import com.smartdoc.common.entity.BaseEntity;
 import lombok.Data;
@@ -15,5 +16,7 @@ public class ChatMessage extends BaseEntity {
     private String answer;
     private String sourceChunks; // JSON格式，存储来源文本块ID
     private Integer isGeneralAnswer; // 0-文档回答, 1-通用回答
+    @TableField(exist = false)
+    private Boolean truncated; // 历史列表中问题或回答只返回了预览，全文按消息ID查询
 }
 
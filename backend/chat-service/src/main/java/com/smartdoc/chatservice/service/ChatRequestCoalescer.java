@@ -0,0 +1,160 @@
+package com.smartdoc.chatservice.service;
+
+import com.smartdoc.common.exception.BusinessException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 问答请求合并服务
+ * 同一用户在同一文档下重复提交相同问题（双击、慢响应时重试、前端重发）时，
+ * 只有第一个请求真正执行检索和LLM调用，其余请求挂在同一个Future上等待结果；
+ * 完成后的结果在短时间窗口内保留，窗口内的重复提交直接复用；失败的结果不保留，重试会重新执行
+ */
+@Slf4j
+@Service
+public class ChatRequestCoalescer {
+
+    @Value("${chat.coalesce.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 结果完成后保留的时间窗口
+     */
+    @Value("${chat.coalesce.window-ms:5000}")
+    private long windowMillis;
+
+    /**
+     * 跟随请求等待主请求的最长时间
+     */
+    @Value("${chat.coalesce.wait-timeout-ms:120000}")
+    private long waitTimeoutMillis;
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chat-coalescer-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    @PreDestroy
+    public void destroy() {
+        evictor.shutdownNow();
+    }
+
+    /**
+     * 构建合并键：用户 + 文档（或选定的文档集合） + 归一化后的问题
+     */
+    public static String key(Long userId, Long documentId, List<Long> documentIds, String question) {
+        String scope;
+        if (documentId != null) {
+            scope = documentId.toString();
+        } else if (documentIds != null && !documentIds.isEmpty()) {
+            // 选定的文档集合与顺序无关
+            scope = new TreeSet<>(documentIds).toString();
+        } else {
+            scope = "general";
+        }
+        return userId + ":" + scope + ":" + normalize(question);
+    }
+
+    /**
+     * 执行或加入相同键的请求
+     * @param key 合并键
+     * @param task 实际执行的任务，只会被第一个请求调用
+     * @return 任务结果（所有合并的请求得到同一个结果对象）
+     */
+    public <T> T execute(String key, Supplier<T> task) {
+        return execute(key, task, result -> true);
+    }
+
+    /**
+     * 执行或加入相同键的请求
+     * @param reusable 结果是否可在时间窗口内复用（如以错误提示作为结果时返回false），不可复用的结果只分发给执行期间合并的请求
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> task, Predicate<T> reusable) {
+        if (!enabled) {
+            return task.get();
+        }
+
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            log.info("合并重复问答请求: key={}", key);
+            return (T) await(existing);
+        }
+
+        executed.incrementAndGet();
+        boolean retain = false;
+        try {
+            T result = task.get();
+            retain = reusable.test(result);
+            future.complete(result);
+            return result;
+        } catch (Throwable e) {
+            // 包括Error：Future必须完成，否则合并的请求会一直等到超时
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (!retain || windowMillis <= 0) {
+                inFlight.remove(key, future);
+            } else {
+                evictor.schedule(() -> inFlight.remove(key, future), windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * 获取请求合并统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("executed", executed.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("tracked", inFlight.size());
+        return stats;
+    }
+
+    private Object await(CompletableFuture<Object> future) {
+        try {
+            return future.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BusinessException("问答处理失败：" + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            throw new BusinessException("相同问题正在处理中，请稍后查看对话历史");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BusinessException("问答请求被中断");
+        }
+    }
+
+    /**
+     * 问题归一化：去除首尾空白和末尾标点，合并连续空白，忽略大小写
+     */
+    private static String normalize(String question) {
+        if (question == null) {
+            return "";
+        }
+        String normalized = question.trim().replaceAll("\\s+", " ").toLowerCase();
+        return normalized.replaceAll("[?？。.!！\\s]+$", "");
+    }
+}
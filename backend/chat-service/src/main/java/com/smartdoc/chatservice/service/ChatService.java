@@ -2,22 +2,18 @@ package com.smartdoc.chatservice.service;
 
 import com.alibaba.fastjson2.JSON;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.smartdoc.aiengine.service.EmbeddingService;
 import com.smartdoc.aiengine.service.LLMService;
 import com.smartdoc.aiengine.service.MilvusService;
 import com.smartdoc.chatservice.entity.ChatMessage;
 import com.smartdoc.chatservice.mapper.ChatMessageMapper;
+import com.smartdoc.common.exception.BusinessException;
+import com.smartdoc.common.result.CursorPage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
-import org.springframework.web.client.RestTemplate;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.http.HttpStatus;
 
 import java.time.LocalDateTime;
 import java.util.*;
@@ -55,21 +51,69 @@ public class ChatService {
     @Autowired(required = false)
     private com.smartdoc.aiengine.service.LayeredContextService layeredContextService;
 
+    @Autowired
+    private com.smartdoc.aiengine.service.PromptLayoutService promptLayoutService;
+
+    @Autowired
+    private com.smartdoc.aiengine.service.LLMRouterService llmRouterService;
+
+    @Autowired
+    private com.smartdoc.aiengine.service.RerankerService rerankerService;
+
+    @Autowired
+    private com.smartdoc.aiengine.service.ChunkExpansionService chunkExpansionService;
+
+    @Autowired
+    private com.smartdoc.aiengine.service.DocumentSummaryService documentSummaryService;
+
     private static final String CHAT_HISTORY_KEY = "chat:history:";
 
-    @Autowired(required = false)
-    private RestTemplate restTemplate;
+    /**
+     * 多文档检索接口单次返回的最大条数
+     */
+    private static final int MAX_SEARCH_TOP_K = 50;
+
+    /**
+     * 问答失败时作为回答返回的提示前缀
+     */
+    private static final String ERROR_ANSWER_PREFIX = "抱歉，处理您的问题时出现错误：";
+
+    /**
+     * 历史列表中问题和回答的预览长度（字符），多取一个字符判断是否被截断
+     */
+    private static final int HISTORY_PREVIEW_LENGTH = 500;
+
+    @Autowired
+    private DocumentPermissionClient documentPermissionClient;
+
+    @Autowired
+    private ChatRequestCoalescer chatRequestCoalescer;
 
     /**
      * 智能问答
+     * 相同用户、文档和问题的并发重复请求会合并为一次检索和LLM调用。
+     * 不开启事务：整个流程只在末尾写一条记录，开启事务会在LLM调用期间一直占用数据库连接
+     * @param documentId 单个文档问答时的文档ID
+     * @param documentIds 在选定的多个文档中问答时的文档ID；两者都为空时在全部可访问的文档中问答
      */
-    @Transactional
-    public ChatMessage askQuestion(Long userId, Long documentId, String question, String userRole) {
-        log.info("用户提问: userId={}, documentId={}, question={}, userRole={}", userId, documentId, question, userRole);
+    public ChatMessage askQuestion(Long userId, Long documentId, List<Long> documentIds, String question, String userRole) {
+        // 以错误提示作为回答的结果不在合并窗口内复用，重试会重新执行
+        return chatRequestCoalescer.execute(ChatRequestCoalescer.key(userId, documentId, documentIds, question),
+                () -> doAskQuestion(userId, documentId, documentIds, question, userRole),
+                message -> !message.getAnswer().startsWith(ERROR_ANSWER_PREFIX));
+    }
+
+    private ChatMessage doAskQuestion(Long userId, Long documentId, List<Long> documentIds, String question, String userRole) {
+        log.info("用户提问: userId={}, documentId={}, documentIds={}, question={}, userRole={}",
+                userId, documentId, documentIds, question, userRole);
         
-        // 如果指定了文档，检查权限
+        // 如果指定了文档，检查权限；相同内容的文档共享索引，检索按索引ID过滤
+        Long indexId = null;
+        Set<Long> selectedIndexIds = null;
         if (documentId != null) {
-            checkDocumentPermission(documentId, userId, userRole);
+            indexId = documentPermissionClient.checkPermission(documentId, userId, userRole);
+        } else if (documentIds != null && !documentIds.isEmpty()) {
+            selectedIndexIds = documentPermissionClient.getAccessibleDocuments(userId, userRole).indexIdsOf(documentIds);
         }
 
         ChatMessage chatMessage = new ChatMessage();
@@ -79,50 +123,52 @@ public class ChatService {
         chatMessage.setCreateTime(LocalDateTime.now());
 
         try {
-            // 使用分层上下文管理（如果可用）
-            List<Map<String, String>> layeredMessages = null;
+            // 使用分层上下文管理（如果可用），上下文只构建一次，由LLMService按Prompt布局组装消息
+            com.smartdoc.aiengine.service.LayeredContextService.LayeredContext context;
             if (layeredContextService != null) {
-                // 构建分层上下文
-                com.smartdoc.aiengine.service.LayeredContextService.LayeredContext context = 
-                        layeredContextService.buildContext(userId, documentId, question);
-                
-                // 转换为消息列表
-                layeredMessages = layeredContextService.convertToMessages(context, question);
+                context = layeredContextService.buildContext(userId, documentId, question);
                 log.info("使用分层上下文管理: 短期记忆={}, 长期记忆={}, 关键信息={}", 
                         context.getShortTermMemory().size(), 
                         context.getLongTermMemory().size(),
                         context.getKeyInfo().size());
             } else {
-                // 回退到传统方式
-                List<LLMService.ChatMessage> chatHistory = getChatHistory(userId, documentId);
-                layeredMessages = LLMService.formatChatHistory(chatHistory);
+                // 回退到传统方式：最近的对话作为短期记忆
+                context = new com.smartdoc.aiengine.service.LayeredContextService.LayeredContext();
+                context.setShortTermMemory(getChatHistory(userId, documentId));
             }
 
             String answer;
-            List<MilvusService.SearchResult> searchResults;
+            List<MilvusService.SearchResult> searchResults = null;
             boolean isGeneralAnswer = false;
 
+            // small-to-big：检索较少的小文本块，命中后再扩展到相邻文本块
+            int topK = chunkExpansionService.isEnabled() ? chunkExpansionService.getTopK() : 5;
             if (documentId != null) {
                 // 文档问答模式
                 // 优先使用混合检索（Elasticsearch + Milvus + Reranker）
                 if (hybridRetrievalService != null) {
                     // 使用混合检索：ES关键词检索 + Milvus向量检索 + BGE-Reranker重排序
-                    searchResults = hybridRetrievalService.hybridSearch(question, documentId, 5);
+                    searchResults = hybridRetrievalService.hybridSearch(question, indexId, topK);
                     log.info("使用混合检索（ES+向量+Reranker），返回 {} 条结果", searchResults.size());
                 } else if (enhancedRetrievalService != null) {
                     // 回退到增强检索：混合检索 + 重排序 + 去重
-                    searchResults = enhancedRetrievalService.enhancedSearch(question, documentId, 5);
+                    searchResults = enhancedRetrievalService.enhancedSearch(question, indexId, topK);
                     log.info("使用增强检索，返回 {} 条结果", searchResults.size());
                 } else {
                     // 回退到基础向量检索
                     List<Float> questionVector = embeddingService.embedText(question);
-                    searchResults = milvusService.searchSimilar(questionVector, 5, documentId);
+                    searchResults = milvusService.searchSimilar(questionVector, topK, indexId);
                     log.info("使用基础向量检索，返回 {} 条结果", searchResults.size());
                 }
+            } else if (selectedIndexIds != null || documentSummaryService.isEnabled()) {
+                // 跨文档问答模式：先按文档摘要选出相关文档，再只在这些文档中检索文本块
+                searchResults = searchLibrary(userId, userRole, question, selectedIndexIds, topK);
+            }
 
+            if (searchResults != null) {
                 // 判断检索结果是否相关
                 boolean hasRelevantResults = false;
-                if (searchResults != null && !searchResults.isEmpty()) {
+                if (!searchResults.isEmpty()) {
                     // 使用更智能的相关性判断
                     // 1. 检查分数（向量距离）
                     // 2. 检查关键词匹配
@@ -152,13 +198,10 @@ public class ChatService {
                 }
 
                 if (hasRelevantResults) {
+                    // 相关性按命中的小文本块判断，扩展后的内容只用于生成答案
+                    searchResults = chunkExpansionService.expand(searchResults);
                     // 找到相关文档内容，使用RAG模式（使用分层上下文）
-                    com.smartdoc.aiengine.service.LayeredContextService.LayeredContext context = null;
-                    if (layeredContextService != null) {
-                        context = layeredContextService.buildContext(userId, documentId, question);
-                    }
-                    answer = llmService.generateAnswerWithContext(question, searchResults, layeredMessages,
-                            context != null ? context.getKeyInfo() : null);
+                    answer = llmService.generateAnswerWithContext(question, searchResults, context);
                     
                     // 保存来源文本块ID
                     List<String> chunkIds = searchResults.stream()
@@ -168,12 +211,12 @@ public class ChatService {
                 } else {
                     // 未找到相关文档内容，使用通用问答（使用分层上下文）
                     log.warn("未找到相关文档内容，使用通用问答: question={}", question);
-                    answer = llmService.generateGeneralAnswer(question, layeredMessages);
+                    answer = llmService.generateGeneralAnswer(question, context);
                     isGeneralAnswer = true;
                 }
             } else {
                 // 通用问答模式（使用分层上下文）
-                answer = llmService.generateGeneralAnswer(question, layeredMessages);
+                answer = llmService.generateGeneralAnswer(question, context);
                 isGeneralAnswer = true;
             }
 
@@ -196,7 +239,7 @@ public class ChatService {
 
         } catch (Exception e) {
             log.error("问答失败", e);
-            chatMessage.setAnswer("抱歉，处理您的问题时出现错误：" + e.getMessage());
+            chatMessage.setAnswer(ERROR_ANSWER_PREFIX + e.getMessage());
             chatMessage.setIsGeneralAnswer(1);
             chatMessage.setUpdateTime(LocalDateTime.now());
             chatMessageMapper.insert(chatMessage);
@@ -204,6 +247,58 @@ public class ChatService {
         }
     }
 
+    /**
+     * 跨文档检索（问答使用），检索失败时回退到通用问答
+     * @param indexIds 选定文档的索引ID，为null时在全部可访问的文档中检索
+     * @return 检索结果，没有可检索的文档或检索失败时返回null
+     */
+    private List<MilvusService.SearchResult> searchLibrary(Long userId, String userRole, String question,
+                                                           Set<Long> indexIds, int topK) {
+        try {
+            if (indexIds == null) {
+                indexIds = documentPermissionClient.getAccessibleDocuments(userId, userRole).allIndexIds();
+            }
+            return indexIds.isEmpty() ? null : searchDocuments(question, indexIds, topK);
+        } catch (Exception e) {
+            log.warn("跨文档检索失败，使用通用问答: userId={}", userId, e);
+            return null;
+        }
+    }
+
+    /**
+     * 多文档检索：在选定的文档或全部可访问的文档中检索文本块
+     * @param documentIds 选定的文档ID，为空时在全部可访问的文档中检索；有文档无权限访问时抛出BusinessException
+     */
+    public List<MilvusService.SearchResult> search(Long userId, String userRole, String query,
+                                                   List<Long> documentIds, Integer topK) {
+        DocumentPermissionClient.AccessibleDocuments accessible =
+                documentPermissionClient.getAccessibleDocuments(userId, userRole);
+        Set<Long> indexIds = documentIds != null && !documentIds.isEmpty()
+                ? accessible.indexIdsOf(documentIds) : accessible.allIndexIds();
+        if (indexIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int size = topK != null && topK > 0 ? Math.min(topK, MAX_SEARCH_TOP_K) : 5;
+        return searchDocuments(query, indexIds, size);
+    }
+
+    /**
+     * 两级检索：候选文档较多时先按文档摘要选出相关文档（第一级），再在选出的文档中检索文本块（第二级）
+     * 两级检索都只在有权限的索引ID内进行，过滤条件下推到Milvus和Elasticsearch
+     */
+    private List<MilvusService.SearchResult> searchDocuments(String question, Set<Long> indexIds, int topK) {
+        List<Float> questionVector = embeddingService.embedText(question);
+        List<Long> routedIndexIds = documentSummaryService.isEnabled()
+                ? documentSummaryService.routeDocuments(questionVector, indexIds)
+                : new ArrayList<>(indexIds);
+        List<MilvusService.SearchResult> searchResults = hybridRetrievalService != null
+                ? hybridRetrievalService.hybridSearch(question, questionVector, routedIndexIds, topK)
+                : milvusService.searchSimilar(questionVector, topK, routedIndexIds);
+        log.info("跨文档检索: 候选文档数={}, 选出文档数={}, 返回 {} 条结果",
+                indexIds.size(), routedIndexIds.size(), searchResults.size());
+        return searchResults;
+    }
+
     /**
      * 获取对话历史
      */
@@ -271,50 +366,106 @@ public class ChatService {
     }
 
     /**
-     * 获取用户的对话历史记录
+     * 获取用户的对话历史记录（游标分页）
+     * 按(create_time, id)倒序向前翻页，每页内按时间正序返回，只查询列表展示需要的列；
+     * 问题和回答只返回预览，被截断的消息标记truncated，全文通过{@link #getChatMessage}查询
+     * @param cursor 上一页返回的nextCursor，为空时从最新的消息开始
+     * @param size 每页条数
      */
-    public List<ChatMessage> getChatHistoryList(Long userId, Long documentId) {
-        LambdaQueryWrapper<ChatMessage> wrapper = new LambdaQueryWrapper<>();
+    public CursorPage<ChatMessage> getChatHistoryList(Long userId, Long documentId, String cursor, Integer size) {
+        int pageSize = CursorPage.normalizeSize(size);
+        CursorPage.Cursor position = CursorPage.decodeCursor(cursor);
+
+        int previewFetch = HISTORY_PREVIEW_LENGTH + 1;
+        LambdaQueryWrapper<ChatMessage> wrapper = new QueryWrapper<ChatMessage>()
+                .select("id", "document_id", "LEFT(question, " + previewFetch + ") AS question",
+                        "LEFT(answer, " + previewFetch + ") AS answer", "is_general_answer", "create_time")
+                .lambda();
         wrapper.eq(ChatMessage::getUserId, userId);
         if (documentId != null) {
             wrapper.eq(ChatMessage::getDocumentId, documentId);
         }
-        wrapper.orderByAsc(ChatMessage::getCreateTime);
-        return chatMessageMapper.selectList(wrapper);
+        if (position != null) {
+            // 写成create_time上的范围条件以便沿索引定位
+            wrapper.le(ChatMessage::getCreateTime, position.getCreateTime());
+            wrapper.and(w -> w.lt(ChatMessage::getCreateTime, position.getCreateTime())
+                    .or().lt(ChatMessage::getId, position.getId()));
+        }
+        wrapper.orderByDesc(ChatMessage::getCreateTime, ChatMessage::getId);
+        // 多取一条判断是否还有下一页
+        wrapper.last("LIMIT " + (pageSize + 1));
+
+        List<ChatMessage> messages = chatMessageMapper.selectList(wrapper);
+        String nextCursor = null;
+        if (messages.size() > pageSize) {
+            messages = new ArrayList<>(messages.subList(0, pageSize));
+            ChatMessage last = messages.get(pageSize - 1);
+            nextCursor = CursorPage.encodeCursor(last.getCreateTime(), last.getId());
+        }
+        for (ChatMessage message : messages) {
+            boolean truncated = false;
+            if (message.getQuestion() != null && message.getQuestion().length() > HISTORY_PREVIEW_LENGTH) {
+                message.setQuestion(message.getQuestion().substring(0, HISTORY_PREVIEW_LENGTH));
+                truncated = true;
+            }
+            if (message.getAnswer() != null && message.getAnswer().length() > HISTORY_PREVIEW_LENGTH) {
+                message.setAnswer(message.getAnswer().substring(0, HISTORY_PREVIEW_LENGTH));
+                truncated = true;
+            }
+            message.setTruncated(truncated);
+        }
+        Collections.reverse(messages); // 按时间正序
+        return new CursorPage<>(messages, nextCursor);
     }
 
     /**
-     * 检查文档权限（通过调用文件服务）
+     * 获取单条对话消息的完整问题和回答
      */
-    private void checkDocumentPermission(Long documentId, Long userId, String userRole) {
-        try {
-            if (restTemplate == null) {
-                restTemplate = new RestTemplate();
-            }
-            
-            // 调用文件服务检查权限
-            String url = "http://localhost:8081/api/file/" + documentId;
-            HttpHeaders headers = new HttpHeaders();
-            headers.set("X-User-Id", userId.toString());
-            headers.set("X-User-Role", userRole != null ? userRole : "user");
-            HttpEntity<?> entity = new HttpEntity<>(headers);
-            
-            try {
-                restTemplate.exchange(url, HttpMethod.GET, entity, 
-                        com.smartdoc.common.result.Result.class);
-            } catch (HttpClientErrorException e) {
-                if (e.getStatusCode() == HttpStatus.FORBIDDEN || 
-                    e.getStatusCode() == HttpStatus.UNAUTHORIZED) {
-                    throw new com.smartdoc.common.exception.BusinessException("无权限访问该文档");
-                }
-                throw e;
-            }
-        } catch (com.smartdoc.common.exception.BusinessException e) {
-            throw e;
-        } catch (Exception e) {
-            log.error("检查文档权限失败: documentId={}, userId={}", documentId, userId, e);
-            throw new com.smartdoc.common.exception.BusinessException("检查文档权限失败: " + e.getMessage());
+    public ChatMessage getChatMessage(Long userId, Long messageId) {
+        ChatMessage message = chatMessageMapper.selectOne(new LambdaQueryWrapper<ChatMessage>()
+                .select(ChatMessage::getId, ChatMessage::getDocumentId, ChatMessage::getQuestion,
+                        ChatMessage::getAnswer, ChatMessage::getIsGeneralAnswer, ChatMessage::getCreateTime)
+                .eq(ChatMessage::getId, messageId)
+                .eq(ChatMessage::getUserId, userId));
+        if (message == null) {
+            throw new BusinessException(404, "对话消息不存在");
         }
+        message.setTruncated(false);
+        return message;
     }
-}
 
+    /**
+     * 获取LLM上下文缓存命中统计
+     */
+    public Map<String, Object> getPromptCacheStats() {
+        return promptLayoutService.getCacheStats();
+    }
+
+    /**
+     * 获取LLM各端点的健康与延迟统计
+     */
+    public List<Map<String, Object>> getLlmEndpointStats() {
+        return llmRouterService.getEndpointStats();
+    }
+
+    /**
+     * 获取重排序分数缓存与候选剪枝统计
+     */
+    public Map<String, Object> getRerankerStats() {
+        return rerankerService.getStats();
+    }
+
+    /**
+     * 获取重复问答请求合并统计
+     */
+    public Map<String, Object> getCoalesceStats() {
+        return chatRequestCoalescer.getStats();
+    }
+
+    /**
+     * 获取文档权限判定缓存统计
+     */
+    public Map<String, Object> getPermissionCacheStats() {
+        return documentPermissionClient.getStats();
+    }
+}
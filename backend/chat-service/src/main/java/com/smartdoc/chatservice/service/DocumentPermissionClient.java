@@ -0,0 +1,313 @@
+package com.smartdoc.chatservice.service;
+
+import com.smartdoc.common.exception.BusinessException;
+import com.smartdoc.common.result.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文档权限客户端
+ * 调用文件服务判断用户能否访问文档，并按(文档ID, 用户ID, 角色)缓存判定结果（包括拒绝结果）。
+ * 文件服务在权限变更或文档删除时通过Redis频道通知，收到通知后立即失效该文档的所有缓存
+ * 判定结果同时带回文档的索引ID：相同内容的文档共享向量和关键词索引，检索时按索引ID过滤
+ * 跨文档问答使用的可访问文档集合按(用户ID, 角色)缓存，任一文档权限变更时全部失效
+ */
+@Slf4j
+@Service
+public class DocumentPermissionClient implements MessageListener {
+
+    @Autowired
+    private RestTemplate restTemplate;
+
+    @Value("${chat.permission.file-service-url:http://localhost:8081}")
+    private String fileServiceUrl;
+
+    @Value("${chat.permission.cache-ttl-ms:60000}")
+    private long allowTtlMillis;
+
+    @Value("${chat.permission.negative-ttl-ms:10000}")
+    private long denyTtlMillis;
+
+    @Value("${chat.permission.cache-max-size:50000}")
+    private int cacheMaxSize;
+
+    /**
+     * 可访问文档集合的缓存时间（新解析完成的文档最迟在此时间后可检索）
+     */
+    @Value("${chat.permission.library-ttl-ms:30000}")
+    private long libraryTtlMillis;
+
+    @Value("${chat.permission.library-cache-max-size:10000}")
+    private int libraryCacheMaxSize;
+
+    private final ConcurrentHashMap<String, Decision> decisions = new ConcurrentHashMap<>();
+
+    /**
+     * 用户可访问的文档集合：userId:role → 集合
+     */
+    private final ConcurrentHashMap<String, AccessibleDocuments> libraries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong libraryHits = new AtomicLong();
+    private final AtomicLong libraryMisses = new AtomicLong();
+
+    /**
+     * 检查文档权限，无权限时抛出BusinessException
+     * @return 文档的索引ID，检索向量和关键词索引时使用
+     */
+    public Long checkPermission(Long documentId, Long userId, String userRole) {
+        String role = userRole != null ? userRole : "user";
+        String key = documentId + ":" + userId + ":" + role;
+
+        Decision decision = decisions.get(key);
+        if (decision != null && decision.expiresAt > System.currentTimeMillis()) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            // 判定期间如果收到失效通知，本次结果可能已过时，只使用不缓存
+            long epoch = invalidations.get();
+            decision = fetchDecision(documentId, userId, role);
+            if (epoch == invalidations.get()) {
+                putDecision(key, decision);
+            }
+        }
+
+        if (!decision.allowed) {
+            throw new BusinessException(decision.message);
+        }
+        return decision.indexId != null ? decision.indexId : documentId;
+    }
+
+    /**
+     * 获取用户有权限访问且已解析完成的文档（按用户和角色缓存），跨文档问答时作为检索范围
+     */
+    public AccessibleDocuments getAccessibleDocuments(Long userId, String userRole) {
+        String role = userRole != null ? userRole : "user";
+        String key = userId + ":" + role;
+
+        AccessibleDocuments documents = libraries.get(key);
+        if (documents != null && documents.expiresAt > System.currentTimeMillis()) {
+            libraryHits.incrementAndGet();
+            return documents;
+        }
+        libraryMisses.incrementAndGet();
+        long epoch = invalidations.get();
+        documents = new AccessibleDocuments(fetchAccessibleIndexIds(userId, role), libraryTtlMillis);
+        if (epoch == invalidations.get()) {
+            if (libraries.size() >= libraryCacheMaxSize) {
+                long now = System.currentTimeMillis();
+                libraries.values().removeIf(d -> d.expiresAt <= now);
+                if (libraries.size() >= libraryCacheMaxSize) {
+                    libraries.clear();
+                }
+            }
+            libraries.put(key, documents);
+        }
+        return documents;
+    }
+
+    /**
+     * 收到权限变更通知：失效该文档的所有缓存判定
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8).replace("\"", "").trim();
+        String prefix = body + ":";
+        invalidations.incrementAndGet();
+        decisions.keySet().removeIf(key -> key.startsWith(prefix));
+        // 任一文档的权限变化都可能影响所有用户的可访问集合
+        libraries.clear();
+        log.debug("文档权限缓存已失效: documentId={}", body);
+    }
+
+    /**
+     * 获取权限缓存统计
+     */
+    public Map<String, Object> getStats() {
+        long hit = hits.get();
+        long miss = misses.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", decisions.size());
+        stats.put("hits", hit);
+        stats.put("misses", miss);
+        stats.put("hitRatio", hit + miss == 0 ? 0.0 : (double) hit / (hit + miss));
+        stats.put("invalidations", invalidations.get());
+        long libraryHit = libraryHits.get();
+        long libraryMiss = libraryMisses.get();
+        stats.put("librarySize", libraries.size());
+        stats.put("libraryHits", libraryHit);
+        stats.put("libraryMisses", libraryMiss);
+        stats.put("libraryHitRatio", libraryHit + libraryMiss == 0 ? 0.0 : (double) libraryHit / (libraryHit + libraryMiss));
+        return stats;
+    }
+
+    /**
+     * 调用文件服务获取判定结果
+     * 文件服务的业务异常以200 + Result.code返回，因此同时检查HTTP状态和Result.code
+     */
+    private Decision fetchDecision(Long documentId, Long userId, String userRole) {
+        String url = fileServiceUrl + "/api/file/" + documentId;
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-User-Id", userId.toString());
+        headers.set("X-User-Role", userRole);
+
+        try {
+            ResponseEntity<Result> response = restTemplate.exchange(url, HttpMethod.GET,
+                    new HttpEntity<>(headers), Result.class);
+            Result<?> result = response.getBody();
+            if (result != null && result.getCode() != null && result.getCode() == 200) {
+                return new Decision(true, null, parseIndexId(result.getData()), allowTtlMillis);
+            }
+            String message = result != null && result.getMessage() != null ? result.getMessage() : "无权限访问该文档";
+            return new Decision(false, message, null, denyTtlMillis);
+        } catch (HttpClientErrorException e) {
+            if (e.getStatusCode() == HttpStatus.FORBIDDEN ||
+                e.getStatusCode() == HttpStatus.UNAUTHORIZED ||
+                e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                return new Decision(false, "无权限访问该文档", null, denyTtlMillis);
+            }
+            log.error("检查文档权限失败: documentId={}, userId={}", documentId, userId, e);
+            throw new BusinessException("检查文档权限失败: " + e.getMessage());
+        } catch (Exception e) {
+            // 网络错误等不缓存，下次重新判定
+            log.error("检查文档权限失败: documentId={}, userId={}", documentId, userId, e);
+            throw new BusinessException("检查文档权限失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 调用文件服务获取有权限访问的文档：文档ID → 索引ID
+     */
+    private Map<Long, Long> fetchAccessibleIndexIds(Long userId, String userRole) {
+        String url = fileServiceUrl + "/api/file/accessible-index-ids";
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-User-Id", userId.toString());
+        headers.set("X-User-Role", userRole);
+
+        try {
+            ResponseEntity<Result> response = restTemplate.exchange(url, HttpMethod.GET,
+                    new HttpEntity<>(headers), Result.class);
+            Result<?> result = response.getBody();
+            if (result == null || result.getCode() == null || result.getCode() != 200
+                    || !(result.getData() instanceof Map)) {
+                throw new BusinessException(result != null && result.getMessage() != null
+                        ? result.getMessage() : "获取可访问文档失败");
+            }
+            Map<Long, Long> indexIds = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) result.getData()).entrySet()) {
+                // JSON对象的键是字符串
+                Long documentId = Long.valueOf(entry.getKey().toString());
+                indexIds.put(documentId, entry.getValue() instanceof Number
+                        ? ((Number) entry.getValue()).longValue() : documentId);
+            }
+            return indexIds;
+        } catch (BusinessException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("获取可访问文档失败: userId={}", userId, e);
+            throw new BusinessException("获取可访问文档失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 从文档信息中取索引ID，未按内容去重的旧文档没有索引ID
+     */
+    private Long parseIndexId(Object data) {
+        if (data instanceof Map) {
+            Object indexId = ((Map<?, ?>) data).get("indexId");
+            if (indexId instanceof Number) {
+                return ((Number) indexId).longValue();
+            }
+        }
+        return null;
+    }
+
+    private void putDecision(String key, Decision decision) {
+        if (decisions.size() >= cacheMaxSize) {
+            long now = System.currentTimeMillis();
+            decisions.values().removeIf(d -> d.expiresAt <= now);
+            if (decisions.size() >= cacheMaxSize) {
+                decisions.clear();
+            }
+        }
+        decisions.put(key, decision);
+    }
+
+    /**
+     * 权限判定结果
+     */
+    private static class Decision {
+        private final boolean allowed;
+        private final String message;
+        private final Long indexId;
+        private final long expiresAt;
+
+        Decision(boolean allowed, String message, Long indexId, long ttlMillis) {
+            this.allowed = allowed;
+            this.message = message;
+            this.indexId = indexId;
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+    }
+
+    /**
+     * 用户可访问的文档集合
+     */
+    public static class AccessibleDocuments {
+        /**
+         * 文档ID → 索引ID
+         */
+        private final Map<Long, Long> indexIds;
+        private final long expiresAt;
+
+        AccessibleDocuments(Map<Long, Long> indexIds, long ttlMillis) {
+            this.indexIds = Collections.unmodifiableMap(indexIds);
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        /**
+         * 全部可访问文档的索引ID（去重）
+         */
+        public Set<Long> allIndexIds() {
+            return new LinkedHashSet<>(indexIds.values());
+        }
+
+        /**
+         * 选定文档的索引ID（去重），有文档无权限访问或尚未解析完成时抛出BusinessException
+         */
+        public Set<Long> indexIdsOf(Collection<Long> documentIds) {
+            Set<Long> selected = new LinkedHashSet<>();
+            for (Long documentId : documentIds) {
+                Long indexId = indexIds.get(documentId);
+                if (indexId == null) {
+                    throw new BusinessException("无权限访问该文档或文档尚未解析完成: " + documentId);
+                }
+                selected.add(indexId);
+            }
+            return selected;
+        }
+    }
+}
@@ -4,6 +4,9 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * AI服务配置属性
  */
@@ -30,6 +33,47 @@ public class AIProperties {
         private Integer timeout = 60000;
         private Integer maxTokens = 2000;
         private Double temperature = 0.7;
+        /**
+         * 多端点路由配置，为空时只使用上面的apiUrl/apiKey/model
+         */
+        private List<Endpoint> endpoints = new ArrayList<>();
+        private Hedge hedge = new Hedge();
+        private Circuit circuit = new Circuit();
+    }
+
+    /**
+     * 对冲请求：主端点超过其p95延迟仍未返回时，向第二个端点发出请求
+     */
+    @Data
+    public static class Hedge {
+        private Boolean enabled = true;
+        /**
+         * 延迟样本不足时使用的对冲延迟
+         */
+        private Long defaultDelayMs = 8000L;
+        private Long minDelayMs = 1000L;
+    }
+
+    /**
+     * 端点熔断器
+     */
+    @Data
+    public static class Circuit {
+        /**
+         * 连续失败多少次后打开熔断
+         */
+        private Integer failureThreshold = 5;
+        private Long openMs = 30000L;
+    }
+
+    @Data
+    public static class Endpoint {
+        private String name;
+        private String apiUrl;
+        private String apiKey;
+        private String model;
+        private Integer weight = 1;
+        private Integer timeout = 60000;
     }
 }
 
@@ -0,0 +1,25 @@
+package com.smartdoc.common.constant;
+
+/**
+ * Redis发布/订阅频道
+ */
+public final class RedisChannels {
+
+    /**
+     * 文档权限变更（设置权限、删除文档、更新内容），消息体为文档ID
+     */
+    public static final String DOCUMENT_PERMISSION_CHANGED = "smartdoc:document:permission-changed";
+
+    /**
+     * 索引数据不再被任何文档引用（删除文档、替换内容），消息体为索引ID，文档服务收到后清理向量、关键词索引和文本块登记
+     */
+    public static final String DOCUMENT_INDEX_RELEASED = "smartdoc:document:index-released";
+
+    /**
+     * 待清理的索引ID集合（Redis Set），与上面的通知一起写入；通知丢失或清理失败时由文档服务定时扫描补偿
+     */
+    public static final String DOCUMENT_INDEX_PURGE_PENDING = "smartdoc:document:index-purge-pending";
+
+    private RedisChannels() {
+    }
+}
@@ -0,0 +1,85 @@
+package com.smartdoc.common.result;
+
+import com.smartdoc.common.exception.BusinessException;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * 游标分页结果
+ * 游标编码了上一页最后一条记录的(create_time, id)，下一页从该位置继续查询，
+ * 避免OFFSET分页在深翻页时的全表扫描
+ */
+@Data
+public class CursorPage<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 默认/最大每页条数
+     */
+    public static final int DEFAULT_SIZE = 20;
+    public static final int MAX_SIZE = 100;
+
+    private List<T> records;
+    /**
+     * 下一页游标，没有更多数据时为null
+     */
+    private String nextCursor;
+    private boolean hasMore;
+
+    public CursorPage() {
+    }
+
+    public CursorPage(List<T> records, String nextCursor) {
+        this.records = records;
+        this.nextCursor = nextCursor;
+        this.hasMore = nextCursor != null;
+    }
+
+    /**
+     * 规范化每页条数：为空或非正数时使用默认值，超过上限时截断
+     */
+    public static int normalizeSize(Integer size) {
+        if (size == null || size <= 0) {
+            return DEFAULT_SIZE;
+        }
+        return Math.min(size, MAX_SIZE);
+    }
+
+    /**
+     * 编码游标
+     */
+    public static String encodeCursor(LocalDateTime createTime, Long id) {
+        String raw = createTime + "," + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解码游标，cursor为空时返回null
+     */
+    public static Cursor decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int comma = raw.lastIndexOf(',');
+            return new Cursor(LocalDateTime.parse(raw.substring(0, comma)), Long.parseLong(raw.substring(comma + 1)));
+        } catch (Exception e) {
+            throw new BusinessException(400, "无效的分页游标");
+        }
+    }
+
+    /**
+     * 解码后的游标位置
+     */
+    @Data
+    public static class Cursor {
+        private final LocalDateTime createTime;
+        private final Long id;
+    }
+}
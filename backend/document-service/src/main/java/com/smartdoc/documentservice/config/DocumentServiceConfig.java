@@ -0,0 +1,26 @@
+package com.smartdoc.documentservice.config;
+
+import com.smartdoc.common.constant.RedisChannels;
+import com.smartdoc.documentservice.service.DocumentPurgeService;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class DocumentServiceConfig {
+
+    /**
+     * 订阅索引释放通知
+     */
+    @Bean
+    public RedisMessageListenerContainer purgeEventListenerContainer(
+            RedisConnectionFactory connectionFactory, DocumentPurgeService documentPurgeService) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(documentPurgeService,
+                new ChannelTopic(RedisChannels.DOCUMENT_INDEX_RELEASED));
+        return container;
+    }
+}
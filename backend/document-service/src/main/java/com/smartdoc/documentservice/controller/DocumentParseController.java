@@ -1,11 +1,18 @@
 package com.smartdoc.documentservice.controller;
 
 import com.smartdoc.common.result.Result;
+import com.smartdoc.common.exception.BusinessException;
+import com.smartdoc.documentservice.pipeline.IngestionPipeline;
+import com.smartdoc.documentservice.pipeline.IngestionPriority;
+import com.smartdoc.documentservice.pipeline.IngestionScheduler;
 import com.smartdoc.documentservice.service.DocumentParseService;
+import com.smartdoc.documentservice.service.DocumentPurgeService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Map;
+
 @Slf4j
 @RestController
 @RequestMapping("/api/document/parse")
@@ -14,16 +21,95 @@ public class DocumentParseController {
     @Autowired
     private DocumentParseService documentParseService;
 
+    @Autowired
+    private IngestionPipeline ingestionPipeline;
+
+    @Autowired
+    private IngestionScheduler ingestionScheduler;
+
+    @Autowired
+    private DocumentPurgeService documentPurgeService;
+
     /**
      * 触发文档解析
+     * @param priority 优先级：interactive（单个上传，默认）或 bulk（批量导入/回填）
      */
     @PostMapping("/{documentId}")
     public Result<?> parseDocument(
             @PathVariable Long documentId,
             @RequestParam String fileType,
-            @RequestParam String objectName) {
-        documentParseService.parseDocument(documentId, fileType, objectName);
-        return Result.success("文档解析任务已启动");
+            @RequestParam String objectName,
+            @RequestParam(defaultValue = "interactive") String priority,
+            @RequestHeader(value = "X-User-Id", required = false) Long userId) {
+        boolean queued = documentParseService.submitParse(documentId, fileType, objectName, userId, parsePriority(priority));
+        return Result.success(queued ? "文档解析任务已加入队列" : "相同内容的文件已解析，直接复用解析结果");
+    }
+
+    /**
+     * 重试失败或已取消的解析任务，从最后一个已提交的文本块批次继续
+     */
+    @PostMapping("/{documentId}/retry")
+    public Result<?> retryParse(@PathVariable Long documentId) {
+        documentParseService.retryParse(documentId);
+        return Result.success("文档解析任务已重新加入队列");
+    }
+
+    /**
+     * 获取文档解析状态（阶段、页数/文本块进度、检查点），供前端轮询
+     */
+    @GetMapping("/{documentId}/status")
+    public Result<Map<String, Object>> getParseStatus(@PathVariable Long documentId) {
+        return Result.success(documentParseService.getParseStatus(documentId));
+    }
+
+    /**
+     * 取消文档解析任务
+     */
+    @DeleteMapping("/{documentId}")
+    public Result<?> cancelParse(@PathVariable Long documentId) {
+        if (!documentParseService.cancelParse(documentId)) {
+            throw new BusinessException(404, "解析任务不存在或已结束");
+        }
+        return Result.success("文档解析任务已取消");
+    }
+
+    /**
+     * 获取入库调度统计（队列深度、等待时间、内存预算）
+     */
+    @GetMapping("/scheduler/stats")
+    public Result<Map<String, Object>> getSchedulerStats() {
+        return Result.success(ingestionScheduler.getStats());
     }
-}
 
+    /**
+     * 获取入库流水线各阶段统计（吞吐、队列深度）
+     */
+    @GetMapping("/pipeline/stats")
+    public Result<Map<String, Object>> getPipelineStats() {
+        return Result.success(ingestionPipeline.getStats());
+    }
+
+    /**
+     * 获取索引数据清理进度（文档删除后异步清理向量、关键词索引和文本块登记）
+     */
+    @GetMapping("/purge/{indexId}")
+    public Result<Map<String, Object>> getPurgeProgress(@PathVariable Long indexId) {
+        return Result.success(documentPurgeService.getProgress(indexId));
+    }
+
+    /**
+     * 获取索引数据清理统计（待清理数、执行中、累计完成和失败次数）
+     */
+    @GetMapping("/purge/stats")
+    public Result<Map<String, Object>> getPurgeStats() {
+        return Result.success(documentPurgeService.getStats());
+    }
+
+    private IngestionPriority parsePriority(String priority) {
+        try {
+            return IngestionPriority.valueOf(priority.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BusinessException(400, "无效的优先级: " + priority);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.smartdoc.documentservice.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import com.smartdoc.common.entity.BaseEntity;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@EqualsAndHashCode(callSuper = true)
+@TableName("document_chunk")
+public class DocumentChunk extends BaseEntity {
+    private Long documentId;
+    private String chunkId; // docId_contentHash
+    private Integer chunkIndex;
+    private String contentHash; // 内容SHA-256
+    private Integer startOffset; // 在清洗后全文中的字符偏移（含）
+    private Integer endOffset; // 在清洗后全文中的字符偏移（不含）
+    private Integer pageStart; // 起始页码，不分页的文档为0
+    private Integer pageEnd;
+    private String headingPath; // 所属章节标题路径
+    private Integer tokenCount;
+    private Long simHash; // 内容64位SimHash
+}
@@ -0,0 +1,30 @@
+package com.smartdoc.documentservice.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import com.smartdoc.common.entity.BaseEntity;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.time.LocalDateTime;
+
+@Data
+@EqualsAndHashCode(callSuper = true)
+@TableName("ingestion_job")
+public class IngestionJob extends BaseEntity {
+    private Long documentId;
+    private String fileType;
+    private String objectName;
+    private Long userId;
+    private String priority; // INTERACTIVE, BULK
+    private String stage; // QUEUED, EXTRACTING, INDEXING, COMPLETED, FAILED, CANCELLED
+    private Integer attempts;
+    private Integer pagesExtracted;
+    private Integer chunksProduced;
+    private Integer chunksEmbedded;
+    private Integer chunksIndexed;
+    private Integer checkpointChunk; // 该序号及之前的文本块均已写入索引
+    private Integer highWaterChunk; // 可能已写入索引的最大文本块序号
+    private String errorMessage;
+    private LocalDateTime startTime;
+    private LocalDateTime finishTime;
+}
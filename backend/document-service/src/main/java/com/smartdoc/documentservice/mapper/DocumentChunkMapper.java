@@ -0,0 +1,30 @@
+package com.smartdoc.documentservice.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.smartdoc.documentservice.entity.DocumentChunk;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+@Mapper
+public interface DocumentChunkMapper extends BaseMapper<DocumentChunk> {
+
+    /**
+     * 批量登记文本块，已存在时更新位置信息（续跑时同一批次可能重复登记，增量重建时内容未变的文本块位置可能移动）
+     */
+    @Insert("<script>" +
+            "INSERT INTO document_chunk (document_id, chunk_id, chunk_index, content_hash, start_offset, end_offset, " +
+            "page_start, page_end, heading_path, token_count, sim_hash, create_time, update_time) VALUES " +
+            "<foreach collection='chunks' item='c' separator=','>" +
+            "(#{c.documentId}, #{c.chunkId}, #{c.chunkIndex}, #{c.contentHash}, #{c.startOffset}, #{c.endOffset}, " +
+            "#{c.pageStart}, #{c.pageEnd}, #{c.headingPath}, #{c.tokenCount}, #{c.simHash}, NOW(), NOW())" +
+            "</foreach> " +
+            "ON DUPLICATE KEY UPDATE chunk_index = VALUES(chunk_index), start_offset = VALUES(start_offset), " +
+            "end_offset = VALUES(end_offset), page_start = VALUES(page_start), page_end = VALUES(page_end), " +
+            "heading_path = VALUES(heading_path), token_count = VALUES(token_count), sim_hash = VALUES(sim_hash), " +
+            "update_time = NOW()" +
+            "</script>")
+    int upsertBatch(@Param("chunks") List<DocumentChunk> chunks);
+}
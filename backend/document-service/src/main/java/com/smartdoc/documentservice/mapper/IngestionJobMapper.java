@@ -0,0 +1,28 @@
+package com.smartdoc.documentservice.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.smartdoc.documentservice.entity.IngestionJob;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+@Mapper
+public interface IngestionJobMapper extends BaseMapper<IngestionJob> {
+
+    /**
+     * 更新共享同一索引ID的所有文档的解析状态（document表由文件服务维护，这里只写状态列）
+     * 未按内容去重的旧文档没有index_id，索引ID即文档ID
+     * @param status 0-上传中, 1-解析中, 2-解析完成, 3-解析失败
+     */
+    @Update("UPDATE document SET status = #{status}, error_message = #{errorMessage}, update_time = NOW() " +
+            "WHERE (id = #{indexId} AND index_id IS NULL) OR index_id = #{indexId}")
+    int updateDocumentStatus(@Param("indexId") Long indexId, @Param("status") int status,
+                             @Param("errorMessage") String errorMessage);
+
+    /**
+     * 查询文档的索引ID
+     */
+    @Select("SELECT COALESCE(index_id, id) FROM document WHERE id = #{documentId}")
+    Long selectIndexId(@Param("documentId") Long documentId);
+}
@@ -0,0 +1,294 @@
+package com.smartdoc.documentservice.pipeline;
+
+import com.smartdoc.documentservice.service.MinioService;
+import io.minio.GetObjectArgs;
+import io.minio.GetObjectResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文档本地缓存
+ * 解析前先把MinIO对象完整下载到本地文件，解析器从本地文件随机读取，网络慢不再拖住解析线程。
+ * 对象写入后不再修改（对象名含UUID，相同内容去重后只有一个对象），按对象名缓存即按内容缓存，
+ * 重试和重新解析直接复用；提交任务时开始预取，下载与排队等待重叠
+ */
+@Slf4j
+@Component
+public class DocumentSpool {
+
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * 获取文件时最多下载的次数
+     */
+    private static final int MAX_FETCH_ATTEMPTS = 3;
+
+    @Autowired
+    private MinioService minioService;
+
+    @Value("${pipeline.spool.dir:${java.io.tmpdir}/smartdoc-spool}")
+    private String spoolDir;
+
+    /**
+     * 缓存总大小上限（MB），超出后按最近使用时间淘汰（正在解析的文件除外）
+     */
+    @Value("${pipeline.spool.max-size-mb:4096}")
+    private long maxSizeMb;
+
+    @Value("${pipeline.spool.buffer-kb:1024}")
+    private int bufferKb;
+
+    @Value("${pipeline.spool.prefetch-threads:2}")
+    private int prefetchThreads;
+
+    private Path directory;
+
+    private ExecutorService prefetchExecutor;
+
+    /**
+     * 下载中的对象：预取和解析同时请求同一对象时只下载一次
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * 正在使用的缓存文件及引用数，淘汰时跳过
+     */
+    private final ConcurrentHashMap<Path, AtomicInteger> leases = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() throws IOException {
+        directory = Paths.get(spoolDir);
+        Files.createDirectories(directory);
+        // 上次进程中断时残留的未完成下载
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + PART_SUFFIX)) {
+            for (Path part : stream) {
+                Files.deleteIfExists(part);
+            }
+        }
+        prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, r -> {
+            Thread thread = new Thread(r, "spool-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("文档本地缓存目录: {}", directory.toAbsolutePath());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * 后台预取对象，失败时由解析时的acquire重新下载
+     */
+    public void prefetch(String objectName) {
+        prefetchExecutor.execute(() -> {
+            try {
+                fetch(objectName);
+            } catch (Exception e) {
+                log.warn("预取文档失败: objectName={}, {}", objectName, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 获取对象的本地文件：缓存命中直接返回，正在预取时等待，否则在当前线程下载
+     * 使用完毕后关闭返回的租约，之后文件才可能被淘汰
+     */
+    public Lease acquire(String objectName) throws Exception {
+        Path file = directory.resolve(cacheKey(objectName));
+        // 先加租约再下载，下载完成后的淘汰和其他线程的淘汰都会跳过该文件
+        synchronized (this) {
+            leases.computeIfAbsent(file, k -> new AtomicInteger()).incrementAndGet();
+        }
+        try {
+            for (int attempt = 0; attempt < MAX_FETCH_ATTEMPTS; attempt++) {
+                fetch(objectName);
+                if (Files.exists(file)) {
+                    return new Lease(file);
+                }
+            }
+            throw new IOException("文档缓存文件不存在: " + objectName);
+        } catch (Exception e) {
+            release(file);
+            throw e;
+        }
+    }
+
+    private Path fetch(String objectName) throws Exception {
+        Path file = directory.resolve(cacheKey(objectName));
+        if (Files.exists(file)) {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return file;
+        }
+
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> existing = downloads.putIfAbsent(file.getFileName().toString(), download);
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+
+        try {
+            download(objectName, file);
+            download.complete(file);
+            return file;
+        } catch (Exception e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            downloads.remove(file.getFileName().toString(), download);
+        }
+    }
+
+    /**
+     * 下载到临时文件，完整后原子改名，避免其他线程读到写了一半的文件
+     */
+    private void download(String objectName, Path file) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Path part = Files.createTempFile(directory, file.getFileName().toString(), PART_SUFFIX);
+        long size = 0;
+        try (GetObjectResponse response = minioService.getClient().getObject(GetObjectArgs.builder()
+                .bucket(minioService.getBucketName())
+                .object(objectName)
+                .build());
+             FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[bufferKb * 1024];
+            int filled;
+            // 填满大缓冲后再写盘，减少小块写入
+            while ((filled = fill(response, buffer)) > 0) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, filled);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                size += filled;
+            }
+            String contentLength = response.headers().get("Content-Length");
+            if (contentLength != null && Long.parseLong(contentLength) != size) {
+                throw new IOException("文档下载不完整: 期望" + contentLength + "字节，实际" + size + "字节");
+            }
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+        log.info("文档已下载到本地缓存: objectName={}, size={}, 耗时={}ms",
+                objectName, size, System.currentTimeMillis() - startTime);
+        evict(file);
+    }
+
+    private int fill(InputStream inputStream, byte[] buffer) throws IOException {
+        int filled = 0;
+        int read;
+        while (filled < buffer.length && (read = inputStream.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += read;
+        }
+        return filled;
+    }
+
+    /**
+     * 超出容量时按最近使用时间淘汰未在使用的文件
+     * 与加租约互斥，判断未在使用后到删除之前不会有新的租约
+     * @param downloaded 刚下载的文件，不淘汰（文件大于缓存容量时缓存暂时超出上限）
+     */
+    private synchronized void evict(Path downloaded) throws IOException {
+        long maxBytes = maxSizeMb * 1024 * 1024;
+        List<Path> files = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (!path.getFileName().toString().endsWith(PART_SUFFIX)) {
+                    files.add(path);
+                    total += Files.size(path);
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        files.sort(Comparator.comparing(this::lastModified));
+        for (Path path : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (path.equals(downloaded) || leases.containsKey(path)) {
+                continue;
+            }
+            long size = Files.size(path);
+            Files.deleteIfExists(path);
+            total -= size;
+        }
+    }
+
+    private FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private void release(Path file) {
+        leases.computeIfPresent(file, (k, count) -> count.decrementAndGet() == 0 ? null : count);
+    }
+
+    private static String cacheKey(String objectName) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(objectName.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 缓存文件租约，关闭前文件不会被淘汰
+     */
+    public class Lease implements AutoCloseable {
+        private final Path file;
+
+        Lease(Path file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file.toFile();
+        }
+
+        @Override
+        public void close() {
+            release(file);
+        }
+    }
+}
@@ -0,0 +1,611 @@
+package com.smartdoc.documentservice.pipeline;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationship;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.hslf.usermodel.HSLFShape;
+import org.apache.poi.hslf.usermodel.HSLFSlide;
+import org.apache.poi.hslf.usermodel.HSLFSlideShow;
+import org.apache.poi.hslf.usermodel.HSLFTextShape;
+import org.apache.poi.hwpf.HWPFDocument;
+import org.apache.poi.hwpf.extractor.WordExtractor;
+import org.apache.poi.util.XMLHelper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文档文本抽取器
+ * 按自然单元（TXT行块、段落、幻灯片、PDF页）把文本分片段推送给下游，
+ * 所有片段依次拼接后与整篇抽取的文本一致
+ * 支持 doc/docx, txt, ppt/pptx, pdf 格式
+ * 从本地缓存文件随机读取，PDF、docx和pptx流式抽取：PDF按页抽取，解析缓冲超过内存上限后落到临时文件；
+ * docx/pptx按zip目录定位部件，用SAX逐个读取XML，不构建完整对象模型
+ * doc/ppt通过内存映射读取OLE2容器，但HWPF/HSLF会把整个文档模型加载到堆内存，占用随文件大小增长
+ * 页数较多的PDF按页范围拆分到fork/join线程池并行抽取，每个线程使用独立加载的文档句柄，结果按页序推送；
+ * 线程池按文档创建，线程数与句柄数相同，叶子任务等待句柄时不会占用其他文档的抽取线程
+ */
+@Slf4j
+@Component
+public class DocumentTextExtractor {
+
+    /**
+     * 片段的目标大小（字符数），小于该值的相邻单元会合并后再推送
+     */
+    @Value("${pipeline.segment-chars:8192}")
+    private int segmentChars;
+
+    /**
+     * PDF解析缓冲在堆内存中的上限（MB），超出部分写入临时文件
+     */
+    @Value("${pipeline.extract.pdf-max-memory-mb:16}")
+    private int pdfMaxMemoryMb;
+
+    /**
+     * 单个PDF并行抽取的线程数（即同时加载的文档句柄数），0表示CPU核数
+     */
+    @Value("${pipeline.extract.pdf-parallelism:0}")
+    private int pdfParallelism;
+
+    /**
+     * 页数达到该值才并行抽取，页数少时加载多个文档句柄的开销大于收益
+     */
+    @Value("${pipeline.extract.pdf-parallel-min-pages:16}")
+    private int pdfParallelMinPages;
+
+    /**
+     * 每个叶子任务抽取的页数
+     */
+    @Value("${pipeline.extract.pdf-pages-per-task:8}")
+    private int pdfPagesPerTask;
+
+    private static final String WORD_NS = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final String DRAWING_NS = "http://schemas.openxmlformats.org/drawingml/2006/main";
+    private static final String PRESENTATION_NS = "http://schemas.openxmlformats.org/presentationml/2006/main";
+    private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    @PostConstruct
+    public void init() {
+        if (pdfParallelism <= 0) {
+            pdfParallelism = Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    /**
+     * 单个PDF最多同时加载的文档句柄数，每个句柄的解析缓冲最多占用pdfMaxMemoryMb堆内存
+     */
+    public int getMaxPdfHandles() {
+        return Math.max(1, pdfParallelism);
+    }
+
+    /**
+     * 单个PDF文档句柄解析缓冲的堆内存上限（MB）
+     */
+    public int getPdfMaxMemoryMb() {
+        return pdfMaxMemoryMb;
+    }
+
+    /**
+     * 片段接收方
+     */
+    public interface SegmentSink {
+        void accept(String segment) throws Exception;
+
+        /**
+         * 抽取完一页（PDF页、幻灯片），该页文本已全部推送
+         * @param pageNumber 页码，从1开始，按顺序回调
+         */
+        default void pageCompleted(int pageNumber) throws Exception {
+        }
+    }
+
+    /**
+     * 文件类型是否分页（抽取时回调pageCompleted）
+     */
+    public static boolean isPaged(String fileType) {
+        switch (fileType.toLowerCase()) {
+            case "ppt":
+            case "pptx":
+            case "pdf":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 抽取文本
+     * @param fileType 文件类型
+     * @param file 本地文件
+     * @param sink 片段接收方
+     * @return 页数（PDF为页数、PPT为幻灯片数，其他格式为0）
+     */
+    public int extract(String fileType, File file, SegmentSink sink) throws Exception {
+        switch (fileType.toLowerCase()) {
+            case "txt":
+                parseTxt(file, sink);
+                return 0;
+            case "doc":
+                parseDoc(file, sink);
+                return 0;
+            case "docx":
+                parseDocx(file, sink);
+                return 0;
+            case "ppt":
+                return parsePpt(file, sink);
+            case "pptx":
+                return parsePptx(file, sink);
+            case "pdf":
+                return parsePdf(file, sink);
+            default:
+                throw new IllegalArgumentException("不支持的文件格式: " + fileType);
+        }
+    }
+
+    /**
+     * 解析TXT文件
+     */
+    private void parseTxt(File file, SegmentSink sink) throws Exception {
+        SegmentBuffer buffer = new SegmentBuffer(sink);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                buffer.append(line).append("\n");
+            }
+        }
+        buffer.flush();
+    }
+
+    /**
+     * 解析DOC文件
+     */
+    private void parseDoc(File file, SegmentSink sink) throws Exception {
+        POIFSFileSystem fileSystem = new POIFSFileSystem(file, true);
+        HWPFDocument document = new HWPFDocument(fileSystem);
+        WordExtractor extractor = new WordExtractor(document);
+        try {
+            SegmentBuffer buffer = new SegmentBuffer(sink);
+            for (String paragraph : extractor.getParagraphText()) {
+                buffer.append(WordExtractor.stripFields(paragraph));
+            }
+            buffer.flush();
+        } finally {
+            extractor.close();
+            document.close();
+            fileSystem.close();
+        }
+    }
+
+    /**
+     * 解析DOCX文件：SAX读取正文部件，按段落推送（包括表格中的段落）
+     */
+    private void parseDocx(File file, SegmentSink sink) throws Exception {
+        OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+        try {
+            PackagePart document = getCorePart(pkg);
+            SegmentBuffer buffer = new SegmentBuffer(sink);
+            parseXml(document, new OoxmlTextHandler(buffer, WORD_NS, "r", "t", "p", "tab", "br", "cr"));
+            buffer.flush();
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    /**
+     * 解析PPT文件
+     */
+    private int parsePpt(File file, SegmentSink sink) throws Exception {
+        POIFSFileSystem fileSystem = new POIFSFileSystem(file, true);
+        HSLFSlideShow slideShow = new HSLFSlideShow(fileSystem);
+        try {
+            SegmentBuffer buffer = new SegmentBuffer(sink);
+            int slideNumber = 0;
+            for (HSLFSlide slide : slideShow.getSlides()) {
+                for (HSLFShape shape : slide.getShapes()) {
+                    if (shape instanceof HSLFTextShape) {
+                        buffer.append(((HSLFTextShape) shape).getText()).append("\n");
+                    }
+                }
+                buffer.pageCompleted(++slideNumber);
+            }
+            buffer.flush();
+            return slideShow.getSlides().size();
+        } finally {
+            slideShow.close();
+            fileSystem.close();
+        }
+    }
+
+    /**
+     * 解析PPTX文件：按演示文稿中的顺序逐张SAX读取幻灯片部件
+     */
+    private int parsePptx(File file, SegmentSink sink) throws Exception {
+        OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+        try {
+            PackagePart presentation = getCorePart(pkg);
+            SlideIdHandler slideIds = new SlideIdHandler();
+            parseXml(presentation, slideIds);
+
+            SegmentBuffer buffer = new SegmentBuffer(sink);
+            int slides = 0;
+            for (String relationshipId : slideIds.relationshipIds) {
+                PackageRelationship relationship = presentation.getRelationship(relationshipId);
+                if (relationship == null) {
+                    continue;
+                }
+                parseXml(presentation.getRelatedPart(relationship),
+                        new OoxmlTextHandler(buffer, DRAWING_NS, null, "t", "p", null, "br"));
+                buffer.pageCompleted(++slides);
+            }
+            buffer.flush();
+            return slides;
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    /**
+     * 解析PDF文件：逐页抽取
+     * 文档句柄从文件按需读取对象，并行抽取时每个线程可以独立加载句柄；解析缓冲超过内存上限后使用临时文件
+     */
+    private int parsePdf(File file, SegmentSink sink) throws Exception {
+        List<PDDocument> handles = new ArrayList<>();
+        try {
+            PDDocument document = loadPdf(file);
+            handles.add(document);
+            int pages = document.getNumberOfPages();
+            SegmentBuffer buffer = new SegmentBuffer(sink);
+
+            if (pdfParallelism <= 1 || pages < pdfParallelMinPages) {
+                PDFTextStripper stripper = new PDFTextStripper();
+                for (int page = 1; page <= pages; page++) {
+                    stripper.setStartPage(page);
+                    stripper.setEndPage(page);
+                    buffer.append(stripper.getText(document));
+                    buffer.pageCompleted(page);
+                }
+                buffer.flush();
+                return pages;
+            }
+
+            // 每个线程一个文档句柄（PDDocument不是线程安全的）
+            int parallelism = Math.min(pdfParallelism, (pages + pdfPagesPerTask - 1) / pdfPagesPerTask);
+            BlockingQueue<PDDocument> pool = new ArrayBlockingQueue<>(parallelism);
+            pool.add(document);
+            for (int i = 1; i < parallelism; i++) {
+                PDDocument handle = loadPdf(file);
+                handles.add(handle);
+                pool.add(handle);
+            }
+
+            // 线程数与句柄数相同，叶子任务不嵌套持有句柄，取句柄只在线程池补偿线程时短暂等待，且只影响本文档
+            ForkJoinPool extractPool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("pdf-extract-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+            try {
+                // 按窗口抽取，窗口内并行、窗口间按页序推送，缓冲的文本只有一个窗口
+                int window = parallelism * pdfPagesPerTask * 2;
+                for (int first = 1; first <= pages; first += window) {
+                    int last = Math.min(first + window - 1, pages);
+                    for (PageText pageText : extractPages(extractPool, new PageRangeTask(pool, first, last))) {
+                        buffer.append(pageText.text);
+                        buffer.pageCompleted(pageText.pageNumber);
+                    }
+                }
+            } finally {
+                extractPool.shutdownNow();
+                // 叶子任务可能仍在getText中（PDFBox不响应中断），等它们退出后外层才能关闭句柄
+                awaitTermination(extractPool);
+            }
+            buffer.flush();
+            log.debug("PDF并行抽取完成: pages={}, parallelism={}", pages, parallelism);
+            return pages;
+        } finally {
+            for (PDDocument handle : handles) {
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * 等待线程池中的任务全部退出；等待期间被中断也继续等待，结束后恢复中断标记
+     */
+    private static void awaitTermination(ForkJoinPool pool) {
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private PDDocument loadPdf(File file) throws IOException {
+        return PDDocument.load(file, MemoryUsageSetting.setupMixed((long) pdfMaxMemoryMb * 1024 * 1024));
+    }
+
+    /**
+     * 在线程池中执行页范围任务；等待期间可被中断（入库任务取消）
+     */
+    private List<PageText> extractPages(ForkJoinPool extractPool, PageRangeTask task) throws Exception {
+        try {
+            return extractPool.submit(task).get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 页范围抽取任务：超过每任务页数时对半拆分，结果按页序合并
+     */
+    private class PageRangeTask extends RecursiveTask<List<PageText>> {
+        private final BlockingQueue<PDDocument> handles;
+        private final int firstPage;
+        private final int lastPage;
+
+        PageRangeTask(BlockingQueue<PDDocument> handles, int firstPage, int lastPage) {
+            this.handles = handles;
+            this.firstPage = firstPage;
+            this.lastPage = lastPage;
+        }
+
+        @Override
+        protected List<PageText> compute() {
+            if (lastPage - firstPage + 1 > pdfPagesPerTask) {
+                int middle = (firstPage + lastPage) >>> 1;
+                PageRangeTask left = new PageRangeTask(handles, firstPage, middle);
+                PageRangeTask right = new PageRangeTask(handles, middle + 1, lastPage);
+                left.fork();
+                List<PageText> rightTexts = right.compute();
+                List<PageText> texts = left.join();
+                texts.addAll(rightTexts);
+                return texts;
+            }
+
+            // 叶子任务不再fork，一个线程同一时间最多持有一个句柄
+            PDDocument document;
+            try {
+                document = handles.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("PDF抽取已中断", e);
+            }
+            try {
+                PDFTextStripper stripper = new PDFTextStripper();
+                List<PageText> texts = new ArrayList<>(lastPage - firstPage + 1);
+                for (int page = firstPage; page <= lastPage; page++) {
+                    stripper.setStartPage(page);
+                    stripper.setEndPage(page);
+                    texts.add(new PageText(page, stripper.getText(document)));
+                }
+                return texts;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                handles.add(document);
+            }
+        }
+    }
+
+    /**
+     * 一页的文本及页码
+     */
+    private static class PageText {
+        private final int pageNumber;
+        private final String text;
+
+        PageText(int pageNumber, String text) {
+            this.pageNumber = pageNumber;
+            this.text = text;
+        }
+    }
+
+    /**
+     * OOXML主文档部件（word/document.xml、ppt/presentation.xml）
+     */
+    private PackagePart getCorePart(OPCPackage pkg) throws Exception {
+        PackageRelationship relationship = pkg.getRelationshipsByType(PackageRelationshipTypes.CORE_DOCUMENT)
+                .getRelationship(0);
+        if (relationship == null) {
+            throw new IllegalArgumentException("文档缺少主文档部件");
+        }
+        return pkg.getPart(relationship);
+    }
+
+    /**
+     * SAX解析XML部件，处理器推送片段时抛出的异常原样抛出
+     */
+    private void parseXml(PackagePart part, DefaultHandler handler) throws Exception {
+        XMLReader reader = XMLHelper.newXMLReader();
+        reader.setContentHandler(handler);
+        try (InputStream stream = part.getInputStream()) {
+            reader.parse(new InputSource(stream));
+        } catch (SAXException e) {
+            if (e.getException() != null) {
+                throw e.getException();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * OOXML文本处理器：收集文本元素的内容，段落结束时连同换行推送
+     * docx和pptx的文本结构相同，只是命名空间不同（w:t/w:p、a:t/a:p）
+     */
+    private static class OoxmlTextHandler extends DefaultHandler {
+        private final SegmentBuffer buffer;
+        private final String namespace;
+        private final String runElement;
+        private final String textElement;
+        private final String paragraphElement;
+        private final String tabElement;
+        private final List<String> breakElements = new ArrayList<>();
+        private final StringBuilder paragraph = new StringBuilder();
+        private boolean inText;
+        private int runDepth;
+
+        /**
+         * @param runElement 制表符和换行只在该元素内计入（段落属性中的同名元素是制表位定义），为空时不限
+         */
+        OoxmlTextHandler(SegmentBuffer buffer, String namespace, String runElement, String textElement,
+                         String paragraphElement, String tabElement, String... breakElements) {
+            this.buffer = buffer;
+            this.namespace = namespace;
+            this.runElement = runElement;
+            this.textElement = textElement;
+            this.paragraphElement = paragraphElement;
+            this.tabElement = tabElement;
+            for (String element : breakElements) {
+                this.breakElements.add(element);
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (!namespace.equals(uri)) {
+                return;
+            }
+            if (textElement.equals(localName)) {
+                inText = true;
+            } else if (localName.equals(runElement)) {
+                runDepth++;
+            } else if (runElement == null || runDepth > 0) {
+                if (localName.equals(tabElement)) {
+                    paragraph.append('\t');
+                } else if (breakElements.contains(localName)) {
+                    paragraph.append('\n');
+                }
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (!namespace.equals(uri)) {
+                return;
+            }
+            if (textElement.equals(localName)) {
+                inText = false;
+            } else if (localName.equals(runElement)) {
+                runDepth--;
+            } else if (paragraphElement.equals(localName)) {
+                paragraph.append('\n');
+                try {
+                    buffer.append(paragraph.toString());
+                } catch (Exception e) {
+                    throw new SAXException(e);
+                }
+                paragraph.setLength(0);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inText) {
+                paragraph.append(ch, start, length);
+            }
+        }
+    }
+
+    /**
+     * 演示文稿处理器：按p:sldIdLst中的顺序收集幻灯片的关系ID
+     */
+    private static class SlideIdHandler extends DefaultHandler {
+        private final List<String> relationshipIds = new ArrayList<>();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (PRESENTATION_NS.equals(uri) && "sldId".equals(localName)) {
+                String id = attributes.getValue(RELATIONSHIPS_NS, "id");
+                if (id != null) {
+                    relationshipIds.add(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * 片段缓冲：累积到目标大小或页结束时推送
+     */
+    private class SegmentBuffer {
+        private final SegmentSink sink;
+        private final StringBuilder buffer = new StringBuilder();
+
+        SegmentBuffer(SegmentSink sink) {
+            this.sink = sink;
+        }
+
+        SegmentBuffer append(String text) throws Exception {
+            if (text != null) {
+                buffer.append(text);
+            }
+            if (buffer.length() >= segmentChars) {
+                flush();
+            }
+            return this;
+        }
+
+        void flush() throws Exception {
+            if (buffer.length() > 0) {
+                sink.accept(buffer.toString());
+                buffer.setLength(0);
+            }
+        }
+
+        /**
+         * 页结束：先推送缓冲中的文本，下游据此确定页边界
+         */
+        void pageCompleted(int pageNumber) throws Exception {
+            flush();
+            sink.pageCompleted(pageNumber);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.smartdoc.documentservice.pipeline;
+
+/**
+ * 入库任务已在任务表中被取消或结束（可能由其他实例取消），流水线收到后中止，不再写入索引
+ */
+public class IngestionCancelledException extends RuntimeException {
+
+    public IngestionCancelledException(String message) {
+        super(message);
+    }
+}
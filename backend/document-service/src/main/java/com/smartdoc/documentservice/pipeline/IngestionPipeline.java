@@ -0,0 +1,668 @@
+package com.smartdoc.documentservice.pipeline;
+
+import com.smartdoc.aiengine.service.ChunkExpansionService;
+import com.smartdoc.aiengine.service.DocumentSummaryService;
+import com.smartdoc.aiengine.service.ElasticsearchService;
+import com.smartdoc.aiengine.service.EmbeddingService;
+import com.smartdoc.aiengine.service.MilvusService;
+import com.smartdoc.aiengine.service.TextPreprocessService;
+import com.smartdoc.documentservice.entity.DocumentChunk;
+import com.smartdoc.documentservice.service.DocumentChunkService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * 文档入库流水线
+ * 抽取 → 清洗 → 分片 → 向量化 → 索引，各阶段之间用有界队列连接，
+ * 文本块一产出就流向下游；队列满时上游阻塞（背压），单个文档的内存占用与文档大小无关。
+ * 分片结果是确定的，续跑时重新抽取和分片，但跳过检查点之前的文本块，不再向量化和索引。
+ * 文本块ID由内容哈希决定：重新入库时与已登记的文本块比对，只向量化新增或变化的文本块，
+ * 全部完成后删除已不存在的文本块，并更新位置移动的文本块的位置信息
+ */
+@Slf4j
+@Component
+public class IngestionPipeline {
+
+    private static final String STAGE_EXTRACT = "extract";
+    private static final String STAGE_CLEAN = "clean";
+    private static final String STAGE_CHUNK = "chunk";
+    private static final String STAGE_EMBED = "embed";
+    private static final String STAGE_INDEX = "index";
+
+    /**
+     * 队列结束标记
+     */
+    private static final Object END = new Object();
+
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * 清理已删除文本块时每次请求的数量
+     */
+    private static final int CLEANUP_SLICE = 500;
+
+    @Autowired
+    private DocumentTextExtractor textExtractor;
+
+    @Autowired
+    private TextPreprocessService textPreprocessService;
+
+    @Autowired
+    private EmbeddingService embeddingService;
+
+    @Autowired
+    private MilvusService milvusService;
+
+    @Autowired(required = false)
+    private ElasticsearchService elasticsearchService;
+
+    @Autowired
+    private DocumentChunkService documentChunkService;
+
+    @Autowired
+    private ChunkExpansionService chunkExpansionService;
+
+    @Autowired
+    private DocumentSummaryService documentSummaryService;
+
+    /**
+     * 阶段间队列容量
+     */
+    @Value("${pipeline.queue-capacity:16}")
+    private int queueCapacity;
+
+    /**
+     * 每批文本块数量（向量化和索引的单位）
+     */
+    @Value("${pipeline.batch-size:16}")
+    private int batchSize;
+
+    /**
+     * 每批文本块的token总数上限，与batch-size先达到者为准，使每次向量化请求的计算量接近
+     */
+    @Value("${pipeline.batch-tokens:8192}")
+    private int batchTokens;
+
+    /**
+     * 每个文档的向量化并发数
+     */
+    @Value("${pipeline.embed.parallelism:4}")
+    private int embedParallelism;
+
+    /**
+     * 每个文档的索引并发数
+     */
+    @Value("${pipeline.index.parallelism:2}")
+    private int indexParallelism;
+
+    private final Map<String, StageStats> stageStats = new LinkedHashMap<>();
+    private final Set<PipelineRun> activeRuns = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService stageExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ingest-stage-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public IngestionPipeline() {
+        for (String stage : Arrays.asList(STAGE_EXTRACT, STAGE_CLEAN, STAGE_CHUNK, STAGE_EMBED, STAGE_INDEX)) {
+            stageStats.put(stage, new StageStats(stage));
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        stageExecutor.shutdownNow();
+    }
+
+    /**
+     * 执行一个文档的入库流水线，阻塞直到全部完成
+     * @param documentId 文档ID
+     * @param fileType 文件类型
+     * @param documentTitle 文档标题
+     * @param file 本地缓存的文件
+     * @param progress 进度回调，提供续跑位置
+     * @param backfill 是否为批量回填，回填期间关键词索引关闭定时刷新
+     * @return 文档的文本块总数（包括续跑时跳过的文本块）
+     */
+    public int run(Long documentId, String fileType, String documentTitle, File file,
+                   IngestionProgress progress, boolean backfill) throws Exception {
+        if (backfill && elasticsearchService != null) {
+            elasticsearchService.beginBackfill();
+        }
+        try {
+            return execute(documentId, fileType, documentTitle, file, progress, backfill);
+        } finally {
+            if (backfill && elasticsearchService != null) {
+                elasticsearchService.endBackfill();
+            }
+        }
+    }
+
+    private int execute(Long documentId, String fileType, String documentTitle, File file,
+                        IngestionProgress progress, boolean backfill) throws Exception {
+        Map<String, DocumentChunk> storedChunks = documentChunkService.getChunkPositions(documentId);
+        if (storedChunks.isEmpty() && progress.getResumeAfter() == 0) {
+            // 没有登记记录：首次入库，或是按序号生成ID时入库的旧数据，整体重建
+            milvusService.deleteByDocumentId(documentId);
+            if (elasticsearchService != null) {
+                elasticsearchService.deleteByDocumentId(documentId);
+            }
+        }
+
+        PipelineRun run = new PipelineRun(documentId, progress, storedChunks, documentSummaryService.newBuilder());
+        activeRuns.add(run);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            futures.add(stageExecutor.submit(() -> run.guard(STAGE_EXTRACT, () -> extractStage(run, fileType, file))));
+            futures.add(stageExecutor.submit(() -> run.guard(STAGE_CLEAN, () -> cleanStage(run))));
+            futures.add(stageExecutor.submit(() -> run.guard(STAGE_CHUNK, () -> chunkStage(run, DocumentTextExtractor.isPaged(fileType)))));
+            AtomicInteger embedWorkers = new AtomicInteger(embedParallelism);
+            for (int i = 0; i < embedParallelism; i++) {
+                futures.add(stageExecutor.submit(() -> run.guard(STAGE_EMBED, () -> embedStage(run, embedWorkers))));
+            }
+            for (int i = 0; i < indexParallelism; i++) {
+                futures.add(stageExecutor.submit(() -> run.guard(STAGE_INDEX, () -> indexStage(run, documentTitle))));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // 调用方取消：中止所有阶段
+            run.fail(e);
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+        } finally {
+            activeRuns.remove(run);
+        }
+
+        if (run.failure.get() != null) {
+            Throwable failure = run.failure.get();
+            throw failure instanceof Exception ? (Exception) failure : new RuntimeException(failure);
+        }
+        if (run.producedChunks.get() == 0) {
+            throw new RuntimeException("文档内容为空或分片失败");
+        }
+        applyChanges(run);
+        if (elasticsearchService != null) {
+            elasticsearchService.refreshAfterIndexing(!backfill);
+        }
+        saveAdjacency(documentId);
+        saveSummary(run, documentTitle);
+
+        log.info("文档入库流水线完成: documentId={}, 文本块数={}, 本次索引数={}, 未变化={}, 移动={}, 删除={}",
+                documentId, run.producedChunks.get(), run.indexedChunks.get(), run.unchangedChunks,
+                run.movedChunks.size(), run.staleChunks.size());
+        return run.producedChunks.get();
+    }
+
+    /**
+     * 全部新文本块写入后：删除已不存在的文本块，更新位置移动的文本块的位置信息
+     */
+    private void applyChanges(PipelineRun run) {
+        List<String> removed = new ArrayList<>(run.staleChunks.keySet());
+        for (int from = 0; from < removed.size(); from += CLEANUP_SLICE) {
+            List<String> slice = removed.subList(from, Math.min(from + CLEANUP_SLICE, removed.size()));
+            milvusService.deleteChunks(run.documentId, slice);
+            if (elasticsearchService != null) {
+                elasticsearchService.deleteChunks(slice);
+            }
+            documentChunkService.deleteChunks(run.documentId, slice);
+        }
+
+        List<TextPreprocessService.TextChunk> moved = run.movedChunks;
+        for (int from = 0; from < moved.size(); from += CLEANUP_SLICE) {
+            List<TextPreprocessService.TextChunk> slice = moved.subList(from, Math.min(from + CLEANUP_SLICE, moved.size()));
+            if (elasticsearchService != null) {
+                elasticsearchService.updateChunkPositions(slice);
+            }
+            documentChunkService.saveChunks(run.documentId, slice);
+        }
+    }
+
+    /**
+     * 保存文本块相邻关系，检索时据此扩展到相邻文本块；保存失败不影响入库，查询时会从Elasticsearch重建
+     */
+    private void saveAdjacency(Long documentId) {
+        try {
+            chunkExpansionService.saveAdjacency(documentId, documentChunkService.getAdjacencyPositions(documentId));
+        } catch (Exception e) {
+            log.warn("保存文本块相邻关系失败: documentId={}", documentId, e);
+        }
+    }
+
+    /**
+     * 保存文档摘要向量，跨文档问答时据此选出相关文档；保存失败不影响入库
+     */
+    private void saveSummary(PipelineRun run, String documentTitle) {
+        try {
+            documentSummaryService.saveSummary(run.documentId, documentTitle, run.summary);
+        } catch (Exception e) {
+            log.warn("保存文档摘要失败: documentId={}", run.documentId, e);
+        }
+    }
+
+    /**
+     * 获取各阶段统计（吞吐、当前队列深度）
+     */
+    public Map<String, Object> getStats() {
+        List<Map<String, Object>> stages = new ArrayList<>();
+        for (StageStats stats : stageStats.values()) {
+            int depth = activeRuns.stream().mapToInt(run -> run.inputQueueDepth(stats.getName())).sum();
+            stages.add(stats.toMap(depth));
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("activeDocuments", activeRuns.size());
+        result.put("activeDocumentIds", activeRuns.stream().map(run -> run.documentId).collect(Collectors.toList()));
+        result.put("stages", stages);
+        return result;
+    }
+
+    private void extractStage(PipelineRun run, String fileType, File file) throws Exception {
+        StageStats stats = stageStats.get(STAGE_EXTRACT);
+        long[] start = {System.nanoTime()};
+        textExtractor.extract(fileType, file, new DocumentTextExtractor.SegmentSink() {
+            @Override
+            public void accept(String segment) throws Exception {
+                stats.record(1, start[0]);
+                run.put(run.rawQueue, segment);
+                start[0] = System.nanoTime();
+            }
+
+            @Override
+            public void pageCompleted(int pageNumber) throws Exception {
+                run.progress.pageExtracted();
+                run.put(run.rawQueue, new PageBreak(pageNumber));
+            }
+        });
+        run.put(run.rawQueue, END);
+        run.progress.extractionFinished();
+    }
+
+    private void cleanStage(PipelineRun run) throws Exception {
+        StageStats stats = stageStats.get(STAGE_CLEAN);
+        // 整个文档共用一个清洗器，跨片段边界的页码标记、分隔符和空白按整体处理
+        TextPreprocessService.TextCleaner cleaner = textPreprocessService.newCleaner();
+        while (true) {
+            Object item = run.take(run.rawQueue);
+            if (item == END) {
+                String tail = cleaner.finish();
+                if (!tail.isEmpty()) {
+                    run.put(run.cleanQueue, tail);
+                }
+                run.put(run.cleanQueue, END);
+                return;
+            }
+            if (item instanceof PageBreak) {
+                // 页末暂存在清洗器中的空白和分隔符归入下一页
+                run.put(run.cleanQueue, item);
+                continue;
+            }
+            long start = System.nanoTime();
+            String cleaned = cleaner.clean((String) item);
+            stats.record(1, start);
+            if (!cleaned.isEmpty()) {
+                run.put(run.cleanQueue, cleaned);
+            }
+        }
+    }
+
+    private void chunkStage(PipelineRun run, boolean paged) throws Exception {
+        StageStats stats = stageStats.get(STAGE_CHUNK);
+        ChunkRouter router = new ChunkRouter(run);
+        TextPreprocessService.StreamingChunker chunker = textPreprocessService.newChunker(run.documentId, paged, router);
+        while (true) {
+            Object item = run.take(run.cleanQueue);
+            if (item instanceof PageBreak) {
+                chunker.pageBreak(((PageBreak) item).pageNumber);
+                continue;
+            }
+            long start = System.nanoTime();
+            int produced = router.produced;
+            if (item == END) {
+                chunker.finish();
+            } else {
+                chunker.append((String) item);
+            }
+            stats.record(router.produced - produced, start);
+            if (item == END) {
+                router.finish();
+                run.put(run.chunkQueue, END);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 分片阶段的文本块去向：跳过检查点之前和内容未变化的文本块，其余按数量和token数组成批次
+     */
+    private class ChunkRouter implements TextPreprocessService.ChunkConsumer {
+        private final PipelineRun run;
+        private final int resumeAfter;
+        private List<TextPreprocessService.TextChunk> batch = new ArrayList<>(batchSize);
+        private int batchTokenCount;
+        // 连续未变化文本块的序号范围，与待向量化的批次交替出现
+        private int skippedFirst;
+        private int skippedLast;
+        private int produced;
+
+        ChunkRouter(PipelineRun run) {
+            this.run = run;
+            this.resumeAfter = run.progress.getResumeAfter();
+        }
+
+        @Override
+        public void accept(TextPreprocessService.TextChunk chunk) throws Exception {
+            produced++;
+            run.summary.accept(chunk);
+            run.producedChunks.incrementAndGet();
+            run.progress.chunksProduced(1);
+
+            int index = chunk.getChunkIndex();
+            DocumentChunk stored = run.staleChunks.remove(chunk.getChunkId());
+            if (stored != null && !DocumentChunkService.samePosition(stored, chunk)) {
+                run.movedChunks.add(chunk);
+            }
+            // 检查点之前的文本块上次已写入索引
+            if (index <= resumeAfter) {
+                return;
+            }
+            if (stored != null) {
+                // 内容未变化，保留已有的向量和索引；批次只包含连续序号，遇到跳过的文本块先发出当前批次
+                run.unchangedChunks++;
+                flushBatch();
+                if (skippedFirst == 0) {
+                    skippedFirst = index;
+                }
+                skippedLast = index;
+                return;
+            }
+            flushSkipped();
+            if (!batch.isEmpty() && batchTokenCount + chunk.getTokenCount() > batchTokens) {
+                flushBatch();
+            }
+            batch.add(chunk);
+            batchTokenCount += chunk.getTokenCount();
+            if (batch.size() >= batchSize) {
+                flushBatch();
+            }
+        }
+
+        void finish() throws Exception {
+            flushSkipped();
+            flushBatch();
+        }
+
+        private void flushBatch() throws Exception {
+            if (!batch.isEmpty()) {
+                run.put(run.chunkQueue, batch);
+                batch = new ArrayList<>(batchSize);
+                batchTokenCount = 0;
+            }
+        }
+
+        private void flushSkipped() {
+            if (skippedFirst != 0) {
+                run.progress.chunksSkipped(skippedFirst, skippedLast);
+                skippedFirst = 0;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void embedStage(PipelineRun run, AtomicInteger remainingWorkers) throws Exception {
+        StageStats stats = stageStats.get(STAGE_EMBED);
+        while (true) {
+            Object item = run.take(run.chunkQueue);
+            if (item == END) {
+                // 放回结束标记让其他worker也能退出，最后一个退出的worker通知下游
+                run.put(run.chunkQueue, END);
+                if (remainingWorkers.decrementAndGet() == 0) {
+                    run.put(run.embeddedQueue, END);
+                }
+                return;
+            }
+            List<TextPreprocessService.TextChunk> chunks = (List<TextPreprocessService.TextChunk>) item;
+            long start = System.nanoTime();
+            List<List<Float>> vectors = embeddingService.embedTexts(chunks.stream()
+                    .map(TextPreprocessService.TextChunk::getContent)
+                    .collect(Collectors.toList()));
+            stats.record(chunks.size(), start);
+            EmbeddedBatch batch = new EmbeddedBatch(chunks, vectors);
+            run.progress.batchEmbedded(batch.firstChunkIndex(), batch.lastChunkIndex());
+            run.put(run.embeddedQueue, batch);
+        }
+    }
+
+    private void indexStage(PipelineRun run, String documentTitle) throws Exception {
+        StageStats stats = stageStats.get(STAGE_INDEX);
+        // 已写入向量索引、等待关键词索引确认的批次，按提交顺序
+        Deque<IndexedBatch> pending = new ArrayDeque<>();
+        while (true) {
+            Object item = run.take(run.embeddedQueue);
+            if (item == END) {
+                run.put(run.embeddedQueue, END);
+                if (elasticsearchService != null) {
+                    elasticsearchService.flush();
+                }
+                reportIndexed(run, pending, true);
+                return;
+            }
+            EmbeddedBatch batch = (EmbeddedBatch) item;
+            long start = System.nanoTime();
+            List<String> chunkIds = batch.chunks.stream()
+                    .map(TextPreprocessService.TextChunk::getChunkId)
+                    .collect(Collectors.toList());
+
+            // 构建Elasticsearch索引（关键词索引），与下面的向量写入并行，在批量写入器中与其他批次合并发送
+            CompletableFuture<Void> keywordIndexed = elasticsearchService != null
+                    ? elasticsearchService.indexChunks(run.documentId, documentTitle, batch.chunks)
+                    : CompletableFuture.completedFuture(null);
+            // 上次执行中途失败时可能已写入过这批向量，先删除旧数据（ES按chunkId覆盖写入，无需处理）
+            if (batch.firstChunkIndex() <= run.progress.getPreviousHighWater()) {
+                milvusService.deleteChunks(run.documentId, chunkIds);
+            }
+            // 存入Milvus（向量索引）；文本块登记等关键词索引确认后再写
+            milvusService.insertChunks(run.documentId, batch.chunks, batch.vectors);
+            stats.record(batch.chunks.size(), start);
+            run.indexedChunks.addAndGet(batch.chunks.size());
+            pending.add(new IndexedBatch(batch, keywordIndexed));
+            reportIndexed(run, pending, false);
+        }
+    }
+
+    /**
+     * 关键词索引已确认的批次登记文本块并记为已索引（登记和检查点只覆盖两种索引都已写入的文本块）
+     * 关键词索引写入失败时中止入库：批次未登记、检查点不推进，重试或续跑时重新写入；
+     * 否则按内容哈希比对时这些文本块会被当作未变化，再也不会写入关键词索引
+     * @param wait 是否等待全部批次确认
+     */
+    private void reportIndexed(PipelineRun run, Deque<IndexedBatch> pending, boolean wait) throws Exception {
+        while (!pending.isEmpty() && (wait || pending.peek().keywordIndexed.isDone())) {
+            IndexedBatch indexed = pending.poll();
+            try {
+                indexed.keywordIndexed.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("写入关键词索引失败: " + e.getCause().getMessage(), e.getCause());
+            }
+            documentChunkService.saveChunks(run.documentId, indexed.batch.chunks);
+            run.progress.batchIndexed(indexed.batch.firstChunkIndex(), indexed.batch.lastChunkIndex());
+        }
+    }
+
+    /**
+     * 已写入向量索引的批次及其关键词索引写入结果
+     */
+    private static class IndexedBatch {
+        private final EmbeddedBatch batch;
+        private final CompletableFuture<Void> keywordIndexed;
+
+        IndexedBatch(EmbeddedBatch batch, CompletableFuture<Void> keywordIndexed) {
+            this.batch = batch;
+            this.keywordIndexed = keywordIndexed;
+        }
+    }
+
+    /**
+     * 已向量化的一批文本块
+     */
+    private static class EmbeddedBatch {
+        private final List<TextPreprocessService.TextChunk> chunks;
+        private final List<List<Float>> vectors;
+
+        EmbeddedBatch(List<TextPreprocessService.TextChunk> chunks, List<List<Float>> vectors) {
+            this.chunks = chunks;
+            this.vectors = vectors;
+        }
+
+        int firstChunkIndex() {
+            return chunks.get(0).getChunkIndex();
+        }
+
+        int lastChunkIndex() {
+            return chunks.get(chunks.size() - 1).getChunkIndex();
+        }
+    }
+
+    /**
+     * 页结束标记：清洗和分片阶段据此确定页边界
+     */
+    private static class PageBreak {
+        private final int pageNumber;
+
+        PageBreak(int pageNumber) {
+            this.pageNumber = pageNumber;
+        }
+    }
+
+    /**
+     * 阶段任务
+     */
+    private interface StageTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * 单个文档的一次流水线执行：阶段间队列与失败状态
+     */
+    private class PipelineRun {
+        private final Long documentId;
+        private final IngestionProgress progress;
+        private final BlockingQueue<Object> rawQueue = new ArrayBlockingQueue<>(queueCapacity);
+        private final BlockingQueue<Object> cleanQueue = new ArrayBlockingQueue<>(queueCapacity);
+        private final BlockingQueue<Object> chunkQueue = new ArrayBlockingQueue<>(queueCapacity);
+        private final BlockingQueue<Object> embeddedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final AtomicInteger producedChunks = new AtomicInteger();
+        private final AtomicInteger indexedChunks = new AtomicInteger();
+        /**
+         * 已登记但本次尚未产出的文本块（chunkId → 登记的位置信息），分片结束后剩下的即为已删除的文本块；
+         * 以下字段只由分片阶段读写，run()在所有阶段结束后读取
+         */
+        private final Map<String, DocumentChunk> staleChunks;
+        /**
+         * 内容未变化但位置（序号、偏移、页码、章节）改变的文本块
+         */
+        private final List<TextPreprocessService.TextChunk> movedChunks = new ArrayList<>();
+        private int unchangedChunks;
+        /**
+         * 文档摘要收集（包括续跑时跳过的文本块）
+         */
+        private final DocumentSummaryService.SummaryBuilder summary;
+
+        PipelineRun(Long documentId, IngestionProgress progress, Map<String, DocumentChunk> storedChunks,
+                    DocumentSummaryService.SummaryBuilder summary) {
+            this.documentId = documentId;
+            this.progress = progress;
+            this.staleChunks = storedChunks;
+            this.summary = summary;
+        }
+
+        /**
+         * 执行阶段任务，任一阶段失败时标记整个执行失败，其他阶段随之退出
+         */
+        void guard(String stage, StageTask task) {
+            try {
+                task.run();
+            } catch (PipelineAbortedException e) {
+                // 其他阶段已失败
+            } catch (IngestionCancelledException e) {
+                if (fail(e)) {
+                    log.info("入库任务已取消，流水线中止: documentId={}, stage={}", documentId, stage);
+                }
+            } catch (Throwable e) {
+                stageStats.get(stage).recordError();
+                if (fail(e)) {
+                    log.error("入库流水线阶段失败: documentId={}, stage={}", documentId, stage, e);
+                }
+            }
+        }
+
+        boolean fail(Throwable e) {
+            return failure.compareAndSet(null, e);
+        }
+
+        void put(BlockingQueue<Object> queue, Object item) throws InterruptedException {
+            while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkAborted();
+            }
+            checkAborted();
+        }
+
+        Object take(BlockingQueue<Object> queue) throws InterruptedException {
+            while (true) {
+                checkAborted();
+                Object item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    return item;
+                }
+            }
+        }
+
+        int inputQueueDepth(String stage) {
+            switch (stage) {
+                case STAGE_CLEAN:
+                    return rawQueue.size();
+                case STAGE_CHUNK:
+                    return cleanQueue.size();
+                case STAGE_EMBED:
+                    return chunkQueue.size();
+                case STAGE_INDEX:
+                    return embeddedQueue.size();
+                default:
+                    return 0;
+            }
+        }
+
+        private void checkAborted() {
+            if (failure.get() != null) {
+                throw new PipelineAbortedException();
+            }
+        }
+    }
+
+    /**
+     * 流水线已因其他阶段失败而中止
+     */
+    private static class PipelineAbortedException extends RuntimeException {
+        PipelineAbortedException() {
+            super(null, null, false, false);
+        }
+    }
+}
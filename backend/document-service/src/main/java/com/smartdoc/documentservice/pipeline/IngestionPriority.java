@@ -0,0 +1,15 @@
+package com.smartdoc.documentservice.pipeline;
+
+/**
+ * 文档入库优先级
+ */
+public enum IngestionPriority {
+    /**
+     * 交互式：用户单个上传后立即等待结果
+     */
+    INTERACTIVE,
+    /**
+     * 批量：批量导入、回填、重建索引
+     */
+    BULK
+}
@@ -0,0 +1,73 @@
+package com.smartdoc.documentservice.pipeline;
+
+/**
+ * 入库进度回调
+ * 流水线各阶段在处理过程中调用，实现方负责累计计数和持久化检查点；
+ * 向量化和索引阶段有多个并发worker，实现需要线程安全；
+ * 任务已被取消时回调抛出IngestionCancelledException，流水线随之中止
+ */
+public interface IngestionProgress {
+
+    /**
+     * 不记录进度，从头执行
+     */
+    IngestionProgress NONE = new IngestionProgress() {
+    };
+
+    /**
+     * 续跑位置：序号不大于该值的文本块已写入索引，本次执行只分片不再向量化和索引
+     */
+    default int getResumeAfter() {
+        return 0;
+    }
+
+    /**
+     * 上次执行可能已写入索引的最大文本块序号
+     * 续跑位置之后、不大于该值的文本块在写入前需要先删除旧向量，避免重复
+     */
+    default int getPreviousHighWater() {
+        return 0;
+    }
+
+    /**
+     * 抽取完一页（PDF页、幻灯片）
+     */
+    default void pageExtracted() {
+    }
+
+    /**
+     * 抽取结束，剩余文本块进入向量化和索引
+     */
+    default void extractionFinished() {
+    }
+
+    /**
+     * 分片产出文本块（包括续跑时跳过的文本块）
+     */
+    default void chunksProduced(int count) {
+    }
+
+    /**
+     * 一段连续的文本块内容未变化，沿用已有的向量和索引
+     * @param firstChunkIndex 第一个文本块序号
+     * @param lastChunkIndex 最后一个文本块序号
+     */
+    default void chunksSkipped(int firstChunkIndex, int lastChunkIndex) {
+    }
+
+    /**
+     * 一批文本块向量化完成，即将写入索引
+     * @param firstChunkIndex 批次第一个文本块序号
+     * @param lastChunkIndex 批次最后一个文本块序号
+     */
+    default void batchEmbedded(int firstChunkIndex, int lastChunkIndex) {
+    }
+
+    /**
+     * 一批文本块已写入向量索引和关键词索引
+     * @param firstChunkIndex 批次第一个文本块序号
+     * @param lastChunkIndex 批次最后一个文本块序号
+     */
+    default void batchIndexed(int firstChunkIndex, int lastChunkIndex) {
+    }
+}
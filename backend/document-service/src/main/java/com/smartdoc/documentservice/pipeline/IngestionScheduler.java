@@ -0,0 +1,389 @@
+package com.smartdoc.documentservice.pipeline;
+
+import com.smartdoc.common.exception.BusinessException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文档入库调度器
+ * 固定数量的worker执行入库任务；排队任务按优先级分类，同一优先级内按用户轮转保证公平；
+ * 队列有上限，满时拒绝新任务；每个任务按预估内存占用内存预算，预算不足时等待
+ */
+@Slf4j
+@Component
+public class IngestionScheduler {
+
+    @Value("${ingestion.workers:2}")
+    private int workers;
+
+    @Value("${ingestion.queue-capacity:200}")
+    private int queueCapacity;
+
+    @Value("${ingestion.memory-budget-mb:1024}")
+    private int memoryBudgetMb;
+
+    /**
+     * 有批量任务排队时，连续调度多少个交互式任务后让出一次给批量任务，避免批量任务饿死
+     */
+    @Value("${ingestion.interactive-burst:4}")
+    private int interactiveBurst;
+
+    private final Object lock = new Object();
+    private final Map<IngestionPriority, FairQueue> queues = new EnumMap<>(IngestionPriority.class);
+    private final Map<Long, IngestionTask> tasks = new ConcurrentHashMap<>();
+    private int consecutiveInteractive = 0;
+
+    private ExecutorService workerPool;
+    private Semaphore workerSlots;
+    private Semaphore memoryBudget;
+    private Thread dispatcher;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Map<IngestionPriority, WaitStats> waitStats = new EnumMap<>(IngestionPriority.class);
+
+    @PostConstruct
+    public void init() {
+        for (IngestionPriority priority : IngestionPriority.values()) {
+            queues.put(priority, new FairQueue());
+            waitStats.put(priority, new WaitStats());
+        }
+
+        workerSlots = new Semaphore(workers);
+        memoryBudget = new Semaphore(memoryBudgetMb, true);
+        workerPool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ingest-worker-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        dispatcher = new Thread(this::dispatchLoop, "ingest-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        log.info("文档入库调度器启动: workers={}, queueCapacity={}, memoryBudgetMb={}",
+                workers, queueCapacity, memoryBudgetMb);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        dispatcher.interrupt();
+        workerPool.shutdownNow();
+    }
+
+    /**
+     * 提交入库任务
+     * @param documentId 文档ID（同一文档同时只能有一个任务）
+     * @param userId 提交用户，用于公平调度
+     * @param priority 优先级
+     * @param estimatedMemoryMb 预估内存占用
+     * @param work 任务内容
+     * @throws BusinessException 文档已在队列中或队列已满
+     */
+    public void submit(Long documentId, Long userId, IngestionPriority priority, int estimatedMemoryMb, Runnable work) {
+        IngestionTask task = new IngestionTask(documentId, userId, priority,
+                Math.max(1, Math.min(estimatedMemoryMb, memoryBudgetMb)), work);
+
+        synchronized (lock) {
+            if (tasks.containsKey(documentId)) {
+                throw new BusinessException("文档已在解析队列中: " + documentId);
+            }
+            if (queuedCount() >= queueCapacity) {
+                rejected.incrementAndGet();
+                throw new BusinessException(429, "解析队列已满，请稍后重试");
+            }
+            queues.get(priority).add(task);
+            tasks.put(documentId, task);
+            submitted.incrementAndGet();
+            lock.notifyAll();
+        }
+        log.info("入库任务已排队: documentId={}, userId={}, priority={}, memoryMb={}",
+                documentId, userId, priority, task.memoryMb);
+    }
+
+    /**
+     * 取消入库任务：排队中的直接移除，执行中的中断流水线
+     * @return 是否找到并取消了任务
+     */
+    public boolean cancel(Long documentId) {
+        synchronized (lock) {
+            IngestionTask task = tasks.get(documentId);
+            if (task == null) {
+                return false;
+            }
+            if (task.state == TaskState.CANCELLED) {
+                return true;
+            }
+            if (task.state == TaskState.QUEUED) {
+                queues.get(task.priority).remove(task);
+                tasks.remove(documentId);
+            } else if (task.worker != null) {
+                task.worker.interrupt();
+            }
+            task.state = TaskState.CANCELLED;
+            cancelled.incrementAndGet();
+        }
+        log.info("入库任务已取消: documentId={}", documentId);
+        return true;
+    }
+
+    /**
+     * 文档是否在排队或执行中
+     */
+    public boolean isActive(Long documentId) {
+        return tasks.containsKey(documentId);
+    }
+
+    /**
+     * 获取调度统计：各优先级排队数与等待时间、执行中任务数、内存预算使用情况
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (lock) {
+            Map<String, Object> queued = new LinkedHashMap<>();
+            for (Map.Entry<IngestionPriority, FairQueue> entry : queues.entrySet()) {
+                Map<String, Object> queueStats = new LinkedHashMap<>();
+                queueStats.put("depth", entry.getValue().size());
+                queueStats.put("users", entry.getValue().userCount());
+                queueStats.put("oldestWaitMillis", entry.getValue().oldestWaitMillis());
+                queueStats.putAll(waitStats.get(entry.getKey()).toMap());
+                queued.put(entry.getKey().name().toLowerCase(), queueStats);
+            }
+            stats.put("queues", queued);
+            stats.put("queueCapacity", queueCapacity);
+        }
+        stats.put("workers", workers);
+        stats.put("running", running.get());
+        stats.put("memoryBudgetMb", memoryBudgetMb);
+        stats.put("memoryAvailableMb", memoryBudget.availablePermits());
+        stats.put("submitted", submitted.get());
+        stats.put("rejected", rejected.get());
+        stats.put("cancelled", cancelled.get());
+        stats.put("completed", completed.get());
+        stats.put("failed", failed.get());
+        return stats;
+    }
+
+    private int queuedCount() {
+        int count = 0;
+        for (FairQueue queue : queues.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    private void dispatchLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                workerSlots.acquire();
+                IngestionTask task = takeNext();
+                memoryBudget.acquire(task.memoryMb);
+
+                synchronized (lock) {
+                    if (task.state == TaskState.CANCELLED) {
+                        memoryBudget.release(task.memoryMb);
+                        workerSlots.release();
+                        continue;
+                    }
+                    task.state = TaskState.RUNNING;
+                    long waitMillis = System.currentTimeMillis() - task.submitTime;
+                    waitStats.get(task.priority).record(waitMillis);
+                    running.incrementAndGet();
+                    workerPool.execute(() -> execute(task));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 取出下一个任务：交互式优先，但有批量任务排队时每interactiveBurst个交互式任务后让出一次
+     */
+    private IngestionTask takeNext() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                FairQueue interactive = queues.get(IngestionPriority.INTERACTIVE);
+                FairQueue bulk = queues.get(IngestionPriority.BULK);
+                boolean bulkTurn = bulk.size() > 0 && (interactive.size() == 0 || consecutiveInteractive >= interactiveBurst);
+                if (bulkTurn) {
+                    consecutiveInteractive = 0;
+                    return bulk.poll();
+                }
+                if (interactive.size() > 0) {
+                    consecutiveInteractive++;
+                    return interactive.poll();
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    private void execute(IngestionTask task) {
+        try {
+            synchronized (lock) {
+                if (task.state == TaskState.CANCELLED) {
+                    return;
+                }
+                task.worker = Thread.currentThread();
+            }
+            task.work.run();
+            if (task.state == TaskState.CANCELLED) {
+                log.info("入库任务已中止: documentId={}", task.documentId);
+            } else {
+                completed.incrementAndGet();
+            }
+        } catch (Throwable e) {
+            if (task.state == TaskState.CANCELLED) {
+                log.info("入库任务已中止: documentId={}", task.documentId);
+            } else {
+                failed.incrementAndGet();
+                log.error("入库任务失败: documentId={}", task.documentId, e);
+            }
+        } finally {
+            synchronized (lock) {
+                task.worker = null;
+            }
+            // 清除取消时设置的中断标记，避免影响线程池中的下一个任务
+            Thread.interrupted();
+            running.decrementAndGet();
+            tasks.remove(task.documentId, task);
+            memoryBudget.release(task.memoryMb);
+            workerSlots.release();
+        }
+    }
+
+    private enum TaskState {
+        QUEUED, RUNNING, CANCELLED
+    }
+
+    /**
+     * 入库任务
+     */
+    private static class IngestionTask {
+        private final Long documentId;
+        private final Long userId;
+        private final IngestionPriority priority;
+        private final int memoryMb;
+        private final Runnable work;
+        private final long submitTime = System.currentTimeMillis();
+        private volatile TaskState state = TaskState.QUEUED;
+        private Thread worker;
+
+        IngestionTask(Long documentId, Long userId, IngestionPriority priority, int memoryMb, Runnable work) {
+            this.documentId = documentId;
+            this.userId = userId;
+            this.priority = priority;
+            this.memoryMb = memoryMb;
+            this.work = work;
+        }
+    }
+
+    /**
+     * 按用户轮转的公平队列（调用方持有lock）
+     */
+    private static class FairQueue {
+        private final Map<Long, Deque<IngestionTask>> byUser = new HashMap<>();
+        private final Deque<Long> rotation = new ArrayDeque<>();
+        private int size = 0;
+
+        void add(IngestionTask task) {
+            Long user = task.userId != null ? task.userId : 0L;
+            Deque<IngestionTask> userQueue = byUser.get(user);
+            if (userQueue == null) {
+                userQueue = new ArrayDeque<>();
+                byUser.put(user, userQueue);
+                rotation.addLast(user);
+            }
+            userQueue.addLast(task);
+            size++;
+        }
+
+        IngestionTask poll() {
+            Long user = rotation.pollFirst();
+            if (user == null) {
+                return null;
+            }
+            Deque<IngestionTask> userQueue = byUser.get(user);
+            IngestionTask task = userQueue.pollFirst();
+            if (userQueue.isEmpty()) {
+                byUser.remove(user);
+            } else {
+                rotation.addLast(user);
+            }
+            size--;
+            return task;
+        }
+
+        void remove(IngestionTask task) {
+            Long user = task.userId != null ? task.userId : 0L;
+            Deque<IngestionTask> userQueue = byUser.get(user);
+            if (userQueue != null && userQueue.remove(task)) {
+                size--;
+                if (userQueue.isEmpty()) {
+                    byUser.remove(user);
+                    rotation.remove(user);
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int userCount() {
+            return byUser.size();
+        }
+
+        long oldestWaitMillis() {
+            long now = System.currentTimeMillis();
+            long oldest = 0;
+            for (Deque<IngestionTask> userQueue : byUser.values()) {
+                IngestionTask head = userQueue.peekFirst();
+                if (head != null) {
+                    oldest = Math.max(oldest, now - head.submitTime);
+                }
+            }
+            return oldest;
+        }
+    }
+
+    /**
+     * 排队等待时间统计
+     */
+    private static class WaitStats {
+        private long count;
+        private long totalMillis;
+        private long maxMillis;
+
+        synchronized void record(long waitMillis) {
+            count++;
+            totalMillis += waitMillis;
+            maxMillis = Math.max(maxMillis, waitMillis);
+        }
+
+        synchronized Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("dispatched", count);
+            map.put("avgWaitMillis", count == 0 ? 0 : totalMillis / count);
+            map.put("maxWaitMillis", maxMillis);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.smartdoc.documentservice.pipeline;
+
+/**
+ * 文档入库任务阶段
+ */
+public enum IngestionStage {
+    /**
+     * 排队等待调度
+     */
+    QUEUED,
+    /**
+     * 抽取中：各阶段同时进行，抽取尚未结束
+     */
+    EXTRACTING,
+    /**
+     * 抽取已结束，剩余文本块正在向量化和索引
+     */
+    INDEXING,
+    COMPLETED,
+    FAILED,
+    CANCELLED;
+
+    /**
+     * 是否为终止状态（不会再有进度更新）
+     */
+    public boolean isTerminal() {
+        return this == COMPLETED || this == FAILED || this == CANCELLED;
+    }
+}
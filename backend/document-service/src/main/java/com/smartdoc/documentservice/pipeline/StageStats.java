@@ -0,0 +1,55 @@
+package com.smartdoc.documentservice.pipeline;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 流水线单个阶段的累计统计
+ */
+public class StageStats {
+
+    private final String name;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public StageStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 记录一次处理
+     * @param items 处理的条目数
+     * @param startNanos 开始时间（System.nanoTime）
+     */
+    public void record(int items, long startNanos) {
+        processed.addAndGet(items);
+        busyNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    public void recordError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * 转为展示用的Map
+     * @param queueDepth 当前输入队列深度（所有进行中的文档之和）
+     */
+    public Map<String, Object> toMap(int queueDepth) {
+        long items = processed.get();
+        long busyMillis = busyNanos.get() / 1_000_000;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("stage", name);
+        map.put("processed", items);
+        map.put("busyMillis", busyMillis);
+        map.put("itemsPerSecond", busyMillis == 0 ? 0.0 : items * 1000.0 / busyMillis);
+        map.put("queueDepth", queueDepth);
+        map.put("errors", errors.get());
+        return map;
+    }
+}
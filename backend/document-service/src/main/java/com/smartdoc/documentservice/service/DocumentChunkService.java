@@ -0,0 +1,139 @@
+package com.smartdoc.documentservice.service;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.smartdoc.aiengine.service.ChunkExpansionService;
+import com.smartdoc.aiengine.service.TextPreprocessService;
+import com.smartdoc.documentservice.entity.DocumentChunk;
+import com.smartdoc.documentservice.mapper.DocumentChunkMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 文档文本块登记服务
+ * 记录已写入向量索引和关键词索引的文本块及其元数据（位置、章节、token数、SimHash），
+ * 重新入库时据此判断哪些文本块无需重新向量化
+ */
+@Slf4j
+@Service
+public class DocumentChunkService {
+
+    @Autowired
+    private DocumentChunkMapper documentChunkMapper;
+
+    /**
+     * 获取文档已登记文本块的位置信息
+     * @return chunkId → 登记记录
+     */
+    public Map<String, DocumentChunk> getChunkPositions(Long documentId) {
+        List<DocumentChunk> chunks = documentChunkMapper.selectList(new LambdaQueryWrapper<DocumentChunk>()
+                .select(DocumentChunk::getChunkId, DocumentChunk::getChunkIndex,
+                        DocumentChunk::getStartOffset, DocumentChunk::getEndOffset,
+                        DocumentChunk::getPageStart, DocumentChunk::getPageEnd, DocumentChunk::getHeadingPath)
+                .eq(DocumentChunk::getDocumentId, documentId));
+        Map<String, DocumentChunk> positions = new HashMap<>(chunks.size() * 2);
+        for (DocumentChunk chunk : chunks) {
+            positions.put(chunk.getChunkId(), chunk);
+        }
+        return positions;
+    }
+
+    /**
+     * 获取文档全部文本块的相邻关系输入（序号、偏移、token数、章节路径）
+     */
+    public List<ChunkExpansionService.ChunkPosition> getAdjacencyPositions(Long documentId) {
+        List<DocumentChunk> chunks = documentChunkMapper.selectList(new LambdaQueryWrapper<DocumentChunk>()
+                .select(DocumentChunk::getChunkId, DocumentChunk::getChunkIndex,
+                        DocumentChunk::getStartOffset, DocumentChunk::getEndOffset,
+                        DocumentChunk::getTokenCount, DocumentChunk::getHeadingPath)
+                .eq(DocumentChunk::getDocumentId, documentId)
+                .orderByAsc(DocumentChunk::getChunkIndex));
+        List<ChunkExpansionService.ChunkPosition> positions = new ArrayList<>(chunks.size());
+        for (DocumentChunk chunk : chunks) {
+            positions.add(new ChunkExpansionService.ChunkPosition(chunk.getChunkId(), orUnknown(chunk.getChunkIndex()),
+                    orUnknown(chunk.getStartOffset()), orUnknown(chunk.getEndOffset()),
+                    orUnknown(chunk.getTokenCount()), chunk.getHeadingPath()));
+        }
+        return positions;
+    }
+
+    /**
+     * 登记的位置信息与本次分片结果是否一致（旧数据没有元数据，视为不一致）
+     */
+    public static boolean samePosition(DocumentChunk stored, TextPreprocessService.TextChunk chunk) {
+        return Objects.equals(stored.getChunkIndex(), chunk.getChunkIndex())
+                && Objects.equals(stored.getStartOffset(), chunk.getStartOffset())
+                && Objects.equals(stored.getEndOffset(), chunk.getEndOffset())
+                && Objects.equals(stored.getPageStart(), chunk.getPageStart())
+                && Objects.equals(stored.getPageEnd(), chunk.getPageEnd())
+                && Objects.equals(stored.getHeadingPath(), chunk.getHeadingPath());
+    }
+
+    /**
+     * 登记文本块（已存在时更新位置信息）
+     */
+    public void saveChunks(Long documentId, List<TextPreprocessService.TextChunk> chunks) {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        List<DocumentChunk> rows = new ArrayList<>(chunks.size());
+        for (TextPreprocessService.TextChunk chunk : chunks) {
+            DocumentChunk row = new DocumentChunk();
+            row.setDocumentId(documentId);
+            row.setChunkId(chunk.getChunkId());
+            row.setChunkIndex(chunk.getChunkIndex());
+            row.setContentHash(chunk.getContentHash());
+            row.setStartOffset(chunk.getStartOffset());
+            row.setEndOffset(chunk.getEndOffset());
+            row.setPageStart(chunk.getPageStart());
+            row.setPageEnd(chunk.getPageEnd());
+            row.setHeadingPath(chunk.getHeadingPath());
+            row.setTokenCount(chunk.getTokenCount());
+            row.setSimHash(chunk.getSimHash());
+            rows.add(row);
+        }
+        documentChunkMapper.upsertBatch(rows);
+    }
+
+    /**
+     * 删除文本块登记
+     */
+    public void deleteChunks(Long documentId, Collection<String> chunkIds) {
+        if (chunkIds.isEmpty()) {
+            return;
+        }
+        documentChunkMapper.delete(new LambdaQueryWrapper<DocumentChunk>()
+                .eq(DocumentChunk::getDocumentId, documentId)
+                .in(DocumentChunk::getChunkId, chunkIds));
+    }
+
+    /**
+     * 分批删除文档的全部文本块登记，避免大文档一次删除长时间锁表
+     * @return 删除的行数
+     */
+    public int deleteAll(Long documentId, int batchSize) {
+        int total = 0;
+        int deleted;
+        do {
+            deleted = documentChunkMapper.delete(new LambdaQueryWrapper<DocumentChunk>()
+                    .eq(DocumentChunk::getDocumentId, documentId)
+                    .last("LIMIT " + batchSize));
+            total += deleted;
+        } while (deleted >= batchSize);
+        return total;
+    }
+
+    /**
+     * 旧数据没有元数据，按未知处理
+     */
+    private static int orUnknown(Integer value) {
+        return value != null ? value : -1;
+    }
+}
@@ -1,35 +1,31 @@
 package com.smartdoc.documentservice.service;
 
-import com.smartdoc.aiengine.service.EmbeddingService;
-import com.smartdoc.aiengine.service.MilvusService;
-import com.smartdoc.aiengine.service.TextPreprocessService;
+import com.smartdoc.common.exception.BusinessException;
+import com.smartdoc.documentservice.entity.IngestionJob;
+import com.smartdoc.documentservice.pipeline.DocumentSpool;
+import com.smartdoc.documentservice.pipeline.DocumentTextExtractor;
+import com.smartdoc.documentservice.pipeline.IngestionCancelledException;
+import com.smartdoc.documentservice.pipeline.IngestionPipeline;
+import com.smartdoc.documentservice.pipeline.IngestionPriority;
+import com.smartdoc.documentservice.pipeline.IngestionScheduler;
+import com.smartdoc.documentservice.pipeline.IngestionStage;
 import io.minio.MinioClient;
-import io.minio.GetObjectArgs;
+import io.minio.StatObjectArgs;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
-import org.apache.poi.hslf.usermodel.HSLFSlideShow;
-import org.apache.poi.hslf.usermodel.HSLFSlide;
-import org.apache.poi.hslf.usermodel.HSLFTextShape;
-import org.apache.poi.hwpf.HWPFDocument;
-import org.apache.poi.hwpf.extractor.WordExtractor;
-import org.apache.poi.sl.usermodel.SlideShow;
-import org.apache.poi.sl.usermodel.Slide;
-import org.apache.poi.sl.usermodel.TextShape;
-import org.apache.poi.xslf.usermodel.XMLSlideShow;
-import org.apache.poi.xslf.usermodel.XSLFSlide;
-import org.apache.poi.xslf.usermodel.XSLFTextShape;
-import org.apache.poi.xwpf.usermodel.XWPFDocument;
-import org.apache.poi.xwpf.usermodel.XWPFParagraph;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
-import java.io.InputStream;
-import java.util.List;
-import java.util.Scanner;
-import java.util.stream.Collectors;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 文档解析服务
@@ -43,16 +39,19 @@ public class DocumentParseService {
     private MinioService minioService;
 
     @Autowired
-    private TextPreprocessService textPreprocessService;
+    private IngestionPipeline ingestionPipeline;
 
     @Autowired
-    private EmbeddingService embeddingService;
+    private IngestionScheduler ingestionScheduler;
 
     @Autowired
-    private MilvusService milvusService;
+    private IngestionJobService ingestionJobService;
 
-    @Autowired(required = false)
-    private com.smartdoc.aiengine.service.ElasticsearchService elasticsearchService;
+    @Autowired
+    private DocumentSpool documentSpool;
+
+    @Autowired
+    private DocumentTextExtractor textExtractor;
 
     @Value("${minio.endpoint:http://localhost:9000}")
     private String minioEndpoint;
@@ -66,8 +65,53 @@ public class DocumentParseService {
     @Value("${minio.bucket:documents}")
     private String minioBucket;
 
+    /**
+     * 单个任务最多执行次数（含首次），失败后从检查点自动重试
+     */
+    @Value("${ingestion.retry.max-attempts:3}")
+    private int maxAttempts;
+
+    /**
+     * 首次重试的等待时间，之后每次翻倍
+     */
+    @Value("${ingestion.retry.backoff-ms:30000}")
+    private long retryBackoffMs;
+
+    /**
+     * 启动时是否续跑上次未完成的任务
+     */
+    @Value("${ingestion.resume-on-startup:true}")
+    private boolean resumeOnStartup;
+
+    /**
+     * 预估内存的下限和无法获取文件大小时的默认值（MB），覆盖流水线队列和模型推理的固定开销
+     */
+    private static final int MIN_MEMORY_MB = 32;
+    private static final int DEFAULT_MEMORY_MB = 128;
+
+    /**
+     * 流式抽取的格式：解析缓冲上限、当前页/幻灯片和片段缓冲（PDF为单个文档句柄）
+     */
+    private static final int STREAMING_MEMORY_MB = 48;
+
+    /**
+     * PDF并行抽取时每个额外句柄除解析缓冲外的开销：文档结构、当前页资源和文本抽取器
+     */
+    private static final int PDF_HANDLE_OVERHEAD_MB = 8;
+
     private MinioClient minioClient;
 
+    /**
+     * 等待自动重试的任务
+     */
+    private final Map<Long, ScheduledFuture<?>> pendingRetries = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ingest-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     @Autowired
     public void initMinioClient() {
         minioClient = MinioClient.builder()
@@ -76,173 +120,256 @@ public class DocumentParseService {
                 .build();
     }
 
+    @PreDestroy
+    public void destroy() {
+        retryExecutor.shutdownNow();
+    }
+
     /**
-     * 异步解析文档
+     * 服务启动时续跑上次中断的任务（排队中或执行中），从各自的检查点继续
      */
-    @Async
-    public void parseDocument(Long documentId, String fileType, String objectName) {
-        log.info("开始解析文档: documentId={}, fileType={}", documentId, fileType);
-        
-        try {
-            // 从MinIO下载文件
-            InputStream fileStream = minioClient.getObject(GetObjectArgs.builder()
-                    .bucket(minioBucket)
-                    .object(objectName)
-                    .build());
-
-            // 根据文件类型解析
-            String rawText = "";
-            switch (fileType.toLowerCase()) {
-                case "txt":
-                    rawText = parseTxt(fileStream);
-                    break;
-                case "doc":
-                    rawText = parseDoc(fileStream);
-                    break;
-                case "docx":
-                    rawText = parseDocx(fileStream);
-                    break;
-                case "ppt":
-                    rawText = parsePpt(fileStream);
-                    break;
-                case "pptx":
-                    rawText = parsePptx(fileStream);
-                    break;
-                case "pdf":
-                    rawText = parsePdf(fileStream);
-                    break;
-                default:
-                    throw new IllegalArgumentException("不支持的文件格式: " + fileType);
-            }
-
-            fileStream.close();
-
-            // 文本清洗
-            String cleanedText = textPreprocessService.cleanText(rawText);
-            if (cleanedText.trim().isEmpty()) {
-                throw new RuntimeException("文档内容为空");
-            }
-
-            // 智能分片
-            List<TextPreprocessService.TextChunk> chunks = textPreprocessService.splitText(cleanedText, documentId);
-            if (chunks.isEmpty()) {
-                throw new RuntimeException("文档分片失败");
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeUnfinished() {
+        if (!resumeOnStartup) {
+            return;
+        }
+        for (IngestionJob job : ingestionJobService.findUnfinished()) {
+            log.info("续跑未完成的入库任务: indexId={}, stage={}, checkpoint={}",
+                    job.getDocumentId(), job.getStage(), job.getCheckpointChunk());
+            try {
+                submit(job.getDocumentId(), job.getFileType(), job.getObjectName(), job.getUserId(),
+                        IngestionPriority.valueOf(job.getPriority()), true);
+            } catch (BusinessException e) {
+                log.warn("续跑入库任务失败: indexId={}, {}", job.getDocumentId(), e.getMessage());
             }
+        }
+    }
 
-            // 提取文本块内容
-            List<String> chunkContents = chunks.stream()
-                    .map(TextPreprocessService.TextChunk::getContent)
-                    .collect(Collectors.toList());
-            List<String> chunkIds = chunks.stream()
-                    .map(TextPreprocessService.TextChunk::getChunkId)
-                    .collect(Collectors.toList());
-
-            // 向量化
-            List<List<Float>> vectors = embeddingService.embedTexts(chunkContents);
-
-            // 存入Milvus（向量索引）
-            milvusService.insertVectors(documentId, chunkIds, chunkContents, vectors);
-
-            // 构建Elasticsearch索引（关键词索引）
-            if (elasticsearchService != null) {
-                // 获取文档标题（从文件名提取）
-                String documentTitle = extractDocumentTitle(objectName);
-                elasticsearchService.indexChunks(documentId, documentTitle, chunks);
-            }
+    /**
+     * 提交文档解析任务，由入库调度器按优先级和用户公平排队执行，从头开始解析
+     * 相同内容的文档共享索引ID：内容已解析完成时直接复用，正在解析时等待同一个任务完成
+     * @param userId 提交用户，为空时归入匿名队列
+     * @return true表示已加入队列，false表示直接复用了已有的解析结果
+     */
+    public boolean submitParse(Long documentId, String fileType, String objectName, Long userId, IngestionPriority priority) {
+        Long indexId = resolveIndexId(documentId);
+        IngestionJob job = ingestionJobService.getJob(indexId);
+        if (job != null && IngestionStage.COMPLETED.name().equals(job.getStage())
+                && job.getObjectName().equals(objectName)) {
+            ingestionJobService.markIndexed(indexId);
+            log.info("相同内容已解析完成，复用解析结果: documentId={}, indexId={}", documentId, indexId);
+            return false;
+        }
+        if (!indexId.equals(documentId) && ingestionScheduler.isActive(indexId)) {
+            ingestionJobService.markParsing(indexId);
+            log.info("相同内容正在解析，等待同一任务完成: documentId={}, indexId={}", documentId, indexId);
+            return true;
+        }
+        submit(indexId, fileType, objectName, userId, priority, false);
+        return true;
+    }
 
-            log.info("文档解析完成: documentId={}, 分片数={}", documentId, chunks.size());
-            
-            log.info("文档解析成功: documentId={}", documentId);
-            
-        } catch (Exception e) {
-            log.error("文档解析失败: documentId={}", documentId, e);
-            throw new RuntimeException("文档解析失败: " + e.getMessage(), e);
+    /**
+     * 重试失败或已取消的解析任务，从最后一个已提交的文本块批次继续
+     */
+    public void retryParse(Long documentId) {
+        Long indexId = resolveIndexId(documentId);
+        IngestionJob job = ingestionJobService.getJob(indexId);
+        if (job == null) {
+            throw new BusinessException(404, "解析任务不存在");
+        }
+        if (IngestionStage.COMPLETED.name().equals(job.getStage())) {
+            throw new BusinessException("文档已解析完成");
         }
+        submit(indexId, job.getFileType(), job.getObjectName(), job.getUserId(),
+                IngestionPriority.valueOf(job.getPriority()), true);
     }
 
     /**
-     * 解析TXT文件
+     * 取消文档解析任务（包括等待自动重试的任务）
+     * 相同内容的文档共享同一个任务，取消后这些文档都需要重新触发解析
      */
-    private String parseTxt(InputStream inputStream) throws Exception {
-        Scanner scanner = new Scanner(inputStream, "UTF-8");
-        StringBuilder text = new StringBuilder();
-        while (scanner.hasNextLine()) {
-            text.append(scanner.nextLine()).append("\n");
+    public boolean cancelParse(Long documentId) {
+        Long indexId = resolveIndexId(documentId);
+        ScheduledFuture<?> pendingRetry = pendingRetries.remove(indexId);
+        boolean cancelled = ingestionScheduler.cancel(indexId)
+                || (pendingRetry != null && pendingRetry.cancel(false));
+        if (cancelled) {
+            ingestionJobService.cancel(indexId);
         }
-        scanner.close();
-        return text.toString();
+        return cancelled;
     }
 
     /**
-     * 解析DOC文件
+     * 停止索引ID的入库（索引数据即将被清理）：先在任务表中取消，所有实例上执行中的流水线在下一次写入进度时中止，
+     * 排队和等待重试的任务开始时跳过；再取消本实例排队、执行中和等待重试的任务
+     * @param graceMs 任务结束后等待其他实例上流水线退出的时间
+     * @return 是否仍可能有流水线在写入（本实例已中断但worker尚未退出，或任务结束未满等待时间）
      */
-    private String parseDoc(InputStream inputStream) throws Exception {
-        HWPFDocument document = new HWPFDocument(inputStream);
-        WordExtractor extractor = new WordExtractor(document);
-        String text = extractor.getText();
-        extractor.close();
-        document.close();
-        return text;
+    public boolean stopIngestion(Long indexId, long graceMs) {
+        ingestionJobService.cancel(indexId);
+        ScheduledFuture<?> pendingRetry = pendingRetries.remove(indexId);
+        if (pendingRetry != null) {
+            pendingRetry.cancel(false);
+        }
+        ingestionScheduler.cancel(indexId);
+        return ingestionScheduler.isActive(indexId) || !ingestionJobService.isSettled(indexId, graceMs);
     }
 
     /**
-     * 解析DOCX文件
+     * 获取文档解析状态：阶段、进度计数、检查点
      */
-    private String parseDocx(InputStream inputStream) throws Exception {
-        XWPFDocument document = new XWPFDocument(inputStream);
-        StringBuilder text = new StringBuilder();
-        for (XWPFParagraph paragraph : document.getParagraphs()) {
-            text.append(paragraph.getText()).append("\n");
+    public Map<String, Object> getParseStatus(Long documentId) {
+        Long indexId = resolveIndexId(documentId);
+        IngestionJob job = ingestionJobService.getJob(indexId);
+        if (job == null) {
+            throw new BusinessException(404, "解析任务不存在");
         }
-        document.close();
-        return text.toString();
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("documentId", documentId);
+        status.put("indexId", indexId);
+        status.put("stage", job.getStage());
+        status.put("priority", job.getPriority());
+        status.put("attempts", job.getAttempts());
+        status.put("maxAttempts", maxAttempts);
+        status.put("retryScheduled", pendingRetries.containsKey(indexId));
+        status.put("pagesExtracted", job.getPagesExtracted());
+        status.put("chunksProduced", job.getChunksProduced());
+        status.put("chunksEmbedded", job.getChunksEmbedded());
+        status.put("chunksIndexed", job.getChunksIndexed());
+        status.put("checkpointChunk", job.getCheckpointChunk());
+        status.put("errorMessage", job.getErrorMessage());
+        status.put("startTime", job.getStartTime());
+        status.put("finishTime", job.getFinishTime());
+        status.put("updateTime", job.getUpdateTime());
+        return status;
     }
 
     /**
-     * 解析PPT文件
+     * 文档的索引ID：入库任务、文本块登记、向量和关键词索引都按索引ID存储
      */
-    private String parsePpt(InputStream inputStream) throws Exception {
-        HSLFSlideShow slideShow = new HSLFSlideShow(inputStream);
-        StringBuilder text = new StringBuilder();
-        for (HSLFSlide slide : slideShow.getSlides()) {
-            for (org.apache.poi.hslf.usermodel.HSLFShape shape : slide.getShapes()) {
-                if (shape instanceof HSLFTextShape) {
-                    HSLFTextShape textShape = (HSLFTextShape) shape;
-                    text.append(textShape.getText()).append("\n");
-                }
-            }
+    private Long resolveIndexId(Long documentId) {
+        Long indexId = ingestionJobService.getIndexId(documentId);
+        return indexId != null ? indexId : documentId;
+    }
+
+    private void submit(Long indexId, String fileType, String objectName, Long userId,
+                        IngestionPriority priority, boolean resume) {
+        if (ingestionScheduler.isActive(indexId)) {
+            throw new BusinessException("文档已在解析队列中: " + indexId);
+        }
+        ScheduledFuture<?> pendingRetry = pendingRetries.remove(indexId);
+        if (pendingRetry != null) {
+            pendingRetry.cancel(false);
+        }
+
+        ingestionJobService.prepare(indexId, fileType, objectName, userId, priority, resume);
+        int memoryMb = estimateMemoryMb(fileType, objectName);
+        try {
+            ingestionScheduler.submit(indexId, userId, priority, memoryMb, () -> parseDocument(indexId));
+        } catch (BusinessException e) {
+            ingestionJobService.fail(indexId, e.getMessage());
+            throw e;
         }
-        slideShow.close();
-        return text.toString();
+        // 排队期间下载到本地缓存
+        documentSpool.prefetch(objectName);
     }
 
     /**
-     * 解析PPTX文件
+     * 解析文档内容（在入库调度器的worker线程中执行）
+     * 进度和检查点随批次写入任务表；失败时未超过最大次数则延迟后从检查点自动重试
+     * @param indexId 索引ID，引用该内容的所有文档共享解析结果
      */
-    private String parsePptx(InputStream inputStream) throws Exception {
-        XMLSlideShow slideShow = new XMLSlideShow(inputStream);
-        StringBuilder text = new StringBuilder();
-        for (XSLFSlide slide : slideShow.getSlides()) {
-            for (org.apache.poi.xslf.usermodel.XSLFShape shape : slide.getShapes()) {
-                if (shape instanceof XSLFTextShape) {
-                    XSLFTextShape textShape = (XSLFTextShape) shape;
-                    text.append(textShape.getText()).append("\n");
-                }
+    public void parseDocument(Long indexId) {
+        IngestionJob job = ingestionJobService.getJob(indexId);
+        IngestionJobService.JobProgress progress = job != null ? ingestionJobService.start(job) : null;
+        if (progress == null) {
+            log.info("入库任务已取消，跳过: indexId={}", indexId);
+            return;
+        }
+        log.info("开始解析文档: indexId={}, fileType={}, attempt={}, resumeAfter={}",
+                indexId, job.getFileType(), job.getAttempts(), progress.getResumeAfter());
+        
+        // 从本地缓存读取文件（排队时已开始预取，重试时直接复用），经流水线抽取、清洗、分片、向量化和索引
+        try (DocumentSpool.Lease spooled = documentSpool.acquire(job.getObjectName())) {
+
+            // 获取文档标题（从文件名提取）
+            String documentTitle = extractDocumentTitle(job.getObjectName());
+            boolean backfill = IngestionPriority.BULK.name().equals(job.getPriority());
+            int chunkCount = ingestionPipeline.run(indexId, job.getFileType(), documentTitle, spooled.getFile(),
+                    progress, backfill);
+            ingestionJobService.complete(job, chunkCount);
+
+            log.info("文档解析成功: indexId={}, 分片数={}", indexId, chunkCount);
+            
+        } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted() || e instanceof IngestionCancelledException) {
+                // 已被取消（本实例由cancelParse中断，其他实例取消时任务表已更新），不再重试
+                throw new RuntimeException("文档解析已取消", e);
             }
+            log.error("文档解析失败: indexId={}", indexId, e);
+            handleFailure(job, e.getMessage());
+            throw new RuntimeException("文档解析失败: " + e.getMessage(), e);
         }
-        slideShow.close();
-        return text.toString();
+    }
+
+    private void handleFailure(IngestionJob job, String errorMessage) {
+        Long indexId = job.getDocumentId();
+        if (job.getAttempts() >= maxAttempts) {
+            ingestionJobService.fail(indexId, errorMessage);
+            return;
+        }
+
+        long delay = retryBackoffMs << Math.min(job.getAttempts() - 1, 10);
+        ingestionJobService.awaitRetry(job, errorMessage);
+        log.info("入库任务将从检查点重试: indexId={}, attempt={}, delayMs={}", indexId, job.getAttempts(), delay);
+        pendingRetries.put(indexId, retryExecutor.schedule(() -> {
+            pendingRetries.remove(indexId);
+            try {
+                ingestionScheduler.submit(indexId, job.getUserId(), IngestionPriority.valueOf(job.getPriority()),
+                        estimateMemoryMb(job.getFileType(), job.getObjectName()), () -> parseDocument(indexId));
+            } catch (BusinessException e) {
+                log.warn("入库任务重试提交失败: indexId={}, {}", indexId, e.getMessage());
+                ingestionJobService.fail(indexId, e.getMessage());
+            }
+        }, delay, TimeUnit.MILLISECONDS));
     }
 
     /**
-     * 解析PDF文件
+     * 按文件大小预估解析时的内存占用（MB）
+     * docx和pptx流式抽取，堆内存占用与文件大小无关；PDF逐页抽取，但并行抽取时同时加载多个文档句柄，
+     * 每个句柄各有解析缓冲，按最多句柄数预估（页数较少时实际只用一个句柄）；doc/ppt需要把整个文档模型加载到内存
      */
-    private String parsePdf(InputStream inputStream) throws Exception {
-        PDDocument document = PDDocument.load(inputStream);
-        PDFTextStripper stripper = new PDFTextStripper();
-        String text = stripper.getText(document);
-        document.close();
-        return text;
+    private int estimateMemoryMb(String fileType, String objectName) {
+        int factor;
+        switch (fileType.toLowerCase()) {
+            case "pdf":
+                return STREAMING_MEMORY_MB + (textExtractor.getMaxPdfHandles() - 1)
+                        * (textExtractor.getPdfMaxMemoryMb() + PDF_HANDLE_OVERHEAD_MB);
+            case "docx":
+            case "pptx":
+                return STREAMING_MEMORY_MB;
+            case "txt":
+                factor = 2;
+                break;
+            default:
+                // doc/ppt 解析后的OLE2对象模型
+                factor = 10;
+                break;
+        }
+
+        long size;
+        try {
+            size = minioClient.statObject(StatObjectArgs.builder()
+                    .bucket(minioBucket)
+                    .object(objectName)
+                    .build()).size();
+        } catch (Exception e) {
+            log.warn("获取文件大小失败，按默认值预估内存: objectName={}", objectName, e);
+            return DEFAULT_MEMORY_MB;
+        }
+        long estimated = size * factor / (1024 * 1024);
+        return (int) Math.max(MIN_MEMORY_MB, Math.min(estimated, Integer.MAX_VALUE));
     }
 
     /**
@@ -0,0 +1,283 @@
+package com.smartdoc.documentservice.service;
+
+import com.smartdoc.aiengine.service.ChunkExpansionService;
+import com.smartdoc.aiengine.service.DocumentSummaryService;
+import com.smartdoc.aiengine.service.ElasticsearchService;
+import com.smartdoc.aiengine.service.MilvusService;
+import com.smartdoc.common.constant.RedisChannels;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 索引数据清理服务
+ * 文件服务在内容不再被任何文档引用时（删除文档、替换内容）发送索引ID，这里异步级联清理：
+ * 停止入库任务、删除关键词索引、向量和摘要向量、文本块登记、相邻关系缓存和入库任务记录。
+ * 索引ID在待清理集合中保留到清理完成，多个实例按锁认领；通知丢失、清理失败或实例中途退出时由定时扫描重试。
+ * 每个索引ID的清理进度写入Redis供查询
+ */
+@Slf4j
+@Service
+public class DocumentPurgeService implements MessageListener {
+
+    private static final String LOCK_KEY = "document:purge:lock:";
+    private static final String PROGRESS_KEY = "document:purge:progress:";
+
+    /**
+     * 只删除自己持有的锁（锁已过期并被其他实例获取时不能删除）
+     */
+    private static final DefaultRedisScript<Long> RELEASE_LOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class);
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private DocumentParseService documentParseService;
+
+    @Autowired
+    private IngestionJobService ingestionJobService;
+
+    @Autowired
+    private DocumentChunkService documentChunkService;
+
+    @Autowired
+    private MilvusService milvusService;
+
+    @Autowired(required = false)
+    private ElasticsearchService elasticsearchService;
+
+    @Autowired
+    private ChunkExpansionService chunkExpansionService;
+
+    @Autowired
+    private DocumentSummaryService documentSummaryService;
+
+    @Value("${document.purge.threads:2}")
+    private int threads;
+
+    /**
+     * 扫描待清理集合的间隔，补偿丢失的通知和失败的清理
+     */
+    @Value("${document.purge.sweep-interval-ms:60000}")
+    private long sweepIntervalMs;
+
+    /**
+     * 清理锁的有效期，需大于一次清理的最长耗时（含关键词索引删除超时）；实例中途退出时锁过期后由其他实例接手
+     */
+    @Value("${document.purge.lock-ttl-ms:900000}")
+    private long lockTtlMs;
+
+    /**
+     * 文本块登记每批删除的行数
+     */
+    @Value("${document.purge.chunk-batch-size:1000}")
+    private int chunkBatchSize;
+
+    /**
+     * 入库任务取消后等待流水线退出的时间：其他实例上的流水线在下一次写入进度时才中止，需大于一个批次向量化和写入索引的耗时
+     */
+    @Value("${document.purge.cancel-grace-ms:30000}")
+    private long cancelGraceMs;
+
+    @Value("${document.purge.progress-ttl-hours:168}")
+    private long progressTtlHours;
+
+    private ExecutorService purgeExecutor;
+
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * 本实例已提交、尚未结束的索引ID，通知和扫描同时到达时只清理一次
+     */
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong purged = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        purgeExecutor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "index-purge-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "index-purge-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        sweeper.shutdownNow();
+        purgeExecutor.shutdownNow();
+    }
+
+    /**
+     * 收到索引释放通知
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8).replace("\"", "").trim();
+        try {
+            submit(Long.parseLong(body));
+        } catch (NumberFormatException e) {
+            log.warn("无效的索引释放通知: {}", body);
+        }
+    }
+
+    /**
+     * 提交清理任务（异步执行）
+     * @param indexId 索引ID，0为长期记忆使用的ID，不会被清理
+     */
+    public void submit(Long indexId) {
+        if (indexId == null || indexId == 0 || !inFlight.add(indexId)) {
+            return;
+        }
+        try {
+            purgeExecutor.execute(() -> {
+                try {
+                    purge(indexId);
+                } finally {
+                    inFlight.remove(indexId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(indexId);
+        }
+    }
+
+    /**
+     * 获取索引ID的清理进度：状态、当前步骤、各步骤删除数量、错误信息
+     */
+    public Map<String, Object> getProgress(Long indexId) {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(PROGRESS_KEY + indexId);
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("indexId", indexId);
+        progress.put("pending", Boolean.TRUE.equals(stringRedisTemplate.opsForSet()
+                .isMember(RedisChannels.DOCUMENT_INDEX_PURGE_PENDING, indexId.toString())));
+        entries.forEach((key, value) -> progress.put(key.toString(), value));
+        return progress;
+    }
+
+    /**
+     * 获取清理统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pending", stringRedisTemplate.opsForSet().size(RedisChannels.DOCUMENT_INDEX_PURGE_PENDING));
+        stats.put("running", inFlight.size());
+        stats.put("purged", purged.get());
+        stats.put("failed", failed.get());
+        return stats;
+    }
+
+    private void sweep() {
+        try {
+            Set<String> pending = stringRedisTemplate.opsForSet().members(RedisChannels.DOCUMENT_INDEX_PURGE_PENDING);
+            if (pending == null) {
+                return;
+            }
+            for (String indexId : pending) {
+                submit(Long.parseLong(indexId));
+            }
+        } catch (Exception e) {
+            log.warn("扫描待清理索引失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 清理一个索引ID的全部数据，各步骤均可重复执行；失败时保留在待清理集合中等待下次扫描
+     */
+    private void purge(Long indexId) {
+        String lockKey = LOCK_KEY + indexId;
+        String token = UUID.randomUUID().toString();
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                .setIfAbsent(lockKey, token, lockTtlMs, TimeUnit.MILLISECONDS))) {
+            log.debug("索引数据正在由其他实例清理: indexId={}", indexId);
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            record(indexId, "status", "RUNNING", "step", "STOP_INGESTION", "startTime", LocalDateTime.now());
+            if (documentParseService.stopIngestion(indexId, cancelGraceMs)) {
+                // 被取消的流水线退出前可能还会写入，等它退出后再删除
+                throw new IllegalStateException("入库任务正在停止，稍后重试");
+            }
+
+            record(indexId, "step", "KEYWORD_INDEX");
+            long keywordDeleted = elasticsearchService != null ? elasticsearchService.deleteByDocumentId(indexId) : 0;
+            record(indexId, "step", "VECTOR", "keywordDeleted", keywordDeleted);
+            milvusService.deleteByDocumentId(indexId);
+            documentSummaryService.deleteSummary(indexId);
+
+            record(indexId, "step", "CHUNK_REGISTRY");
+            int chunksDeleted = documentChunkService.deleteAll(indexId, chunkBatchSize);
+            record(indexId, "step", "CACHE", "chunksDeleted", chunksDeleted);
+            chunkExpansionService.deleteAdjacency(indexId);
+            ingestionJobService.delete(indexId);
+
+            stringRedisTemplate.opsForSet().remove(RedisChannels.DOCUMENT_INDEX_PURGE_PENDING, indexId.toString());
+            long elapsed = System.currentTimeMillis() - start;
+            record(indexId, "status", "COMPLETED", "step", "DONE", "finishTime", LocalDateTime.now(),
+                    "elapsedMs", elapsed, "error", "");
+            purged.incrementAndGet();
+            log.info("索引数据已清理: indexId={}, 关键词索引={}, 文本块登记={}, 耗时={}ms",
+                    indexId, keywordDeleted, chunksDeleted, elapsed);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            record(indexId, "status", "FAILED", "error", String.valueOf(e.getMessage()));
+            log.error("索引数据清理失败，等待下次扫描重试: indexId={}", indexId, e);
+        } finally {
+            stringRedisTemplate.execute(RELEASE_LOCK_SCRIPT, Collections.singletonList(lockKey), token);
+        }
+    }
+
+    /**
+     * 更新清理进度，写入失败只影响进度查询
+     * @param fields 字段名和值交替
+     */
+    private void record(Long indexId, Object... fields) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            values.put(fields[i].toString(), String.valueOf(fields[i + 1]));
+        }
+        values.put("updateTime", LocalDateTime.now().toString());
+        String key = PROGRESS_KEY + indexId;
+        try {
+            stringRedisTemplate.opsForHash().putAll(key, values);
+            stringRedisTemplate.expire(key, progressTtlHours, TimeUnit.HOURS);
+        } catch (Exception e) {
+            log.warn("更新索引清理进度失败: indexId={}, {}", indexId, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.smartdoc.documentservice.service;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.smartdoc.documentservice.entity.IngestionJob;
+import com.smartdoc.documentservice.mapper.IngestionJobMapper;
+import com.smartdoc.documentservice.pipeline.IngestionCancelledException;
+import com.smartdoc.documentservice.pipeline.IngestionPriority;
+import com.smartdoc.documentservice.pipeline.IngestionProgress;
+import com.smartdoc.documentservice.pipeline.IngestionStage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文档入库任务服务
+ * 维护ingestion_job表中的阶段、进度计数和检查点，并同步document表的解析状态
+ * 任务按索引ID登记（ingestion_job.document_id存的是索引ID），相同内容的文档共享一个任务
+ */
+@Slf4j
+@Service
+public class IngestionJobService {
+
+    private static final int DOCUMENT_PARSING = 1;
+    private static final int DOCUMENT_PARSED = 2;
+    private static final int DOCUMENT_PARSE_FAILED = 3;
+
+    /**
+     * 错误信息最大长度
+     */
+    private static final int MAX_ERROR_LENGTH = 2000;
+
+    @Autowired
+    private IngestionJobMapper jobMapper;
+
+    /**
+     * 文档的索引ID，文档不存在时返回null
+     */
+    public Long getIndexId(Long documentId) {
+        return jobMapper.selectIndexId(documentId);
+    }
+
+    public IngestionJob getJob(Long documentId) {
+        return jobMapper.selectOne(new LambdaQueryWrapper<IngestionJob>()
+                .eq(IngestionJob::getDocumentId, documentId));
+    }
+
+    /**
+     * 查询未结束的任务（排队中或执行中，服务重启时这些任务已中断）
+     */
+    public List<IngestionJob> findUnfinished() {
+        return jobMapper.selectList(new LambdaQueryWrapper<IngestionJob>()
+                .in(IngestionJob::getStage, IngestionStage.QUEUED.name(),
+                        IngestionStage.EXTRACTING.name(), IngestionStage.INDEXING.name()));
+    }
+
+    /**
+     * 创建或重置任务为排队状态
+     * @param resume true时保留检查点，从最后一个已提交的批次继续；false时从头开始
+     */
+    public IngestionJob prepare(Long documentId, String fileType, String objectName, Long userId,
+                                IngestionPriority priority, boolean resume) {
+        IngestionJob job = getJob(documentId);
+        boolean created = job == null;
+        if (created) {
+            job = new IngestionJob();
+            job.setDocumentId(documentId);
+            job.setAttempts(0);
+            job.setCheckpointChunk(0);
+            job.setHighWaterChunk(0);
+            job.setCreateTime(LocalDateTime.now());
+        }
+        job.setFileType(fileType);
+        job.setObjectName(objectName);
+        job.setUserId(userId);
+        job.setPriority(priority.name());
+        job.setStage(IngestionStage.QUEUED.name());
+        job.setErrorMessage(null);
+        job.setFinishTime(null);
+        job.setUpdateTime(LocalDateTime.now());
+        if (!resume) {
+            // 从头开始：highWaterChunk保留，重新写入时先删除上次可能写入的向量
+            job.setAttempts(0);
+            job.setCheckpointChunk(0);
+        }
+        int checkpoint = job.getCheckpointChunk();
+        job.setPagesExtracted(0);
+        job.setChunksProduced(0);
+        job.setChunksEmbedded(checkpoint);
+        job.setChunksIndexed(checkpoint);
+
+        if (created) {
+            jobMapper.insert(job);
+        } else {
+            // updateById会跳过null字段，错误信息和结束时间需要显式清空
+            jobMapper.update(job, new LambdaUpdateWrapper<IngestionJob>()
+                    .eq(IngestionJob::getId, job.getId())
+                    .set(IngestionJob::getErrorMessage, null)
+                    .set(IngestionJob::getFinishTime, null));
+        }
+        jobMapper.updateDocumentStatus(documentId, DOCUMENT_PARSING, null);
+        return job;
+    }
+
+    /**
+     * 开始执行任务
+     * @return 进度回调，为空表示任务已被取消
+     */
+    public JobProgress start(IngestionJob job) {
+        IngestionJob update = new IngestionJob();
+        update.setStage(IngestionStage.EXTRACTING.name());
+        update.setAttempts(job.getAttempts() + 1);
+        update.setStartTime(LocalDateTime.now());
+        if (jobMapper.update(update, activeJob(job.getId()).eq(IngestionJob::getStage, IngestionStage.QUEUED.name())) == 0) {
+            return null;
+        }
+        job.setAttempts(update.getAttempts());
+        return new JobProgress(job);
+    }
+
+    /**
+     * 任务完成
+     * @param totalChunks 文档的文本块总数
+     */
+    public void complete(IngestionJob job, int totalChunks) {
+        IngestionJob update = new IngestionJob();
+        update.setStage(IngestionStage.COMPLETED.name());
+        update.setChunksProduced(totalChunks);
+        update.setChunksEmbedded(totalChunks);
+        update.setChunksIndexed(totalChunks);
+        update.setCheckpointChunk(totalChunks);
+        // 所有写入都已登记，没有需要清理的旧向量
+        update.setHighWaterChunk(0);
+        update.setFinishTime(LocalDateTime.now());
+        if (jobMapper.update(update, activeJob(job.getId())) > 0) {
+            jobMapper.updateDocumentStatus(job.getDocumentId(), DOCUMENT_PARSED, null);
+        }
+    }
+
+    /**
+     * 相同内容正在解析，新引用的文档一并标记为解析中
+     */
+    public void markParsing(Long indexId) {
+        jobMapper.updateDocumentStatus(indexId, DOCUMENT_PARSING, null);
+    }
+
+    /**
+     * 相同内容已解析完成，新引用的文档直接标记为解析完成
+     */
+    public void markIndexed(Long indexId) {
+        jobMapper.updateDocumentStatus(indexId, DOCUMENT_PARSED, null);
+    }
+
+    /**
+     * 执行失败，等待自动重试：回到排队状态，检查点保留
+     */
+    public void awaitRetry(IngestionJob job, String errorMessage) {
+        IngestionJob update = new IngestionJob();
+        update.setStage(IngestionStage.QUEUED.name());
+        update.setErrorMessage(truncate(errorMessage));
+        jobMapper.update(update, activeJob(job.getId()));
+    }
+
+    /**
+     * 任务失败（不再自动重试）
+     */
+    public void fail(Long documentId, String errorMessage) {
+        IngestionJob job = getJob(documentId);
+        if (job == null) {
+            return;
+        }
+        IngestionJob update = new IngestionJob();
+        update.setStage(IngestionStage.FAILED.name());
+        update.setErrorMessage(truncate(errorMessage));
+        update.setFinishTime(LocalDateTime.now());
+        if (jobMapper.update(update, activeJob(job.getId())) > 0) {
+            jobMapper.updateDocumentStatus(documentId, DOCUMENT_PARSE_FAILED, update.getErrorMessage());
+        }
+    }
+
+    /**
+     * 取消任务，执行中的进度更新随之停止
+     */
+    public void cancel(Long documentId) {
+        IngestionJob job = getJob(documentId);
+        if (job == null) {
+            return;
+        }
+        IngestionJob update = new IngestionJob();
+        update.setStage(IngestionStage.CANCELLED.name());
+        update.setFinishTime(LocalDateTime.now());
+        if (jobMapper.update(update, activeJob(job.getId())) > 0) {
+            jobMapper.updateDocumentStatus(documentId, DOCUMENT_PARSE_FAILED, "解析已取消");
+        }
+    }
+
+    /**
+     * 任务已结束且执行中的流水线已退出：没有任务记录，或任务处于终止状态且结束时间早于等待时间
+     * 其他实例上执行的流水线在下一次写入进度时才发现任务已取消，期间可能还有一个批次在写入索引
+     * @param graceMs 任务结束后等待流水线退出的时间
+     */
+    public boolean isSettled(Long documentId, long graceMs) {
+        IngestionJob job = getJob(documentId);
+        if (job == null) {
+            return true;
+        }
+        if (IngestionStage.QUEUED.name().equals(job.getStage()) || IngestionStage.EXTRACTING.name().equals(job.getStage())
+                || IngestionStage.INDEXING.name().equals(job.getStage())) {
+            return false;
+        }
+        return job.getFinishTime() == null || job.getFinishTime().plusNanos(graceMs * 1_000_000L).isBefore(LocalDateTime.now());
+    }
+
+    /**
+     * 删除任务记录（索引数据已清理）
+     */
+    public void delete(Long documentId) {
+        jobMapper.delete(new LambdaQueryWrapper<IngestionJob>()
+                .eq(IngestionJob::getDocumentId, documentId));
+    }
+
+    /**
+     * 未结束的任务（终止状态的任务不再接受更新）
+     */
+    private LambdaUpdateWrapper<IngestionJob> activeJob(Long jobId) {
+        return new LambdaUpdateWrapper<IngestionJob>()
+                .eq(IngestionJob::getId, jobId)
+                .in(IngestionJob::getStage, IngestionStage.QUEUED.name(),
+                        IngestionStage.EXTRACTING.name(), IngestionStage.INDEXING.name());
+    }
+
+    private String truncate(String message) {
+        if (message == null || message.length() <= MAX_ERROR_LENGTH) {
+            return message;
+        }
+        return message.substring(0, MAX_ERROR_LENGTH);
+    }
+
+    /**
+     * 单次执行的进度：计数在内存中累计，批次向量化和索引完成时写入数据库
+     * 批次可能乱序完成，检查点只推进到连续已索引的最大文本块序号
+     */
+    public class JobProgress implements IngestionProgress {
+        private final Long jobId;
+        private final int resumeAfter;
+        private final int previousHighWater;
+
+        private final AtomicInteger pages = new AtomicInteger();
+        private final AtomicInteger produced = new AtomicInteger();
+        private final AtomicInteger embedded;
+        private final AtomicInteger indexed;
+
+        /**
+         * 已索引但尚未与检查点连续的批次：第一个序号 → 最后一个序号
+         */
+        private final TreeMap<Integer, Integer> indexedRanges = new TreeMap<>();
+        private int checkpoint;
+        private int highWater;
+        private IngestionStage stage = IngestionStage.EXTRACTING;
+
+        JobProgress(IngestionJob job) {
+            this.jobId = job.getId();
+            this.resumeAfter = job.getCheckpointChunk();
+            this.previousHighWater = job.getHighWaterChunk();
+            this.checkpoint = resumeAfter;
+            this.highWater = previousHighWater;
+            this.embedded = new AtomicInteger(resumeAfter);
+            this.indexed = new AtomicInteger(resumeAfter);
+        }
+
+        @Override
+        public int getResumeAfter() {
+            return resumeAfter;
+        }
+
+        @Override
+        public int getPreviousHighWater() {
+            return previousHighWater;
+        }
+
+        @Override
+        public void pageExtracted() {
+            pages.incrementAndGet();
+        }
+
+        @Override
+        public void extractionFinished() {
+            synchronized (this) {
+                stage = IngestionStage.INDEXING;
+                persist();
+            }
+        }
+
+        @Override
+        public void chunksProduced(int count) {
+            produced.addAndGet(count);
+        }
+
+        @Override
+        public void batchEmbedded(int firstChunkIndex, int lastChunkIndex) {
+            embedded.addAndGet(lastChunkIndex - firstChunkIndex + 1);
+            synchronized (this) {
+                // 写入索引之前先记录，中途失败时续跑能找到需要清理的旧向量
+                if (lastChunkIndex > highWater) {
+                    highWater = lastChunkIndex;
+                    persist();
+                }
+            }
+        }
+
+        @Override
+        public void chunksSkipped(int firstChunkIndex, int lastChunkIndex) {
+            int count = lastChunkIndex - firstChunkIndex + 1;
+            embedded.addAndGet(count);
+            indexed.addAndGet(count);
+            commitRange(firstChunkIndex, lastChunkIndex);
+        }
+
+        @Override
+        public void batchIndexed(int firstChunkIndex, int lastChunkIndex) {
+            indexed.addAndGet(lastChunkIndex - firstChunkIndex + 1);
+            commitRange(firstChunkIndex, lastChunkIndex);
+        }
+
+        /**
+         * 登记已在索引中的序号范围，推进检查点
+         */
+        private synchronized void commitRange(int firstChunkIndex, int lastChunkIndex) {
+            indexedRanges.put(firstChunkIndex, lastChunkIndex);
+            Integer last;
+            while ((last = indexedRanges.remove(checkpoint + 1)) != null) {
+                checkpoint = last;
+            }
+            persist();
+        }
+
+        /**
+         * 写入当前进度（调用方持有锁，保证后写入的快照不会被先前的快照覆盖）
+         * 没有更新到记录说明任务已被取消（可能由其他实例）或已删除，抛出异常中止流水线
+         */
+        private void persist() {
+            IngestionJob update = new IngestionJob();
+            update.setStage(stage.name());
+            update.setPagesExtracted(pages.get());
+            update.setChunksProduced(produced.get());
+            update.setChunksEmbedded(embedded.get());
+            update.setChunksIndexed(indexed.get());
+            update.setCheckpointChunk(checkpoint);
+            update.setHighWaterChunk(highWater);
+            if (jobMapper.update(update, new LambdaUpdateWrapper<IngestionJob>()
+                    .eq(IngestionJob::getId, jobId)
+                    .in(IngestionJob::getStage, IngestionStage.EXTRACTING.name(), IngestionStage.INDEXING.name())) == 0) {
+                throw new IngestionCancelledException("入库任务已取消: jobId=" + jobId);
+            }
+        }
+    }
+}
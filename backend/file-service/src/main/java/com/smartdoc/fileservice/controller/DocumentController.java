@@ -1,8 +1,10 @@
 package com.smartdoc.fileservice.controller;
 
+import com.smartdoc.common.result.CursorPage;
 import com.smartdoc.common.result.Result;
 import com.smartdoc.fileservice.entity.Document;
 import com.smartdoc.fileservice.service.DocumentService;
+import com.smartdoc.fileservice.service.MultipartUploadService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
@@ -19,6 +21,9 @@ public class DocumentController {
     @Autowired
     private DocumentService documentService;
 
+    @Autowired
+    private MultipartUploadService multipartUploadService;
+
     /**
      * 上传文档
      */
@@ -31,16 +36,97 @@ public class DocumentController {
     }
 
     /**
-     * 获取文档列表
+     * 上传文档的修订版本（替换内容后需重新触发解析）
      */
-    @GetMapping("/list")
-    public Result<List<Document>> getDocumentList(
+    @PutMapping("/{documentId}/content")
+    public Result<Document> updateDocumentContent(
+            @PathVariable Long documentId,
+            @RequestParam("file") MultipartFile file,
+            @RequestHeader("X-User-Id") Long userId) {
+        Document document = documentService.updateDocumentContent(documentId, file, userId);
+        return Result.success(document);
+    }
+
+    /**
+     * 创建分片直传会话，返回各分片的预签名上传地址（客户端直接PUT到MinIO）
+     * 请求体：fileName、fileSize、contentType，修订已有文档时带documentId
+     */
+    @PostMapping("/multipart/init")
+    public Result<Map<String, Object>> initMultipartUpload(
+            @RequestHeader("X-User-Id") Long userId,
+            @RequestBody Map<String, Object> request) {
+        String fileName = (String) request.get("fileName");
+        Long fileSize = request.get("fileSize") instanceof Number ? ((Number) request.get("fileSize")).longValue() : null;
+        String contentType = (String) request.get("contentType");
+        Long documentId = request.get("documentId") instanceof Number ? ((Number) request.get("documentId")).longValue() : null;
+        return Result.success(multipartUploadService.initUpload(userId, fileName, fileSize, contentType, documentId));
+    }
+
+    /**
+     * 查询分片上传会话（断点续传）：已上传的分片和缺失分片的新上传地址；已提交完成的会话返回状态和文档ID
+     */
+    @GetMapping("/multipart/{sessionId}")
+    public Result<Map<String, Object>> getMultipartUpload(
+            @PathVariable Long sessionId,
+            @RequestHeader("X-User-Id") Long userId) {
+        return Result.success(multipartUploadService.getUpload(sessionId, userId));
+    }
+
+    /**
+     * 完成分片上传：合并分片后返回会话状态，文档在后台校验登记，客户端轮询会话得到文档ID
+     */
+    @PostMapping("/multipart/{sessionId}/complete")
+    public Result<Map<String, Object>> completeMultipartUpload(
+            @PathVariable Long sessionId,
+            @RequestHeader("X-User-Id") Long userId) {
+        return Result.success(multipartUploadService.completeUpload(sessionId, userId));
+    }
+
+    /**
+     * 取消分片上传
+     */
+    @DeleteMapping("/multipart/{sessionId}")
+    public Result<?> abortMultipartUpload(
+            @PathVariable Long sessionId,
+            @RequestHeader("X-User-Id") Long userId) {
+        multipartUploadService.abortUpload(sessionId, userId);
+        return Result.success();
+    }
+
+    /**
+     * 获取文档下载地址（预签名GET，客户端直接从MinIO下载，支持Range）
+     */
+    @GetMapping("/{documentId}/download-url")
+    public Result<String> getDownloadUrl(
+            @PathVariable Long documentId,
             @RequestHeader("X-User-Id") Long userId,
             @RequestHeader(value = "X-User-Role", defaultValue = "user") String userRole) {
-        List<Document> documents = documentService.getDocumentList(userId, userRole);
+        return Result.success(documentService.getDownloadUrl(documentId, userId, userRole));
+    }
+
+    /**
+     * 获取文档列表（游标分页）
+     */
+    @GetMapping("/list")
+    public Result<CursorPage<Document>> getDocumentList(
+            @RequestHeader("X-User-Id") Long userId,
+            @RequestHeader(value = "X-User-Role", defaultValue = "user") String userRole,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer size) {
+        CursorPage<Document> documents = documentService.getDocumentList(userId, userRole, cursor, size);
         return Result.success(documents);
     }
 
+    /**
+     * 获取有权限访问且已解析完成的文档及其索引ID（跨文档问答的检索范围），文档ID → 索引ID
+     */
+    @GetMapping("/accessible-index-ids")
+    public Result<Map<Long, Long>> getAccessibleIndexIds(
+            @RequestHeader("X-User-Id") Long userId,
+            @RequestHeader(value = "X-User-Role", defaultValue = "user") String userRole) {
+        return Result.success(documentService.getAccessibleIndexIds(userId, userRole));
+    }
+
     /**
      * 获取文档详情
      */
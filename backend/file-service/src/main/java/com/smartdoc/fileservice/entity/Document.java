@@ -15,6 +15,8 @@ public class Document extends BaseEntity {
     private String filePath; // MinIO中的路径
     private String minioBucket;
     private String minioObject;
+    private String contentHash; // 文件内容SHA-256，相同内容的文档共享MinIO对象
+    private Long indexId; // 向量和关键词索引使用的ID，相同内容的文档共享；为空时使用文档ID
     private Long userId;
     private Integer status; // 0-上传中, 1-解析中, 2-解析完成, 3-解析失败
     private String errorMessage;
@@ -0,0 +1,14 @@
+package com.smartdoc.fileservice.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import com.smartdoc.common.entity.BaseEntity;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@EqualsAndHashCode(callSuper = true)
+@TableName("document_role")
+public class DocumentRole extends BaseEntity {
+    private Long documentId;
+    private String role;
+}
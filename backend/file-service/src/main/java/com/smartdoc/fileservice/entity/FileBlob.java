@@ -0,0 +1,17 @@
+package com.smartdoc.fileservice.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import com.smartdoc.common.entity.BaseEntity;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@EqualsAndHashCode(callSuper = true)
+@TableName("file_blob")
+public class FileBlob extends BaseEntity {
+    private String contentHash; // 文件内容SHA-256
+    private String minioObject;
+    private Long fileSize;
+    private Integer refCount; // 引用该内容的文档数
+    private Long indexId; // 向量和关键词索引使用的ID，引用该内容的文档共享
+}
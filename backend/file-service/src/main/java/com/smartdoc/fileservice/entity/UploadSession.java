@@ -0,0 +1,25 @@
+package com.smartdoc.fileservice.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import com.smartdoc.common.entity.BaseEntity;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.time.LocalDateTime;
+
+@Data
+@EqualsAndHashCode(callSuper = true)
+@TableName("upload_session")
+public class UploadSession extends BaseEntity {
+    private String uploadId; // MinIO分片上传ID
+    private String objectName;
+    private String fileName;
+    private Long fileSize;
+    private Long partSize; // 分片大小，最后一片可以更小
+    private Integer partCount;
+    private Long userId;
+    private Long documentId; // 修订的文档ID，为空表示新文档；完成后为生成的文档ID
+    private Integer status; // 0-上传中, 1-已完成, 2-已取消, 3-合并中, 4-校验中
+    private String errorMessage; // 校验或登记失败的原因
+    private LocalDateTime expireTime;
+}
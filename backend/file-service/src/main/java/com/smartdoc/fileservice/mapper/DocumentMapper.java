@@ -3,8 +3,64 @@ package com.smartdoc.fileservice.mapper;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.smartdoc.fileservice.entity.Document;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+
+import java.time.LocalDateTime;
+import java.util.List;
 
 @Mapper
 public interface DocumentMapper extends BaseMapper<Document> {
-}
 
+    String LIST_COLUMNS = "d.id, d.file_name, d.file_type, d.file_size, d.user_id, d.status, " +
+            "d.access_type, d.allowed_roles, d.create_time";
+
+    /**
+     * 游标条件，写成create_time上的范围条件以便沿索引定位
+     */
+    String KEYSET = "<if test='cursorTime != null'>" +
+            "AND d.create_time &lt;= #{cursorTime} " +
+            "AND (d.create_time &lt; #{cursorTime} OR d.id &lt; #{cursorId}) " +
+            "</if>";
+
+    /**
+     * 查询用户有权限访问的文档（游标分页，只查询列表展示需要的列）
+     * 权限规则与DocumentPermissionService.hasPermission一致：
+     * 公开文档；角色限制且角色已授权的文档；自己上传的私有文档或未配置角色的角色限制文档。
+     * 三类文档互不重叠，各自沿索引(access_type, create_time)或(user_id, create_time)倒序取一页后合并，
+     * 避免OR条件下对全部可见文档排序
+     * @param cursorTime 游标位置的创建时间，为空时从最新的文档开始
+     * @param cursorId 游标位置的文档ID
+     * @param limit 最多返回条数
+     */
+    @Select("<script>" +
+            "(SELECT " + LIST_COLUMNS + " FROM document d WHERE d.access_type = 'public' " + KEYSET +
+            "ORDER BY d.create_time DESC, d.id DESC LIMIT #{limit}) " +
+            "UNION ALL " +
+            "(SELECT " + LIST_COLUMNS + " FROM document d WHERE d.access_type = 'role' AND EXISTS (" +
+            "    SELECT 1 FROM document_role r WHERE r.document_id = d.id AND r.role = #{userRole}) " + KEYSET +
+            "ORDER BY d.create_time DESC, d.id DESC LIMIT #{limit}) " +
+            "UNION ALL " +
+            "(SELECT " + LIST_COLUMNS + " FROM document d WHERE d.user_id = #{userId} " +
+            "AND (d.access_type IS NULL OR d.access_type NOT IN ('public', 'role') OR (d.access_type = 'role' AND NOT EXISTS (" +
+            "    SELECT 1 FROM document_role r2 WHERE r2.document_id = d.id))) " + KEYSET +
+            "ORDER BY d.create_time DESC, d.id DESC LIMIT #{limit}) " +
+            "ORDER BY create_time DESC, id DESC LIMIT #{limit}" +
+            "</script>")
+    List<Document> selectAccessibleDocuments(@Param("userId") Long userId, @Param("userRole") String userRole,
+                                             @Param("cursorTime") LocalDateTime cursorTime,
+                                             @Param("cursorId") Long cursorId,
+                                             @Param("limit") int limit);
+
+    /**
+     * 查询用户有权限访问且已解析完成的文档（只查询文档ID和索引ID，未按内容去重的旧文档索引ID即文档ID）
+     * 权限规则与selectAccessibleDocuments一致
+     */
+    @Select("SELECT d.id, COALESCE(d.index_id, d.id) AS index_id FROM document d " +
+            "WHERE d.status = 2 AND (d.access_type = 'public' " +
+            "OR (d.access_type = 'role' AND EXISTS (" +
+            "    SELECT 1 FROM document_role r WHERE r.document_id = d.id AND r.role = #{userRole})) " +
+            "OR (d.user_id = #{userId} AND (d.access_type IS NULL OR d.access_type <> 'role' OR NOT EXISTS (" +
+            "    SELECT 1 FROM document_role r2 WHERE r2.document_id = d.id))))")
+    List<Document> selectAccessibleIndexIds(@Param("userId") Long userId, @Param("userRole") String userRole);
+}
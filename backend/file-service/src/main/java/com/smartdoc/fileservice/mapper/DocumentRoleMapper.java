@@ -0,0 +1,9 @@
+package com.smartdoc.fileservice.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.smartdoc.fileservice.entity.DocumentRole;
+import org.apache.ibatis.annotations.Mapper;
+
+@Mapper
+public interface DocumentRoleMapper extends BaseMapper<DocumentRole> {
+}
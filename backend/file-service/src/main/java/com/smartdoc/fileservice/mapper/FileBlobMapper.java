@@ -0,0 +1,30 @@
+package com.smartdoc.fileservice.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.smartdoc.fileservice.entity.FileBlob;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+@Mapper
+public interface FileBlobMapper extends BaseMapper<FileBlob> {
+
+    /**
+     * 增加引用计数（引用数已归零、等待删除的内容不再复用）
+     * @return 更新行数，0表示内容不存在
+     */
+    @Update("UPDATE file_blob SET ref_count = ref_count + 1, update_time = NOW() " +
+            "WHERE content_hash = #{contentHash} AND ref_count > 0")
+    int incrementRef(@Param("contentHash") String contentHash);
+
+    /**
+     * 减少引用计数
+     */
+    @Update("UPDATE file_blob SET ref_count = ref_count - 1, update_time = NOW() " +
+            "WHERE content_hash = #{contentHash} AND ref_count > 0")
+    int decrementRef(@Param("contentHash") String contentHash);
+
+    @Select("SELECT * FROM file_blob WHERE content_hash = #{contentHash}")
+    FileBlob selectByHash(@Param("contentHash") String contentHash);
+}
@@ -0,0 +1,37 @@
+package com.smartdoc.fileservice.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.smartdoc.fileservice.entity.UploadSession;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Update;
+
+import java.time.LocalDateTime;
+
+@Mapper
+public interface UploadSessionMapper extends BaseMapper<UploadSession> {
+
+    /**
+     * 按预期状态切换会话状态，并发的合并、取消和过期清理只有一个能成功
+     * @return 更新行数，0表示状态已被其他操作改变
+     */
+    @Update("UPDATE upload_session SET status = #{status}, update_time = NOW() " +
+            "WHERE id = #{id} AND status = #{expected}")
+    int transition(@Param("id") Long id, @Param("expected") int expected, @Param("status") int status);
+
+    /**
+     * 按预期状态把会话标记为失败并记录原因
+     */
+    @Update("UPDATE upload_session SET status = #{status}, error_message = #{errorMessage}, update_time = NOW() " +
+            "WHERE id = #{id} AND status = #{expected}")
+    int fail(@Param("id") Long id, @Param("expected") int expected, @Param("status") int status,
+             @Param("errorMessage") String errorMessage);
+
+    /**
+     * 认领长时间没有进展的会话（处理它的实例可能已经退出），多个实例只有一个能认领成功
+     * @return 更新行数，0表示会话已有进展或已被其他实例认领
+     */
+    @Update("UPDATE upload_session SET update_time = NOW() " +
+            "WHERE id = #{id} AND status = #{status} AND update_time < #{before}")
+    int claimStale(@Param("id") Long id, @Param("status") int status, @Param("before") LocalDateTime before);
+}
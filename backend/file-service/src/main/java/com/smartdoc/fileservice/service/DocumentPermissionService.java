@@ -27,11 +27,21 @@ public class DocumentPermissionService {
      * @return 是否有权限
      */
     public boolean hasPermission(Long documentId, Long userId, String userRole) {
-        Document document = documentService.getDocumentByIdWithoutPermissionCheck(documentId);
-        
+        return hasPermission(documentService.getDocumentByIdWithoutPermissionCheck(documentId), userId, userRole);
+    }
+
+    /**
+     * 检查用户是否有权限访问已加载的文档（避免重复查询）
+     * @param document 文档
+     * @param userId 用户ID
+     * @param userRole 用户角色
+     * @return 是否有权限
+     */
+    public boolean hasPermission(Document document, Long userId, String userRole) {
         if (document == null) {
             return false;
         }
+        Long documentId = document.getId();
 
         String accessType = document.getAccessType();
         if (accessType == null || "private".equals(accessType)) {
@@ -74,5 +84,14 @@ public class DocumentPermissionService {
             throw new BusinessException("无权限访问该文档");
         }
     }
+
+    /**
+     * 检查用户是否有权限访问已加载的文档（带异常抛出）
+     */
+    public void checkPermission(Document document, Long userId, String userRole) {
+        if (!hasPermission(document, userId, userRole)) {
+            throw new BusinessException("无权限访问该文档");
+        }
+    }
 }
 
@@ -1,17 +1,28 @@
 package com.smartdoc.fileservice.service;
 
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.smartdoc.common.constant.RedisChannels;
 import com.smartdoc.common.exception.BusinessException;
+import com.smartdoc.common.result.CursorPage;
 import com.smartdoc.fileservice.entity.Document;
+import com.smartdoc.fileservice.entity.DocumentRole;
+import com.smartdoc.fileservice.entity.FileBlob;
 import com.smartdoc.fileservice.mapper.DocumentMapper;
+import com.smartdoc.fileservice.mapper.DocumentRoleMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -24,53 +35,40 @@ public class DocumentService {
     @Autowired
     private DocumentMapper documentMapper;
 
+    @Autowired
+    private DocumentRoleMapper documentRoleMapper;
+
     @Autowired
     private MinioService minioService;
 
+    @Autowired
+    private FileBlobService fileBlobService;
+
     @Autowired
     private DocumentPermissionService permissionService;
 
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
     // 支持的文件类型
     private static final String[] ALLOWED_TYPES = {"doc", "docx", "txt", "ppt", "pptx", "pdf"};
 
     /**
      * 上传文档
+     * 相同内容的文件只存储一份；内容已解析过的文档直接复用解析结果
      */
     @Transactional
     public Document uploadDocument(MultipartFile file, Long userId) {
-        // 文件格式校验
         String originalFilename = file.getOriginalFilename();
-        if (originalFilename == null || originalFilename.isEmpty()) {
-            throw new BusinessException("文件名不能为空");
-        }
-
-        String fileType = getFileType(originalFilename);
-        if (!isAllowedType(fileType)) {
-            throw new BusinessException("不支持的文件格式，仅支持: doc, docx, txt, ppt, pptx, pdf");
-        }
+        String fileType = checkFileType(originalFilename);
 
         try {
             // 生成唯一对象名
             String objectName = generateObjectName(userId, originalFilename);
             
-            // 上传到MinIO
-            minioService.uploadFile(file, objectName);
-
-            // 保存文档元数据
-            Document document = new Document();
-            document.setFileName(originalFilename);
-            document.setFileType(fileType);
-            document.setFileSize(file.getSize());
-            document.setFilePath(objectName);
-            document.setMinioBucket(minioService.getBucketName());
-            document.setMinioObject(objectName);
-            document.setUserId(userId);
-            document.setStatus(0); // 上传中
-            document.setAccessType("private"); // 默认私有
-            document.setCreateTime(LocalDateTime.now());
-            document.setUpdateTime(LocalDateTime.now());
-
-            documentMapper.insert(document);
+            // 上传到MinIO（内容已存在时复用已有对象）
+            FileBlobService.StoredBlob stored = fileBlobService.store(file, objectName);
+            Document document = insertDocument(stored, originalFilename, fileType, file.getSize(), userId);
 
             log.info("文档上传成功: documentId={}, fileName={}", document.getId(), originalFilename);
             return document;
@@ -81,21 +79,207 @@ public class DocumentService {
     }
 
     /**
-     * 获取文档列表（包含用户有权限访问的文档）
+     * 保存分片直传完成的文档：对象已由客户端写入MinIO，这里只登记内容和元数据
      */
-    public List<Document> getDocumentList(Long userId, String userRole) {
-        LambdaQueryWrapper<Document> wrapper = new LambdaQueryWrapper<>();
-        // 获取用户上传的文档或公开的文档
-        wrapper.and(w -> w.eq(Document::getUserId, userId)
-                .or()
-                .eq(Document::getAccessType, "public"));
-        wrapper.orderByDesc(Document::getCreateTime);
-        List<Document> documents = documentMapper.selectList(wrapper);
-        
-        // 过滤出用户有权限访问的文档（包括角色限制的文档）
-        return documents.stream()
-                .filter(doc -> permissionService.hasPermission(doc.getId(), userId, userRole))
-                .collect(java.util.stream.Collectors.toList());
+    @Transactional
+    public Document saveUploadedDocument(String fileName, String objectName, String contentHash,
+                                         long fileSize, Long userId) {
+        String fileType = checkFileType(fileName);
+        FileBlobService.StoredBlob stored = fileBlobService.register(contentHash, objectName, fileSize);
+        Document document = insertDocument(stored, fileName, fileType, fileSize, userId);
+        log.info("文档分片上传完成: documentId={}, fileName={}", document.getId(), fileName);
+        return document;
+    }
+
+    /**
+     * 上传文档的修订版本：替换文件内容，保留文档ID和权限
+     * 重新解析时按文本块内容哈希增量更新索引，只向量化新增或变化的文本块
+     */
+    @Transactional
+    public Document updateDocumentContent(Long documentId, MultipartFile file, Long userId) {
+        Document document = checkContentOwner(documentId, userId);
+        String originalFilename = file.getOriginalFilename();
+        String fileType = checkFileType(originalFilename);
+
+        try {
+            String objectName = generateObjectName(userId, originalFilename);
+            FileBlobService.StoredBlob stored = fileBlobService.store(file, objectName);
+            replaceContent(document, stored, originalFilename, fileType, file.getSize());
+        } catch (Exception e) {
+            log.error("文档内容更新失败: documentId={}", documentId, e);
+            throw new BusinessException("文档内容更新失败: " + e.getMessage());
+        }
+
+        // 索引ID可能变化，通知问答服务刷新缓存
+        publishPermissionChanged(documentId);
+        log.info("文档内容已更新: documentId={}, fileName={}", documentId, originalFilename);
+        return document;
+    }
+
+    /**
+     * 以分片直传完成的对象替换文档内容
+     */
+    @Transactional
+    public Document replaceUploadedContent(Long documentId, String fileName, String objectName, String contentHash,
+                                           long fileSize, Long userId) {
+        Document document = checkContentOwner(documentId, userId);
+        String fileType = checkFileType(fileName);
+
+        try {
+            FileBlobService.StoredBlob stored = fileBlobService.register(contentHash, objectName, fileSize);
+            replaceContent(document, stored, fileName, fileType, fileSize);
+        } catch (BusinessException e) {
+            throw e;
+        } catch (Exception e) {
+            log.error("文档内容更新失败: documentId={}", documentId, e);
+            throw new BusinessException("文档内容更新失败: " + e.getMessage());
+        }
+
+        publishPermissionChanged(documentId);
+        log.info("文档内容已更新（分片上传）: documentId={}, fileName={}", documentId, fileName);
+        return document;
+    }
+
+    /**
+     * 校验文件名并返回文件类型
+     */
+    public String checkFileType(String fileName) {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new BusinessException("文件名不能为空");
+        }
+        String fileType = getFileType(fileName);
+        if (!isAllowedType(fileType)) {
+            throw new BusinessException("不支持的文件格式，仅支持: doc, docx, txt, ppt, pptx, pdf");
+        }
+        return fileType;
+    }
+
+    /**
+     * 校验用户能否更新文档内容（只有所有者可以）
+     */
+    public Document checkContentOwner(Long documentId, Long userId) {
+        Document document = getDocumentByIdWithoutPermissionCheck(documentId);
+        if (document == null) {
+            throw new BusinessException("文档不存在");
+        }
+        if (!document.getUserId().equals(userId)) {
+            throw new BusinessException("只有文档所有者可以更新文档内容");
+        }
+        return document;
+    }
+
+    /**
+     * 获取文档的下载地址（MinIO预签名GET，客户端直接从MinIO下载，支持Range断点续传）
+     */
+    public String getDownloadUrl(Long documentId, Long userId, String userRole) {
+        Document document = getDocumentById(documentId, userId, userRole);
+        try {
+            return minioService.getPresignedDownloadUrl(document.getMinioObject(), document.getFileName());
+        } catch (Exception e) {
+            log.error("生成下载地址失败: documentId={}", documentId, e);
+            throw new BusinessException("生成下载地址失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 保存新文档的元数据
+     */
+    private Document insertDocument(FileBlobService.StoredBlob stored, String fileName, String fileType,
+                                    long fileSize, Long userId) {
+        FileBlob blob = stored.getBlob();
+        Document document = new Document();
+        document.setFileName(fileName);
+        document.setFileType(fileType);
+        document.setFileSize(fileSize);
+        document.setFilePath(blob.getMinioObject());
+        document.setMinioBucket(minioService.getBucketName());
+        document.setMinioObject(blob.getMinioObject());
+        document.setContentHash(blob.getContentHash());
+        document.setIndexId(blob.getIndexId());
+        document.setUserId(userId);
+        document.setStatus(!stored.isCreated() && isIndexed(blob.getIndexId()) ? 2 : 0); // 上传中或已解析
+        document.setAccessType("private"); // 默认私有
+        document.setCreateTime(LocalDateTime.now());
+        document.setUpdateTime(LocalDateTime.now());
+
+        documentMapper.insert(document);
+        return document;
+    }
+
+    /**
+     * 替换文档内容：释放旧版本；旧版本不再被其他文档引用时，新内容继承它的索引ID以便增量重建
+     */
+    private void replaceContent(Document document, FileBlobService.StoredBlob stored, String fileName,
+                                String fileType, long fileSize) throws Exception {
+        FileBlob blob = stored.getBlob();
+        Long previousIndexId = null;
+        if (document.getContentHash() == null) {
+            // 去重之前上传的文档独占MinIO对象，索引按文档ID存储
+            deleteObjectAfterCommit(document.getMinioObject());
+            previousIndexId = document.getId();
+        } else {
+            FileBlob released = fileBlobService.release(document.getContentHash());
+            if (released != null) {
+                deleteObjectAfterCommit(released.getMinioObject());
+                previousIndexId = released.getIndexId();
+            }
+        }
+        if (stored.isCreated() && previousIndexId != null) {
+            fileBlobService.inheritIndexId(blob, previousIndexId);
+        } else if (previousIndexId != null) {
+            // 新内容已有索引，旧版本的索引数据不再被引用
+            publishIndexReleased(previousIndexId);
+        }
+
+        document.setFileName(fileName);
+        document.setFileType(fileType);
+        document.setFileSize(fileSize);
+        document.setFilePath(blob.getMinioObject());
+        document.setMinioObject(blob.getMinioObject());
+        document.setContentHash(blob.getContentHash());
+        document.setIndexId(blob.getIndexId());
+        document.setStatus(!stored.isCreated() && isIndexed(blob.getIndexId()) ? 2 : 0); // 待重新解析或已解析
+        document.setErrorMessage(null);
+        document.setUpdateTime(LocalDateTime.now());
+        documentMapper.updateById(document);
+    }
+
+    /**
+     * 获取文档列表（包含用户有权限访问的文档，游标分页）
+     * 权限过滤在SQL中完成，角色授权来自document_role表
+     * @param cursor 上一页返回的nextCursor，为空时从最新的文档开始
+     * @param size 每页条数
+     */
+    public CursorPage<Document> getDocumentList(Long userId, String userRole, String cursor, Integer size) {
+        int pageSize = CursorPage.normalizeSize(size);
+        CursorPage.Cursor position = CursorPage.decodeCursor(cursor);
+
+        // 多取一条判断是否还有下一页
+        List<Document> documents = documentMapper.selectAccessibleDocuments(userId, userRole,
+                position != null ? position.getCreateTime() : null,
+                position != null ? position.getId() : null,
+                pageSize + 1);
+
+        String nextCursor = null;
+        if (documents.size() > pageSize) {
+            documents = documents.subList(0, pageSize);
+            Document last = documents.get(pageSize - 1);
+            nextCursor = CursorPage.encodeCursor(last.getCreateTime(), last.getId());
+        }
+        return new CursorPage<>(documents, nextCursor);
+    }
+
+    /**
+     * 获取用户有权限访问且已解析完成的文档及其索引ID，跨文档问答时作为检索范围
+     * @return 文档ID → 索引ID（相同内容的文档共享索引ID）
+     */
+    public Map<Long, Long> getAccessibleIndexIds(Long userId, String userRole) {
+        List<Document> documents = documentMapper.selectAccessibleIndexIds(userId, userRole);
+        Map<Long, Long> indexIds = new LinkedHashMap<>(documents.size() * 2);
+        for (Document document : documents) {
+            indexIds.put(document.getId(), document.getIndexId());
+        }
+        return indexIds;
     }
 
     /**
@@ -107,7 +291,7 @@ public class DocumentService {
             throw new BusinessException("文档不存在");
         }
         // 权限校验
-        permissionService.checkPermission(documentId, userId, userRole);
+        permissionService.checkPermission(document, userId, userRole);
         return document;
     }
 
@@ -140,7 +324,10 @@ public class DocumentService {
         }
         document.setUpdateTime(LocalDateTime.now());
         documentMapper.updateById(document);
+        saveDocumentRoles(documentId, allowedRoles);
         
+        publishPermissionChanged(documentId);
+
         log.info("文档权限设置成功: documentId={}, accessType={}, allowedRoles={}", 
                 documentId, accessType, allowedRoles);
     }
@@ -153,11 +340,28 @@ public class DocumentService {
         Document document = getDocumentById(documentId, userId, userRole);
         
         try {
-            // 删除MinIO中的文件
-            minioService.deleteFile(document.getMinioObject());
+            // 删除MinIO中的文件：去重存储的内容按引用计数回收
+            Long releasedIndexId = null;
+            if (document.getContentHash() != null) {
+                FileBlob released = fileBlobService.release(document.getContentHash());
+                if (released != null) {
+                    deleteObjectAfterCommit(released.getMinioObject());
+                    releasedIndexId = released.getIndexId();
+                }
+            } else {
+                deleteObjectAfterCommit(document.getMinioObject());
+                // 去重之前上传的文档独占索引，索引ID即文档ID
+                releasedIndexId = document.getIndexId() != null ? document.getIndexId() : documentId;
+            }
             
             // 删除数据库记录
             documentMapper.deleteById(documentId);
+            saveDocumentRoles(documentId, null);
+            publishPermissionChanged(documentId);
+            // 内容已无引用：异步清理向量、关键词索引和文本块登记
+            if (releasedIndexId != null) {
+                publishIndexReleased(releasedIndexId);
+            }
             
             log.info("文档删除成功: documentId={}", documentId);
         } catch (Exception e) {
@@ -179,6 +383,92 @@ public class DocumentService {
         }
     }
 
+    /**
+     * 该索引ID的内容是否已有文档解析完成
+     */
+    private boolean isIndexed(Long indexId) {
+        return documentMapper.selectCount(new LambdaQueryWrapper<Document>()
+                .eq(Document::getIndexId, indexId)
+                .eq(Document::getStatus, 2)) > 0;
+    }
+
+    /**
+     * 同步文档的角色授权行（与allowedRoles字段保持一致）
+     */
+    private void saveDocumentRoles(Long documentId, List<String> allowedRoles) {
+        documentRoleMapper.delete(new LambdaQueryWrapper<DocumentRole>()
+                .eq(DocumentRole::getDocumentId, documentId));
+        if (allowedRoles == null) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        for (String role : new LinkedHashSet<>(allowedRoles)) {
+            DocumentRole documentRole = new DocumentRole();
+            documentRole.setDocumentId(documentId);
+            documentRole.setRole(role);
+            documentRole.setCreateTime(now);
+            documentRole.setUpdateTime(now);
+            documentRoleMapper.insert(documentRole);
+        }
+    }
+
+    /**
+     * 通知其他服务文档权限已变更（事务提交后发送），通知失败只影响缓存失效的及时性
+     */
+    private void publishPermissionChanged(Long documentId) {
+        afterCommit(() -> {
+            try {
+                stringRedisTemplate.convertAndSend(RedisChannels.DOCUMENT_PERMISSION_CHANGED, documentId.toString());
+            } catch (Exception e) {
+                log.warn("发送文档权限变更通知失败: documentId={}", documentId, e);
+            }
+        });
+    }
+
+    /**
+     * 通知文档服务清理不再被引用的索引数据（事务提交后发送）
+     * 先登记到待清理集合再发送通知，通知丢失时由文档服务定时扫描补偿
+     */
+    private void publishIndexReleased(Long indexId) {
+        afterCommit(() -> {
+            try {
+                stringRedisTemplate.opsForSet().add(RedisChannels.DOCUMENT_INDEX_PURGE_PENDING, indexId.toString());
+                stringRedisTemplate.convertAndSend(RedisChannels.DOCUMENT_INDEX_RELEASED, indexId.toString());
+            } catch (Exception e) {
+                log.error("发送索引清理通知失败，索引数据需要手动清理: indexId={}", indexId, e);
+            }
+        });
+    }
+
+    /**
+     * 事务提交后删除MinIO对象：回滚时数据库记录仍指向完整的对象；删除失败只留下无引用的对象
+     */
+    private void deleteObjectAfterCommit(String objectName) {
+        afterCommit(() -> {
+            try {
+                minioService.deleteFile(objectName);
+            } catch (Exception e) {
+                log.warn("删除MinIO对象失败: objectName={}", objectName, e);
+            }
+        });
+    }
+
+    /**
+     * 在当前事务提交后执行，没有事务时立即执行
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
     /**
      * 获取文件类型
      */
@@ -205,7 +495,7 @@ public class DocumentService {
     /**
      * 生成对象名
      */
-    private String generateObjectName(Long userId, String originalFilename) {
+    public String generateObjectName(Long userId, String originalFilename) {
         String uuid = UUID.randomUUID().toString().replace("-", "");
         String extension = "";
         int lastDot = originalFilename.lastIndexOf('.');
@@ -0,0 +1,148 @@
+package com.smartdoc.fileservice.service;
+
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.smartdoc.common.exception.BusinessException;
+import com.smartdoc.fileservice.entity.Document;
+import com.smartdoc.fileservice.entity.FileBlob;
+import com.smartdoc.fileservice.mapper.DocumentMapper;
+import com.smartdoc.fileservice.mapper.FileBlobMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.time.LocalDateTime;
+
+/**
+ * 文件内容存储服务
+ * 按内容SHA-256去重：相同内容在MinIO中只保留一份，按引用计数回收。
+ * 引用同一内容的文档共享索引ID，解析结果（文本块、向量、关键词索引）只生成一次
+ */
+@Slf4j
+@Service
+public class FileBlobService {
+
+    /**
+     * 并发上传相同内容时插入冲突的重试次数
+     */
+    private static final int MAX_STORE_ATTEMPTS = 3;
+
+    @Autowired
+    private FileBlobMapper fileBlobMapper;
+
+    @Autowired
+    private DocumentMapper documentMapper;
+
+    @Autowired
+    private MinioService minioService;
+
+    /**
+     * 存储文件内容：上传时计算哈希，内容已存在则增加引用并删除刚上传的对象
+     * @param objectName 新内容使用的对象名
+     */
+    public StoredBlob store(MultipartFile file, String objectName) throws Exception {
+        String contentHash = minioService.uploadFileWithHash(file, objectName);
+        return register(contentHash, objectName, file.getSize());
+    }
+
+    /**
+     * 登记已写入MinIO的内容（如分片直传完成的对象），内容已存在则增加引用并删除该对象
+     */
+    public StoredBlob register(String contentHash, String objectName, long fileSize) {
+        for (int attempt = 0; attempt < MAX_STORE_ATTEMPTS; attempt++) {
+            if (fileBlobMapper.incrementRef(contentHash) > 0) {
+                deleteObjectQuietly(objectName);
+                FileBlob blob = fileBlobMapper.selectByHash(contentHash);
+                log.info("文件内容已存在，复用: contentHash={}, refCount={}", contentHash, blob.getRefCount());
+                return new StoredBlob(blob, false);
+            }
+
+            FileBlob blob = new FileBlob();
+            blob.setContentHash(contentHash);
+            blob.setMinioObject(objectName);
+            blob.setFileSize(fileSize);
+            blob.setRefCount(1);
+            blob.setIndexId(0L);
+            blob.setCreateTime(LocalDateTime.now());
+            blob.setUpdateTime(LocalDateTime.now());
+            try {
+                fileBlobMapper.insert(blob);
+            } catch (DuplicateKeyException e) {
+                // 并发上传了相同内容，重新尝试引用
+                continue;
+            }
+            // 新内容的索引ID取负数，不与按文档ID存储的旧数据冲突
+            blob.setIndexId(-blob.getId());
+            fileBlobMapper.updateById(blob);
+            return new StoredBlob(blob, true);
+        }
+
+        deleteObjectQuietly(objectName);
+        throw new BusinessException("文件存储冲突，请重试");
+    }
+
+    /**
+     * 释放一次内容引用，引用归零时删除内容记录
+     * MinIO对象不在这里删除：调用方在事务提交后删除返回内容的对象，事务回滚时记录仍指向完整的对象
+     * @return 被删除的内容，仍有引用时返回null
+     */
+    public FileBlob release(String contentHash) {
+        if (contentHash == null || fileBlobMapper.decrementRef(contentHash) == 0) {
+            return null;
+        }
+        FileBlob blob = fileBlobMapper.selectByHash(contentHash);
+        if (blob == null || blob.getRefCount() > 0) {
+            return null;
+        }
+        fileBlobMapper.deleteById(blob.getId());
+        log.info("文件内容已无引用，删除: contentHash={}", contentHash);
+        return blob;
+    }
+
+    /**
+     * 新内容继承上一版本的索引ID：修订后重新解析时按文本块内容哈希增量更新，而不是整体重建
+     */
+    public void inheritIndexId(FileBlob blob, Long indexId) {
+        Long previous = blob.getIndexId();
+        blob.setIndexId(indexId);
+        blob.setUpdateTime(LocalDateTime.now());
+        fileBlobMapper.updateById(blob);
+        // 继承之前已引用该内容的文档一并切换
+        documentMapper.update(null, new LambdaUpdateWrapper<Document>()
+                .eq(Document::getIndexId, previous)
+                .set(Document::getIndexId, indexId));
+    }
+
+    private void deleteObjectQuietly(String objectName) {
+        try {
+            minioService.deleteFile(objectName);
+        } catch (Exception e) {
+            log.warn("删除MinIO对象失败: objectName={}", objectName, e);
+        }
+    }
+
+    /**
+     * 存储结果
+     */
+    public static class StoredBlob {
+        private final FileBlob blob;
+        private final boolean created;
+
+        StoredBlob(FileBlob blob, boolean created) {
+            this.blob = blob;
+            this.created = created;
+        }
+
+        public FileBlob getBlob() {
+            return blob;
+        }
+
+        /**
+         * 是否为新内容（此前没有相同内容的文件）
+         */
+        public boolean isCreated() {
+            return created;
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package com.smartdoc.fileservice.service;
 
 import io.minio.BucketExistsArgs;
+import io.minio.GetPresignedObjectUrlArgs;
 import io.minio.MakeBucketArgs;
+import io.minio.MinioAsyncClient;
 import io.minio.MinioClient;
 import io.minio.PutObjectArgs;
 import io.minio.GetObjectArgs;
 import io.minio.RemoveObjectArgs;
+import io.minio.http.Method;
+import io.minio.messages.Part;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -13,9 +17,17 @@ import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.PostConstruct;
 import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * MinIO文件存储服务
+ * 大文件通过预签名URL由客户端直接与MinIO传输（分片上传、Range下载），不经过网关和文件服务
  */
 @Slf4j
 @Service
@@ -33,8 +45,30 @@ public class MinioService {
     @Value("${minio.bucket:documents}")
     private String bucketName;
 
+    /**
+     * 客户端访问MinIO的地址（预签名URL的签名包含主机名，需与客户端实际访问的地址一致）
+     */
+    @Value("${minio.public-endpoint:${minio.endpoint:http://localhost:9000}}")
+    private String publicEndpoint;
+
+    /**
+     * 预签名时使用的区域，指定后生成URL不需要向MinIO查询bucket区域
+     */
+    @Value("${minio.region:us-east-1}")
+    private String region;
+
+    /**
+     * 预签名URL有效期（秒）
+     */
+    @Value("${minio.presign-expiry-seconds:3600}")
+    private int presignExpirySeconds;
+
     private MinioClient minioClient;
 
+    private MinioClient presignClient;
+
+    private MultipartMinioClient multipartClient;
+
     @PostConstruct
     public void init() {
         try {
@@ -42,6 +76,16 @@ public class MinioService {
                     .endpoint(endpoint)
                     .credentials(accessKey, secretKey)
                     .build();
+            presignClient = MinioClient.builder()
+                    .endpoint(publicEndpoint)
+                    .credentials(accessKey, secretKey)
+                    .region(region)
+                    .build();
+            multipartClient = new MultipartMinioClient(MinioAsyncClient.builder()
+                    .endpoint(endpoint)
+                    .credentials(accessKey, secretKey)
+                    .region(region)
+                    .build());
 
             // 确保bucket存在
             boolean found = minioClient.bucketExists(BucketExistsArgs.builder()
@@ -78,6 +122,39 @@ public class MinioService {
         }
     }
 
+    /**
+     * 上传文件，同时计算内容的SHA-256（边上传边计算，不额外读取文件）
+     * @return 内容哈希（十六进制）
+     */
+    public String uploadFileWithHash(MultipartFile file, String objectName) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream inputStream = new DigestInputStream(file.getInputStream(), digest)) {
+            minioClient.putObject(PutObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(objectName)
+                    .stream(inputStream, file.getSize(), -1)
+                    .contentType(file.getContentType())
+                    .build());
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * 计算已存储对象的SHA-256（流式读取，内存占用与文件大小无关）
+     * @return 内容哈希（十六进制）
+     */
+    public String hashObject(String objectName) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = downloadFile(objectName)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
     /**
      * 上传文件（InputStream）
      */
@@ -112,6 +189,73 @@ public class MinioService {
                 .build());
     }
 
+    /**
+     * 创建分片上传
+     * @return MinIO的uploadId
+     */
+    public String createMultipartUpload(String objectName, String contentType) throws Exception {
+        return multipartClient.createMultipartUpload(bucketName, objectName, contentType);
+    }
+
+    /**
+     * 生成分片的预签名PUT地址，客户端直接把分片上传到MinIO
+     * @param partNumber 分片号，从1开始
+     */
+    public String getPresignedPartUrl(String objectName, String uploadId, int partNumber) throws Exception {
+        Map<String, String> queryParams = new HashMap<>();
+        queryParams.put("uploadId", uploadId);
+        queryParams.put("partNumber", String.valueOf(partNumber));
+        return presignClient.getPresignedObjectUrl(GetPresignedObjectUrlArgs.builder()
+                .method(Method.PUT)
+                .bucket(bucketName)
+                .object(objectName)
+                .expiry(presignExpirySeconds)
+                .extraQueryParams(queryParams)
+                .build());
+    }
+
+    /**
+     * 列出已上传的分片（以MinIO记录为准，客户端不需要回传ETag）
+     */
+    public List<Part> listUploadedParts(String objectName, String uploadId) throws Exception {
+        return multipartClient.listParts(bucketName, objectName, uploadId);
+    }
+
+    /**
+     * 合并分片
+     */
+    public void completeMultipartUpload(String objectName, String uploadId, Part[] parts) throws Exception {
+        multipartClient.completeMultipartUpload(bucketName, objectName, uploadId, parts);
+    }
+
+    /**
+     * 取消分片上传，删除已上传的分片
+     */
+    public void abortMultipartUpload(String objectName, String uploadId) throws Exception {
+        multipartClient.abortMultipartUpload(bucketName, objectName, uploadId);
+    }
+
+    /**
+     * 生成预签名GET地址，客户端直接从MinIO下载（支持Range请求）
+     * @param fileName 下载时保存的文件名
+     */
+    public String getPresignedDownloadUrl(String objectName, String fileName) throws Exception {
+        Map<String, String> queryParams = new HashMap<>();
+        queryParams.put("response-content-disposition",
+                "attachment; filename*=UTF-8''" + URLEncoder.encode(fileName, StandardCharsets.UTF_8.name()).replace("+", "%20"));
+        return presignClient.getPresignedObjectUrl(GetPresignedObjectUrlArgs.builder()
+                .method(Method.GET)
+                .bucket(bucketName)
+                .object(objectName)
+                .expiry(presignExpirySeconds)
+                .extraQueryParams(queryParams)
+                .build());
+    }
+
+    public int getPresignExpirySeconds() {
+        return presignExpirySeconds;
+    }
+
     /**
      * 获取文件URL
      */
@@ -122,5 +266,13 @@ public class MinioService {
     public String getBucketName() {
         return bucketName;
     }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
 }
 
@@ -0,0 +1,59 @@
+package com.smartdoc.fileservice.service;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import io.minio.MinioAsyncClient;
+import io.minio.messages.ListPartsResult;
+import io.minio.messages.Part;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 暴露MinIO SDK中受保护的分片上传接口（创建、列出、合并、取消）
+ * 分片本身由客户端通过预签名URL直接上传到MinIO
+ */
+class MultipartMinioClient extends MinioAsyncClient {
+
+    /**
+     * 单次列出分片的最大数量（S3上限）
+     */
+    private static final int LIST_PARTS_PAGE = 1000;
+
+    MultipartMinioClient(MinioAsyncClient client) {
+        super(client);
+    }
+
+    String createMultipartUpload(String bucket, String objectName, String contentType) throws Exception {
+        Multimap<String, String> headers = HashMultimap.create();
+        if (contentType != null && !contentType.isEmpty()) {
+            headers.put("Content-Type", contentType);
+        }
+        return createMultipartUploadAsync(bucket, null, objectName, headers, null).get().result().uploadId();
+    }
+
+    /**
+     * 列出已上传的分片（按分片号升序，自动翻页）
+     */
+    List<Part> listParts(String bucket, String objectName, String uploadId) throws Exception {
+        List<Part> parts = new ArrayList<>();
+        Integer marker = null;
+        while (true) {
+            ListPartsResult result = listPartsAsync(bucket, null, objectName, LIST_PARTS_PAGE, marker,
+                    uploadId, null, null).get().result();
+            parts.addAll(result.partList());
+            if (!result.isTruncated()) {
+                return parts;
+            }
+            marker = result.nextPartNumberMarker();
+        }
+    }
+
+    void completeMultipartUpload(String bucket, String objectName, String uploadId, Part[] parts) throws Exception {
+        completeMultipartUploadAsync(bucket, null, objectName, uploadId, parts, null, null).get();
+    }
+
+    void abortMultipartUpload(String bucket, String objectName, String uploadId) throws Exception {
+        abortMultipartUploadAsync(bucket, null, objectName, uploadId, null, null).get();
+    }
+}
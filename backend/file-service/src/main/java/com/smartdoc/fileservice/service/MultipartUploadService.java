@@ -0,0 +1,432 @@
+package com.smartdoc.fileservice.service;
+
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.smartdoc.common.exception.BusinessException;
+import com.smartdoc.fileservice.entity.Document;
+import com.smartdoc.fileservice.entity.UploadSession;
+import com.smartdoc.fileservice.mapper.UploadSessionMapper;
+import io.minio.messages.Part;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分片直传服务
+ * 客户端按会话把文件分片通过预签名URL直接上传到MinIO，文件服务只签发URL、合并分片和登记元数据，
+ * 大文件不再占用网关和文件服务的线程与内存。上传中断后查询会话即可得到已上传的分片，只补传缺失部分。
+ * 合并后计算内容哈希和登记文档在后台线程执行，客户端轮询会话状态得到生成的文档
+ */
+@Slf4j
+@Service
+public class MultipartUploadService {
+
+    private static final int UPLOADING = 0;
+    private static final int COMPLETED = 1;
+    private static final int ABORTED = 2;
+    private static final int COMPLETING = 3;
+    private static final int VERIFYING = 4;
+
+    /**
+     * S3分片限制：除最后一片外每片至少5MB，最多10000片
+     */
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    /**
+     * 每轮清理的过期会话数
+     */
+    private static final int CLEANUP_BATCH = 100;
+
+    /**
+     * 等待校验的会话数上限，超出的会话保持校验中，由清理任务稍后重新提交
+     */
+    private static final int FINALIZE_QUEUE_CAPACITY = 1000;
+
+    private static final int ERROR_MESSAGE_MAX_LENGTH = 500;
+
+    @Autowired
+    private UploadSessionMapper uploadSessionMapper;
+
+    @Autowired
+    private MinioService minioService;
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${file.upload.part-size-mb:16}")
+    private int partSizeMb;
+
+    @Value("${file.upload.max-file-size-mb:2048}")
+    private long maxFileSizeMb;
+
+    @Value("${file.upload.session-ttl-hours:24}")
+    private int sessionTtlHours;
+
+    @Value("${file.upload.cleanup-interval-minutes:30}")
+    private int cleanupIntervalMinutes;
+
+    @Value("${file.upload.finalize-threads:2}")
+    private int finalizeThreads;
+
+    @Value("${file.upload.finalize-timeout-minutes:30}")
+    private int finalizeTimeoutMinutes;
+
+    private final ScheduledExecutorService cleanupExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "upload-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 合并后的校验和登记：流式读取整个对象计算哈希耗时与文件大小成正比，不占用请求线程
+     */
+    private ThreadPoolExecutor finalizeExecutor;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        finalizeExecutor = new ThreadPoolExecutor(finalizeThreads, finalizeThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(FINALIZE_QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "upload-finalize-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        cleanupExecutor.scheduleWithFixedDelay(this::cleanupExpired,
+                cleanupIntervalMinutes, cleanupIntervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        cleanupExecutor.shutdownNow();
+        // 中断的校验任务使会话停留在校验中，超时后由其他实例的清理任务重新提交
+        finalizeExecutor.shutdownNow();
+    }
+
+    /**
+     * 创建分片上传会话
+     * @param documentId 修订的文档ID，为空表示上传新文档
+     * @return 会话信息和各分片的预签名上传地址
+     */
+    public Map<String, Object> initUpload(Long userId, String fileName, Long fileSize, String contentType, Long documentId) {
+        documentService.checkFileType(fileName);
+        if (fileSize == null || fileSize <= 0) {
+            throw new BusinessException("文件大小无效");
+        }
+        if (fileSize > maxFileSizeMb * 1024 * 1024) {
+            throw new BusinessException("文件大小超过限制: " + maxFileSizeMb + "MB");
+        }
+        if (documentId != null) {
+            documentService.checkContentOwner(documentId, userId);
+        }
+
+        // 分片数不超过上限：文件很大时按上限反推分片大小
+        long partSize = Math.max(Math.max((long) partSizeMb * 1024 * 1024, MIN_PART_SIZE),
+                (fileSize + MAX_PARTS - 1) / MAX_PARTS);
+        int partCount = (int) ((fileSize + partSize - 1) / partSize);
+        String objectName = documentService.generateObjectName(userId, fileName);
+
+        String uploadId;
+        try {
+            uploadId = minioService.createMultipartUpload(objectName, contentType);
+        } catch (Exception e) {
+            log.error("创建分片上传失败: fileName={}", fileName, e);
+            throw new BusinessException("创建分片上传失败: " + e.getMessage());
+        }
+
+        UploadSession session = new UploadSession();
+        session.setUploadId(uploadId);
+        session.setObjectName(objectName);
+        session.setFileName(fileName);
+        session.setFileSize(fileSize);
+        session.setPartSize(partSize);
+        session.setPartCount(partCount);
+        session.setUserId(userId);
+        session.setDocumentId(documentId);
+        session.setStatus(UPLOADING);
+        session.setExpireTime(LocalDateTime.now().plusHours(sessionTtlHours));
+        session.setCreateTime(LocalDateTime.now());
+        session.setUpdateTime(LocalDateTime.now());
+        uploadSessionMapper.insert(session);
+
+        log.info("创建分片上传会话: sessionId={}, fileName={}, fileSize={}, partCount={}",
+                session.getId(), fileName, fileSize, partCount);
+        return describe(session, new TreeSet<>());
+    }
+
+    /**
+     * 查询上传会话（断点续传）：返回已上传的分片，并为缺失的分片重新签发上传地址；
+     * 已提交完成的会话返回状态，完成后附带生成的文档ID，失败时附带原因
+     */
+    public Map<String, Object> getUpload(Long sessionId, Long userId) {
+        UploadSession session = getOwnedSession(sessionId, userId);
+        if (session.getStatus() != UPLOADING) {
+            return describeStatus(session);
+        }
+        Set<Integer> uploaded = new TreeSet<>();
+        for (Part part : listParts(session)) {
+            uploaded.add(part.partNumber());
+        }
+        return describe(session, uploaded);
+    }
+
+    /**
+     * 完成上传：校验并合并分片后立即返回，会话进入校验中；
+     * 后台计算内容哈希并登记文件内容（按SHA-256去重）和文档元数据，客户端轮询会话状态
+     */
+    public Map<String, Object> completeUpload(Long sessionId, Long userId) {
+        UploadSession session = getOwnedSession(sessionId, userId);
+        if (uploadSessionMapper.transition(sessionId, UPLOADING, COMPLETING) == 0) {
+            throw new BusinessException("上传会话已结束或正在合并");
+        }
+
+        try {
+            List<Part> parts = listParts(session);
+            checkParts(session, parts);
+            minioService.completeMultipartUpload(session.getObjectName(), session.getUploadId(),
+                    parts.toArray(new Part[0]));
+        } catch (Exception e) {
+            // 分片不完整或合并失败：回到上传中，客户端补传后可以再次完成
+            uploadSessionMapper.transition(sessionId, COMPLETING, UPLOADING);
+            if (e instanceof BusinessException) {
+                throw (BusinessException) e;
+            }
+            log.error("合并分片失败: sessionId={}", sessionId, e);
+            throw new BusinessException("合并分片失败: " + e.getMessage());
+        }
+
+        uploadSessionMapper.transition(sessionId, COMPLETING, VERIFYING);
+        submitFinalize(session);
+        return describeStatus(uploadSessionMapper.selectById(sessionId));
+    }
+
+    /**
+     * 取消上传，删除已上传的分片
+     */
+    public void abortUpload(Long sessionId, Long userId) {
+        UploadSession session = getOwnedSession(sessionId, userId);
+        if (uploadSessionMapper.transition(sessionId, UPLOADING, ABORTED) == 0) {
+            throw new BusinessException("上传会话已结束或正在合并");
+        }
+        abortQuietly(session);
+        log.info("分片上传已取消: sessionId={}", sessionId);
+    }
+
+    /**
+     * 取消过期未完成的会话，回收MinIO中残留的分片；重新提交长时间停留在校验中的会话
+     */
+    void cleanupExpired() {
+        try {
+            List<UploadSession> expired = uploadSessionMapper.selectList(new LambdaQueryWrapper<UploadSession>()
+                    .eq(UploadSession::getStatus, UPLOADING)
+                    .lt(UploadSession::getExpireTime, LocalDateTime.now())
+                    .last("LIMIT " + CLEANUP_BATCH));
+            for (UploadSession session : expired) {
+                if (uploadSessionMapper.transition(session.getId(), UPLOADING, ABORTED) > 0) {
+                    abortQuietly(session);
+                    log.info("分片上传会话已过期: sessionId={}", session.getId());
+                }
+            }
+        } catch (Exception e) {
+            log.warn("清理过期上传会话失败", e);
+        }
+
+        try {
+            LocalDateTime staleBefore = LocalDateTime.now().minusMinutes(finalizeTimeoutMinutes);
+            List<UploadSession> stale = uploadSessionMapper.selectList(new LambdaQueryWrapper<UploadSession>()
+                    .eq(UploadSession::getStatus, VERIFYING)
+                    .lt(UploadSession::getUpdateTime, staleBefore)
+                    .last("LIMIT " + CLEANUP_BATCH));
+            for (UploadSession session : stale) {
+                if (uploadSessionMapper.claimStale(session.getId(), VERIFYING, staleBefore) > 0) {
+                    log.info("重新提交校验超时的上传会话: sessionId={}", session.getId());
+                    submitFinalize(session);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("重新提交校验超时的上传会话失败", e);
+        }
+    }
+
+    private void submitFinalize(UploadSession session) {
+        try {
+            finalizeExecutor.execute(() -> finalizeUpload(session));
+        } catch (RejectedExecutionException e) {
+            // 会话保持校验中，超时后由清理任务重新提交
+            log.warn("校验队列已满，稍后重试: sessionId={}", session.getId());
+        }
+    }
+
+    /**
+     * 计算合并后对象的内容哈希并登记文档
+     */
+    private void finalizeUpload(UploadSession session) {
+        Long sessionId = session.getId();
+        try {
+            // 客户端直传的内容没有经过文件服务，合并后流式读取一遍计算内容哈希
+            String contentHash = minioService.hashObject(session.getObjectName());
+            Document document = transactionTemplate.execute(status -> {
+                // 状态切换与登记在同一事务中，超时后重新提交的任务和原任务只有一个能登记成功
+                if (uploadSessionMapper.transition(sessionId, VERIFYING, COMPLETED) == 0) {
+                    return null;
+                }
+                Document saved = session.getDocumentId() == null
+                        ? documentService.saveUploadedDocument(session.getFileName(), session.getObjectName(),
+                                contentHash, session.getFileSize(), session.getUserId())
+                        : documentService.replaceUploadedContent(session.getDocumentId(), session.getFileName(),
+                                session.getObjectName(), contentHash, session.getFileSize(), session.getUserId());
+                UploadSession update = new UploadSession();
+                update.setId(sessionId);
+                update.setDocumentId(saved.getId());
+                uploadSessionMapper.updateById(update);
+                return saved;
+            });
+            if (document != null) {
+                log.info("分片上传已完成: sessionId={}, documentId={}", sessionId, document.getId());
+            }
+        } catch (Exception e) {
+            if (!(e instanceof BusinessException)) {
+                log.error("登记上传文档失败: sessionId={}", sessionId, e);
+            }
+            String reason = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            if (reason.length() > ERROR_MESSAGE_MAX_LENGTH) {
+                reason = reason.substring(0, ERROR_MESSAGE_MAX_LENGTH);
+            }
+            if (uploadSessionMapper.fail(sessionId, VERIFYING, ABORTED, reason) > 0) {
+                deleteObjectQuietly(session.getObjectName());
+            }
+        }
+    }
+
+    private UploadSession getOwnedSession(Long sessionId, Long userId) {
+        UploadSession session = uploadSessionMapper.selectById(sessionId);
+        if (session == null) {
+            throw new BusinessException(404, "上传会话不存在");
+        }
+        if (!session.getUserId().equals(userId)) {
+            throw new BusinessException("无权操作该上传会话");
+        }
+        return session;
+    }
+
+    private List<Part> listParts(UploadSession session) {
+        try {
+            List<Part> parts = minioService.listUploadedParts(session.getObjectName(), session.getUploadId());
+            parts.sort(Comparator.comparingInt(Part::partNumber));
+            return parts;
+        } catch (Exception e) {
+            log.error("查询已上传分片失败: sessionId={}", session.getId(), e);
+            throw new BusinessException("查询已上传分片失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 校验分片齐全且总大小与会话登记的一致
+     */
+    private void checkParts(UploadSession session, List<Part> parts) {
+        if (parts.size() != session.getPartCount()) {
+            throw new BusinessException("分片不完整: 已上传" + parts.size() + "/" + session.getPartCount());
+        }
+        long totalSize = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            Part part = parts.get(i);
+            if (part.partNumber() != i + 1) {
+                throw new BusinessException("缺少分片: " + (i + 1));
+            }
+            totalSize += part.partSize();
+        }
+        if (totalSize != session.getFileSize()) {
+            throw new BusinessException("文件大小不一致: 期望" + session.getFileSize() + "，实际" + totalSize);
+        }
+    }
+
+    /**
+     * 会话信息：缺失的分片附带预签名上传地址
+     */
+    private Map<String, Object> describe(UploadSession session, Set<Integer> uploaded) {
+        List<Map<String, Object>> pendingParts = new ArrayList<>();
+        try {
+            for (int partNumber = 1; partNumber <= session.getPartCount(); partNumber++) {
+                if (uploaded.contains(partNumber)) {
+                    continue;
+                }
+                Map<String, Object> part = new LinkedHashMap<>();
+                part.put("partNumber", partNumber);
+                part.put("url", minioService.getPresignedPartUrl(session.getObjectName(), session.getUploadId(), partNumber));
+                pendingParts.add(part);
+            }
+        } catch (Exception e) {
+            log.error("生成分片上传地址失败: sessionId={}", session.getId(), e);
+            throw new BusinessException("生成分片上传地址失败: " + e.getMessage());
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("sessionId", session.getId());
+        result.put("fileName", session.getFileName());
+        result.put("fileSize", session.getFileSize());
+        result.put("status", session.getStatus());
+        result.put("partSize", session.getPartSize());
+        result.put("partCount", session.getPartCount());
+        result.put("uploadedParts", uploaded);
+        result.put("pendingParts", pendingParts);
+        result.put("urlExpiresIn", minioService.getPresignExpirySeconds());
+        result.put("expireTime", session.getExpireTime());
+        return result;
+    }
+
+    /**
+     * 已提交完成的会话状态：完成后附带生成的文档ID，失败时附带原因
+     */
+    private Map<String, Object> describeStatus(UploadSession session) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("sessionId", session.getId());
+        result.put("fileName", session.getFileName());
+        result.put("fileSize", session.getFileSize());
+        result.put("status", session.getStatus());
+        if (session.getStatus() == COMPLETED) {
+            result.put("documentId", session.getDocumentId());
+        }
+        if (session.getErrorMessage() != null) {
+            result.put("errorMessage", session.getErrorMessage());
+        }
+        return result;
+    }
+
+    private void abortQuietly(UploadSession session) {
+        try {
+            minioService.abortMultipartUpload(session.getObjectName(), session.getUploadId());
+        } catch (Exception e) {
+            log.warn("取消MinIO分片上传失败: sessionId={}", session.getId(), e);
+        }
+    }
+
+    private void deleteObjectQuietly(String objectName) {
+        try {
+            minioService.deleteFile(objectName);
+        } catch (Exception e) {
+            log.warn("删除MinIO对象失败: objectName={}", objectName, e);
+        }
+    }
+}
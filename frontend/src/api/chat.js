@@ -1,15 +1,31 @@
 import request from './request'
 
-export const askQuestion = (documentId, question) => {
+// documentIds：在选定的多个文档中问答；documentId和documentIds都不传时在全部有权限的文档中问答
+export const askQuestion = (documentId, question, documentIds) => {
   return request.post('/chat/ask', {
     documentId,
+    documentIds,
     question
   })
 }
 
-export const getChatHistory = (documentId) => {
+// 多文档检索（不调用LLM）：documentIds不传时在全部有权限的文档中检索
+export const searchDocuments = (query, documentIds, topK) => {
+  return request.post('/chat/search', {
+    query,
+    documentIds,
+    topK
+  })
+}
+
+// 游标分页：cursor为上一页返回的nextCursor，不传时从最新的消息开始
+export const getChatHistory = (documentId, cursor, size) => {
   return request.get('/chat/history', {
-    params: { documentId }
+    params: { documentId, cursor, size }
   })
 }
 
+// 单条消息的完整问题和回答（历史列表中被截断的消息）
+export const getChatMessage = (messageId) => {
+  return request.get(`/chat/history/${messageId}`)
+}
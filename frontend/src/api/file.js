@@ -1,3 +1,4 @@
+import axios from 'axios'
 import request from './request'
 
 export const uploadFile = (file) => {
@@ -10,8 +11,100 @@ export const uploadFile = (file) => {
   })
 }
 
-export const getFileList = () => {
-  return request.get('/file/list')
+// 分片直传：分片通过预签名URL直接PUT到MinIO，不经过网关和文件服务
+// 会话ID按文件记录在localStorage，上传中断后重新选择同一文件时只补传缺失的分片
+const PART_CONCURRENCY = 3
+
+// 不超过该大小的文件单请求上传（与后端单请求上传上限一致），省去建会话、签URL和轮询的往返
+export const SINGLE_UPLOAD_MAX_SIZE = 16 * 1024 * 1024
+
+// 合并后文档在后台校验登记，轮询会话状态直到完成
+const UPLOAD_STATUS = { UPLOADING: 0, COMPLETED: 1, ABORTED: 2 }
+const POLL_INTERVAL_MS = 1000
+
+const uploadSessionKey = (file) => `upload-session:${file.name}:${file.size}:${file.lastModified}`
+
+const resumeOrInitUpload = async (file) => {
+  const key = uploadSessionKey(file)
+  const sessionId = localStorage.getItem(key)
+  if (sessionId) {
+    try {
+      return (await request.get(`/file/multipart/${sessionId}`)).data
+    } catch (e) {
+      localStorage.removeItem(key)
+    }
+  }
+  const session = (await request.post('/file/multipart/init', {
+    fileName: file.name,
+    fileSize: file.size,
+    contentType: file.type
+  })).data
+  localStorage.setItem(key, session.sessionId)
+  return session
+}
+
+// 会话有结果后才清除本地记录，轮询中断时再次上传同一文件会继续等待
+const waitForDocument = async (file, sessionId) => {
+  for (;;) {
+    const session = (await request.get(`/file/multipart/${sessionId}`)).data
+    if (session.status === UPLOAD_STATUS.COMPLETED) {
+      localStorage.removeItem(uploadSessionKey(file))
+      return request.get(`/file/${session.documentId}`)
+    }
+    if (session.status === UPLOAD_STATUS.ABORTED) {
+      localStorage.removeItem(uploadSessionKey(file))
+      throw new Error(session.errorMessage || '上传已取消')
+    }
+    await new Promise(resolve => setTimeout(resolve, POLL_INTERVAL_MS))
+  }
+}
+
+// 小文件单请求上传，大文件分片直传；两者都返回登记后的文档
+export const uploadFileAuto = (file, onProgress) => {
+  if (file.size <= SINGLE_UPLOAD_MAX_SIZE) {
+    return uploadFile(file)
+  }
+  return uploadFileMultipart(file, onProgress)
+}
+
+export const uploadFileMultipart = async (file, onProgress) => {
+  const session = await resumeOrInitUpload(file)
+  if (session.status !== UPLOAD_STATUS.UPLOADING) {
+    // 上次已提交完成：直接等待校验结果
+    return waitForDocument(file, session.sessionId)
+  }
+  const { partSize, fileSize } = session
+  let uploadedBytes = session.uploadedParts.length * partSize
+  const pending = [...session.pendingParts]
+
+  const worker = async () => {
+    while (pending.length > 0) {
+      const { partNumber, url } = pending.shift()
+      const start = (partNumber - 1) * partSize
+      const blob = file.slice(start, Math.min(start + partSize, fileSize))
+      await axios.put(url, blob)
+      uploadedBytes += blob.size
+      if (onProgress) {
+        onProgress(Math.min(100, Math.round(uploadedBytes * 100 / fileSize)))
+      }
+    }
+  }
+  await Promise.all(Array.from({ length: PART_CONCURRENCY }, worker))
+
+  await request.post(`/file/multipart/${session.sessionId}/complete`)
+  return waitForDocument(file, session.sessionId)
+}
+
+// 预签名下载地址，浏览器直接从MinIO下载（支持断点续传）
+export const getDownloadUrl = (documentId) => {
+  return request.get(`/file/${documentId}/download-url`)
+}
+
+// 游标分页：cursor为上一页返回的nextCursor，不传时从最新的文档开始
+export const getFileList = (cursor, size) => {
+  return request.get('/file/list', {
+    params: { cursor, size }
+  })
 }
 
 export const getFileDetail = (documentId) => {
@@ -0,0 +1,14 @@
+-- 文本块元数据：分片时得出的位置、章节、token数和SimHash，检索结果引用、相邻文本块扩展和近似去重直接使用
+USE `smart_doc_qa`;
+
+ALTER TABLE `document_chunk`
+ADD COLUMN `start_offset` INT(11) DEFAULT NULL COMMENT '在清洗后全文中的起始字符偏移' AFTER `content_hash`,
+ADD COLUMN `end_offset` INT(11) DEFAULT NULL COMMENT '在清洗后全文中的结束字符偏移（不含）' AFTER `start_offset`,
+ADD COLUMN `page_start` INT(11) DEFAULT NULL COMMENT '起始页码（PDF页、幻灯片），不分页的文档为0' AFTER `end_offset`,
+ADD COLUMN `page_end` INT(11) DEFAULT NULL COMMENT '结束页码' AFTER `page_start`,
+ADD COLUMN `heading_path` VARCHAR(500) DEFAULT NULL COMMENT '所属章节标题路径' AFTER `page_end`,
+ADD COLUMN `token_count` INT(11) DEFAULT NULL COMMENT 'token数' AFTER `heading_path`,
+ADD COLUMN `sim_hash` BIGINT(20) DEFAULT NULL COMMENT '内容64位SimHash' AFTER `token_count`;
+
+-- 按序号查找相邻文本块
+ALTER TABLE `document_chunk` ADD KEY `idx_document_chunk_index` (`document_id`, `chunk_index`);
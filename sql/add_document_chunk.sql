@@ -0,0 +1,15 @@
+-- 文档文本块登记表：记录每个文档已写入向量索引和关键词索引的文本块，
+-- 文档修订后重新入库时按内容哈希比对，只向量化新增或变化的文本块，并删除已不存在的文本块
+USE `smart_doc_qa`;
+
+CREATE TABLE IF NOT EXISTS `document_chunk` (
+    `id` BIGINT(20) NOT NULL AUTO_INCREMENT COMMENT 'ID',
+    `document_id` BIGINT(20) NOT NULL COMMENT '文档ID',
+    `chunk_id` VARCHAR(100) NOT NULL COMMENT '文本块ID（docId_contentHash）',
+    `chunk_index` INT(11) NOT NULL COMMENT '文本块在文档中的序号',
+    `content_hash` CHAR(64) NOT NULL COMMENT '内容SHA-256',
+    `create_time` DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time` DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `uk_document_chunk` (`document_id`, `chunk_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='文档文本块登记表';
@@ -0,0 +1,24 @@
+-- 文档角色授权表：将document.allowed_roles中的角色列表规范化为行，
+-- 文档列表可以在一条SQL中完成权限过滤
+USE `smart_doc_qa`;
+
+CREATE TABLE IF NOT EXISTS `document_role` (
+    `id` BIGINT(20) NOT NULL AUTO_INCREMENT COMMENT 'ID',
+    `document_id` BIGINT(20) NOT NULL COMMENT '文档ID',
+    `role` VARCHAR(20) NOT NULL COMMENT '允许访问的角色',
+    `create_time` DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time` DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `uk_document_role` (`document_id`, `role`),
+    KEY `idx_role_document` (`role`, `document_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='文档角色授权表';
+
+-- 文档列表按访问类型过滤
+ALTER TABLE `document` ADD KEY `idx_access_type` (`access_type`);
+
+-- 迁移已有的角色配置（需要MySQL 8.0的JSON_TABLE）
+INSERT IGNORE INTO `document_role` (`document_id`, `role`)
+SELECT d.`id`, jt.`role`
+FROM `document` d,
+     JSON_TABLE(d.`allowed_roles`, '$[*]' COLUMNS (`role` VARCHAR(20) PATH '$')) jt
+WHERE d.`allowed_roles` IS NOT NULL AND d.`allowed_roles` <> '' AND JSON_VALID(d.`allowed_roles`);
@@ -0,0 +1,26 @@
+-- 文件内容去重：相同内容（SHA-256）的文件在MinIO中只存一份，按引用计数回收；
+-- 引用同一内容的文档共享解析结果，向量、关键词索引、入库任务和文本块登记都按索引ID存储，
+-- 权限仍按文档各自判定
+USE `smart_doc_qa`;
+
+CREATE TABLE IF NOT EXISTS `file_blob` (
+    `id` BIGINT(20) NOT NULL AUTO_INCREMENT COMMENT 'ID',
+    `content_hash` CHAR(64) NOT NULL COMMENT '文件内容SHA-256',
+    `minio_object` VARCHAR(500) NOT NULL COMMENT 'MinIO对象名',
+    `file_size` BIGINT(20) NOT NULL COMMENT '文件大小（字节）',
+    `ref_count` INT(11) NOT NULL DEFAULT 1 COMMENT '引用该内容的文档数',
+    `index_id` BIGINT(20) NOT NULL DEFAULT 0 COMMENT '索引ID：新内容取-id（负数，不与文档ID冲突），修订后的新内容可继承上一版本的索引ID',
+    `create_time` DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time` DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `uk_content_hash` (`content_hash`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='文件内容表';
+
+ALTER TABLE `document` ADD COLUMN `content_hash` CHAR(64) DEFAULT NULL COMMENT '文件内容SHA-256' AFTER `minio_object`;
+ALTER TABLE `document` ADD COLUMN `index_id` BIGINT(20) DEFAULT NULL COMMENT '索引ID（为空时使用文档ID）' AFTER `content_hash`;
+ALTER TABLE `document` ADD KEY `idx_content_hash` (`content_hash`);
+ALTER TABLE `document` ADD KEY `idx_index_id` (`index_id`);
+
+-- 入库任务和文本块登记按索引ID存储
+ALTER TABLE `ingestion_job` MODIFY `document_id` BIGINT(20) NOT NULL COMMENT '索引ID（文档的index_id，为空时为文档ID）';
+ALTER TABLE `document_chunk` MODIFY `document_id` BIGINT(20) NOT NULL COMMENT '索引ID（文档的index_id，为空时为文档ID）';
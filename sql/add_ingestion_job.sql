@@ -0,0 +1,28 @@
+-- 文档入库任务表：记录解析阶段、进度计数和检查点，
+-- 失败或服务重启后从最后一个已提交的文本块批次继续，不必重新向量化整个文档
+USE `smart_doc_qa`;
+
+CREATE TABLE IF NOT EXISTS `ingestion_job` (
+    `id` BIGINT(20) NOT NULL AUTO_INCREMENT COMMENT '任务ID',
+    `document_id` BIGINT(20) NOT NULL COMMENT '文档ID',
+    `file_type` VARCHAR(20) NOT NULL COMMENT '文件类型',
+    `object_name` VARCHAR(500) NOT NULL COMMENT 'MinIO对象名',
+    `user_id` BIGINT(20) DEFAULT NULL COMMENT '提交用户ID',
+    `priority` VARCHAR(20) NOT NULL DEFAULT 'INTERACTIVE' COMMENT '优先级：INTERACTIVE, BULK',
+    `stage` VARCHAR(20) NOT NULL COMMENT '阶段：QUEUED, EXTRACTING, INDEXING, COMPLETED, FAILED, CANCELLED',
+    `attempts` INT(11) NOT NULL DEFAULT 0 COMMENT '已执行次数',
+    `pages_extracted` INT(11) NOT NULL DEFAULT 0 COMMENT '已抽取页数（PDF页、幻灯片）',
+    `chunks_produced` INT(11) NOT NULL DEFAULT 0 COMMENT '已产出文本块数',
+    `chunks_embedded` INT(11) NOT NULL DEFAULT 0 COMMENT '已向量化文本块数',
+    `chunks_indexed` INT(11) NOT NULL DEFAULT 0 COMMENT '已索引文本块数',
+    `checkpoint_chunk` INT(11) NOT NULL DEFAULT 0 COMMENT '检查点：该序号及之前的文本块均已写入索引',
+    `high_water_chunk` INT(11) NOT NULL DEFAULT 0 COMMENT '可能已写入索引的最大文本块序号',
+    `error_message` TEXT DEFAULT NULL COMMENT '错误信息',
+    `start_time` DATETIME DEFAULT NULL COMMENT '最近一次开始执行时间',
+    `finish_time` DATETIME DEFAULT NULL COMMENT '结束时间',
+    `create_time` DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time` DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `uk_document_id` (`document_id`),
+    KEY `idx_stage` (`stage`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='文档入库任务表';
@@ -0,0 +1,16 @@
+-- 文档列表与对话历史的游标分页索引
+-- 游标按(create_time, id)排序，InnoDB二级索引已隐含主键id
+USE `smart_doc_qa`;
+
+-- 对话历史：按用户、文档过滤后按时间倒序翻页
+ALTER TABLE `chat_message` ADD KEY `idx_user_document_time` (`user_id`, `document_id`, `create_time`);
+-- 对话历史：不指定文档时按用户过滤后按时间倒序翻页（上面的索引只能用到user_id前缀，需要额外排序）
+ALTER TABLE `chat_message` ADD KEY `idx_user_time` (`user_id`, `create_time`);
+
+-- 文档列表：查询拆成公开、角色授权、自己上传三个UNION ALL分支，
+-- 公开/角色限制分支沿idx_access_type_time、自己上传分支沿idx_user_time倒序扫描，各取一页后合并
+-- 执行后用EXPLAIN确认各分支的Extra中没有Using filesort（合并排序只涉及每个分支一页的数据）
+ALTER TABLE `document` ADD KEY `idx_user_time` (`user_id`, `create_time`);
+ALTER TABLE `document` ADD KEY `idx_access_type_time` (`access_type`, `create_time`);
+-- 被上面的联合索引覆盖
+ALTER TABLE `document` DROP KEY `idx_access_type`;
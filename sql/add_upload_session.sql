@@ -0,0 +1,23 @@
+-- 分片直传会话：客户端通过预签名URL把分片直接上传到MinIO，文件服务只签发URL和登记元数据；
+-- 上传中断后按会话查询已上传的分片，只补传缺失的分片
+USE `smart_doc_qa`;
+
+CREATE TABLE IF NOT EXISTS `upload_session` (
+    `id` BIGINT(20) NOT NULL AUTO_INCREMENT COMMENT 'ID',
+    `upload_id` VARCHAR(255) NOT NULL COMMENT 'MinIO分片上传ID',
+    `object_name` VARCHAR(500) NOT NULL COMMENT 'MinIO对象名',
+    `file_name` VARCHAR(255) NOT NULL COMMENT '原始文件名',
+    `file_size` BIGINT(20) NOT NULL COMMENT '文件大小（字节）',
+    `part_size` BIGINT(20) NOT NULL COMMENT '分片大小（字节，最后一片可以更小）',
+    `part_count` INT(11) NOT NULL COMMENT '分片数',
+    `user_id` BIGINT(20) NOT NULL COMMENT '上传用户ID',
+    `document_id` BIGINT(20) DEFAULT NULL COMMENT '修订的文档ID（为空表示新文档）；完成后为生成的文档ID',
+    `status` TINYINT(1) NOT NULL DEFAULT 0 COMMENT '0-上传中, 1-已完成, 2-已取消, 3-合并中, 4-校验中',
+    `error_message` VARCHAR(500) DEFAULT NULL COMMENT '校验或登记失败的原因',
+    `expire_time` DATETIME NOT NULL COMMENT '过期时间，过期未完成的会话自动取消',
+    `create_time` DATETIME DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time` DATETIME DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    KEY `idx_user_id` (`user_id`),
+    KEY `idx_status_expire` (`status`, `expire_time`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci COMMENT='分片上传会话表';